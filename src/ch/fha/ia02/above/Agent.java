@@ -1,5 +1,6 @@
 package ch.fha.ia02.above;
 
+import java.io.*;
 import javax.vecmath.*;
 
 /**
@@ -21,6 +22,17 @@ public class Agent {
 	/** This agent's current velocity and orientation. */
 	protected Vector3f velocity;
 
+	/**
+	 * The position and velocity of this agent as seen by other agents
+	 * while a step is computed. Usually the same objects as
+	 * {@link #position} and {@link #velocity}, but separate copies taken
+	 * before each step if the model is computed deterministically.
+	 *
+	 * @see #decouple(boolean)
+	 */
+	protected Vector3f seenPosition;
+	protected Vector3f seenVelocity;
+
 	/** This agent's current orientation and is initialised in y-direction. */
 	protected Vector3f up;
 
@@ -56,6 +68,18 @@ public class Agent {
 	 */
 	protected int group;
 
+	/**
+	 * Set to <tt>false</tt> for agents in headless models, which are
+	 * not shown and therefore fire no visible projectiles.
+	 */
+	protected boolean visible = true;
+
+	/**
+	 * Set while this agent is part of a partitioned model, whose
+	 * region applies the damage of hits at the end of the step.
+	 */
+	RegionNode remote;
+
 
 	/**
 	 * Creates a new agent with the specified position and velocity.
@@ -98,6 +122,8 @@ public class Agent {
 		this.up = new Vector3f(0,1,0); // FIXME: should be orthogonal to velocity
 		this.position = new Vector3f(position);
 		this.velocity = new Vector3f(velocity);
+		this.seenPosition = this.position;
+		this.seenVelocity = this.velocity;
 		this.stats = (AgentStats)stats.clone();
 		health = stats.health;
 		stats.validate();
@@ -200,6 +226,12 @@ public class Agent {
 	 * it dies and its faction is set to <tt>NEUTRAL</tt> to
 	 * preempt further participation in the battle.
 	 *
+	 * <p>
+	 * In a partitioned model, hits are passed to the process owning this
+	 * agent, which applies them at the end of the step in the order of
+	 * the attackers, just as a single process does. As the outcome is
+	 * not known before, <code>false</code> is returned then.
+	 *
 	 * @param damage the amount of damage taken by this agent.
 	 * @return <code>true</code> if this agent died now.
 	 */
@@ -208,10 +240,19 @@ public class Agent {
 			System.err.println("Ignored negative damage!");
 			return false;
 		}
+		if (remote != null) {
+			remote.route(this, damage);
+			return false;
+		}
+		return applyHit(damage);
+	}
+
+	/** Applies the damage of a hit, see {@link #hit(float)}. */
+	boolean applyHit(float damage) {
 		boolean died = health > 0 && damage >= health;
 		health -= damage;
 		if (died) {
-			System.out.println(name + " has died.");
+			if (visible) System.out.println(name + " has died.");
 			faction = Faction.NEUTRAL;
 			health = 0;
 		}
@@ -230,6 +271,76 @@ public class Agent {
 	 */
 	public void compute(float dt, Agent[] agents) {}
 
+	/**
+	 * Applies the effects of the last step on other agents, such as
+	 * firing and hitting them. Called after {@link #compute(float, Agent[])}
+	 * was invoked on all agents, one agent after another.
+	 * <p>
+	 * Implementations of <tt>compute()</tt> must only modify the state
+	 * of this agent, and read the state of other agents only through
+	 * {@link #seenPosition} and {@link #seenVelocity}, so the agents of
+	 * a model can be computed in any order or in parallel.
+	 * <p>
+	 * This implementation does nothing at all.
+	 */
+	public void commit() {}
+
+	/**
+	 * Specifies whether other agents see a copy of this agent's
+	 * position and velocity, which is only updated by {@link #publish()},
+	 * or the current values.
+	 *
+	 * @param decouple <tt>true</tt> to use a copy.
+	 */
+	void decouple(boolean decouple) {
+		if (decouple && seenPosition == position) {
+			seenPosition = new Vector3f(position);
+			seenVelocity = new Vector3f(velocity);
+		} else if (!decouple) {
+			seenPosition = position;
+			seenVelocity = velocity;
+		}
+	}
+
+	/** Updates the position and velocity seen by other agents. */
+	void publish() {
+		if (seenPosition != position) {
+			seenPosition.set(position);
+			seenVelocity.set(velocity);
+		}
+	}
+
+
+	/**
+	 * Writes the state of this agent that is not required to
+	 * construct it to the specified output.
+	 * Subclasses with additional state must override this method
+	 * as well as {@link #readState(DataInput, ModelSnapshot)}.
+	 *
+	 * @param out the stream to write to.
+	 * @param snapshot the snapshot being written, used to
+	 *        translate references to other agents.
+	 */
+	void writeState(DataOutput out, ModelSnapshot snapshot) throws IOException {
+		ModelSnapshot.writeVector(out, up);
+		out.writeFloat(health);
+		out.writeBoolean(collided);
+	}
+
+	/**
+	 * Restores the state previously written by
+	 * {@link #writeState(DataOutput, ModelSnapshot)}.
+	 *
+	 * @param in the stream to read from.
+	 * @param snapshot the snapshot being restored, used to
+	 *        resolve references to other agents.
+	 */
+	void readState(DataInput in, ModelSnapshot snapshot) throws IOException {
+		ModelSnapshot.readVector(in, up);
+		health = in.readFloat();
+		collided = in.readBoolean();
+	}
+
 
 	/** Returns a string representation of this agent. */
 	public String toString() {
@@ -249,10 +360,30 @@ public class Agent {
 	 * @return information about this agent's current state.
 	 */
 	public String statusText() {
+		return statusText(health, getTarget(), getEnemiesOnRadar());
+	}
+
+	/**
+	 * Formats the status of this agent from copies of its state,
+	 * so a snapshot can be formatted without locking the model.
+	 *
+	 * @see #statusText()
+	 */
+	protected String statusText(float health, Agent target, int enemiesOnRadar) {
 		if (health <= 0) {
 			return "dead";
 		} else {
 			return "";
 		}
 	}
+
+	/** Returns the agent this agent is attacking, or <tt>null</tt>. */
+	public Agent getTarget() {
+		return null;
+	}
+
+	/** Returns the number of enemies this agent sees on its radar. */
+	public int getEnemiesOnRadar() {
+		return 0;
+	}
 }
@@ -0,0 +1,415 @@
+package ch.fha.ia02.above;
+
+import java.nio.*;
+import javax.vecmath.*;
+
+/**
+ * Encodes and decodes the dynamic state of a fixed set of agents
+ * in a compact binary form.
+ * <p>
+ * Positions, velocities, up vectors and health are quantized to
+ * integers. A <em>keyframe</em> contains the absolute quantized values
+ * of all agents, while a <em>delta frame</em> only contains the
+ * differences to the previously encoded frame, omitting unchanged
+ * components altogether. All integers are written as zig-zag encoded
+ * variable length integers, so small differences take a single byte.
+ * <p>
+ * Encoder and decoder each keep the quantized state of the last frame
+ * as the reference for the next delta frame, so quantization errors
+ * do not accumulate. Frames must therefore be decoded in the same order
+ * they were encoded, starting with a keyframe.
+ * <p>
+ * A <em>partial frame</em> contains the differences of selected agents
+ * only, each preceded by its index. Positions and velocities of an agent
+ * may be sent with reduced precision, dropping some low bits of their
+ * differences. The reference then keeps the values actually sent, so the
+ * error is bounded by the reduced quantum and does not accumulate either.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ReplayRecorder
+ * @see ReplayPlayer
+ */
+public class AgentStateCodec
+{
+	/** Resolution of positions, in meters. */
+	public static final float POSITION_QUANTUM = 1/32f;
+
+	/** Resolution of velocities, in m/s. */
+	public static final float VELOCITY_QUANTUM = 1/16f;
+
+	/** Resolution of the (normalized) up vector. */
+	public static final float UP_QUANTUM = 1/4096f;
+
+	/** Number of quantized values per agent. */
+	static final int STRIDE = 10;
+
+	/** Offsets of the individual values. */
+	private static final int POS = 0;
+	private static final int VEL = 3;
+	private static final int UP = 6;
+	private static final int HEALTH = 9;
+
+	/** Bits in the change mask of a delta frame. */
+	private static final int CHANGED_POS = 1;
+	private static final int CHANGED_VEL = 2;
+	private static final int CHANGED_UP = 4;
+	private static final int CHANGED_HEALTH = 8;
+
+	/** Bits of the mask holding the precision of a partial frame. */
+	private static final int SHIFT_BITS = 4;
+
+	/** Maximal number of low bits dropped in a partial frame. */
+	public static final int MAX_SHIFT = 15;
+
+	/** Maximum number of bytes used to encode one agent. */
+	private static final int MAX_AGENT_SIZE = 5 + 1 + STRIDE*5;
+
+	/** The quantized state of the last frame. */
+	private int[] ref;
+
+	/** The quantized state of the agent currently being encoded. */
+	private int[] q = new int[STRIDE];
+
+
+	/**
+	 * Creates a new codec for the specified number of agents.
+	 * @param n the number of agents in each frame.
+	 */
+	public AgentStateCodec(int n) {
+		ref = new int[n*STRIDE];
+	}
+
+	/** Returns the number of agents in each frame. */
+	public int numAgents() {
+		return ref.length/STRIDE;
+	}
+
+	/**
+	 * Returns the maximum number of bytes a single frame may take.
+	 * @param n the number of agents in the frame.
+	 */
+	public static int maxFrameSize(int n) {
+		return n * MAX_AGENT_SIZE;
+	}
+
+
+	/**
+	 * Encodes the state of all agents into the buffer.
+	 *
+	 * @param agents the agents, always in the same order.
+	 * @param buf the buffer to write to, must have at least
+	 *        {@link #maxFrameSize(int)} bytes remaining.
+	 * @param keyframe <tt>true</tt> to write absolute values.
+	 */
+	public void encode(Agent[] agents, ByteBuffer buf, boolean keyframe) {
+		for (int i=0; i<agents.length; i++) {
+			quantize(agents[i], q, 0);
+			encodeAgent(q, 0, i*STRIDE, buf, keyframe);
+		}
+	}
+
+	/**
+	 * Encodes quantized states of all agents into the buffer.
+	 *
+	 * @param state the states, as returned by {@link #quantize(Agent[], int[])}.
+	 * @param buf the buffer to write to, must have at least
+	 *        {@link #maxFrameSize(int)} bytes remaining.
+	 * @param keyframe <tt>true</tt> to write absolute values.
+	 */
+	public void encode(int[] state, ByteBuffer buf, boolean keyframe) {
+		for (int r=0; r<ref.length; r+=STRIDE) {
+			encodeAgent(state, r, r, buf, keyframe);
+		}
+	}
+
+	/** Encodes a single agent and updates its reference. */
+	private void encodeAgent(int[] q, int o, int r, ByteBuffer buf, boolean keyframe) {
+		if (keyframe) {
+			for (int k=0; k<STRIDE; k++) {
+				putVarint(buf, q[o+k]);
+			}
+		} else {
+			int mask = 0;
+			if (changed(q, o, r, POS, 3)) mask |= CHANGED_POS;
+			if (changed(q, o, r, VEL, 3)) mask |= CHANGED_VEL;
+			if (changed(q, o, r, UP, 3)) mask |= CHANGED_UP;
+			if (changed(q, o, r, HEALTH, 1)) mask |= CHANGED_HEALTH;
+			buf.put((byte)mask);
+			if ((mask & CHANGED_POS) != 0) putDeltas(buf, q, o, r, POS, 3);
+			if ((mask & CHANGED_VEL) != 0) putDeltas(buf, q, o, r, VEL, 3);
+			if ((mask & CHANGED_UP) != 0) putDeltas(buf, q, o, r, UP, 3);
+			if ((mask & CHANGED_HEALTH) != 0) putDeltas(buf, q, o, r, HEALTH, 1);
+		}
+		System.arraycopy(q, o, ref, r, STRIDE);
+	}
+
+	/**
+	 * Encodes a partial frame with the selected agents whose state
+	 * changed, relative to the state last encoded for each of them.
+	 * Agents whose state did not change at the given precision
+	 * are left out.
+	 *
+	 * @param state the quantized states of all agents,
+	 *        as returned by {@link #quantize(Agent[], int[])}.
+	 * @param selected indices of the agents to encode, in ascending order.
+	 * @param shift for each selected agent, the number of low bits dropped
+	 *        from the differences of position and velocity, 0 for full
+	 *        precision and at most {@link #MAX_SHIFT}.
+	 * @param n the number of selected agents.
+	 * @param buf the buffer to write to, must have at least
+	 *        {@link #maxFrameSize(int)} bytes remaining.
+	 * @return the number of agents written.
+	 */
+	public int encodePartial(int[] state, int[] selected, int[] shift, int n, ByteBuffer buf) {
+		int countPos = buf.position();
+		buf.putInt(0); // filled in below
+		int count = 0;
+		int last = -1;
+		for (int j=0; j<n; j++) {
+			int i = selected[j];
+			int r = i*STRIDE;
+			int s = shift[j];
+			int mask = 0;
+			for (int k=POS; k<POS+3; k++) {
+				q[k] = roundShift(state[r+k] - ref[r+k], s);
+				if (q[k] != 0) mask |= CHANGED_POS;
+			}
+			for (int k=VEL; k<VEL+3; k++) {
+				q[k] = roundShift(state[r+k] - ref[r+k], s);
+				if (q[k] != 0) mask |= CHANGED_VEL;
+			}
+			if (changed(state, r, r, UP, 3)) mask |= CHANGED_UP;
+			if (changed(state, r, r, HEALTH, 1)) mask |= CHANGED_HEALTH;
+			if (mask == 0) continue;
+
+			putVarint(buf, i - last - 1);
+			last = i;
+			buf.put((byte)(mask | (s << SHIFT_BITS)));
+			if ((mask & CHANGED_POS) != 0) putShifted(buf, r, POS, s);
+			if ((mask & CHANGED_VEL) != 0) putShifted(buf, r, VEL, s);
+			if ((mask & CHANGED_UP) != 0) {
+				putDeltas(buf, state, r, r, UP, 3);
+				System.arraycopy(state, r+UP, ref, r+UP, 3);
+			}
+			if ((mask & CHANGED_HEALTH) != 0) {
+				putDeltas(buf, state, r, r, HEALTH, 1);
+				ref[r+HEALTH] = state[r+HEALTH];
+			}
+			count++;
+		}
+		buf.putInt(countPos, count);
+		return count;
+	}
+
+	/**
+	 * Tests if an agent died since the state last encoded for it.
+	 * @param state the quantized states of all agents.
+	 * @param i the index of the agent.
+	 */
+	public boolean diedSince(int[] state, int i) {
+		int h = i*STRIDE + HEALTH;
+		return state[h] <= 0 && ref[h] > 0;
+	}
+
+	/** Writes the rounded differences of a vector and updates the reference. */
+	private void putShifted(ByteBuffer buf, int r, int offset, int s) {
+		for (int k=offset; k<offset+3; k++) {
+			putVarint(buf, q[k]);
+			ref[r+k] += q[k] << s;
+		}
+	}
+
+	/** Divides by 2<sup>s</sup>, rounding to the nearest integer. */
+	private static int roundShift(int v, int s) {
+		return (s == 0) ? v : (v + (1 << (s-1))) >> s;
+	}
+
+
+	/**
+	 * Decodes a frame written by {@link #encode(Agent[], ByteBuffer, boolean)}
+	 * and applies it to the agents.
+	 * Agents that died are moved to the neutral faction,
+	 * just as {@link Agent#hit(float)} does.
+	 *
+	 * @param buf the buffer to read from.
+	 * @param agents the agents to update, in the order they were encoded.
+	 * @param keyframe <tt>true</tt> if the frame is a keyframe.
+	 * @throws BufferUnderflowException if the frame is truncated.
+	 */
+	public void decode(ByteBuffer buf, Agent[] agents, boolean keyframe) {
+		for (int i=0; i<agents.length; i++) {
+			int r = i*STRIDE;
+			int mask;
+			if (keyframe) {
+				for (int k=0; k<STRIDE; k++) {
+					ref[r+k] = getVarint(buf);
+				}
+				mask = CHANGED_POS | CHANGED_VEL | CHANGED_UP | CHANGED_HEALTH;
+			} else {
+				mask = buf.get();
+				if ((mask & CHANGED_POS) != 0) getDeltas(buf, r, POS, 3);
+				if ((mask & CHANGED_VEL) != 0) getDeltas(buf, r, VEL, 3);
+				if ((mask & CHANGED_UP) != 0) getDeltas(buf, r, UP, 3);
+				if ((mask & CHANGED_HEALTH) != 0) getDeltas(buf, r, HEALTH, 1);
+			}
+			Agent a = agents[i];
+			if ((mask & CHANGED_POS) != 0) dequantize(r+POS, POSITION_QUANTUM, a.position);
+			if ((mask & CHANGED_VEL) != 0) dequantize(r+VEL, VELOCITY_QUANTUM, a.velocity);
+			if ((mask & CHANGED_UP) != 0) dequantize(r+UP, UP_QUANTUM, a.up);
+			if ((mask & CHANGED_HEALTH) != 0) {
+				a.health = ref[r+HEALTH];
+				if (a.health <= 0) a.faction = Faction.NEUTRAL;
+			}
+		}
+	}
+
+
+	/**
+	 * Decodes a partial frame written by {@link #encodePartial(int[],
+	 * int[], int[], int, ByteBuffer)} and applies it to the agents.
+	 *
+	 * @param buf the buffer to read from.
+	 * @param agents the agents to update, in the order they were encoded.
+	 * @param updated set to <tt>true</tt> for each agent updated,
+	 *        may be <tt>null</tt>.
+	 * @return the number of agents updated.
+	 * @throws BufferUnderflowException if the frame is truncated.
+	 * @throws IndexOutOfBoundsException if the frame is corrupt.
+	 */
+	public int decodePartial(ByteBuffer buf, Agent[] agents, boolean[] updated) {
+		int count = buf.getInt();
+		int i = -1;
+		for (int j=0; j<count; j++) {
+			i += getVarint(buf) + 1;
+			int r = i*STRIDE;
+			int mask = buf.get() & 0xff;
+			int s = mask >>> SHIFT_BITS;
+			Agent a = agents[i];
+			// also if unchanged, as the position may have been extrapolated
+			if ((mask & CHANGED_POS) != 0) getShifted(buf, r, POS, s);
+			dequantize(r+POS, POSITION_QUANTUM, a.position);
+			if ((mask & CHANGED_VEL) != 0) {
+				getShifted(buf, r, VEL, s);
+				dequantize(r+VEL, VELOCITY_QUANTUM, a.velocity);
+			}
+			if ((mask & CHANGED_UP) != 0) {
+				getDeltas(buf, r, UP, 3);
+				dequantize(r+UP, UP_QUANTUM, a.up);
+			}
+			if ((mask & CHANGED_HEALTH) != 0) {
+				getDeltas(buf, r, HEALTH, 1);
+				a.health = ref[r+HEALTH];
+				if (a.health <= 0) a.faction = Faction.NEUTRAL;
+			}
+			if (updated != null) updated[i] = true;
+		}
+		return count;
+	}
+
+	/** Reads and applies rounded differences of a vector. */
+	private void getShifted(ByteBuffer buf, int r, int offset, int s) {
+		for (int k=offset; k<offset+3; k++) {
+			ref[r+k] += getVarint(buf) << s;
+		}
+	}
+
+
+	/**
+	 * Quantizes the state of all agents, for encoding it later
+	 * or for several partial frames.
+	 *
+	 * @param agents the agents, always in the same order.
+	 * @param state receives the quantized states, must have
+	 *        <tt>agents.length * STRIDE</tt> elements.
+	 */
+	public static void quantize(Agent[] agents, int[] state) {
+		for (int i=0; i<agents.length; i++) {
+			quantize(agents[i], state, i*STRIDE);
+		}
+	}
+
+	/**
+	 * Returns the position of an agent in a quantized state.
+	 * @param state the quantized states of all agents.
+	 * @param i the index of the agent.
+	 * @param p receives the position.
+	 */
+	public static void getPosition(int[] state, int i, Vector3f p) {
+		int o = i*STRIDE + POS;
+		p.set(state[o] * POSITION_QUANTUM, state[o+1] * POSITION_QUANTUM, state[o+2] * POSITION_QUANTUM);
+	}
+
+	/** Quantizes the state of an agent. */
+	private static void quantize(Agent a, int[] q, int o) {
+		q[o+POS]   = Math.round(a.position.x / POSITION_QUANTUM);
+		q[o+POS+1] = Math.round(a.position.y / POSITION_QUANTUM);
+		q[o+POS+2] = Math.round(a.position.z / POSITION_QUANTUM);
+		q[o+VEL]   = Math.round(a.velocity.x / VELOCITY_QUANTUM);
+		q[o+VEL+1] = Math.round(a.velocity.y / VELOCITY_QUANTUM);
+		q[o+VEL+2] = Math.round(a.velocity.z / VELOCITY_QUANTUM);
+		float ul = a.up.length();
+		if (ul == 0) ul = 1;
+		q[o+UP]   = Math.round(a.up.x / ul / UP_QUANTUM);
+		q[o+UP+1] = Math.round(a.up.y / ul / UP_QUANTUM);
+		q[o+UP+2] = Math.round(a.up.z / ul / UP_QUANTUM);
+		// round away from zero so living agents never appear to be dead
+		q[o+HEALTH] = (int)((a.health > 0) ? Math.ceil(a.health) : Math.floor(a.health));
+	}
+
+	/** Converts quantized values back into a vector. */
+	private void dequantize(int offset, float quantum, Vector3f v) {
+		v.x = ref[offset] * quantum;
+		v.y = ref[offset+1] * quantum;
+		v.z = ref[offset+2] * quantum;
+	}
+
+	/** Tests if any of <var>n</var> values differ from the reference. */
+	private boolean changed(int[] q, int o, int r, int offset, int n) {
+		for (int k=offset; k<offset+n; k++) {
+			if (q[o+k] != ref[r+k]) return true;
+		}
+		return false;
+	}
+
+	/** Writes the differences of <var>n</var> values to the reference. */
+	private void putDeltas(ByteBuffer buf, int[] q, int o, int r, int offset, int n) {
+		for (int k=offset; k<offset+n; k++) {
+			putVarint(buf, q[o+k] - ref[r+k]);
+		}
+	}
+
+	/** Reads and applies the differences of <var>n</var> values. */
+	private void getDeltas(ByteBuffer buf, int r, int offset, int n) {
+		for (int k=offset; k<offset+n; k++) {
+			ref[r+k] += getVarint(buf);
+		}
+	}
+
+
+	/**
+	 * Writes a zig-zag encoded variable length integer.
+	 * Values between -64 and 63 take a single byte.
+	 */
+	public static void putVarint(ByteBuffer buf, int v) {
+		int z = (v << 1) ^ (v >> 31);
+		while ((z & ~0x7f) != 0) {
+			buf.put((byte)((z & 0x7f) | 0x80));
+			z >>>= 7;
+		}
+		buf.put((byte)z);
+	}
+
+	/** Reads an integer written by {@link #putVarint(ByteBuffer, int)}. */
+	public static int getVarint(ByteBuffer buf) {
+		int z = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = buf.get();
+			z |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (z >>> 1) ^ -(z & 1);
+	}
+}
@@ -1,5 +1,6 @@
 package ch.fha.ia02.above;
 
+import java.io.*;
 import javax.vecmath.*;
 
 /**
@@ -160,6 +161,39 @@ public class AgentStats implements Cloneable {
 	}
 
 
+	/**
+	 * Writes all values of this descriptor to the specified output.
+	 *
+	 * @param out the stream to write to.
+	 * @see #readFrom(DataInput)
+	 * @see ModelSnapshot
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeFloat(length);
+		out.writeFloat(bounds);
+		out.writeFloat(mass);
+		out.writeFloat(vmin);
+		out.writeFloat(vmax);
+		out.writeFloat(health);
+	}
+
+	/**
+	 * Replaces all values of this descriptor with
+	 * those read from the specified input.
+	 *
+	 * @param in the stream to read from.
+	 * @see #writeTo(DataOutput)
+	 */
+	void readFrom(DataInput in) throws IOException {
+		length = in.readFloat();
+		bounds = in.readFloat();
+		mass = in.readFloat();
+		vmin = in.readFloat();
+		vmax = in.readFloat();
+		health = in.readFloat();
+	}
+
+
 	/** Returns a string representation of this object's settings. */
 	public String toString() {
 			return "length=" + length
@@ -1,6 +1,7 @@
 package ch.fha.ia02.above;
 
 import java.awt.*;
+import java.util.*;
 import javax.swing.*;
 
 /**
@@ -19,6 +20,9 @@ public class Application
 	/** The application's main frame. */
 	private ViewerFrame mainFrame;
 
+	/** Records the time spent starting the application. */
+	private static StartupPipeline startup;
+
 	/** Reference to the splash creen while it exists. */
 	private static SplashScreen splash;
 
@@ -67,7 +71,7 @@ public class Application
 	 * Returns a reference to the singleton instance.
 	 * @return a reference to the singleton instance of this class.
 	 */
-	private static Application instance() {
+	private static synchronized Application instance() {
 		if (singleton == null) {
 			singleton = new Application();
 		}
@@ -92,11 +96,24 @@ public class Application
 
 	/**
 	 * Provides access to the main frame.
+	 * Does not initialize the application if there is none,
+	 * so headless code may call this method safely.
 	 * @return a reference to the main frame,
 	 *         or <tt>null</tt> if there is none.
 	 */
-	public static ViewerFrame getMainFrame() {
-		return instance().mainFrame;
+	public static synchronized ViewerFrame getMainFrame() {
+		return (singleton != null) ? singleton.mainFrame : null;
+	}
+
+
+	/**
+	 * Provides access to the stages of the application startup
+	 * and the time spent in them.
+	 * @return the startup pipeline, or <tt>null</tt>
+	 *         if not started from {@link #main(String[])}.
+	 */
+	public static synchronized StartupPipeline getStartupPipeline() {
+		return startup;
 	}
 
 
@@ -158,14 +175,78 @@ public class Application
 			System.err.println("Could not display splash screen: " + e.getMessage());
 		}
 		try {
-			instance().mainFrame = new MainFrame();
-			instance().mainFrame.setVisible(true);
-			if (splash != null) splash.dispose();
-			splash = null;
+			createStartupPipeline().run();
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1); // really shut down if an exception gets here
 		}
+		if (getSettings().collectPerformanceData()) {
+			System.out.println(startup.report());
+		}
+	}
+
+	/**
+	 * Creates the stages of the application startup. Textures and
+	 * meshes are loaded while the main frame and the model are
+	 * created, the main frame is shown as soon as it is ready.
+	 * Preloading is optional, the application starts even if it fails,
+	 * for example because a media file is missing.
+	 */
+	private static synchronized StartupPipeline createStartupPipeline() {
+		startup = new StartupPipeline();
+
+		StartupPipeline.Stage settings = startup.add("settings", new Runnable() {
+			public void run() {
+				instance(); // loads the settings and the look and feel
+			}
+		});
+
+		startup.addOptional("metrics", new Runnable() {
+			public void run() {
+				MetricsServer.startFromProperty();
+			}
+		});
+
+		startup.addOptional("textures", new Runnable() {
+			public void run() {
+				Explosion.preload();
+				if (getSettings().backgroundImageEnabled()) {
+					// only the preview, the full resolution is streamed in later
+					TextureCache.getStreamedTexture(AssetPack.getResource(Universe.BG_IMAGE));
+				}
+			}
+		}, settings);
+
+		startup.addOptional("meshes", new Runnable() {
+			public void run() {
+				if (getSettings().detailedShapes()) {
+					Set<Vessel> vessels = new SimpleModelFactory().getVessels();
+					ShapeCache.preload(vessels);
+					for (Vessel v : vessels) {
+						ShapeCache.getShapes(v);
+					}
+				}
+			}
+		}, settings);
+
+		StartupPipeline.Stage frame = startup.add("main frame", new Runnable() {
+			public void run() {
+				MainFrame f = new MainFrame();
+				synchronized (Application.class) {
+					instance().mainFrame = f;
+				}
+			}
+		}, settings);
+
+		startup.add("show", new Runnable() {
+			public void run() {
+				getMainFrame().setVisible(true);
+				if (splash != null) splash.dispose();
+				splash = null;
+			}
+		}, frame);
+
+		return startup;
 	}
 }
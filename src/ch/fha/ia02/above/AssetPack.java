@@ -0,0 +1,378 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Provides the media files (meshes, textures and images) from a single,
+ * memory mapped pack file instead of many small classpath resources,
+ * which avoids inflating each of them from the jar file.
+ * <p>
+ * A pack file starts with an index of all entries, followed by their
+ * contents, which are stored as they are. Images are compressed already,
+ * and the 3DS meshes are only read once to build the {@link MeshCache}.
+ * <p>
+ * Resources are looked up with {@link #getResource(String)}, which returns
+ * a URL reading from the mapped pack file if the resource is packed, or
+ * the classpath URL otherwise. So the application still works without a
+ * pack file, as long as the media files are on the classpath. Consumers
+ * able to use a buffer directly may read the packed contents without
+ * copying them by {@link #getBuffer(URL)}.
+ * <p>
+ * The pack file is <tt>media.pack</tt> in the directory containing the
+ * application's jar file or classes, or the file specified by the system
+ * property <tt>above.assets</tt>. It is built from the media directory by
+ * {@link #main(String[])}, which is run by the Ant target <tt>asset-pack</tt>.
+ *
+ * @author Thomas Gerstendoerfer
+ */
+public class AssetPack
+{
+	/** Identifies pack files. */
+	private static final int MAGIC = 0x41425641; // "ABVA"
+
+	/** Version of the file format. */
+	private static final short VERSION = 1;
+
+	/** System property specifying the pack file. */
+	public static final String FILE_PROPERTY = "above.assets";
+
+	/** Default name of the pack file. */
+	public static final String DEFAULT_FILE = "media.pack";
+
+	/** URL protocol of packed resources. */
+	private static final String PROTOCOL = "asset";
+
+	/** Opens connections to packed resources. */
+	private static final URLStreamHandler handler = new Handler();
+
+	/** The default pack, opened on first use. */
+	private static AssetPack defaultPack;
+	private static boolean defaultPackOpened = false;
+
+	/** The mapped pack file. */
+	private ByteBuffer data;
+
+	/** Position and length of each entry, by resource name. */
+	private Map<String, long[]> index = new HashMap<String, long[]>();
+
+	private File file;
+
+
+	/**
+	 * Opens a pack file.
+	 *
+	 * @param file the pack file.
+	 * @throws IOException if the file could not be read or is not a pack file.
+	 */
+	public AssetPack(File file) throws IOException {
+		this.file = file;
+		FileChannel ch = new FileInputStream(file).getChannel();
+		try {
+			// the mapping stays valid after closing the channel
+			data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		finally {
+			ch.close();
+		}
+		try {
+			if (data.getInt() != MAGIC) throw new IOException("Not an asset pack: " + file);
+			if (data.getShort() != VERSION) throw new IOException("Unsupported asset pack version: " + file);
+			int n = data.getInt();
+			for (int i=0; i<n; i++) {
+				String name = readUTF(data);
+				long offset = data.getLong();
+				long length = data.getInt() & 0xffffffffL;
+				if (offset < 0 || offset + length > data.capacity()) {
+					throw new IOException("Corrupt asset pack entry " + name + ": " + file);
+				}
+				index.put(name, new long[] { offset, length });
+			}
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Corrupt asset pack: " + file);
+		}
+	}
+
+
+	/**
+	 * Returns the default pack, opening it if necessary.
+	 *
+	 * @return the default pack, or <tt>null</tt> if there is none.
+	 */
+	public static synchronized AssetPack getDefault() {
+		if (!defaultPackOpened) {
+			defaultPackOpened = true;
+			File f = getDefaultFile();
+			if (f != null && f.isFile()) {
+				try {
+					defaultPack = new AssetPack(f);
+				}
+				catch (IOException e) {
+					System.err.println("Ignoring asset pack: " + e.getMessage());
+				}
+			}
+		}
+		return defaultPack;
+	}
+
+	/**
+	 * Returns the location of the default pack file.
+	 *
+	 * @return the pack file, which may not exist,
+	 *         or <tt>null</tt> if its location is unknown.
+	 */
+	private static File getDefaultFile() {
+		String name = System.getProperty(FILE_PROPERTY);
+		if (name != null) return new File(name);
+		try {
+			URL code = AssetPack.class.getProtectionDomain().getCodeSource().getLocation();
+			File f = new File(code.toURI());
+			return new File(f.isFile() ? f.getParentFile() : f, DEFAULT_FILE);
+		}
+		catch (Exception e) {
+			return null; // not loaded from a file
+		}
+	}
+
+
+	/**
+	 * Returns the URL of a media file, such as <tt>/media/stars.jpg</tt>.
+	 * If the file is in the default pack, the URL reads it from there,
+	 * otherwise it is looked up on the classpath. URLs relative to a
+	 * packed file, like textures of a mesh, are looked up in the pack.
+	 *
+	 * @param name the absolute resource name.
+	 * @return the URL of the resource.
+	 * @throws MissingResourceException if the resource is neither
+	 *         in the default pack nor on the classpath.
+	 */
+	public static URL getResource(String name) {
+		AssetPack pack = getDefault();
+		if (pack != null && pack.contains(name)) {
+			try {
+				return new URL(PROTOCOL, null, -1, name, handler);
+			}
+			catch (MalformedURLException e) {
+				// fall back to the classpath
+			}
+		}
+		URL url = AssetPack.class.getResource(name);
+		if (url == null) {
+			File f = getDefaultFile();
+			throw new MissingResourceException("Media file " + name + " is neither in the asset pack "
+				+ ((f != null) ? f.toString() : DEFAULT_FILE) + " nor on the classpath",
+				AssetPack.class.getName(), name);
+		}
+		return url;
+	}
+
+	/**
+	 * Returns the contents of a packed resource without copying it.
+	 *
+	 * @param url the resource, as returned by {@link #getResource(String)}.
+	 * @return a read-only buffer containing the resource,
+	 *         or <tt>null</tt> if it is not a packed resource.
+	 */
+	public static ByteBuffer getBuffer(URL url) {
+		if (!PROTOCOL.equals(url.getProtocol())) return null;
+		AssetPack pack = getDefault();
+		return pack != null ? pack.get(url.getPath()) : null;
+	}
+
+
+	/** Returns <tt>true</tt> if this pack contains the specified resource. */
+	public boolean contains(String name) {
+		return index.containsKey(name);
+	}
+
+	/**
+	 * Returns the contents of a resource.
+	 *
+	 * @param name the absolute resource name.
+	 * @return a read-only buffer containing the resource,
+	 *         or <tt>null</tt> if it is not in this pack.
+	 */
+	public ByteBuffer get(String name) {
+		long[] entry = index.get(name);
+		if (entry == null) return null;
+		ByteBuffer b = data.asReadOnlyBuffer(); // independent position, shares the mapping
+		b.position((int)entry[0]);
+		b.limit((int)(entry[0] + entry[1]));
+		return b.slice();
+	}
+
+	/** Returns the names of all resources in this pack. */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+
+	/**
+	 * Reads a string stored by <tt>DataOutput.writeUTF</tt>.
+	 * Also used by the {@link MeshCache}.
+	 */
+	static String readUTF(ByteBuffer buf) throws IOException {
+		byte[] b = new byte[2 + (buf.getShort() & 0xffff)];
+		buf.position(buf.position() - 2);
+		buf.get(b);
+		return new DataInputStream(new ByteArrayInputStream(b)).readUTF();
+	}
+
+
+	/**
+	 * Opens connections to packed resources.
+	 * Relative URLs are resolved like file paths.
+	 */
+	private static class Handler extends URLStreamHandler
+	{
+		protected URLConnection openConnection(URL u) throws IOException {
+			final ByteBuffer buf = getBuffer(u);
+			if (buf == null) throw new FileNotFoundException(u.toString());
+			return new URLConnection(u) {
+				public void connect() {
+					connected = true;
+				}
+
+				public int getContentLength() {
+					return buf.remaining();
+				}
+
+				public InputStream getInputStream() {
+					return new BufferInputStream(buf.duplicate());
+				}
+			};
+		}
+	}
+
+	/**
+	 * Reads from a buffer, for consumers requiring a stream.
+	 */
+	private static class BufferInputStream extends InputStream
+	{
+		private ByteBuffer buf;
+
+		BufferInputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		public int read() {
+			return buf.hasRemaining() ? buf.get() & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!buf.hasRemaining()) return -1;
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		public long skip(long n) {
+			int k = (int)Math.max(0, Math.min(n, buf.remaining()));
+			buf.position(buf.position() + k);
+			return k;
+		}
+
+		public int available() {
+			return buf.remaining();
+		}
+	}
+
+
+	/**
+	 * Builds a pack file from a media directory.
+	 * Files are stored by their path relative to the directory,
+	 * prefixed with <tt>/media</tt>, or the prefix specified
+	 * as third argument.
+	 * <p>
+	 * Usage: <tt>AssetPack</tt> <i>media-directory pack-file [prefix]</i>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: AssetPack media-directory pack-file [prefix]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		String prefix = args.length > 2 ? args[2] : "/media";
+		SortedMap<String, File> files = new TreeMap<String, File>();
+		collect(dir, prefix, files);
+		write(files, new File(args[1]));
+		System.out.println("Packed " + files.size() + " files into " + args[1]);
+	}
+
+	/** Collects the files in a directory and its subdirectories. */
+	private static void collect(File dir, String prefix, Map<String, File> files) throws IOException {
+		File[] list = dir.listFiles();
+		if (list == null) throw new IOException("Cannot list " + dir);
+		for (int i=0; i<list.length; i++) {
+			String name = prefix + "/" + list[i].getName();
+			if (list[i].isDirectory()) {
+				collect(list[i], name, files);
+			} else {
+				files.put(name, list[i]);
+			}
+		}
+	}
+
+	/** Writes a pack file containing the specified files. */
+	private static void write(Map<String, File> files, File pack) throws IOException {
+		// the index size depends only on the names
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(files.size());
+		for (String name : files.keySet()) {
+			out.writeUTF(name);
+			out.writeLong(0);
+			out.writeInt(0);
+		}
+		long dataStart = header.size();
+
+		header.reset();
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(files.size());
+		long offset = dataStart;
+		for (Map.Entry<String, File> e : files.entrySet()) {
+			long length = e.getValue().length();
+			if (length > 0xffffffffL) throw new IOException("File too large: " + e.getValue());
+			out.writeUTF(e.getKey());
+			out.writeLong(offset);
+			out.writeInt((int)length);
+			offset += length;
+		}
+		out.flush();
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(pack));
+		try {
+			header.writeTo(os);
+			byte[] b = new byte[64*1024];
+			for (File f : files.values()) {
+				InputStream in = new FileInputStream(f);
+				try {
+					int n;
+					while ((n = in.read(b)) > 0) {
+						os.write(b, 0, n);
+					}
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		finally {
+			os.close();
+		}
+	}
+
+
+	/** Returns a string representation of this pack. */
+	public String toString() {
+		return getClass().getName() + "[" + file + ", " + index.size() + " entries]";
+	}
+}
@@ -0,0 +1,429 @@
+package ch.fha.ia02.above;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a scenario many times with different seeds, computing many
+ * independent headless models concurrently, and aggregates the outcomes.
+ * <p>
+ * Each run is computed until only one faction has agents left alive,
+ * or the time limit is reached. The outcomes do not depend on the
+ * number of threads, as each model is computed by a single thread.
+ * If {@linkplain #setManaged(boolean) managed}, each model may be
+ * monitored and paused through its {@linkplain ModelControl management
+ * bean} while it is computed.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Model#Model(Agent[], Vessel[])
+ */
+public class BatchRunner
+{
+	/** Creates the headless models to run. */
+	public interface Scenario {
+
+		/**
+		 * Creates a new headless model.
+		 * Called concurrently by the worker threads.
+		 *
+		 * @param seed identifies the run, models created
+		 *        with the same seed must be identical.
+		 */
+		public Model createModel(long seed);
+	}
+
+
+	/** Default duration of each step, in milliseconds. */
+	public static final int DEFAULT_STEP_DURATION = 40;
+
+	private Scenario scenario;
+	private int threads;
+	private int dt = DEFAULT_STEP_DURATION;
+	private long timeLimit = 10*60*1000;
+	private boolean managed = false;
+
+
+	/**
+	 * Creates a new batch runner.
+	 *
+	 * @param scenario creates the models.
+	 * @param threads the number of models computed concurrently.
+	 */
+	public BatchRunner(Scenario scenario, int threads) {
+		if (scenario == null) throw new IllegalArgumentException("Scenario must not be null!");
+		if (threads < 1) throw new IllegalArgumentException("Thread count must be positive!");
+		this.scenario = scenario;
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the duration of each step, in milliseconds.
+	 *
+	 * @throws IllegalArgumentException if the duration is out of
+	 *         the range accepted by {@link Model#setStepDuration(int)}.
+	 */
+	public void setStepDuration(int dt) {
+		Model.checkStepDuration(dt);
+		this.dt = dt;
+	}
+
+	/** Sets the maximum simulated time of a run, in milliseconds. */
+	public void setTimeLimit(long timeLimit) {
+		if (timeLimit <= 0) throw new IllegalArgumentException("Time limit must be positive!");
+		this.timeLimit = timeLimit;
+	}
+
+
+	/**
+	 * Specifies whether the models are registered as management beans
+	 * while they are computed. Disabled by default, as the beans record
+	 * every step, which should not be measured with the steps.
+	 */
+	public void setManaged(boolean managed) {
+		this.managed = managed;
+	}
+
+
+	/**
+	 * Runs the scenario once for each seed from <var>firstSeed</var>
+	 * to <var>firstSeed</var><tt>+runs-1</tt>.
+	 *
+	 * @param firstSeed the seed of the first run.
+	 * @param runs the number of runs.
+	 * @return the aggregated outcomes.
+	 * @throws InterruptedException if interrupted while waiting.
+	 * @throws IllegalStateException if a run failed.
+	 */
+	public Summary run(long firstSeed, int runs) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			java.util.List<Future<Outcome>> results = new ArrayList<Future<Outcome>>(runs);
+			for (int i=0; i<runs; i++) {
+				final long seed = firstSeed + i;
+				results.add(pool.submit(new Callable<Outcome>() {
+					public Outcome call() {
+						return run(scenario.createModel(seed), seed);
+					}
+				}));
+			}
+			Summary summary = new Summary();
+			for (int i=0; i<runs; i++) {
+				try {
+					summary.add(results.get(i).get());
+				}
+				catch (ExecutionException e) {
+					throw new IllegalStateException("Run " + (firstSeed + i) + " failed: " + e.getCause(), e.getCause());
+				}
+			}
+			return summary;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Computes a single model until one faction is eliminated
+	 * or the time limit is reached.
+	 *
+	 * @param model the model to compute.
+	 * @param seed identifies the run.
+	 * @return the outcome of the run.
+	 */
+	public Outcome run(Model model, long seed) {
+		if (!managed) return run(model, seed, dt, timeLimit);
+		ModelControl control = ModelControl.register(model);
+		try {
+			return run(model, seed, dt, timeLimit);
+		}
+		finally {
+			control.unregister();
+		}
+	}
+
+	/**
+	 * Computes a single model until one faction is eliminated
+	 * or the time limit is reached.
+	 *
+	 * @param model the model to compute.
+	 * @param seed identifies the run.
+	 * @param dt the duration of each step, in milliseconds.
+	 * @param timeLimit the maximum simulated time, in milliseconds.
+	 * @return the outcome of the run.
+	 * @throws IllegalArgumentException if the step duration is out of range.
+	 * @throws IllegalStateException if the model did not compute a step.
+	 */
+	public static Outcome run(Model model, long seed, int dt, long timeLimit) {
+		Model.checkStepDuration(dt);
+		long start = System.currentTimeMillis();
+		Faction winner = null;
+		int[] alive = new int[Faction.values().length];
+		Agent[] agents = model.getAgents();
+		while (model.getTime() < timeLimit) {
+			if (!model.compute(dt)) {
+				throw new IllegalStateException("Step of " + dt + " ms was not computed");
+			}
+			winner = survivor(agents, alive);
+			if (winner != null) break;
+		}
+		survivor(agents, alive);
+		return new Outcome(seed, winner, model.getTime(), model.getStepNumber(),
+			alive, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Counts the living agents of each faction.
+	 * @return the only faction with agents left alive, or
+	 *         <tt>null</tt> if there are none or several.
+	 */
+	private static Faction survivor(Agent[] agents, int[] alive) {
+		Arrays.fill(alive, 0);
+		for (int i=0; i<agents.length; i++) {
+			if (agents[i].health > 0) alive[agents[i].faction.getCode()]++;
+		}
+		Faction survivor = null;
+		Faction[] factions = Faction.values();
+		for (int f=0; f<factions.length; f++) {
+			if (factions[f] != Faction.NEUTRAL && alive[f] > 0) {
+				if (survivor != null) return null;
+				survivor = factions[f];
+			}
+		}
+		return survivor;
+	}
+
+
+	/** The outcome of a single run. */
+	public static class Outcome {
+		private long seed;
+		private Faction winner;
+		private long time;
+		private long steps;
+		private int[] alive;
+		private long runtime;
+
+		Outcome(long seed, Faction winner, long time, long steps, int[] alive, long runtime) {
+			this.seed = seed;
+			this.winner = winner;
+			this.time = time;
+			this.steps = steps;
+			this.alive = alive.clone();
+			this.runtime = runtime;
+		}
+
+		/** Returns the seed identifying the run. */
+		public long getSeed() {
+			return seed;
+		}
+
+		/**
+		 * Returns the only faction left,
+		 * or <tt>null</tt> if the time limit was reached.
+		 */
+		public Faction getWinner() {
+			return winner;
+		}
+
+		/** Returns the simulated time at the end of the run, in milliseconds. */
+		public long getTime() {
+			return time;
+		}
+
+		/** Returns the number of steps computed. */
+		public long getSteps() {
+			return steps;
+		}
+
+		/** Returns the number of agents of a faction left alive. */
+		public int getAlive(Faction f) {
+			return alive[f.getCode()];
+		}
+
+		/** Returns the time it took to compute the run, in milliseconds. */
+		public long getRuntime() {
+			return runtime;
+		}
+
+		/** Returns a string representation of this outcome. */
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append("seed ").append(seed).append(": ");
+			sb.append((winner != null) ? winner.toString() : "time limit");
+			sb.append(" after ").append(time/1000).append("s");
+			Faction[] factions = Faction.values();
+			for (int f=0; f<factions.length; f++) {
+				if (factions[f] != Faction.NEUTRAL) {
+					sb.append(", ").append(factions[f]).append(" ").append(alive[f]);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+
+	/** Aggregated outcomes of many runs. */
+	public static class Summary {
+		private java.util.List<Outcome> outcomes = new ArrayList<Outcome>();
+		private int[] wins = new int[Faction.values().length];
+		private int timeouts;
+		private double timeSum, timeSqSum;
+		private long[] aliveSum = new long[Faction.values().length];
+		private long steps;
+		private long runtime;
+
+		/** Adds the outcome of a run. */
+		void add(Outcome o) {
+			outcomes.add(o);
+			if (o.winner != null) {
+				wins[o.winner.getCode()]++;
+			} else {
+				timeouts++;
+			}
+			double t = o.time/1000.0;
+			timeSum += t;
+			timeSqSum += t*t;
+			for (int f=0; f<aliveSum.length; f++) {
+				aliveSum[f] += o.alive[f];
+			}
+			steps += o.steps;
+			runtime += o.runtime;
+		}
+
+		/** Returns the outcomes of all runs, in the order of their seeds. */
+		public java.util.List<Outcome> getOutcomes() {
+			return Collections.unmodifiableList(outcomes);
+		}
+
+		/** Returns the number of runs. */
+		public int getRuns() {
+			return outcomes.size();
+		}
+
+		/** Returns the number of runs won by a faction. */
+		public int getWins(Faction f) {
+			return wins[f.getCode()];
+		}
+
+		/** Returns the number of runs that reached the time limit. */
+		public int getTimeouts() {
+			return timeouts;
+		}
+
+		/** Returns the average number of agents of a faction left alive. */
+		public double getMeanAlive(Faction f) {
+			return outcomes.isEmpty() ? 0 : (double)aliveSum[f.getCode()]/outcomes.size();
+		}
+
+		/** Returns the average duration of a run, in simulated seconds. */
+		public double getMeanTime() {
+			return outcomes.isEmpty() ? 0 : timeSum/outcomes.size();
+		}
+
+		/** Returns the standard deviation of the duration, in simulated seconds. */
+		public double getTimeDeviation() {
+			int n = outcomes.size();
+			if (n < 2) return 0;
+			double mean = timeSum/n;
+			return Math.sqrt(Math.max(0, (timeSqSum - n*mean*mean)/(n-1)));
+		}
+
+		/** Returns the total number of steps computed by all runs. */
+		public long getSteps() {
+			return steps;
+		}
+
+		/** Returns the sum of the time it took to compute each run, in milliseconds. */
+		public long getRuntime() {
+			return runtime;
+		}
+
+		/** Returns a string representation of this summary. */
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append(getRuns()).append(" runs");
+			Faction[] factions = Faction.values();
+			for (int f=0; f<factions.length; f++) {
+				if (factions[f] != Faction.NEUTRAL) {
+					sb.append(", ").append(factions[f]).append(" won ").append(wins[f]);
+					sb.append(" (").append(format(getMeanAlive(factions[f]))).append(" alive)");
+				}
+			}
+			sb.append(", ").append(timeouts).append(" reached the time limit");
+			sb.append("; duration ").append(format(getMeanTime()));
+			sb.append("s +/- ").append(format(getTimeDeviation())).append("s");
+			return sb.toString();
+		}
+
+		private static String format(double v) {
+			return String.valueOf(Math.round(v*10)/10.0);
+		}
+	}
+
+
+	/**
+	 * Entry point to run the default scenario from the command line.
+	 * <p>
+	 * Usage: <tt>BatchRunner [-runs <var>n</var>] [-threads <var>n</var>]
+	 * [-seed <var>s</var>] [-limit <var>seconds</var>] [-fighters <var>n</var>]
+	 * [-verbose]</tt>
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int runs = 100;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long seed = 2000;
+		int limit = 600;
+		int fighters = 12;
+		boolean verbose = false;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-runs") && i+1 < args.length) {
+					runs = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-threads") && i+1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seed") && i+1 < args.length) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-limit") && i+1 < args.length) {
+					limit = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-fighters") && i+1 < args.length) {
+					fighters = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-verbose")) {
+					verbose = true;
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Usage: BatchRunner [-runs n] [-threads n] [-seed s] [-limit seconds] [-fighters n] [-verbose]");
+			System.exit(1);
+		}
+
+		MetricsServer.startFromProperty();
+		final int nFighters = fighters;
+		BatchRunner runner = new BatchRunner(new Scenario() {
+			public Model createModel(long seed) {
+				Model model = new SimpleModelFactory(nFighters, seed).createHeadlessModel();
+				MetricsServer.watch(model); // the metrics follow the run started last
+				return model;
+			}
+		}, threads);
+		runner.setTimeLimit(limit*1000L);
+		runner.setManaged(true);
+
+		System.out.println(runs + " runs of " + nFighters + " fighters per squadron, "
+			+ threads + " thread(s), time limit " + limit + "s");
+		long start = System.currentTimeMillis();
+		Summary summary = runner.run(seed, runs);
+		long elapsed = System.currentTimeMillis() - start;
+		if (verbose) {
+			java.util.List<Outcome> outcomes = summary.getOutcomes();
+			for (int i=0; i<outcomes.size(); i++) {
+				System.out.println(outcomes.get(i));
+			}
+		}
+		System.out.println(summary);
+		System.out.println(summary.getSteps() + " steps in " + elapsed + " ms ("
+			+ (summary.getSteps()*1000/Math.max(1, elapsed)) + " steps/s)");
+	}
+}
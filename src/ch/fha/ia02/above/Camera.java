@@ -31,6 +31,7 @@ public class Camera extends TransformGroup
 	public Camera() {
 		Settings settings = Application.getSettings();
 		setCapability(TransformGroup.ALLOW_TRANSFORM_WRITE);
+		setCapability(TransformGroup.ALLOW_TRANSFORM_READ);
 		setCapability(TransformGroup.ALLOW_CHILDREN_EXTEND);
 		setCapability(TransformGroup.ALLOW_CHILDREN_WRITE);
 		setTransform(location);
@@ -101,6 +102,24 @@ public class Camera extends TransformGroup
 		setTransform(location);
 	}
 
+	/**
+	 * Returns where this camera is looking.
+	 *
+	 * @param position receives the position of the camera.
+	 * @param direction receives the normalized viewing direction.
+	 * @return the horizontal field of view, in radians.
+	 */
+	public double getView(Point3f position, Vector3f direction) {
+		Transform3D t = new Transform3D();
+		getTransform(t);
+		position.set(0, 0, 0);
+		t.transform(position);
+		direction.set(0, 0, -1);
+		t.transform(direction);
+		direction.normalize();
+		return view.getFieldOfView();
+	}
+
 	/** Enables or disables the headlight. */
 	public void setHeadlight(boolean enable) {
 	}
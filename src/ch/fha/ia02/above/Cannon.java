@@ -1,5 +1,7 @@
 package ch.fha.ia02.above;
 
+import java.io.*;
+import java.util.concurrent.atomic.*;
 import javax.media.j3d.*;
 import javax.vecmath.*;
 import com.sun.j3d.utils.geometry.*;
@@ -20,19 +22,31 @@ public class Cannon implements Cloneable {
 	/** Specifies the amount of damage a full hit causes. */
 	protected float damage;
 
+	/** Number of projectiles fired by all cannons that were not removed yet. */
+	private static AtomicInteger projectilesInFlight = new AtomicInteger();
+
 	/** Number of seconds before a projectile expires after being fired. */
 	protected float ttl;
 
 	/** Velocity of a projectile fired by this cannon. */
 	protected float projectileVelocity;
 
+	/** Default color of [simple] projectiles. */
+	private static final Color3f DEFAULT_PROJECTILE_COLOR = new Color3f(0,1,0);
+
 	/** Default material to be used for [simple] projectiles. */
 	public static final Material DEFAULT_PROJECTILE_MATERIAL
-		= createProjectileMaterial(new Color3f(0,1,0));
+		= createProjectileMaterial(DEFAULT_PROJECTILE_COLOR);
 
 	/** Projectile material. Used for simple projectiles. */
 	protected Material projectileMaterial = DEFAULT_PROJECTILE_MATERIAL;
 
+	/**
+	 * Color the projectile material was created from.
+	 * Kept because the material cannot be read once it is live.
+	 */
+	protected Color3f projectileColor = DEFAULT_PROJECTILE_COLOR;
+
 	/** Projectile size. */
 	protected float projectileSize = 8.0f;
 
@@ -101,6 +115,7 @@ public class Cannon implements Cloneable {
 	 */
 	public void setProjectileMaterial(Color3f color) {
 		projectileMaterial = createProjectileMaterial(color);
+		projectileColor = new Color3f(color);
 	}
 	/** Creates a material from a color. */
 	private static Material createProjectileMaterial(Color3f color) {
@@ -130,7 +145,7 @@ public class Cannon implements Cloneable {
 			ttl == o.ttl &&
 			projectileVelocity == o.projectileVelocity &&
 			projectileSize == o.projectileSize &&
-			projectileMaterial.equals(o.projectileMaterial));
+			projectileColor.equals(o.projectileColor));
 	}
 
 	/** Returns a hash code for this cannon. */
@@ -140,11 +155,46 @@ public class Cannon implements Cloneable {
 		h = h*17 + (int)ttl;
 		h = h*17 + (int)projectileVelocity;
 		h = h*17 + (int)projectileSize;
-		h = h*17 + projectileMaterial.hashCode();
+		h = h*17 + projectileColor.hashCode();
 		return h;
 	}
 
 
+	/**
+	 * Writes the characteristics of this cannon to the specified output.
+	 *
+	 * @param out the stream to write to.
+	 * @see #readFrom(DataInput)
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeFloat(speed);
+		out.writeFloat(damage);
+		out.writeFloat(ttl);
+		out.writeFloat(projectileVelocity);
+		out.writeFloat(projectileSize);
+		out.writeFloat(projectileColor.x);
+		out.writeFloat(projectileColor.y);
+		out.writeFloat(projectileColor.z);
+	}
+
+	/**
+	 * Replaces the characteristics of this cannon with
+	 * those read from the specified input.
+	 *
+	 * @param in the stream to read from.
+	 * @see #writeTo(DataOutput)
+	 */
+	void readFrom(DataInput in) throws IOException {
+		speed = in.readFloat();
+		damage = in.readFloat();
+		ttl = in.readFloat();
+		projectileVelocity = in.readFloat();
+		projectileSize = in.readFloat();
+		Color3f color = new Color3f(in.readFloat(), in.readFloat(), in.readFloat());
+		if (!color.equals(projectileColor)) setProjectileMaterial(color);
+	}
+
+
 	/**
 	 * Creates and returns a copy of this cannon.
 	 * @return a clone of this instance.
@@ -175,14 +225,23 @@ public class Cannon implements Cloneable {
 	 * @param position initial position for the projectile.
 	 * @param direction direction the projectile is fired.
 	 * @param target the agent to shoot at.
+	 * @return the projectile, or <tt>null</tt> if there is no
+	 *         main frame to show it in.
 	 */
 	public Projectile fire(Vector3f position, Vector3f direction, Agent target) {
-		Projectile p = new Projectile(position, direction, target);
 		ViewerFrame vf = Application.getMainFrame();
-		if (vf != null) vf.universe.addToCurrentLocale(p);
+		if (vf == null) return null; // nowhere to show it
+		Projectile p = new Projectile(position, direction, target);
+		vf.universe.addToCurrentLocale(p);
+		projectilesInFlight.incrementAndGet();
 		return p;
 	}
 
+	/** Returns the number of projectiles shown that were not removed yet. */
+	public static int getProjectilesInFlight() {
+		return projectilesInFlight.get();
+	}
+
 
 	/**
 	 * Represents a projectile in the 3D world.
@@ -204,6 +263,23 @@ public class Cannon implements Cloneable {
 		/** Transformation Group for the Projectile. */
 		private TransformGroup tg = new TransformGroup();
 
+		/** Set once this projectile was removed from the scene graph. */
+		private boolean removed = false;
+
+		/**
+		 * Removes this projectile from the scene graph, when it
+		 * expires or hits its target, and stops counting it as
+		 * in flight.
+		 */
+		public void detach() {
+			super.detach();
+			synchronized (this) {
+				if (removed) return;
+				removed = true;
+			}
+			projectilesInFlight.decrementAndGet();
+		}
+
 		/** Update the position and orientation of the projectile. */
 		protected void update() {
 			Transform3D t = new Transform3D();
@@ -251,7 +327,7 @@ public class Cannon implements Cloneable {
 			setCapability(BranchGroup.ALLOW_DETACH);
 
 			Node shape = null;
-			if (Application.getSettings().detailedShapes()) {
+			if (Settings.snapshot().detailedShapes()) {
 				// FIXME: load textured shape using ShapeCache
 			}
 			if (shape == null) {
@@ -273,7 +349,7 @@ public class Cannon implements Cloneable {
 				public void processStimulus(java.util.Enumeration criteria) {
 					long dt = System.currentTimeMillis() - start;
 					if (dt >= ttl*1000) {
-						detach();
+						Projectile.this.detach();
 						return;
 					}
 
@@ -83,7 +83,7 @@ public class Credits {
 			setBackground(Color.BLACK);
 
 			add(new JLabel(
-				new ImageIcon(this.getClass().getResource(Application.SPLASH_IMAGE))), BorderLayout.NORTH);
+				new ImageIcon(AssetPack.getResource(Application.SPLASH_IMAGE))), BorderLayout.NORTH);
 
 			text = new JPanel() {
 				public void paint(Graphics g) {
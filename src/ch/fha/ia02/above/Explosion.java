@@ -1,10 +1,8 @@
 package ch.fha.ia02.above;
 
-import java.net.*;
 import javax.media.j3d.*;
 import javax.vecmath.*;
 import com.sun.j3d.utils.geometry.*;
-import com.sun.j3d.utils.image.*;
 
 /**
  * Eye candy that represents an explosion in the 3D-world.
@@ -16,23 +14,21 @@ import com.sun.j3d.utils.image.*;
  */
 public class Explosion extends BranchGroup {
 
-	/** Texture filenames. */
+	/** Texture filenames, packed into the default texture atlas. */
 	private static final String[] texfilenames = {
 		"/media/exp02_1.png",
 		"/media/exp02_2.png",
 		"/media/exp02_3.png",
 	};
 
-	/** The texture. */
-	private static Texture[] textures;
+	/** The atlas containing the frames, reloaded when it was released. */
+	private static TextureAtlas atlas;
 
-	/** Array of standard texture coordinates. */
-	private static final float[] TEXCOORDS = {
-		0, 0,
-		1, 0,
-		1, 1,
-		0, 1,
-	};
+	/** Texture coordinates of the animation frames within the atlas. */
+	private static float[][] frames;
+
+	/** Appearance shared by all textured explosions. */
+	private static Appearance texturedAppearance;
 
 	/** Specifies if textures are to be loaded. */
 	private static boolean loadTextures = Application.getSettings().loadTextures();
@@ -94,33 +90,25 @@ public class Explosion extends BranchGroup {
 			 size,  size, 0,
 			-size,  size, 0,
 		};
-		QuadArray sprite = new QuadArray(4,
+		final QuadArray sprite = new QuadArray(4,
 			GeometryArray.COORDINATES | GeometryArray.TEXTURE_COORDINATE_2);
 		sprite.setCoordinates(0, vertices);
-		sprite.setTextureCoordinates(0, 0, TEXCOORDS);
 
 		final OrientedShape3D shape = new OrientedShape3D();
 		shape.setGeometry(sprite);
-		if (loadTextures &&
-			((textures == null && loadTextureImages(texfilenames))
-				|| textures.length > 0))
-		{
-			Appearance ap = new Appearance();
-			ap.setCapability(Appearance.ALLOW_TEXTURE_WRITE);
-			ap.setTexture(textures[0]);
-			TransparencyAttributes ta = new TransparencyAttributes();
-			ta.setTransparencyMode(TransparencyAttributes.BLENDED);
-			ta.setTransparency(0.5f);
-			ap.setTransparencyAttributes(ta);
-			shape.setAppearance(ap);
-			shape.setCapability(Shape3D.ALLOW_APPEARANCE_READ);
-			if (textures.length > 1) {
-				tg.addChild(new WorldBehavior(new WakeupOnElapsedTime((long)(duration*1000/textures.length))) {
+		if (loadTextures && loadTextureImages()) {
+			// all explosions share the appearance, frames are
+			// selected by texture coordinates within the atlas
+			final float[][] frames = Explosion.frames;
+			sprite.setTextureCoordinates(0, 0, frames[0]);
+			shape.setAppearance(texturedAppearance);
+			if (frames.length > 1) {
+				sprite.setCapability(GeometryArray.ALLOW_TEXCOORD_WRITE);
+				tg.addChild(new WorldBehavior(new WakeupOnElapsedTime((long)(duration*1000/frames.length))) {
 					int n = 1;
 					public void processStimulus(java.util.Enumeration criteria) {
-						Appearance ap = shape.getAppearance();
-						ap.setTexture(textures[n]);
-						if (++n < textures.length) wakeupOn(w);
+						sprite.setTextureCoordinates(0, 0, frames[n]);
+						if (++n < frames.length) wakeupOn(w);
 					}
 				});
 			}
@@ -152,23 +140,32 @@ public class Explosion extends BranchGroup {
 	}
 
 	/**
-	 * Loads all explosion textures.
-	 * @return <tt>true</tt> if at least one image could be loaded.
+	 * Looks up the explosion frames in the default texture atlas,
+	 * and creates the appearance using it.
+	 * @return <tt>true</tt> if at least one frame is available.
 	 */
-	protected boolean loadTextureImages(String[] files) {
-		textures = new Texture[(files == null) ? 0 :  files.length];
-		for (int i=0; i<files.length; i++) {
-			Application.progress("Loading " + files[i]);
-			URL url = getClass().getResource(files[i]);
-			if (url == null) {
-				System.out.println("File not found: " + files[i]);
-			} else {
-				TextureLoader tl = new TextureLoader(url, null);
-				textures[i] = tl.getTexture();
+	protected static synchronized boolean loadTextureImages() {
+		if (atlas != TextureAtlas.getDefault()) {
+			Application.progress("Loading explosions");
+			atlas = TextureAtlas.getDefault();
+			java.util.List<float[]> list = new java.util.ArrayList<float[]>();
+			for (int i=0; i<texfilenames.length; i++) {
+				TextureAtlas.Region r = atlas.getRegion(texfilenames[i]);
+				if (r != null) list.add(r.getQuadCoordinates());
+			}
+			frames = list.toArray(new float[list.size()][]);
+			if (frames.length > 0) {
+				Appearance ap = new Appearance();
+				atlas.getTexture().bind(ap);
+				TransparencyAttributes ta = new TransparencyAttributes();
+				ta.setTransparencyMode(TransparencyAttributes.BLENDED);
+				ta.setTransparency(0.5f);
+				ap.setTransparencyAttributes(ta);
+				texturedAppearance = ap;
 			}
+			Application.progressHide();
 		}
-		Application.progressHide();
-		return textures.length > 0;
+		return frames.length > 0;
 	}
 
 	/**
@@ -18,10 +18,12 @@ public class Faction
 {
 	private String name;
 	private Color3f color;
+	private int code;
 
-	private Faction(String name, Color3f color) {
+	private Faction(String name, Color3f color, int code) {
 		this.name = name;
 		this.color = color;
+		this.code = code;
 	}
 
 	/** Returns the name of this faction. */
@@ -34,6 +36,27 @@ public class Faction
 		return color;
 	}
 
+	/**
+	 * Returns a small number that uniquely identifies this faction.
+	 * The code is used when the faction has to be stored in a file.
+	 *
+	 * @see #forCode(int)
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the faction identified by the specified code.
+	 *
+	 * @param code a code previously returned by {@link #getCode()}.
+	 * @throws IllegalArgumentException if there is no such faction.
+	 */
+	public static Faction forCode(int code) {
+		if (code < 0 || code >= ALL.length) throw new IllegalArgumentException("Unknown faction code: " + code);
+		return ALL[code];
+	}
+
 
 	/**
 	 * Determines if this faction considers the <var>other</var> faction
@@ -66,18 +89,26 @@ public class Faction
 
 
 	/** Denotes neutral objects, such as planets and the like. */
-	public static Faction NEUTRAL = new Faction("Neutral", new Color3f(0.8f, 0.8f, 0.8f)) {
+	public static Faction NEUTRAL = new Faction("Neutral", new Color3f(0.8f, 0.8f, 0.8f), 0) {
 		public boolean isEnemy(Faction other) { return false; }
 	};
 
 	/** Denotes vessels fighting for the Rebel Alliance. */
-	public static Faction REBEL = new Faction("Rebel", new Color3f(1,0,0)) {
+	public static Faction REBEL = new Faction("Rebel", new Color3f(1,0,0), 1) {
 		public boolean isEnemy(Faction other) { return other == IMP; }
 	};
 
 	/** Denotes vessels fighting for the Galactic Empire. */
-	public static Faction IMP = new Faction("Empire", new Color3f(0, 0, 0.8f)) {
+	public static Faction IMP = new Faction("Empire", new Color3f(0, 0, 0.8f), 2) {
 		public boolean isEnemy(Faction other) { return other == REBEL; }
 	};
 
+
+	/** All factions, indexed by their code. */
+	private static final Faction[] ALL = { NEUTRAL, REBEL, IMP };
+
+	/** Returns all factions, indexed by their code. */
+	public static Faction[] values() {
+		return ALL.clone();
+	}
 }
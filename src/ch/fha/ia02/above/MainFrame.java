@@ -2,6 +2,7 @@ package ch.fha.ia02.above;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.*;
 import javax.swing.*;
 import javax.media.j3d.*;
 
@@ -22,6 +23,18 @@ public class MainFrame extends ViewerFrame
 	private JMenuItem menuTogglePause;
 	private JMenuItem menuModelInspector;
 	private JMenuItem menuCameraFollow;
+	private JMenuItem menuSaveSnapshot;
+	private JMenuItem menuLoadSnapshot;
+	private JMenuItem menuRecordReplay;
+	private JMenuItem menuPlayReplay;
+	private JMenuItem menuSeekReplay;
+	private JMenuItem menuConnect;
+
+	/** Records the current model, or null if not recording. */
+	private ReplayRecorder recorder;
+
+	/** File chooser for snapshots, remembers the last directory. */
+	private JFileChooser snapshotChooser;
 
 
 	/**
@@ -48,7 +61,20 @@ public class MainFrame extends ViewerFrame
 			}
 		});
 
-		universe.setModel(modelFactory);
+		String server = System.getProperty(StateClient.CONNECT_PROPERTY);
+		if (server != null) {
+			try {
+				modelFactory = new StateClient(server);
+				universe.setModel(modelFactory);
+			}
+			catch (RuntimeException e) {
+				System.err.println(e.getMessage());
+				modelFactory = new SimpleModelFactory();
+				universe.setModel(modelFactory);
+			}
+		} else {
+			universe.setModel(modelFactory);
+		}
 		universe.makeLive();
 	}
 
@@ -89,6 +115,34 @@ public class MainFrame extends ViewerFrame
 		menuCameraFollow.addActionListener(this);
 		m.add(menuCameraFollow);
 
+		m.addSeparator();
+
+		menuSaveSnapshot = new JMenuItem("Save Snapshot...", 'S');
+		menuSaveSnapshot.addActionListener(this);
+		m.add(menuSaveSnapshot);
+
+		menuLoadSnapshot = new JMenuItem("Load Snapshot...", 'L');
+		menuLoadSnapshot.addActionListener(this);
+		m.add(menuLoadSnapshot);
+
+		menuRecordReplay = new JMenuItem("Record Replay...", 'E');
+		menuRecordReplay.addActionListener(this);
+		m.add(menuRecordReplay);
+
+		menuPlayReplay = new JMenuItem("Play Replay...", 'Y');
+		menuPlayReplay.addActionListener(this);
+		m.add(menuPlayReplay);
+
+		menuSeekReplay = new JMenuItem("Go to Time...", 'G');
+		menuSeekReplay.addActionListener(this);
+		m.add(menuSeekReplay);
+
+		m.addSeparator();
+
+		menuConnect = new JMenuItem("Connect to Server...", 'C');
+		menuConnect.addActionListener(this);
+		m.add(menuConnect);
+
 		return m;
 	}
 
@@ -98,6 +152,7 @@ public class MainFrame extends ViewerFrame
 	public void actionPerformed(ActionEvent e) {
 		Object src = e.getSource();
 		if (src == menuRestart) {
+			stopRecording();
 			universe.setModel(modelFactory);
 		} else if (src == menuModelInspector) {
 			ModelInspector.showWindow(this, "Model Inspector", universe.getModel());
@@ -115,9 +170,175 @@ public class MainFrame extends ViewerFrame
 				case Camera.FOLLOWING:	c.stopFollow();		break;
 				case Camera.READY:		c.startFollow();	break;
 			}
+		} else if (src == menuSaveSnapshot) {
+			saveSnapshot();
+		} else if (src == menuLoadSnapshot) {
+			loadSnapshot();
+		} else if (src == menuRecordReplay) {
+			if (recorder == null) {
+				startRecording();
+			} else {
+				stopRecording();
+			}
+		} else if (src == menuPlayReplay) {
+			playReplay();
+		} else if (src == menuSeekReplay) {
+			seekReplay();
+		} else if (src == menuConnect) {
+			connect();
 		} else {
 			super.actionPerformed(e);
 		}
 	}
 
+
+	/** Asks for a file name and saves a snapshot of the current model. */
+	private void saveSnapshot() {
+		if (snapshotChooser == null) snapshotChooser = new JFileChooser();
+		if (snapshotChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+		File file = snapshotChooser.getSelectedFile();
+		try {
+			ModelSnapshot.save(universe.getModel(), file);
+		}
+		catch (IOException ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(),
+				"Could not save snapshot", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+	/**
+	 * Asks for a snapshot file and replaces the current model with it.
+	 * Restarting the simulation afterwards restores the same snapshot.
+	 */
+	private void loadSnapshot() {
+		if (snapshotChooser == null) snapshotChooser = new JFileChooser();
+		if (snapshotChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+		File file = snapshotChooser.getSelectedFile();
+		try {
+			ModelSnapshot snapshot = new ModelSnapshot(file);
+			stopRecording();
+			universe.setModel(snapshot);
+			disconnect();
+			modelFactory = snapshot;
+		}
+		catch (Exception ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(),
+				"Could not load snapshot", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+
+	/** Asks for a file name and starts recording the current model. */
+	private void startRecording() {
+		if (snapshotChooser == null) snapshotChooser = new JFileChooser();
+		if (snapshotChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+		File file = snapshotChooser.getSelectedFile();
+		try {
+			recorder = new ReplayRecorder(universe.getModel(), file);
+			menuRecordReplay.setText("Stop Recording");
+		}
+		catch (IOException ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(),
+				"Could not record replay", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+	/** Stops recording, if a replay is being recorded. */
+	private void stopRecording() {
+		if (recorder == null) return;
+		try {
+			recorder.close();
+		}
+		catch (IOException ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(),
+				"Could not record replay", JOptionPane.ERROR_MESSAGE);
+		}
+		recorder = null;
+		menuRecordReplay.setText("Record Replay...");
+	}
+
+	/**
+	 * Asks for a replay file and replaces the current model with it.
+	 * Restarting afterwards plays the replay again from the beginning.
+	 */
+	private void playReplay() {
+		if (snapshotChooser == null) snapshotChooser = new JFileChooser();
+		if (snapshotChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+		File file = snapshotChooser.getSelectedFile();
+		try {
+			ReplayPlayer player = new ReplayPlayer(file);
+			stopRecording();
+			universe.setModel(player);
+			disconnect();
+			modelFactory = player;
+		}
+		catch (Exception ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(),
+				"Could not play replay", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+	/** Asks for a time and moves the replay being played there. */
+	private void seekReplay() {
+		if (!(modelFactory instanceof ReplayPlayer)) {
+			JOptionPane.showMessageDialog(this, "No replay is being played.",
+				"Go to Time", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		ReplayPlayer player = (ReplayPlayer)modelFactory;
+		String range = formatTime(player.getStartTime()) + " - " + formatTime(player.getEndTime());
+		String s = JOptionPane.showInputDialog(this, "Time (" + range + "):",
+			formatTime(universe.getModel().getTime()));
+		if (s == null) return;
+		try {
+			int colon = s.indexOf(':');
+			long t = (colon < 0) ? Long.parseLong(s.trim())*1000
+				: Long.parseLong(s.substring(0, colon).trim())*60000
+				+ Math.round(Double.parseDouble(s.substring(colon+1).trim())*1000);
+			player.seekTime(t);
+		}
+		catch (NumberFormatException ex) {
+			JOptionPane.showMessageDialog(this, "Please enter the time as minutes:seconds.",
+				"Go to Time", JOptionPane.ERROR_MESSAGE);
+		}
+		catch (IllegalStateException ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(),
+				"Could not play replay", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+	/**
+	 * Asks for a server and shows the model it computes, instead of
+	 * computing a model locally. Restarting afterwards connects again.
+	 */
+	private void connect() {
+		String s = JOptionPane.showInputDialog(this, "Server (host:port):",
+			"localhost:" + StateServer.DEFAULT_PORT);
+		if (s == null) return;
+		try {
+			StateClient client = new StateClient(s);
+			stopRecording();
+			universe.setModel(client);
+			disconnect();
+			modelFactory = client;
+		}
+		catch (Exception ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(),
+				"Could not connect to server", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+	/** Closes the connection to a server, if the model is shown from one. */
+	private void disconnect() {
+		if (modelFactory instanceof StateClient) {
+			((StateClient)modelFactory).close();
+		}
+	}
+
+	/** Formats a time in milliseconds as minutes:seconds. */
+	private static String formatTime(long t) {
+		long s = t/1000;
+		return (s/60) + ":" + ((s%60 < 10) ? "0" : "") + (s%60);
+	}
+
 }
@@ -0,0 +1,822 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+
+import javax.media.j3d.*;
+import javax.vecmath.*;
+
+import com.mnstarfire.loaders3d.*;
+
+/**
+ * Persistent cache of the meshes parsed from 3D Studio (3DS) files.
+ * <p>
+ * Parsing a 3DS file is expensive, so the resulting scene graph is
+ * stored in a compact binary format: the node hierarchy with its
+ * transforms, the coordinates, normals and texture coordinates of
+ * each geometry, and the appearances with their materials and the
+ * names of their texture files. Textures are still loaded from the
+ * original image files, through the {@link TextureCache}.
+ * <p>
+ * Cache files are named after a hash of the 3DS file's contents and
+ * the vessel's scale, which is applied to the cached coordinates.
+ * A modified 3DS file thus never uses outdated cache files. Cache files
+ * are read using memory mapped I/O.
+ * <p>
+ * The cache directory is specified by the <tt>above.meshcache</tt>
+ * system property and defaults to <tt>.above/meshes</tt> in the user's
+ * home directory. Running this class pre-builds the cache for all
+ * standard vessels.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ShapeCache
+ */
+public class MeshCache
+{
+	/** Identifies mesh cache files, reads "ABVM". */
+	public static final int MAGIC = 0x4142564D;
+
+	/** Version of the file format written by this class. */
+	public static final short VERSION = 1;
+
+	/** Name of the system property specifying the cache directory. */
+	public static final String DIRECTORY_PROPERTY = "above.meshcache";
+
+	/** Extension of cache files. */
+	private static final String EXTENSION = ".mesh";
+
+	/** Node type codes. */
+	private static final byte NODE_GROUP = 1;
+	private static final byte NODE_TRANSFORM = 2;
+	private static final byte NODE_SHAPE = 3;
+
+	/** Appearance component flags. */
+	private static final int HAS_MATERIAL = 1;
+	private static final int HAS_TRANSPARENCY = 2;
+	private static final int HAS_POLYGON = 4;
+	private static final int HAS_TEXTURE = 8;
+
+	/** Vertex formats that can be stored. */
+	private static final int SUPPORTED_FORMATS =
+		GeometryArray.COORDINATES |
+		GeometryArray.NORMALS |
+		GeometryArray.TEXTURE_COORDINATE_2;
+
+	/** 3DS chunk IDs required to find the texture of each material. */
+	private static final int M3DMAGIC = 0x4D4D;
+	private static final int MDATA = 0x3D3D;
+	private static final int MAT_ENTRY = 0xAFFF;
+	private static final int MAT_NAME = 0xA000;
+	private static final int MAT_TEXMAP = 0xA200;
+	private static final int MAT_MAPNAME = 0xA300;
+
+	/** The cache directory. */
+	private static File directory = defaultDirectory();
+
+
+	/** Private to avoid instantiation. */
+	private MeshCache() {
+	}
+
+
+	/** Returns the cache directory. */
+	public static synchronized File getDirectory() {
+		return directory;
+	}
+
+	/** Sets the cache directory, which is created when needed. */
+	public static synchronized void setDirectory(File dir) {
+		directory = dir;
+	}
+
+	/** Determines the default cache directory. */
+	private static File defaultDirectory() {
+		String dir = System.getProperty(DIRECTORY_PROPERTY);
+		if (dir != null) return new File(dir);
+		return new File(new File(System.getProperty("user.home"), ".above"), "meshes");
+	}
+
+
+	/**
+	 * Loads the scene of a 3DS file, from the cache if possible.
+	 * If the file is not cached yet, it is parsed and added to the cache.
+	 *
+	 * @param file URL of the 3ds file,
+	 *        textures are expected to be in the same directory.
+	 * @param scale factor to scale the mesh down to unit length.
+	 * @param textures specifies if textures should be loaded.
+	 * @return the scene, already scaled.
+	 * @throws IOException if the 3ds file could not be read.
+	 */
+	public static BranchGroup load3DS(URL file, float scale, boolean textures) throws IOException {
+		ByteBuffer source = readSource(file);
+		File cached = new File(getDirectory(), key(source, scale) + EXTENSION);
+		if (cached.isFile()) {
+			try {
+				return read(cached, file, textures);
+			}
+			catch (IOException e) {
+				System.err.println("Ignoring mesh cache file " + cached + ": " + e.getMessage());
+			}
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(encode3DS(file, source, scale));
+		write(cached, buf);
+		return decode(buf, file, textures);
+	}
+
+	/**
+	 * Loads only the appearances of a 3DS file's scene, without decoding
+	 * its geometry. Used to create new appearances for a mesh whose
+	 * geometry is kept elsewhere.
+	 *
+	 * @param file URL of the 3ds file,
+	 *        textures are expected to be in the same directory.
+	 * @param scale factor to scale the mesh down to unit length.
+	 * @param textures specifies if textures should be loaded.
+	 * @return the appearances, in the order returned by
+	 *         {@link MeshCompactor#getAppearances(Node)} for the scene.
+	 * @throws IOException if the 3ds file could not be read.
+	 */
+	public static Appearance[] loadAppearances(URL file, float scale, boolean textures) throws IOException {
+		ByteBuffer source = readSource(file);
+		File cached = new File(getDirectory(), key(source, scale) + EXTENSION);
+		if (cached.isFile()) {
+			FileChannel ch = new FileInputStream(cached).getChannel();
+			try {
+				return decodeAppearances(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), file, textures);
+			}
+			catch (IOException e) {
+				System.err.println("Ignoring mesh cache file " + cached + ": " + e.getMessage());
+			}
+			finally {
+				ch.close();
+			}
+		}
+		return MeshCompactor.getAppearances(load3DS(file, scale, textures));
+	}
+
+	/**
+	 * Parses a 3DS file and adds it to the cache,
+	 * unless it is cached already.
+	 *
+	 * @param file URL of the 3ds file.
+	 * @param scale factor to scale the mesh down to unit length.
+	 * @return <tt>true</tt> if a cache file was written.
+	 * @throws IOException if the 3ds file could not be read,
+	 *         or the cache file could not be written.
+	 */
+	public static boolean build(URL file, float scale) throws IOException {
+		ByteBuffer source = readSource(file);
+		File cached = new File(getDirectory(), key(source, scale) + EXTENSION);
+		if (cached.isFile()) return false;
+		File dir = cached.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create directory " + dir);
+		}
+		write(cached, ByteBuffer.wrap(encode3DS(file, source, scale)));
+		return cached.isFile();
+	}
+
+
+	/**
+	 * Computes the name of the cache file for a 3DS file,
+	 * from its contents, the scale and the file format version.
+	 */
+	private static String key(ByteBuffer source, float scale) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(source.duplicate());
+			int s = Float.floatToIntBits(scale);
+			md.update(new byte[] {
+				(byte)(s >>> 24), (byte)(s >>> 16), (byte)(s >>> 8), (byte)s,
+				(byte)(VERSION >>> 8), (byte)VERSION });
+			byte[] digest = md.digest();
+			StringBuffer sb = new StringBuffer(2*digest.length);
+			for (int i=0; i<digest.length; i++) {
+				sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(digest[i] & 0xf, 16));
+			}
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 not supported: " + e);
+		}
+	}
+
+	/**
+	 * Returns the contents of a 3DS file. Packed files are
+	 * used directly from the {@link AssetPack}, without copying.
+	 */
+	private static ByteBuffer readSource(URL file) throws IOException {
+		ByteBuffer b = AssetPack.getBuffer(file);
+		return (b != null) ? b : ByteBuffer.wrap(readFully(file));
+	}
+
+	/** Reads the entire contents of a URL. */
+	private static byte[] readFully(URL file) throws IOException {
+		InputStream in = file.openStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(64*1024);
+			byte[] b = new byte[8*1024];
+			int n;
+			while ((n = in.read(b)) > 0) {
+				out.write(b, 0, n);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Writes a cache file. Failures are only reported, as the
+	 * scene is still available. The file is written under a temporary
+	 * name first, so other threads or processes never see partial files.
+	 */
+	private static void write(File cached, ByteBuffer buf) {
+		File dir = cached.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) return;
+		File tmp = null;
+		try {
+			tmp = File.createTempFile("mesh", ".tmp", dir);
+			FileChannel ch = new FileOutputStream(tmp).getChannel();
+			try {
+				ByteBuffer b = buf.duplicate();
+				while (b.hasRemaining()) {
+					ch.write(b);
+				}
+			}
+			finally {
+				ch.close();
+			}
+			if (tmp.renameTo(cached)) tmp = null;
+		}
+		catch (IOException e) {
+			System.err.println("Cannot write mesh cache file " + cached + ": " + e);
+		}
+		finally {
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	/** Reads a cache file using memory mapped I/O. */
+	private static BranchGroup read(File cached, URL file, boolean textures) throws IOException {
+		FileChannel ch = new FileInputStream(cached).getChannel();
+		try {
+			return decode(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), file, textures);
+		}
+		finally {
+			ch.close();
+		}
+	}
+
+
+	/**
+	 * Parses a 3DS file and encodes its scene.
+	 *
+	 * @param file URL of the 3ds file.
+	 * @param source contents of the 3ds file.
+	 * @param scale factor to scale the mesh down to unit length.
+	 * @return the encoded scene.
+	 */
+	private static byte[] encode3DS(URL file, ByteBuffer source, float scale) throws IOException {
+		String basedir = file.toString();
+		basedir = basedir.substring(0, 1+basedir.lastIndexOf("/"));
+
+		// A new loader is used for each file, as Loader3DS
+		// keeps the scene and materials of the previous file.
+		// Textures are referred to by name and loaded separately.
+		Loader3DS loader = new Loader3DS();
+		loader.setURLBase(basedir);
+		loader.setTextureLightingOn();
+		loader.noTextures();
+		BranchGroup scene = loader.load(file).getSceneGroup();
+
+		Map<Appearance, String> textureNames = new IdentityHashMap<Appearance, String>();
+		Map<String, String> materialTextures = readTextureNames(source);
+		Map<?, ?> materials = getMaterials(loader);
+		Iterator<? extends Map.Entry<?, ?>> it = materials.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<?, ?> entry = it.next();
+			String texture = materialTextures.get(entry.getKey());
+			if (texture != null && entry.getValue() instanceof Appearance) {
+				textureNames.put((Appearance)entry.getValue(), texture);
+			}
+		}
+		return new Encoder(scale, textureNames).encode(scene);
+	}
+
+	/**
+	 * Returns the appearances created by a loader, by material name.
+	 * Required to find out which texture belongs to an appearance.
+	 */
+	private static Map<?, ?> getMaterials(Loader3DS loader) throws IOException {
+		try {
+			Field f = Loader3DS.class.getDeclaredField("mTable");
+			f.setAccessible(true);
+			return (Map<?, ?>)f.get(loader);
+		}
+		catch (Exception e) {
+			throw new IOException("Cannot access materials of Loader3DS: " + e);
+		}
+	}
+
+	/**
+	 * Reads the names of the texture files of all materials
+	 * in a 3DS file, converted to lower case as done by <tt>Loader3DS</tt>.
+	 *
+	 * @param source contents of the 3ds file.
+	 * @return the texture file names, by material name.
+	 */
+	private static Map<String, String> readTextureNames(ByteBuffer source) {
+		Map<String, String> names = new HashMap<String, String>();
+		ByteBuffer b = source.slice();
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		readTextureNames(b, 0, b.limit(), names, null);
+		return names;
+	}
+
+	/**
+	 * Scans the chunks in the specified range for materials.
+	 *
+	 * @param material name and texture file of the enclosing material entry,
+	 *        if any.
+	 */
+	private static void readTextureNames(
+		ByteBuffer b, int from, int to, Map<String, String> names, String[] material)
+	{
+		int pos = from;
+		while (pos + 6 <= to) {
+			int id = b.getShort(pos) & 0xffff;
+			int len = b.getInt(pos + 2);
+			if (len < 6 || len > to - pos) break;
+			switch (id) {
+				case M3DMAGIC:
+				case MDATA:
+				case MAT_TEXMAP:
+					readTextureNames(b, pos + 6, pos + len, names, material);
+					break;
+
+				case MAT_ENTRY:
+					String[] m = new String[2];
+					readTextureNames(b, pos + 6, pos + len, names, m);
+					if (m[0] != null && m[1] != null) {
+						names.put(m[0], m[1]);
+					}
+					break;
+
+				case MAT_NAME:
+					if (material != null) material[0] = readString(b, pos + 6, pos + len);
+					break;
+
+				case MAT_MAPNAME:
+					if (material != null) material[1] = readString(b, pos + 6, pos + len).toLowerCase();
+					break;
+			}
+			pos += len;
+		}
+	}
+
+	/** Reads a zero terminated string. */
+	private static String readString(ByteBuffer b, int from, int to) {
+		StringBuffer sb = new StringBuffer();
+		for (int i=from; i<to && b.get(i) != 0; i++) {
+			sb.append((char)(b.get(i) & 0xff));
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Encodes a scene graph. Appearances and geometries are written
+	 * as tables, followed by the node hierarchy which refers to them
+	 * by their indices.
+	 */
+	private static class Encoder
+	{
+		private float scale;
+		private Map<Appearance, String> textureNames;
+
+		private java.util.List<String> textures = new ArrayList<String>();
+		private java.util.List<Appearance> appearances = new ArrayList<Appearance>();
+		private java.util.List<GeometryArray> geometries = new ArrayList<GeometryArray>();
+		private Map<Object, Integer> indices = new IdentityHashMap<Object, Integer>();
+
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream(256*1024);
+		private DataOutputStream out = new DataOutputStream(bytes);
+
+		Encoder(float scale, Map<Appearance, String> textureNames) {
+			this.scale = scale;
+			this.textureNames = textureNames;
+		}
+
+		/** Encodes the specified scene. */
+		byte[] encode(Node scene) throws IOException {
+			collect(scene);
+
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+
+			out.writeInt(textures.size());
+			for (String name : textures) {
+				out.writeUTF(name);
+			}
+
+			out.writeInt(appearances.size());
+			for (Appearance app : appearances) {
+				writeAppearance(app);
+			}
+
+			out.writeInt(geometries.size());
+			for (GeometryArray ga : geometries) {
+				writeGeometry(ga);
+			}
+
+			writeNode(scene);
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		/** Collects all appearances, geometries and textures of a scene. */
+		private void collect(Node node) throws IOException {
+			if (node instanceof Group) {
+				Group g = (Group)node;
+				for (int i=0; i<g.numChildren(); i++) {
+					collect(g.getChild(i));
+				}
+			} else if (node instanceof Shape3D) {
+				Shape3D shape = (Shape3D)node;
+				Appearance app = shape.getAppearance();
+				if (app != null && !indices.containsKey(app)) {
+					indices.put(app, appearances.size());
+					appearances.add(app);
+					String texture = textureNames.get(app);
+					if (texture != null && !textures.contains(texture)) {
+						textures.add(texture);
+					}
+				}
+				for (int i=0; i<shape.numGeometries(); i++) {
+					Geometry geom = shape.getGeometry(i);
+					if (!(geom instanceof TriangleArray)) {
+						throw new IOException("Unsupported geometry " + geom);
+					}
+					GeometryArray ga = (GeometryArray)geom;
+					if ((ga.getVertexFormat() & ~SUPPORTED_FORMATS) != 0 ||
+						(ga.getVertexFormat() & GeometryArray.COORDINATES) == 0)
+					{
+						throw new IOException("Unsupported vertex format " + ga.getVertexFormat());
+					}
+					if (!indices.containsKey(ga)) {
+						indices.put(ga, geometries.size());
+						geometries.add(ga);
+					}
+				}
+			} else {
+				throw new IOException("Unsupported node " + node);
+			}
+		}
+
+		/** Writes an appearance. */
+		private void writeAppearance(Appearance app) throws IOException {
+			Material m = app.getMaterial();
+			TransparencyAttributes ta = app.getTransparencyAttributes();
+			PolygonAttributes pa = app.getPolygonAttributes();
+			String texture = textureNames.get(app);
+
+			int flags = 0;
+			if (m != null) flags |= HAS_MATERIAL;
+			if (ta != null) flags |= HAS_TRANSPARENCY;
+			if (pa != null) flags |= HAS_POLYGON;
+			if (texture != null) flags |= HAS_TEXTURE;
+			out.writeByte(flags);
+
+			if (m != null) {
+				Color3f c = new Color3f();
+				m.getAmbientColor(c);  writeColor(c);
+				m.getEmissiveColor(c); writeColor(c);
+				m.getDiffuseColor(c);  writeColor(c);
+				m.getSpecularColor(c); writeColor(c);
+				out.writeFloat(m.getShininess());
+				out.writeBoolean(m.getLightingEnable());
+			}
+			if (ta != null) {
+				out.writeByte(ta.getTransparencyMode());
+				out.writeFloat(ta.getTransparency());
+			}
+			if (pa != null) {
+				out.writeByte(pa.getPolygonMode());
+				out.writeByte(pa.getCullFace());
+				out.writeBoolean(pa.getBackFaceNormalFlip());
+			}
+			if (texture != null) {
+				out.writeShort(textures.indexOf(texture));
+			}
+		}
+
+		private void writeColor(Color3f c) throws IOException {
+			out.writeFloat(c.x);
+			out.writeFloat(c.y);
+			out.writeFloat(c.z);
+		}
+
+		/** Writes a geometry, applying the scale to its coordinates. */
+		private void writeGeometry(GeometryArray ga) throws IOException {
+			int format = ga.getVertexFormat();
+			int n = ga.getVertexCount();
+			out.writeInt(format);
+			out.writeInt(n);
+
+			float[] a = new float[3*n];
+			ga.getCoordinates(0, a);
+			for (int i=0; i<a.length; i++) {
+				out.writeFloat(a[i] * scale);
+			}
+			if ((format & GeometryArray.NORMALS) != 0) {
+				ga.getNormals(0, a);
+				writeFloats(a, 3*n);
+			}
+			if ((format & GeometryArray.TEXTURE_COORDINATE_2) != 0) {
+				TexCoord2f[] tc = new TexCoord2f[n];
+				for (int i=0; i<n; i++) {
+					tc[i] = new TexCoord2f();
+				}
+				ga.getTextureCoordinates(0, 0, tc);
+				for (int i=0; i<n; i++) {
+					out.writeFloat(tc[i].x);
+					out.writeFloat(tc[i].y);
+				}
+			}
+		}
+
+		private void writeFloats(float[] a, int n) throws IOException {
+			for (int i=0; i<n; i++) {
+				out.writeFloat(a[i]);
+			}
+		}
+
+		/**
+		 * Writes a node and its children. The translations of transform
+		 * groups are scaled, as the coordinates below already are.
+		 */
+		private void writeNode(Node node) throws IOException {
+			if (node instanceof Shape3D) {
+				Shape3D shape = (Shape3D)node;
+				out.writeByte(NODE_SHAPE);
+				Appearance app = shape.getAppearance();
+				out.writeInt(app == null ? -1 : indices.get(app).intValue());
+				out.writeInt(shape.numGeometries());
+				for (int i=0; i<shape.numGeometries(); i++) {
+					out.writeInt(indices.get(shape.getGeometry(i)).intValue());
+				}
+				return;
+			}
+
+			if (node instanceof TransformGroup) {
+				out.writeByte(NODE_TRANSFORM);
+				Transform3D t = new Transform3D();
+				((TransformGroup)node).getTransform(t);
+				Matrix4d m = new Matrix4d();
+				t.get(m);
+				m.m03 *= scale;
+				m.m13 *= scale;
+				m.m23 *= scale;
+				for (int row=0; row<4; row++) {
+					for (int col=0; col<4; col++) {
+						out.writeDouble(m.getElement(row, col));
+					}
+				}
+			} else {
+				out.writeByte(NODE_GROUP);
+			}
+			Group g = (Group)node;
+			out.writeInt(g.numChildren());
+			for (int i=0; i<g.numChildren(); i++) {
+				writeNode(g.getChild(i));
+			}
+		}
+	}
+
+
+	/**
+	 * Decodes a scene encoded by an {@link Encoder}.
+	 *
+	 * @param buf the encoded scene.
+	 * @param file URL of the 3ds file, textures are loaded relative to it.
+	 * @param textures specifies if textures should be loaded.
+	 * @throws IOException if the data is corrupt.
+	 */
+	private static BranchGroup decode(ByteBuffer buf, URL file, boolean textures) throws IOException {
+		try {
+			Appearance[] apps = decodeAppearances(buf, file, textures);
+
+			GeometryArray[] geoms = new GeometryArray[buf.getInt()];
+			for (int i=0; i<geoms.length; i++) {
+				geoms[i] = readGeometry(buf);
+			}
+
+			BranchGroup scene = new BranchGroup();
+			if (buf.get() != NODE_GROUP) throw new IOException("Scene must start with a group.");
+			readChildren(buf, scene, apps, geoms);
+			return scene;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Unexpected end of mesh cache file.");
+		}
+		catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt mesh cache file: " + e);
+		}
+	}
+
+	/**
+	 * Decodes the header and the appearance table of an encoded scene,
+	 * leaving the buffer positioned at the geometry table.
+	 *
+	 * @param buf the encoded scene.
+	 * @param file URL of the 3ds file, textures are loaded relative to it.
+	 * @param textures specifies if textures should be loaded.
+	 * @throws IOException if the data is corrupt.
+	 */
+	private static Appearance[] decodeAppearances(ByteBuffer buf, URL file, boolean textures) throws IOException {
+		try {
+			if (buf.getInt() != MAGIC) throw new IOException("Not a mesh cache file.");
+			if (buf.getShort() != VERSION) throw new IOException("Unsupported version.");
+
+			StreamedTexture[] texs = new StreamedTexture[buf.getInt()];
+			for (int i=0; i<texs.length; i++) {
+				String name = AssetPack.readUTF(buf);
+				if (textures) {
+					texs[i] = TextureCache.getStreamedTexture(new URL(file, name));
+				}
+			}
+
+			Appearance[] apps = new Appearance[buf.getInt()];
+			for (int i=0; i<apps.length; i++) {
+				apps[i] = readAppearance(buf, texs);
+			}
+			return apps;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Unexpected end of mesh cache file.");
+		}
+		catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt mesh cache file: " + e);
+		}
+	}
+
+	/**
+	 * Reads an appearance, as created by <tt>Loader3DS</tt>.
+	 * Textures are shown at low resolution until they are streamed in.
+	 */
+	private static Appearance readAppearance(ByteBuffer buf, StreamedTexture[] texs) {
+		Appearance app = new Appearance();
+		int flags = buf.get();
+		if ((flags & HAS_MATERIAL) != 0) {
+			Material m = new Material();
+			m.setAmbientColor(readColor(buf));
+			m.setEmissiveColor(readColor(buf));
+			m.setDiffuseColor(readColor(buf));
+			m.setSpecularColor(readColor(buf));
+			m.setShininess(buf.getFloat());
+			m.setLightingEnable(buf.get() != 0);
+			app.setMaterial(m);
+		}
+		if ((flags & HAS_TRANSPARENCY) != 0) {
+			int mode = buf.get();
+			app.setTransparencyAttributes(new TransparencyAttributes(mode, buf.getFloat()));
+		}
+		if ((flags & HAS_POLYGON) != 0) {
+			PolygonAttributes pa = new PolygonAttributes();
+			pa.setPolygonMode(buf.get());
+			pa.setCullFace(buf.get());
+			pa.setBackFaceNormalFlip(buf.get() != 0);
+			app.setPolygonAttributes(pa);
+		}
+		if ((flags & HAS_TEXTURE) != 0) {
+			StreamedTexture tex = texs[buf.getShort()];
+			if (tex != null) {
+				TextureAttributes ta = new TextureAttributes();
+				ta.setPerspectiveCorrectionMode(TextureAttributes.FASTEST);
+				ta.setTextureMode(TextureAttributes.MODULATE);
+				app.setTextureAttributes(ta);
+				tex.bind(app);
+			}
+		}
+		return app;
+	}
+
+	private static Color3f readColor(ByteBuffer buf) {
+		float r = buf.getFloat();
+		float g = buf.getFloat();
+		return new Color3f(r, g, buf.getFloat());
+	}
+
+	/** Reads a geometry. */
+	private static GeometryArray readGeometry(ByteBuffer buf) throws IOException {
+		int format = buf.getInt();
+		int n = buf.getInt();
+		if ((format & ~SUPPORTED_FORMATS) != 0 || n < 0 || n % 3 != 0) {
+			throw new IOException("Corrupt geometry.");
+		}
+		TriangleArray ta = new TriangleArray(n, format);
+		ta.setCoordinates(0, readFloats(buf, 3*n));
+		if ((format & GeometryArray.NORMALS) != 0) {
+			ta.setNormals(0, readFloats(buf, 3*n));
+		}
+		if ((format & GeometryArray.TEXTURE_COORDINATE_2) != 0) {
+			ta.setTextureCoordinates(0, 0, readFloats(buf, 2*n));
+		}
+		return ta;
+	}
+
+	/** Reads an array of floats in one bulk operation. */
+	private static float[] readFloats(ByteBuffer buf, int n) {
+		float[] a = new float[n];
+		buf.asFloatBuffer().get(a);
+		buf.position(buf.position() + 4*n);
+		return a;
+	}
+
+	/** Reads the children of a group. */
+	private static void readChildren(
+		ByteBuffer buf, Group parent, Appearance[] apps, GeometryArray[] geoms)
+		throws IOException
+	{
+		int n = buf.getInt();
+		for (int i=0; i<n; i++) {
+			byte type = buf.get();
+			switch (type) {
+				case NODE_GROUP:
+					BranchGroup bg = new BranchGroup();
+					readChildren(buf, bg, apps, geoms);
+					parent.addChild(bg);
+					break;
+
+				case NODE_TRANSFORM:
+					double[] m = new double[16];
+					buf.asDoubleBuffer().get(m);
+					buf.position(buf.position() + 8*m.length);
+					TransformGroup tg = new TransformGroup(new Transform3D(m));
+					readChildren(buf, tg, apps, geoms);
+					parent.addChild(tg);
+					break;
+
+				case NODE_SHAPE:
+					int app = buf.getInt();
+					Shape3D shape = new Shape3D();
+					shape.setAppearance(app < 0 ? null : apps[app]);
+					int count = buf.getInt();
+					for (int j=0; j<count; j++) {
+						if (j == 0) {
+							shape.setGeometry(geoms[buf.getInt()]);
+						} else {
+							shape.addGeometry(geoms[buf.getInt()]);
+						}
+					}
+					parent.addChild(shape);
+					break;
+
+				default:
+					throw new IOException("Unknown node type " + type + ".");
+			}
+		}
+	}
+
+
+	/**
+	 * Pre-builds the mesh cache for all standard vessels.
+	 * The cache directory may be specified as argument.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			setDirectory(new File(args[0]));
+		}
+		System.out.println("Building mesh cache in " + getDirectory());
+		Vessel[] types = VesselCatalog.getTypes();
+		for (int i=0; i<types.length; i++) {
+			Vessel v = types[i];
+			if (v.getFile() == null || !v.getFile().toLowerCase().endsWith(".3ds")) continue;
+			URL file;
+			try {
+				file = AssetPack.getResource(v.getFile());
+			}
+			catch (MissingResourceException e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+			long t = System.currentTimeMillis();
+			boolean built = build(file, v.getScale());
+			System.out.println(v.getName() + ": " + (built
+				? "built in " + (System.currentTimeMillis() - t) + " ms"
+				: "up to date"));
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package ch.fha.ia02.above;
+
+import java.util.*;
+
+import javax.media.j3d.*;
+import javax.vecmath.*;
+
+/**
+ * Converts loaded meshes into a compact form that is cheaper to store
+ * and to render.
+ * <p>
+ * All triangle arrays of a mesh sharing an appearance are merged into a
+ * single shape, with the transforms of the scene baked into the vertices.
+ * Identical vertices are stored only once, in an indexed, interleaved
+ * geometry that refers to its vertex array by reference, so Java 3D does
+ * not keep a copy of it.
+ * <p>
+ * A compacted {@link Mesh} refers to appearances only by their index in
+ * the {@linkplain #getAppearances(Node) appearances} of the scene it was
+ * created from. So the same geometry can be used for scenes with or
+ * without textures, which only differ in their appearances.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ShapeCache#getShapes(Vessel)
+ */
+public class MeshCompactor
+{
+	/** Vertex formats that can be compacted. */
+	private static final int SUPPORTED_FORMATS =
+		GeometryArray.COORDINATES |
+		GeometryArray.NORMALS |
+		GeometryArray.TEXTURE_COORDINATE_2;
+
+	/** Private to avoid instantiation. */
+	private MeshCompactor() {
+	}
+
+
+	/**
+	 * A compacted mesh, without appearances.
+	 */
+	public static class Mesh
+	{
+		private java.util.List<Part> parts = new ArrayList<Part>();
+		private int vertices = 0;
+		private int originalVertices = 0;
+		private long memoryUsage = 0;
+
+		/**
+		 * Creates a scene from this mesh. Geometries are shared
+		 * by all scenes created from this mesh.
+		 *
+		 * @param appearances the appearances to use, in the order of
+		 *        {@link MeshCompactor#getAppearances(Node)} of the scene
+		 *        this mesh was created from.
+		 * @return the new scene.
+		 */
+		public BranchGroup createScene(Appearance[] appearances) {
+			BranchGroup scene = new BranchGroup();
+			for (Part p : parts) {
+				Node n = p.template.cloneNode(false);
+				if (n instanceof Shape3D) {
+					((Shape3D)n).setAppearance(p.appearance >= 0 ? appearances[p.appearance] : null);
+				}
+				if (p.transform != null) {
+					TransformGroup tg = new TransformGroup(p.transform);
+					tg.addChild(n);
+					n = tg;
+				}
+				scene.addChild(n);
+			}
+			return scene;
+		}
+
+		/** Returns the number of vertices stored by this mesh. */
+		public int getVertexCount() {
+			return vertices;
+		}
+
+		/**
+		 * Returns the memory used by the geometry of this mesh, in bytes.
+		 * Geometry that could not be compacted is estimated.
+		 */
+		public long getMemoryUsage() {
+			return memoryUsage;
+		}
+
+		/** Returns a string representation of this mesh. */
+		public String toString() {
+			return getClass().getName() + "[" + parts.size() + " shapes, "
+				+ originalVertices + " vertices compacted to " + vertices + "]";
+		}
+	}
+
+	/**
+	 * A node of a compacted mesh.
+	 */
+	private static class Part
+	{
+		/** Index of the appearance, or -1 for none. */
+		int appearance;
+		/** The node, cloned for each scene. */
+		Node template;
+		/** The transform to apply, or <tt>null</tt> if baked into the geometry. */
+		Transform3D transform;
+
+		Part(int appearance, Node template, Transform3D transform) {
+			this.appearance = appearance;
+			this.template = template;
+			this.transform = transform;
+		}
+	}
+
+	/**
+	 * Identifies a vertex by its interleaved values,
+	 * used to store identical vertices only once.
+	 */
+	private static class Vertex
+	{
+		private float[] data;
+		private int offset;
+		private int stride;
+		private int hash;
+
+		Vertex(float[] data, int offset, int stride) {
+			this.data = data;
+			this.offset = offset;
+			this.stride = stride;
+			int h = 1;
+			for (int i=0; i<stride; i++) {
+				h = 31*h + Float.floatToIntBits(data[offset+i]);
+			}
+			hash = h;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Vertex)) return false;
+			Vertex v = (Vertex)o;
+			if (v.hash != hash || v.stride != stride) return false;
+			for (int i=0; i<stride; i++) {
+				if (Float.floatToIntBits(data[offset+i]) != Float.floatToIntBits(v.data[v.offset+i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+
+	/**
+	 * Returns the distinct appearances of a scene,
+	 * in the order they are encountered.
+	 */
+	public static Appearance[] getAppearances(Node scene) {
+		java.util.List<Appearance> apps = new ArrayList<Appearance>();
+		collectAppearances(scene, apps);
+		return apps.toArray(new Appearance[apps.size()]);
+	}
+
+	private static void collectAppearances(Node node, java.util.List<Appearance> apps) {
+		if (node instanceof Shape3D) {
+			Appearance app = ((Shape3D)node).getAppearance();
+			if (app != null && indexOf(apps, app) < 0) apps.add(app);
+		} else if (node instanceof Group) {
+			Group group = (Group)node;
+			for (int i=0; i<group.numChildren(); i++) {
+				collectAppearances(group.getChild(i), apps);
+			}
+		}
+	}
+
+	/** Finds an appearance by identity, as appearances do not implement equals. */
+	private static int indexOf(java.util.List<Appearance> apps, Appearance app) {
+		for (int i=0; i<apps.size(); i++) {
+			if (apps.get(i) == app) return i;
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Compacts a scene.
+	 *
+	 * @param scene the scene to compact, which must not be live or compiled.
+	 * @param appearances the appearances of the scene,
+	 *        as returned by {@link #getAppearances(Node)}.
+	 * @return the compacted mesh.
+	 */
+	public static Mesh compact(Node scene, Appearance[] appearances) {
+		java.util.List<Appearance> apps = Arrays.asList(appearances);
+		Map<String, java.util.List<float[]>> groups = new LinkedHashMap<String, java.util.List<float[]>>();
+		Mesh mesh = new Mesh();
+		collect(scene, new Transform3D(), apps, groups, mesh);
+
+		// merge the triangles of each appearance and vertex format
+		for (Map.Entry<String, java.util.List<float[]>> e : groups.entrySet()) {
+			String[] key = e.getKey().split(",");
+			int app = Integer.parseInt(key[0]);
+			int format = Integer.parseInt(key[1]);
+			IndexedTriangleArray ita = merge(e.getValue(), format);
+			mesh.vertices += ita.getVertexCount();
+			mesh.memoryUsage += 4L * (ita.getVertexCount() * getStride(format) + ita.getIndexCount());
+			mesh.parts.add(new Part(app, new Shape3D(ita), null));
+		}
+		return mesh;
+	}
+
+	/**
+	 * Collects the triangles of a scene, as interleaved vertices with
+	 * baked transforms, grouped by appearance and vertex format.
+	 * Other nodes are added to the mesh as they are.
+	 */
+	private static void collect(
+		Node node,
+		Transform3D t,
+		java.util.List<Appearance> apps,
+		Map<String, java.util.List<float[]>> groups,
+		Mesh mesh)
+	{
+		if (node instanceof Group) {
+			Group group = (Group)node;
+			Transform3D childTransform = t;
+			if (node instanceof TransformGroup) {
+				Transform3D local = new Transform3D();
+				((TransformGroup)node).getTransform(local);
+				childTransform = new Transform3D(t);
+				childTransform.mul(local);
+			}
+			for (int i=0; i<group.numChildren(); i++) {
+				collect(group.getChild(i), childTransform, apps, groups, mesh);
+			}
+			return;
+		}
+
+		Transform3D transform = (t.getType() & Transform3D.IDENTITY) != 0 ? null : new Transform3D(t);
+		if (!(node instanceof Shape3D)) {
+			mesh.parts.add(new Part(-1, node.cloneNode(false), transform));
+			return;
+		}
+
+		Shape3D shape = (Shape3D)node;
+		int app = indexOf(apps, shape.getAppearance());
+		boolean merged = false;
+		if (shape.getClass() == Shape3D.class) { // subclasses like OrientedShape3D behave differently
+			Shape3D rest = new Shape3D();
+			rest.removeGeometry(0);
+			for (int i=0; i<shape.numGeometries(); i++) {
+				Geometry g = shape.getGeometry(i);
+				if (g instanceof TriangleArray && (((TriangleArray)g).getVertexFormat() & ~SUPPORTED_FORMATS) == 0
+					&& (((TriangleArray)g).getVertexFormat() & GeometryArray.BY_REFERENCE) == 0)
+				{
+					TriangleArray ta = (TriangleArray)g;
+					String key = app + "," + ta.getVertexFormat();
+					java.util.List<float[]> group = groups.get(key);
+					if (group == null) groups.put(key, group = new ArrayList<float[]>());
+					group.add(interleave(ta, t));
+					mesh.originalVertices += ta.getVertexCount();
+					merged = true;
+				} else if (g != null) {
+					rest.addGeometry(g);
+					mesh.memoryUsage += estimateMemoryUsage(g);
+				}
+			}
+			if (merged) {
+				if (rest.numGeometries() > 0) {
+					mesh.parts.add(new Part(app, rest, transform));
+				}
+				return;
+			}
+		}
+		for (int i=0; i<shape.numGeometries(); i++) {
+			mesh.memoryUsage += estimateMemoryUsage(shape.getGeometry(i));
+		}
+		mesh.parts.add(new Part(app, shape.cloneNode(false), transform));
+	}
+
+	/** Estimates the memory used by a geometry, assuming all vertex components. */
+	private static long estimateMemoryUsage(Geometry g) {
+		if (!(g instanceof GeometryArray)) return 0;
+		return 4L * getStride(SUPPORTED_FORMATS) * ((GeometryArray)g).getVertexCount();
+	}
+
+	/**
+	 * Returns the vertices of a triangle array in interleaved
+	 * format, texture coordinates and normals first.
+	 */
+	private static float[] interleave(TriangleArray ta, Transform3D t) {
+		int format = ta.getVertexFormat();
+		int n = ta.getVertexCount();
+		int stride = getStride(format);
+		float[] out = new float[n * stride];
+		int o = 0;
+
+		if ((format & GeometryArray.TEXTURE_COORDINATE_2) != 0) {
+			TexCoord2f[] tc = new TexCoord2f[n];
+			for (int i=0; i<n; i++) {
+				tc[i] = new TexCoord2f();
+			}
+			ta.getTextureCoordinates(0, 0, tc);
+			for (int i=0; i<n; i++) {
+				out[i*stride + o] = tc[i].x;
+				out[i*stride + o+1] = tc[i].y;
+			}
+			o += 2;
+		}
+
+		if ((format & GeometryArray.NORMALS) != 0) {
+			// normals are transformed by the inverse transpose
+			Transform3D nt = new Transform3D(t);
+			nt.invert();
+			nt.transpose();
+			float[] normals = new float[3*n];
+			ta.getNormals(0, normals);
+			Vector3f normal = new Vector3f();
+			for (int i=0; i<n; i++) {
+				normal.set(normals[3*i], normals[3*i+1], normals[3*i+2]);
+				nt.transform(normal);
+				if (normal.lengthSquared() > 0) normal.normalize();
+				out[i*stride + o] = normal.x;
+				out[i*stride + o+1] = normal.y;
+				out[i*stride + o+2] = normal.z;
+			}
+			o += 3;
+		}
+
+		float[] coords = new float[3*n];
+		ta.getCoordinates(0, coords);
+		Point3f p = new Point3f();
+		for (int i=0; i<n; i++) {
+			p.set(coords[3*i], coords[3*i+1], coords[3*i+2]);
+			t.transform(p);
+			out[i*stride + o] = p.x;
+			out[i*stride + o+1] = p.y;
+			out[i*stride + o+2] = p.z;
+		}
+		return out;
+	}
+
+	/** Returns the number of floats per interleaved vertex. */
+	private static int getStride(int format) {
+		int stride = 3;
+		if ((format & GeometryArray.NORMALS) != 0) stride += 3;
+		if ((format & GeometryArray.TEXTURE_COORDINATE_2) != 0) stride += 2;
+		return stride;
+	}
+
+	/**
+	 * Merges interleaved triangles into one indexed geometry,
+	 * storing identical vertices only once.
+	 */
+	private static IndexedTriangleArray merge(java.util.List<float[]> triangles, int format) {
+		int stride = getStride(format);
+		int n = 0;
+		for (float[] t : triangles) {
+			n += t.length / stride;
+		}
+
+		Map<Vertex, Integer> ids = new HashMap<Vertex, Integer>();
+		int[] indices = new int[n];
+		float[] vertices = new float[n * stride];
+		int count = 0;
+		int k = 0;
+		for (float[] t : triangles) {
+			for (int offset=0; offset<t.length; offset+=stride) {
+				Vertex v = new Vertex(t, offset, stride);
+				Integer id = ids.get(v);
+				if (id == null) {
+					System.arraycopy(t, offset, vertices, count * stride, stride);
+					id = Integer.valueOf(count++);
+					ids.put(v, id);
+				}
+				indices[k++] = id.intValue();
+			}
+		}
+		if (count < n) {
+			float[] a = new float[count * stride];
+			System.arraycopy(vertices, 0, a, 0, a.length);
+			vertices = a;
+		}
+
+		IndexedTriangleArray ita = new IndexedTriangleArray(count,
+			format |
+			GeometryArray.BY_REFERENCE |
+			GeometryArray.INTERLEAVED |
+			GeometryArray.USE_COORD_INDEX_ONLY,
+			n);
+		ita.setInterleavedVertices(vertices);
+		ita.setCoordinateIndices(0, indices);
+		return ita;
+	}
+}
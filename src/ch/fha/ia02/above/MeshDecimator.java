@@ -0,0 +1,329 @@
+package ch.fha.ia02.above;
+
+import java.util.*;
+
+import javax.media.j3d.*;
+import javax.vecmath.*;
+
+/**
+ * Creates coarser versions of a mesh, for use as lower levels of detail.
+ * <p>
+ * Decimation is done by vertex clustering: the bounding box of the
+ * whole scene is divided into a grid of cells, and all vertices within
+ * a cell are moved to their mean position. As all parts of the scene
+ * share the same grid and means, edges shared by neighbouring parts
+ * stay closed. Triangles collapsing to a line or a point are dropped,
+ * as are duplicate triangles. Normals and texture coordinates are kept,
+ * so textured meshes still look right from a distance.
+ * <p>
+ * Only triangle arrays with coordinates, normals and texture coordinates
+ * are decimated, other geometries are shared with the original mesh,
+ * as are all appearances.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ShapeCache#getShapes(Vessel)
+ */
+public class MeshDecimator
+{
+	/**
+	 * Number of grid cells along the longest side of a scene,
+	 * for each level of detail below the original mesh.
+	 */
+	public static final int[] LEVELS = { 24, 8 };
+
+	/** Vertex formats that can be decimated. */
+	private static final int SUPPORTED_FORMATS =
+		GeometryArray.COORDINATES |
+		GeometryArray.NORMALS |
+		GeometryArray.TEXTURE_COORDINATE_2;
+
+	/** A level is only used if it saves at least this fraction of the vertices. */
+	private static final float MIN_REDUCTION = 0.25f;
+
+	/** Maximum number of cells per axis, so cell IDs fit into an <tt>int</tt>. */
+	private static final int MAX_RESOLUTION = 100;
+
+	private int resolution;
+	private int vertices = 0;
+	private int decimatedVertices = 0;
+
+	private float[] min;
+	private float scale;
+	/** Sum of the scene coordinates and number of vertices of each cell. */
+	private Map<Integer, float[]> means;
+
+
+	/**
+	 * Creates a decimator.
+	 *
+	 * @param resolution the number of grid cells along the longest side
+	 *        of each scene.
+	 */
+	public MeshDecimator(int resolution) {
+		if (resolution < 1 || resolution > MAX_RESOLUTION) {
+			throw new IllegalArgumentException("Resolution must be between 1 and " + MAX_RESOLUTION + "!");
+		}
+		this.resolution = resolution;
+	}
+
+
+	/**
+	 * Creates the lower levels of detail of a scene.
+	 * Levels not saving enough vertices are omitted.
+	 *
+	 * @param scene the original scene, which must not be live or compiled.
+	 * @return the decimated scenes, coarsest last.
+	 */
+	public static Node[] createLevels(Node scene) {
+		java.util.List<Node> levels = new ArrayList<Node>();
+		int previous = -1;
+		for (int i=0; i<LEVELS.length; i++) {
+			MeshDecimator d = new MeshDecimator(LEVELS[i]);
+			Node level = d.decimate(scene);
+			if (previous < 0) previous = d.vertices;
+			if (level != null && d.decimatedVertices <= previous * (1 - MIN_REDUCTION)) {
+				levels.add(level);
+				previous = d.decimatedVertices;
+			}
+		}
+		return levels.toArray(new Node[levels.size()]);
+	}
+
+
+	/**
+	 * Creates a decimated copy of a scene.
+	 *
+	 * @param scene the scene to decimate.
+	 * @return the decimated scene, or <tt>null</tt> if nothing remains.
+	 */
+	public Node decimate(Node scene) {
+		min = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		means = new HashMap<Integer, float[]>();
+		try {
+			// grid covering the bounding box of the scene, with cubic cells
+			collect(scene, new Transform3D(), max);
+			float size = Math.max(max[0]-min[0], Math.max(max[1]-min[1], max[2]-min[2]));
+			scale = (size > 0) ? resolution / size : 0;
+
+			// assign all vertices to cells and compute the mean position of each cell
+			collect(scene, new Transform3D(), null);
+			return copy(scene, new Transform3D());
+		}
+		finally {
+			means = null;
+		}
+	}
+
+
+	/** Returns whether a geometry can be decimated. */
+	private static boolean isSupported(Geometry g) {
+		return g instanceof TriangleArray &&
+			(((TriangleArray)g).getVertexFormat() & ~SUPPORTED_FORMATS) == 0;
+	}
+
+	/**
+	 * Collects the vertices of the geometries to decimate, either
+	 * to compute the bounding box of the scene or, once it is known,
+	 * the mean position of each cell.
+	 *
+	 * @param node the node to collect.
+	 * @param t the transform from the node into the scene.
+	 * @param max receives the upper corner of the bounding box,
+	 *        or <tt>null</tt> to compute the means.
+	 */
+	private void collect(Node node, Transform3D t, float[] max) {
+		if (node instanceof Shape3D) {
+			Shape3D shape = (Shape3D)node;
+			for (int i=0; i<shape.numGeometries(); i++) {
+				Geometry g = shape.getGeometry(i);
+				if (!isSupported(g)) continue;
+				float[] coords = sceneCoordinates((TriangleArray)g, t);
+				if (max != null) {
+					for (int k=0; k<coords.length; k++) {
+						min[k%3] = Math.min(min[k%3], coords[k]);
+						max[k%3] = Math.max(max[k%3], coords[k]);
+					}
+					continue;
+				}
+				for (int v=0; v<coords.length; v+=3) {
+					Integer key = Integer.valueOf(cell(coords, v));
+					float[] mean = means.get(key);
+					if (mean == null) means.put(key, mean = new float[4]);
+					mean[0] += coords[v];
+					mean[1] += coords[v+1];
+					mean[2] += coords[v+2];
+					mean[3]++;
+				}
+			}
+		} else if (node instanceof Group) {
+			Group group = (Group)node;
+			Transform3D childTransform = t;
+			if (node instanceof TransformGroup) {
+				Transform3D local = new Transform3D();
+				((TransformGroup)node).getTransform(local);
+				childTransform = new Transform3D(t);
+				childTransform.mul(local);
+			}
+			for (int i=0; i<group.numChildren(); i++) {
+				collect(group.getChild(i), childTransform, max);
+			}
+		}
+	}
+
+	/** Returns the coordinates of a triangle array, transformed into the scene. */
+	private static float[] sceneCoordinates(TriangleArray ta, Transform3D t) {
+		float[] coords = new float[3*ta.getVertexCount()];
+		if (coords.length == 0) return coords;
+		ta.getCoordinates(0, coords);
+		Point3f p = new Point3f();
+		for (int v=0; v<coords.length; v+=3) {
+			p.set(coords[v], coords[v+1], coords[v+2]);
+			t.transform(p);
+			coords[v] = p.x;
+			coords[v+1] = p.y;
+			coords[v+2] = p.z;
+		}
+		return coords;
+	}
+
+	/**
+	 * Creates a decimated copy of a node, once the cells are known.
+	 *
+	 * @param node the node to copy.
+	 * @param t the transform from the node into the scene.
+	 * @return the decimated node, or <tt>null</tt> if nothing remains.
+	 */
+	private Node copy(Node node, Transform3D t) {
+		if (node instanceof Shape3D) {
+			Shape3D shape = (Shape3D)node;
+			Shape3D copy = new Shape3D();
+			copy.setAppearance(shape.getAppearance());
+			copy.removeGeometry(0);
+			for (int i=0; i<shape.numGeometries(); i++) {
+				Geometry g = shape.getGeometry(i);
+				if (isSupported(g)) g = decimate((TriangleArray)g, t);
+				if (g != null) copy.addGeometry(g);
+			}
+			return copy.numGeometries() > 0 ? copy : null;
+		}
+
+		if (node instanceof Group) {
+			Group group = (Group)node;
+			Group copy;
+			Transform3D childTransform = t;
+			if (node instanceof TransformGroup) {
+				Transform3D local = new Transform3D();
+				((TransformGroup)node).getTransform(local);
+				copy = new TransformGroup(local);
+				childTransform = new Transform3D(t);
+				childTransform.mul(local);
+			} else {
+				copy = new BranchGroup();
+			}
+			for (int i=0; i<group.numChildren(); i++) {
+				Node child = copy(group.getChild(i), childTransform);
+				if (child != null) copy.addChild(child);
+			}
+			return copy.numChildren() > 0 ? copy : null;
+		}
+
+		return node.cloneNode(false);
+	}
+
+	/** Returns the ID of the cell containing a vertex in scene coordinates. */
+	private int cell(float[] coords, int offset) {
+		int id = 0;
+		for (int k=0; k<3; k++) {
+			int c = Math.min(resolution, (int)((coords[offset+k] - min[k]) * scale));
+			id = id*(MAX_RESOLUTION+1) + c;
+		}
+		return id;
+	}
+
+
+	/**
+	 * Decimates a triangle array of the scene being decimated.
+	 *
+	 * @param ta the triangle array.
+	 * @param t the transform from the array into the scene.
+	 * @return the decimated geometry, or <tt>null</tt> if no triangles remain.
+	 */
+	private TriangleArray decimate(TriangleArray ta, Transform3D t) {
+		int format = ta.getVertexFormat();
+		int n = ta.getVertexCount();
+		vertices += n;
+		if (n == 0 || scale == 0) return null;
+
+		float[] coords = sceneCoordinates(ta, t);
+		int[] cells = new int[n];
+		for (int v=0; v<n; v++) {
+			cells[v] = cell(coords, 3*v);
+		}
+
+		// keep the triangles spanning three cells, once per winding
+		Set<String> seen = new HashSet<String>();
+		int[] kept = new int[n];
+		int m = 0;
+		for (int v=0; v<n; v+=3) {
+			int a = cells[v], b = cells[v+1], c = cells[v+2];
+			if (a == b || b == c || a == c) continue;
+			// rotate so the smallest cell comes first, preserving the winding
+			String key;
+			if (a < b && a < c) key = a + "," + b + "," + c;
+			else if (b < c) key = b + "," + c + "," + a;
+			else key = c + "," + a + "," + b;
+			if (!seen.add(key)) continue;
+			kept[m++] = v;
+			kept[m++] = v+1;
+			kept[m++] = v+2;
+		}
+		decimatedVertices += m;
+		if (m == 0) return null;
+
+		TriangleArray result = new TriangleArray(m, format);
+		float[] out = new float[3*m];
+		Transform3D inverse = new Transform3D(t);
+		inverse.invert();
+		Point3f p = new Point3f();
+		for (int i=0; i<m; i++) {
+			float[] mean = means.get(Integer.valueOf(cells[kept[i]]));
+			p.set(mean[0] / mean[3], mean[1] / mean[3], mean[2] / mean[3]);
+			inverse.transform(p);
+			out[3*i] = p.x;
+			out[3*i+1] = p.y;
+			out[3*i+2] = p.z;
+		}
+		result.setCoordinates(0, out);
+
+		if ((format & GeometryArray.NORMALS) != 0) {
+			float[] normals = new float[3*n];
+			ta.getNormals(0, normals);
+			for (int i=0; i<m; i++) {
+				System.arraycopy(normals, 3*kept[i], out, 3*i, 3);
+			}
+			result.setNormals(0, out);
+		}
+		if ((format & GeometryArray.TEXTURE_COORDINATE_2) != 0) {
+			TexCoord2f[] tc = new TexCoord2f[n];
+			for (int i=0; i<n; i++) {
+				tc[i] = new TexCoord2f();
+			}
+			ta.getTextureCoordinates(0, 0, tc);
+			TexCoord2f[] tcOut = new TexCoord2f[m];
+			for (int i=0; i<m; i++) {
+				tcOut[i] = tc[kept[i]];
+			}
+			result.setTextureCoordinates(0, 0, tcOut);
+		}
+		return result;
+	}
+
+
+	/** Returns a string representation of this decimator. */
+	public String toString() {
+		return getClass().getName() + "[resolution " + resolution + ", "
+			+ vertices + " vertices reduced to " + decimatedVertices + "]";
+	}
+}
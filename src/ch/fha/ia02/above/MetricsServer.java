@@ -0,0 +1,227 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Embedded HTTP server that exposes metrics of the running simulation
+ * in the Prometheus text format, at <tt>http://host:port/metrics</tt>.
+ * <p>
+ * The metrics include percentiles of the time needed to compute a step,
+ * the number of steps per second, the living agents of each faction,
+ * the projectiles in flight, the frame rate and the statistics of the
+ * shape and texture caches.
+ * <p>
+ * The server is started if the system property <tt>above.metrics</tt>
+ * specifies its port, and follows the model shown by the application,
+ * or the model computed by the headless {@link BatchRunner},
+ * {@link StateServer} and {@link RegionNode}. Reporting the metrics
+ * does not create the application or its caches.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Model#getLastStepDuration()
+ */
+public class MetricsServer
+{
+	/** System property specifying the port of the server. */
+	public static final String PORT_PROPERTY = "above.metrics";
+
+	/** Period the number of steps per second is averaged over, in nanoseconds. */
+	private static final long RATE_PERIOD = 10000000000L;
+
+	/** The server started by the application, if any. */
+	private static MetricsServer instance;
+
+	private HttpServer server;
+	private Model model;
+
+	/** Records the steps of the model. */
+	private StepStatistics steps = new StepStatistics();
+
+
+	/**
+	 * Creates a metrics server and starts listening.
+	 *
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @throws IOException if the port cannot be opened.
+	 */
+	public MetricsServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] body = report().getBytes("UTF-8");
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MetricsServer");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+		server.start();
+	}
+
+	/** Returns the port the server listens on. */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/** Stops the server and the recording of steps. */
+	public void stop() {
+		setModel(null);
+		server.stop(0);
+	}
+
+
+	/**
+	 * Starts the server if the system property <tt>above.metrics</tt>
+	 * specifies its port. Errors are reported but not fatal, as the
+	 * simulation works without metrics.
+	 *
+	 * @return the server, or <tt>null</tt> if none was started.
+	 */
+	public static synchronized MetricsServer startFromProperty() {
+		String port = System.getProperty(PORT_PROPERTY);
+		if (port == null || instance != null) return instance;
+		try {
+			instance = new MetricsServer(Integer.parseInt(port.trim()));
+			System.out.println("Metrics at http://localhost:" + instance.getPort() + "/metrics");
+		}
+		catch (Exception e) {
+			System.err.println("Cannot start metrics server on port " + port + ": " + e);
+		}
+		return instance;
+	}
+
+	/**
+	 * Lets the server started from the property, if any,
+	 * report the metrics of a new model.
+	 */
+	public static void watch(Model model) {
+		MetricsServer s;
+		synchronized (MetricsServer.class) {
+			s = instance;
+		}
+		if (s != null) s.setModel(model);
+	}
+
+
+	/**
+	 * Reports the metrics of a model, instead of the previous one.
+	 *
+	 * @param model the model to report, or <tt>null</tt> for none.
+	 */
+	public void setModel(Model model) {
+		Model old;
+		synchronized (this) {
+			old = this.model;
+			this.model = model;
+		}
+		// outside our lock, the model locks first
+		if (old != null) old.removeStepListener(steps);
+		steps.reset();
+		if (model != null) model.addStepListener(steps);
+	}
+
+
+	/** Returns the current metrics, in the Prometheus text format. */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		Model m;
+		synchronized (this) {
+			m = model;
+		}
+		reportSteps(sb);
+		if (m != null) reportAgents(sb, m);
+
+		gauge(sb, "above_projectiles_in_flight", "Projectiles fired that did not expire or hit yet.",
+			Cannon.getProjectilesInFlight());
+		gauge(sb, "above_render_fps", "Frames rendered per second, measured every 100 frames.",
+			PerformanceCounter.getFramesPerSecond());
+
+		counter(sb, "above_shape_cache_hits_total", "Requests for shapes that were cached.",
+			ShapeCache.getHits());
+		counter(sb, "above_shape_cache_misses_total", "Requests for shapes that had to be loaded.",
+			ShapeCache.getMisses());
+		counter(sb, "above_shape_cache_evictions_total", "Vessels whose shapes were evicted.",
+			ShapeCache.getEvictions());
+		gauge(sb, "above_shape_cache_bytes", "Memory used by the cached meshes.",
+			ShapeCache.getMemoryUsage());
+		gauge(sb, "above_texture_cache_bytes", "Memory used by the cached textures.",
+			TextureCache.getMemoryUsage());
+		return sb.toString();
+	}
+
+	/** Reports the step durations and rate. */
+	private void reportSteps(StringBuilder sb) {
+		String name = "above_step_duration_seconds";
+		sb.append("# HELP ").append(name).append(" Wall-clock time to compute a step, quantiles over the last ")
+			.append(StepStatistics.SAMPLES).append(" steps, sum and count over all steps.\n");
+		sb.append("# TYPE ").append(name).append(" summary\n");
+		double[] quantiles = { 0.5, 0.9, 0.99 };
+		for (int i=0; i<quantiles.length; i++) {
+			sb.append(name).append("{quantile=\"").append(quantiles[i]).append("\"} ")
+				.append(steps.getPercentile(quantiles[i]) / 1e9).append('\n');
+		}
+		sb.append(name).append("_sum ").append(steps.getTotalDuration() / 1e9).append('\n');
+		sb.append(name).append("_count ").append(steps.getCount()).append('\n');
+
+		gauge(sb, "above_steps_per_second", "Steps computed per second, over the last 10 seconds.",
+			steps.getRate(RATE_PERIOD));
+	}
+
+	/** Reports the model's time and living agents, locking the model. */
+	private static void reportAgents(StringBuilder sb, Model m) {
+		Faction[] factions = Faction.values();
+		int[] alive;
+		long time;
+		synchronized (m) {
+			time = m.getTime();
+			alive = m.countAlive();
+		}
+		gauge(sb, "above_model_time_seconds", "Simulated time of the model.", time / 1000.0);
+		String name = "above_agents_alive";
+		sb.append("# HELP ").append(name).append(" Living agents of each faction.\n");
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		for (int f=0; f<factions.length; f++) {
+			sb.append(name).append("{faction=\"").append(factions[f].toString().toLowerCase())
+				.append("\"} ").append(alive[f]).append('\n');
+		}
+	}
+
+	private static void gauge(StringBuilder sb, String name, String help, double value) {
+		metric(sb, name, "gauge", help, value);
+	}
+
+	private static void counter(StringBuilder sb, String name, String help, double value) {
+		metric(sb, name, "counter", help, value);
+	}
+
+	/** Appends a metric without labels. */
+	private static void metric(StringBuilder sb, String name, String type, String help, double value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		sb.append(name).append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			sb.append((long)value);
+		} else {
+			sb.append(value);
+		}
+		sb.append('\n');
+	}
+}
@@ -1,6 +1,8 @@
 package ch.fha.ia02.above;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.media.j3d.*;
 import javax.vecmath.*;
 
@@ -20,10 +22,13 @@ public class Model {
 
 
 	/** Minimal duration of a calculation step, in milliseconds. */
-	private static final int dtMin = 10;
+	static final int dtMin = 10;
 
 	/** Maximal duration of a calculation step, in milliseconds. */
-	private static final int dtMax = 80;
+	static final int dtMax = 80;
+
+	/** Maximal factor by which the simulated time may run faster. */
+	public static final float MAX_TIME_SCALE = 10;
 
 	/** Subscenegraph with all the Vessels. */
 	private ModelGroup modelGroup = new ModelGroup();
@@ -52,14 +57,84 @@ public class Model {
 	/** Average time to compute one step, in milliseconds. */
 	int avgCompTime = 0;
 
+	/** Wall-clock time used to compute the last step, in nanoseconds. */
+	private long lastStepDuration = 0;
+
+	/** Factor by which the simulated time runs faster than the real time. */
+	private volatile float timeScale = 1;
+
+	/** Set if the steps of a model without trigger are paced by the time scale. */
+	private volatile boolean paced = false;
+
+	/** Scaled time not simulated yet, in milliseconds, used by the triggers only. */
+	private double pendingTime = 0;
+
+	/** Set while a model without trigger is paused. */
+	private boolean paused = false;
+	private final Object pauseLock = new Object();
+
+	/**
+	 * Listeners notified after each step.
+	 * The array is replaced rather than modified, so listeners
+	 * may remove themselves while being notified.
+	 */
+	private StepListener[] stepListeners = new StepListener[0];
+
+	/**
+	 * If set, all agents compute their next step from the state of the
+	 * other agents after the previous step, and apply their effects on
+	 * others afterwards, in the order the agents were added.
+	 */
+	private boolean deterministic = false;
+
+	/** Number of threads computing a deterministic model. */
+	private int threads = 1;
+
+	/**
+	 * The region computed by this process if the model is partitioned
+	 * across several processes, or <tt>null</tt>.
+	 */
+	private RegionNode region;
+
+	/** Worker threads shared by all models computed in parallel. */
+	private static ExecutorService workers;
+
 
 	private Agent[] agents;
 
+	/** The vessel type of each agent, same order as {@link #agents}. */
+	private Vessel[] vessels;
+
+	/** The view objects representing the agents. */
+	private ViewObject[] viewObjects;
+
 	/** Returns a reference to the array of all agents in this model. */
 	Agent[] getAgents() {
 		return agents;
 	}
 
+	/**
+	 * Returns a reference to the array of vessel types,
+	 * with one element for each agent in {@link #getAgents()}.
+	 */
+	Vessel[] getVessels() {
+		return vessels;
+	}
+
+	/**
+	 * Adds the view objects of all living agents back to the scene,
+	 * after they were detached when their agent died. Used when
+	 * seeking backwards in a replay.
+	 */
+	void reattachViewObjects() {
+		if (viewObjects == null || !modelGroup.isLive()) return;
+		for (int i=0; i<agents.length; i++) {
+			if (agents[i].health > 0 && !viewObjects[i].isLive()) {
+				modelGroup.addChild(viewObjects[i]);
+			}
+		}
+	}
+
 	/**
 	 * Returns the number of agents in this model.
 	 * @see Agent
@@ -91,21 +166,73 @@ public class Model {
 	 * @throws IllegalArgumentException if a consistency check fails.
 	 */
 	public Model(Set<ViewObject> viewObjects) {
+		this(viewObjects, null);
+	}
+
+	/**
+	 * Creates a new model that contains the supplied agents
+	 * and is driven by the specified trigger.
+	 * If the trigger is a <tt>Behavior</tt>, it is added to
+	 * this model's scene graph.
+	 *
+	 * @param viewObjects a set of {@link ViewObject} instances
+	 *        with each representing an agent in the model.
+	 * @param trigger the trigger that drives this model, or
+	 *        <tt>null</tt> to use the scheme selected in the settings.
+	 *
+	 * @throws IllegalArgumentException if a consistency check fails.
+	 */
+	public Model(Set<ViewObject> viewObjects, ModelTrigger trigger) {
 		init(viewObjects);
 
-		if (Application.getSettings().useTimeTrigger()) {
-			int dt = Application.getSettings().getTriggerStepDuration();
+		Settings.Snapshot settings = Settings.snapshot();
+		if (trigger != null) {
+			modelTrigger = trigger;
+		} else if (settings.useTimeTrigger()) {
+			int dt = settings.getTriggerStepDuration();
 			if (dt > dtMax) dt = dtMax;
 			if (dt < dtMin) dt = dtMin;
 			modelTrigger = new TriggerThread(dt);
 		} else {
 			modelTrigger = new TriggerBehavior();
+		}
+		if (modelTrigger instanceof Behavior) {
 			modelGroup.addChild((Behavior)modelTrigger);
 		}
 
-		if (Application.getSettings().collectPerformanceData()) {
+		if (settings.collectPerformanceData()) {
 			perfdata = new long[100];
 		}
+		setDeterministic(settings.deterministicModel());
+		setThreadCount(settings.getComputeThreads());
+	}
+
+
+	/**
+	 * Creates a new headless model that contains the supplied agents.
+	 * <p>
+	 * A headless model is not shown and has no trigger, it is computed
+	 * by invoking {@link #compute(long)} directly. As it neither reads
+	 * the settings nor uses any other application-wide resources,
+	 * many headless models can be computed concurrently.
+	 *
+	 * @param agents the agents in the model, in a stable order.
+	 * @param vessels the vessel type of each agent, used when
+	 *        a snapshot of the model is taken.
+	 *
+	 * @throws IllegalArgumentException if a consistency check fails.
+	 * @see BatchRunner
+	 */
+	public Model(Agent[] agents, Vessel[] vessels) {
+		if (agents.length != vessels.length) {
+			throw new IllegalArgumentException("Each agent needs a vessel type!");
+		}
+		this.agents = agents.clone();
+		this.vessels = vessels.clone();
+		for (int i=0; i<agents.length; i++) {
+			this.agents[i].validate();
+			this.agents[i].visible = false;
+		}
 	}
 
 
@@ -116,15 +243,21 @@ public class Model {
 	 *        with each representing an agent in the model.
 	 */
 	private void init(Set<ViewObject> viewObjects) {
-		// copy the objects from the list to
-		// an array for performance reasons
+		// copy the objects from the list to an array for performance
+		// reasons, keeping the order of the set for deterministic models
 		agents = new Agent[viewObjects.size()];
+		vessels = new Vessel[agents.length];
+		this.viewObjects = new ViewObject[agents.length];
 		Iterator<ViewObject> it = viewObjects.iterator();
 		for (int i=0; i<agents.length; i++) {
 			ViewObject vObj = it.next();
-			agents[i] = vObj.getAgent();;
+			agents[i] = vObj.getAgent();
+			vessels[i] = vObj.getVessel();
+			this.viewObjects[i] = vObj;
 			agents[i].validate();
-			modelGroup.addChild(vObj);
+			if (agents[i].health > 0) { // dead agents of a snapshot do not explode again
+				modelGroup.addChild(vObj);
+			}
 		}
 	}
 
@@ -138,13 +271,422 @@ public class Model {
 	 * @return <tt>true</tt> if the model was recalculated.
 	 */
 	public boolean compute(long dt) {
+		awaitResume();
+		return computeStep(dt);
+	}
+
+	/** Computes a step, see {@link #compute(long)}. */
+	private synchronized boolean computeStep(long dt) {
 		if (dt < dtMin) return false;
-		center.set(0,0,0);
-		float n = 0;
 		float ft = (float)dt/1000;
 		long starttime = System.currentTimeMillis();
+		long startnanos = System.nanoTime();
+		if (region != null) {
+			Agent[] present = region.getPresentAgents();
+			Agent[] owned = region.getOwnedAgents();
+			for (int i=0; i<present.length; i++) {
+				present[i].publish();
+			}
+			if (threads > 1) {
+				computeParallel(ft, owned, present);
+			} else {
+				for (int i=0; i<owned.length; i++) {
+					owned[i].compute(ft, present);
+				}
+			}
+			region.commit();
+			try {
+				region.exchange();
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Lost connection to another node: " + e.getMessage());
+			}
+		} else if (deterministic) {
+			for (int i=0; i<agents.length; i++) {
+				agents[i].publish();
+			}
+			if (threads > 1) {
+				computeParallel(ft, agents, agents);
+			} else {
+				for (int i=0; i<agents.length; i++) {
+					agents[i].compute(ft, agents);
+				}
+			}
+			for (int i=0; i<agents.length; i++) {
+				agents[i].commit();
+			}
+		} else {
+			for (int i=0; i<agents.length; i++) {
+				agents[i].compute(ft, agents);
+				agents[i].commit();
+			}
+		}
+		updateCenter();
+		stepnum++;
+		t += dt;
+		lastStepDuration = System.nanoTime() - startnanos;
+		if (perfdata != null) {
+			recordPerformance(System.currentTimeMillis() - starttime);
+		}
+		fireStepComputed();
+		return true;
+	}
+
+
+	/**
+	 * Computes the steps for real time passing, scaled by the
+	 * {@linkplain #setTimeScale(float) time scale}. Called by the triggers.
+	 * Faster time is computed in several steps, so no step exceeds the
+	 * maximal duration, and slower time is accumulated until it reaches
+	 * the minimal duration of a step.
+	 *
+	 * @param dt real time in milliseconds since the last call.
+	 * @return <tt>true</tt> if the time was taken into account.
+	 */
+	private boolean advance(long dt) {
+		pendingTime += dt * timeScale;
+		if (pendingTime < dtMin) return true;
+		int n = (int)Math.ceil(pendingTime / dtMax);
+		long step = (long)(pendingTime / n);
+		for (int i=0; i<n; i++) {
+			compute(step);
+		}
+		pendingTime -= step * n;
+		return true;
+	}
+
+	/** Waits while this model is paused. */
+	private void awaitResume() {
+		synchronized (pauseLock) {
+			boolean interrupted = false;
+			while (paused) {
+				try {
+					pauseLock.wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Pauses or resumes a model that is computed by invoking
+	 * {@link #compute(long)} directly, like a headless model. While it is
+	 * paused, <tt>compute</tt> blocks until it is resumed. Models with a
+	 * trigger are paused by {@link #stop()} instead.
+	 *
+	 * @param paused <tt>true</tt> to pause, <tt>false</tt> to resume.
+	 */
+	public void setPaused(boolean paused) {
+		synchronized (pauseLock) {
+			this.paused = paused;
+			pauseLock.notifyAll();
+		}
+	}
+
+	/** Returns <tt>true</tt> if this model is paused. */
+	public boolean isPaused() {
+		synchronized (pauseLock) {
+			return paused;
+		}
+	}
+
+
+	/**
+	 * Sets the factor by which the simulated time runs faster than
+	 * the real time, when the model is computed by its trigger.
+	 *
+	 * @param scale the factor, up to {@link #MAX_TIME_SCALE};
+	 *        less than 1 slows the simulation down.
+	 * @throws IllegalArgumentException if the factor is out of range.
+	 * @throws IllegalStateException if the time scale has no effect
+	 *         on this model, see {@link #isTimeScaled()}.
+	 */
+	public void setTimeScale(float scale) {
+		if (!(scale > 0 && scale <= MAX_TIME_SCALE)) {
+			throw new IllegalArgumentException("Time scale must be > 0 and <= " + MAX_TIME_SCALE);
+		}
+		if (!isTimeScaled()) {
+			throw new IllegalStateException("The model is not computed in real time");
+		}
+		timeScale = scale;
+	}
+
+	/**
+	 * Specifies whether the steps of a model computed by invoking
+	 * {@link #compute(long)} directly are paced in real time, scaled
+	 * by the {@linkplain #setTimeScale(float) time scale}, like those
+	 * of {@link StateServer#main(String[])}.
+	 */
+	public void setPaced(boolean paced) {
+		this.paced = paced;
+	}
+
+	/**
+	 * Tests if the time scale has an effect on this model, which is
+	 * the case if it is computed by a timer or after each frame, or
+	 * if it is {@linkplain #setPaced(boolean) paced}. Headless models
+	 * computed as fast as possible, like by a {@link BatchRunner},
+	 * ignore the time scale.
+	 */
+	public boolean isTimeScaled() {
+		return paced || modelTrigger instanceof TriggerThread || modelTrigger instanceof TriggerBehavior;
+	}
+
+	/** Returns the factor by which the simulated time runs faster. */
+	public float getTimeScale() {
+		return timeScale;
+	}
+
+	/**
+	 * Sets the duration of each step of a model triggered by a timer.
+	 *
+	 * @param dt the duration, in milliseconds.
+	 * @throws IllegalArgumentException if the duration is out of range.
+	 * @throws IllegalStateException if the model is not triggered by a timer.
+	 * @see Settings#useTimeTrigger()
+	 */
+	public void setStepDuration(int dt) {
+		checkStepDuration(dt);
+		if (!(modelTrigger instanceof TriggerThread)) {
+			throw new IllegalStateException("The model is not triggered by a timer");
+		}
+		((TriggerThread)modelTrigger).dt = dt;
+	}
+
+	/**
+	 * Checks whether steps of the given duration can be computed.
+	 *
+	 * @param dt the duration, in milliseconds.
+	 * @throws IllegalArgumentException if the duration is out of range.
+	 */
+	static void checkStepDuration(long dt) {
+		if (dt < dtMin || dt > dtMax) {
+			throw new IllegalArgumentException("Step duration must be between " + dtMin + " and " + dtMax + " ms");
+		}
+	}
+
+	/**
+	 * Returns the duration of each step of a model triggered by a timer,
+	 * in milliseconds, or 0 if its steps are triggered otherwise.
+	 */
+	public int getStepDuration() {
+		return (modelTrigger instanceof TriggerThread) ? ((TriggerThread)modelTrigger).dt : 0;
+	}
+
+	/**
+	 * Describes how this model is triggered.
+	 * @return <tt>"timer"</tt>, <tt>"frames"</tt>
+	 *         or <tt>"none"</tt> for a headless model.
+	 */
+	public String getTriggerType() {
+		if (modelTrigger instanceof TriggerThread) return "timer";
+		if (modelTrigger instanceof TriggerBehavior) return "frames";
+		return (modelTrigger == null) ? "none" : modelTrigger.getClass().getName();
+	}
+
+	/**
+	 * Counts the living agents of each faction.
+	 * @return the number of living agents, indexed by faction code.
+	 * @see Faction#getCode()
+	 */
+	public synchronized int[] countAlive() {
+		int[] alive = new int[Faction.values().length];
+		for (int i=0; i<agents.length; i++) {
+			if (agents[i].health > 0) alive[agents[i].faction.getCode()]++;
+		}
+		return alive;
+	}
+
+
+	/**
+	 * Computes the agents in slices of equal size, one per thread.
+	 * The calling thread computes the first slice itself.
+	 *
+	 * @param computed the agents to compute.
+	 * @param seen the agents seen by the agents computed.
+	 */
+	private void computeParallel(final float dt, final Agent[] computed, final Agent[] seen) {
+		int n = Math.max(1, Math.min(threads, computed.length));
+		java.util.List<Future<?>> pending = new ArrayList<Future<?>>(n);
+		for (int k=1; k<n; k++) {
+			final int from = k*computed.length/n;
+			final int to = (k+1)*computed.length/n;
+			pending.add(getWorkers().submit(new Runnable() {
+				public void run() {
+					for (int i=from; i<to; i++) {
+						computed[i].compute(dt, seen);
+					}
+				}
+			}));
+		}
+		for (int i=0, to=computed.length/n; i<to; i++) {
+			computed[i].compute(dt, seen);
+		}
+		try {
+			for (int k=0; k<pending.size(); k++) {
+				pending.get(k).get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing the model.");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/** Returns the worker threads, creating them on first use. */
+	private static synchronized ExecutorService getWorkers() {
+		if (workers == null) {
+			workers = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Model worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return workers;
+	}
+
+
+	/**
+	 * Specifies whether this model is computed deterministically.
+	 * <p>
+	 * A deterministic model computes each agent from the state of the
+	 * other agents after the previous step, so the result neither depends
+	 * on the order nor on the number of threads computing the agents.
+	 * Otherwise, agents computed later in a step already see the new
+	 * state of the agents computed before them, which is slightly faster
+	 * but cannot be computed in parallel.
+	 *
+	 * @param deterministic <tt>true</tt> to compute deterministically.
+	 * @throws IllegalStateException if disabled while more than
+	 *         one thread is used or the model is partitioned.
+	 * @see #setThreadCount(int)
+	 */
+	public synchronized void setDeterministic(boolean deterministic) {
+		if (!deterministic && (threads > 1 || region != null)) {
+			throw new IllegalStateException("Parallel and partitioned models must be deterministic.");
+		}
+		this.deterministic = deterministic;
+		for (int i=0; i<agents.length; i++) {
+			agents[i].decouple(deterministic);
+		}
+	}
+
+	/**
+	 * Makes this model compute only the agents owned by a region of a
+	 * model partitioned across several processes, from the state of the
+	 * agents owned and the ghosts of the agents near the region.
+	 * The agents owned are committed by {@link RegionNode#commit()}, and
+	 * the region's {@link RegionNode#exchange()} is invoked after each
+	 * step, with this model locked while waiting for the other nodes.
+	 * Partitioned models are always deterministic.
+	 *
+	 * @param region the region computed by this process,
+	 *        or <tt>null</tt> to compute all agents again.
+	 */
+	synchronized void setRegion(RegionNode region) {
+		if (region != null) setDeterministic(true);
+		this.region = region;
+	}
+
+	/** Tests if this model is computed deterministically. */
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	/**
+	 * Sets the number of threads computing this model.
+	 * Using more than one thread makes this model deterministic.
+	 *
+	 * @param n the number of threads, including the one
+	 *        invoking {@link #compute(long)}.
+	 * @throws IllegalArgumentException if <tt>n</tt> is less than one.
+	 * @see #setDeterministic(boolean)
+	 */
+	public synchronized void setThreadCount(int n) {
+		if (n < 1) throw new IllegalArgumentException("Thread count must be positive!");
+		if (n > 1) setDeterministic(true);
+		threads = n;
+	}
+
+	/** Returns the number of threads computing this model. */
+	public int getThreadCount() {
+		return threads;
+	}
+
+
+	/**
+	 * Computes a hash of the current state of all agents.
+	 * Two models in the same state have the same hash, so runs can
+	 * be compared step by step, for example to verify that a parallel
+	 * run yields the same results as a serial one.
+	 *
+	 * @return a 64 bit FNV-1a hash of time, step number, and position,
+	 *         velocity, up vector, health and faction of all agents.
+	 * @see StateHashLog
+	 */
+	public synchronized long stateHash() {
+		long h = FNV_OFFSET;
+		h = hash(h, t);
+		h = hash(h, stepnum);
+		for (int i=0; i<agents.length; i++) {
+			Agent a = agents[i];
+			h = hash(h, a.position);
+			h = hash(h, a.velocity);
+			h = hash(h, a.up);
+			h = hash(h, Float.floatToIntBits(a.health));
+			h = hash(h, a.faction.getCode());
+		}
+		return h;
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** Adds the bytes of a <tt>long</tt> to a hash. */
+	private static long hash(long h, long v) {
+		for (int i=0; i<8; i++) {
+			h = (h ^ (v & 0xff)) * FNV_PRIME;
+			v >>>= 8;
+		}
+		return h;
+	}
+
+	/** Adds the bytes of an <tt>int</tt> to a hash. */
+	private static long hash(long h, int v) {
+		for (int i=0; i<4; i++) {
+			h = (h ^ (v & 0xff)) * FNV_PRIME;
+			v >>>= 8;
+		}
+		return h;
+	}
+
+	/** Adds the components of a vector to a hash. */
+	private static long hash(long h, Vector3f v) {
+		h = hash(h, Float.floatToIntBits(v.x));
+		h = hash(h, Float.floatToIntBits(v.y));
+		return hash(h, Float.floatToIntBits(v.z));
+	}
+
+
+	/**
+	 * Computes the center of all moveable agents still alive,
+	 * slightly ahead in the direction of their movement.
+	 */
+	private void updateCenter() {
+		center.set(0,0,0);
+		float n = 0;
 		for (int i=0; i<agents.length; i++) {
-			agents[i].compute(ft, agents);
 			if (agents[i].stats.isMoveable() && agents[i].health > 0) {
 				center.add(agents[i].position);
 				center.add(agents[i].velocity);
@@ -152,12 +694,53 @@ public class Model {
 			}
 		}
 		if (n > 0) center.scale(1/n);
-		stepnum++;
-		t += dt;
-		if (perfdata != null) {
-			recordPerformance(System.currentTimeMillis() - starttime);
+	}
+
+
+	/**
+	 * Registers the specified listener to be notified
+	 * after each step computed by this model.
+	 *
+	 * @param l the step listener to add.
+	 * @throws NullPointerException if <tt>l</tt> is null.
+	 * @see #removeStepListener(StepListener)
+	 */
+	public synchronized void addStepListener(StepListener l) {
+		if (l == null) throw new NullPointerException();
+		StepListener[] a = new StepListener[stepListeners.length + 1];
+		System.arraycopy(stepListeners, 0, a, 0, stepListeners.length);
+		a[stepListeners.length] = l;
+		stepListeners = a;
+	}
+
+	/**
+	 * Removes the specified step listener.
+	 * @param l the step listener to remove.
+	 * @see #addStepListener(StepListener)
+	 */
+	public synchronized void removeStepListener(StepListener l) {
+		for (int i=0; i<stepListeners.length; i++) {
+			if (stepListeners[i] == l) {
+				StepListener[] a = new StepListener[stepListeners.length - 1];
+				System.arraycopy(stepListeners, 0, a, 0, i);
+				System.arraycopy(stepListeners, i+1, a, i, a.length - i);
+				stepListeners = a;
+				return;
+			}
+		}
+	}
+
+	/** Invokes all registered step listeners. */
+	private void fireStepComputed() {
+		StepListener[] listeners = stepListeners;
+		for (int i=0; i<listeners.length; i++) {
+			try {
+				listeners[i].stepComputed(this);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
 		}
-		return true;
 	}
 
 
@@ -196,6 +779,39 @@ public class Model {
 	}
 
 
+	/** Returns the simulated time, in milliseconds. */
+	public long getTime() {
+		return t;
+	}
+
+	/** Returns the number of steps computed so far. */
+	public long getStepNumber() {
+		return stepnum;
+	}
+
+	/**
+	 * Returns the wall-clock time used to compute the last step,
+	 * in nanoseconds. Unlike {@link #getAverageCompTime()}, this is
+	 * available even if no performance data is collected.
+	 */
+	public long getLastStepDuration() {
+		return lastStepDuration;
+	}
+
+	/**
+	 * Sets the simulated time and step number, used when the
+	 * state of the agents was restored from a snapshot or replay.
+	 *
+	 * @param t the simulated time, in milliseconds.
+	 * @param stepnum the number of steps computed so far.
+	 */
+	synchronized void setTime(long t, long stepnum) {
+		this.t = t;
+		this.stepnum = stepnum;
+		updateCenter();
+	}
+
+
 	/** Returns a string prepresentation of this model. */
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
@@ -225,16 +841,29 @@ public class Model {
 			modelTrigger.stopSimulation();
 	}
 
+	/**
+	 * Releases the resources used by the view objects of this model,
+	 * called when it is no longer shown.
+	 */
+	public void dispose() {
+		if (viewObjects == null) return;
+		for (int i=0; i<viewObjects.length; i++) {
+			viewObjects[i].dispose();
+		}
+	}
+
 
 
 	/**
 	 * Provides triggering the next step in steps of fixed duration.
+	 * The simulation may be stopped and started again.
 	 */
-	private class TriggerThread extends Thread
-		implements ModelTrigger
+	private class TriggerThread
+		implements ModelTrigger, Runnable
 	{
-		private boolean stop = true;
-		private int dt;
+		private volatile boolean stop = true;
+		private volatile int dt;
+		private Thread thread;
 		private Thread oneShot;
 
 		TriggerThread(int dt) {
@@ -243,10 +872,10 @@ public class Model {
 
 		public void run() {
 			while(!stop) {
-				oneShot = new Thread(new OneShot());
+				oneShot = new Thread(new OneShot(dt));
 				oneShot.start();
 
-				compute(dt);
+				advance(dt);
 
 				if (oneShot != null) {
 					try{
@@ -258,20 +887,29 @@ public class Model {
 			}
 		}
 
-		public void startSimulation() {
+		public synchronized void startSimulation() {
 			stop = false;
-			start();
+			if (thread == null || !thread.isAlive()) {
+				thread = new Thread(this, "ModelTrigger");
+				thread.start();
+			}
 		}
 
 		public void stopSimulation() {
 			stop = true;
 		}
 
-		public boolean isRunning() {
-			return isAlive();
+		public synchronized boolean isRunning() {
+			return !stop && thread != null && thread.isAlive();
 		}
 
 		private class OneShot implements Runnable {
+			private int dt;
+
+			OneShot(int dt) {
+				this.dt = dt;
+			}
+
 			public void run() {
 				try{
 					Thread.sleep(dt);
@@ -303,7 +941,7 @@ public class Model {
 			long dt = (start - time);
 			if (dt < dtMin) dt = dtMin;
 			if (dt > dtMax) dt = dtMax;
-			if (compute(dt)) {
+			if (advance(dt)) {
 				time = start;
 			}
 
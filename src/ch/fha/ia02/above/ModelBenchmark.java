@@ -8,6 +8,7 @@ public class ModelBenchmark {
 	private ModelFactory factory;
 	private int n;
 	private int dt;
+	private int threads = 1;
 	private Result result;
 
 	/**
@@ -25,6 +26,15 @@ public class ModelBenchmark {
 		this.dt = dt;
 	}
 
+	/**
+	 * Sets the number of threads used to compute the model.
+	 * More than one thread implies a deterministic model.
+	 */
+	public void setThreadCount(int threads) {
+		if (threads < 1) throw new IllegalArgumentException("Thread count must be positive!");
+		this.threads = threads;
+	}
+
 	/**
 	 * Runs the benchmark.
 	 * This will create a new model using the specified factory
@@ -32,6 +42,7 @@ public class ModelBenchmark {
 	 */
 	public Result run() {
 		Model m = factory.createModel();
+		if (threads > 1) m.setThreadCount(threads);
 		long start = System.currentTimeMillis();
 		for (int i=0; i<n; i++) {
 			m.compute(dt);
@@ -49,16 +60,67 @@ public class ModelBenchmark {
 			+ "]";
 	}
 
+	/**
+	 * Verifies that a deterministic model computed by the specified
+	 * number of threads yields the same results as a serial one.
+	 *
+	 * @return the first step that differs, or <tt>-1</tt> if all
+	 *         steps are identical.
+	 */
+	public long verify() {
+		Model reference = factory.createModel();
+		reference.setDeterministic(true);
+		StateHashLog expected = new StateHashLog(reference);
+		Model m = factory.createModel();
+		m.setDeterministic(true);
+		m.setThreadCount(threads);
+		StateHashLog actual = new StateHashLog(m);
+		for (int i=0; i<n; i++) {
+			reference.compute(dt);
+			m.compute(dt);
+		}
+		return actual.firstDivergence(expected);
+	}
+
+
 	/**
 	 * Entry point to run the benchmark from the command line.
+	 * <p>
+	 * Usage: <tt>ModelBenchmark [-threads <var>n</var>] [-verify]</tt>
+	 * <p>
+	 * With <tt>-verify</tt>, a run using <var>n</var> threads is
+	 * compared step by step with a serial run instead.
 	 */
 	public static void main(String[] args) {
+		int threads = 1;
+		boolean verify = false;
+		for (int i=0; i<args.length; i++) {
+			if (args[i].equals("-threads") && i+1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-verify")) {
+				verify = true;
+			} else {
+				System.err.println("Usage: ModelBenchmark [-threads n] [-verify]");
+				System.exit(1);
+			}
+		}
 		Application.getSettings().setDetailedShapes(false);
 		ModelFactory factory = new SimpleModelFactory();
 		ModelBenchmark bm = new ModelBenchmark(factory, 10000, 40);
+		bm.setThreadCount(threads);
 		System.out.println("Benchmarking " + Application.getTitle());
 		System.out.println(bm.factory);
-		System.out.println(bm.n + " steps of " + bm.dt + " ms");
+		System.out.println(bm.n + " steps of " + bm.dt + " ms, " + threads + " thread(s)");
+		if (verify) {
+			long step = bm.verify();
+			if (step < 0) {
+				System.out.println("Identical to the serial run.");
+			} else {
+				System.out.println("Diverged from the serial run at step " + step + "!");
+				System.exit(1);
+			}
+			return;
+		}
 		for (int i=0; i<5; i++) {
 			System.out.println(bm.run());
 		}
@@ -0,0 +1,182 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * JMX management bean of a model, registered with the platform
+ * MBean server as <tt>ch.fha.ia02.above:type=Model,id=<i>n</i></tt>.
+ * It lets JMX tools monitor the progress of a simulation, pause and
+ * resume it, change its speed and save snapshots, which is the only
+ * way to manage long headless runs.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Model
+ * @see BatchRunner
+ */
+public class ModelControl implements ModelControlMBean
+{
+	/** Domain of the names of the beans. */
+	public static final String DOMAIN = "ch.fha.ia02.above";
+
+	/** Period the number of steps per second is averaged over, in nanoseconds. */
+	private static final long RATE_PERIOD = 10000000000L;
+
+	/** Numbers the models registered. */
+	private static AtomicInteger ids = new AtomicInteger();
+
+	private Model model;
+	private ObjectName name;
+
+	/** Records the steps of the model. */
+	private StepStatistics steps = new StepStatistics();
+
+
+	/**
+	 * Creates the management bean of a model, without registering it.
+	 * @param model the model to manage.
+	 */
+	public ModelControl(Model model) {
+		this.model = model;
+	}
+
+	/**
+	 * Registers the management bean of a model. Errors are reported but
+	 * not fatal, as the simulation works without management.
+	 *
+	 * @param model the model to manage.
+	 * @return the bean, which is to be {@linkplain #unregister() unregistered}
+	 *         when the model is no longer used.
+	 */
+	public static ModelControl register(Model model) {
+		ModelControl control = new ModelControl(model);
+		model.addStepListener(control.steps);
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":type=Model,id=" + ids.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(control, name);
+			control.name = name;
+		}
+		catch (Exception e) {
+			System.err.println("Cannot register model management bean: " + e);
+		}
+		return control;
+	}
+
+	/** Unregisters this bean and stops recording the steps of the model. */
+	public void unregister() {
+		model.removeStepListener(steps);
+		if (name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+		catch (Exception e) {
+			System.err.println("Cannot unregister model management bean: " + e);
+		}
+		name = null;
+	}
+
+	/** Returns the name this bean is registered with, or <tt>null</tt>. */
+	public ObjectName getObjectName() {
+		return name;
+	}
+
+
+	public long getStepNumber() {
+		return model.getStepNumber();
+	}
+
+	public long getTime() {
+		return model.getTime();
+	}
+
+	public double getAverageStepTime() {
+		return steps.getMean() / 1e6;
+	}
+
+	public double getTailStepTime() {
+		return steps.getPercentile(0.99) / 1e6;
+	}
+
+	public double getStepsPerSecond() {
+		return steps.getRate(RATE_PERIOD);
+	}
+
+	public int getAgentCount() {
+		return model.numAgents();
+	}
+
+	public int getAliveAgents() {
+		int[] alive = model.countAlive();
+		int sum = 0;
+		for (int f=0; f<alive.length; f++) {
+			sum += alive[f];
+		}
+		return sum;
+	}
+
+	public String getAliveAgentsByFaction() {
+		int[] alive = model.countAlive();
+		Faction[] factions = Faction.values();
+		StringBuilder sb = new StringBuilder();
+		for (int f=0; f<factions.length; f++) {
+			if (factions[f] == Faction.NEUTRAL && alive[f] == 0) continue;
+			if (sb.length() > 0) sb.append(", ");
+			sb.append(factions[f]).append('=').append(alive[f]);
+		}
+		return sb.toString();
+	}
+
+	public String getTriggerState() {
+		switch (model.getStatus()) {
+			case Model.STATUS_RUNNING:
+				return "running";
+			case Model.STATUS_READY:
+				return "paused";
+			default:
+				return model.isPaused() ? "paused" : "ready";
+		}
+	}
+
+	public String getTriggerType() {
+		return model.getTriggerType();
+	}
+
+	public int getStepDuration() {
+		return model.getStepDuration();
+	}
+
+	public void setStepDuration(int dt) {
+		model.setStepDuration(dt);
+	}
+
+	public float getTimeScale() {
+		return model.getTimeScale();
+	}
+
+	public void setTimeScale(float scale) {
+		model.setTimeScale(scale);
+	}
+
+	public void pause() {
+		if (model.getStatus() == Model.STATUS_NOT_INITIALIZED) {
+			model.setPaused(true);
+		} else {
+			model.stop();
+		}
+	}
+
+	public void start() {
+		if (model.getStatus() == Model.STATUS_NOT_INITIALIZED) {
+			model.setPaused(false);
+		} else {
+			model.start();
+		}
+	}
+
+	public void saveSnapshot(String file) throws IOException {
+		ModelSnapshot.save(model, new File(file));
+	}
+}
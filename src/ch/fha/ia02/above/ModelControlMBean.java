@@ -0,0 +1,75 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+
+/**
+ * Management interface of a model, for monitoring and controlling
+ * a running simulation with JMX tools like <tt>jconsole</tt>.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ModelControl
+ */
+public interface ModelControlMBean
+{
+	/** Returns the number of steps computed. */
+	long getStepNumber();
+
+	/** Returns the simulated time, in milliseconds. */
+	long getTime();
+
+	/** Returns the mean wall-clock time of the recent steps, in milliseconds. */
+	double getAverageStepTime();
+
+	/** Returns the 99th percentile of the time of the recent steps, in milliseconds. */
+	double getTailStepTime();
+
+	/** Returns the number of steps computed per second, over the last 10 seconds. */
+	double getStepsPerSecond();
+
+	/** Returns the number of agents, dead or alive. */
+	int getAgentCount();
+
+	/** Returns the number of living agents. */
+	int getAliveAgents();
+
+	/** Returns the number of living agents of each faction, like <tt>"Rebel=12, Empire=8"</tt>. */
+	String getAliveAgentsByFaction();
+
+	/** Returns <tt>"running"</tt>, <tt>"paused"</tt> or <tt>"ready"</tt>. */
+	String getTriggerState();
+
+	/** Returns <tt>"timer"</tt>, <tt>"frames"</tt> or <tt>"none"</tt>. */
+	String getTriggerType();
+
+	/** Returns the duration of each step, in milliseconds, or 0 if not triggered by a timer. */
+	int getStepDuration();
+
+	/** Sets the duration of each step of a model triggered by a timer, in milliseconds. */
+	void setStepDuration(int dt);
+
+	/** Returns the factor by which the simulated time runs faster than the real time. */
+	float getTimeScale();
+
+	/**
+	 * Sets the factor by which the simulated time runs faster than the
+	 * real time. Only models computed in real time are affected, like
+	 * those shown by the application or served by a {@link StateServer}.
+	 *
+	 * @throws IllegalStateException if the time scale has no effect on
+	 *         the model, like on the runs of a {@link BatchRunner}.
+	 */
+	void setTimeScale(float scale);
+
+	/** Pauses the simulation. */
+	void pause();
+
+	/** Starts or resumes the simulation. */
+	void start();
+
+	/**
+	 * Saves a snapshot of the model.
+	 * @param file the file to write, on the host running the simulation.
+	 */
+	void saveSnapshot(String file) throws IOException;
+}
@@ -20,5 +20,6 @@ public class ModelGroup extends BranchGroup
 		super();
 		setCapability(ALLOW_DETACH);
 		setCapability(ALLOW_CHILDREN_WRITE);
+		setCapability(ALLOW_CHILDREN_EXTEND);
 	}
 }
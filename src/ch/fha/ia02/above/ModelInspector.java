@@ -2,6 +2,8 @@ package ch.fha.ia02.above;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 import javax.swing.table.*;
 import javax.vecmath.*;
@@ -11,6 +13,14 @@ import ch.fha.ia02.vector.*;
 /**
  * Shows a detailed, regularly updated view of a model and all
  * its enclosed objects.
+ * <p>
+ * The inspector shows a {@link Snapshot} of the agents, taken while
+ * the model is locked, so it never reads agents while they are being
+ * computed. Only the raw state is copied while the model is locked,
+ * the status texts are formatted afterwards. Taking the snapshot,
+ * sorting and filtering it is done by a background thread. The event
+ * dispatch thread only repaints the rows that are visible, so even
+ * large battles can be inspected while they run.
  *
  * @author Thomas Gerstendoerfer
  */
@@ -37,16 +47,42 @@ public class ModelInspector extends JPanel
 	private static final int COL_VELOCITY = 5;
 	private static final int COL_CLASS = 6;
 
+	/** Choices of the health filter. */
+	private static final String[] HEALTH_FILTERS = {
+		"Any health",
+		"Undamaged",
+		"Damaged",
+		"Dead",
+		};
+
+	/** Takes the snapshots and sorts them, shared by all inspectors. */
+	private static ExecutorService updater;
+
 
 	private Model model;
 	private JLabel modelLabel;
+	private JLabel countLabel;
+	private JTable table;
 	private InspectorTableModel tableModel;
+	private javax.swing.Timer timer;
+
+	/** Set while an update is being computed in the background. */
+	private boolean updating = false;
+	/** Set if another update was requested meanwhile. */
+	private boolean updateAgain = false;
+
+	// the sort order and filters, read by the background thread
+	private volatile int sortColumn = -1;
+	private volatile boolean sortDescending = false;
+	private volatile Faction factionFilter;
+	private volatile String statusFilter = "";
+	private volatile int healthFilter = 0;
 
 	/** Handles update requests for the top-level viewer. */
 	private ActionListener modelLabelUpdater = new ActionListener() {
 		public void actionPerformed(ActionEvent e) {
 			modelLabel.setText(model.toString());
-			tableModel.fireTableDataChanged();
+			update();
 		}
 	};
 
@@ -57,26 +93,322 @@ public class ModelInspector extends JPanel
 	public ModelInspector(Model model) {
 		this.model = model;
 		setLayout(new BorderLayout());
-		Timer timer = new Timer(UPDATE_DELAY, modelLabelUpdater);
-		add(modelLabel = new JLabel(model.toString()), BorderLayout.NORTH);
-		tableModel = new InspectorTableModel(model.getAgents());
-		JTable table = new JTable(tableModel);
+		timer = new javax.swing.Timer(UPDATE_DELAY, modelLabelUpdater);
+
+		JPanel top = new JPanel(new BorderLayout());
+		top.add(modelLabel = new JLabel(model.toString()), BorderLayout.NORTH);
+		top.add(createFilterPanel(), BorderLayout.SOUTH);
+		add(top, BorderLayout.NORTH);
+
+		tableModel = new InspectorTableModel();
+		table = new JTable(tableModel);
 		table.getColumnModel().getColumn(COL_LOCATION).setCellRenderer(new VectorRenderer());
 		table.getColumnModel().getColumn(COL_VELOCITY).setCellRenderer(new VectorLengthRenderer());
+		table.getTableHeader().setReorderingAllowed(false);
+		table.getTableHeader().setToolTipText("Click to sort, click again to reverse");
+		table.getTableHeader().addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				int col = table.convertColumnIndexToModel(table.columnAtPoint(e.getPoint()));
+				if (col < 0) return;
+				sortDescending = (col == sortColumn) && !sortDescending;
+				sortColumn = col;
+				update();
+			}
+		});
 		add(new JScrollPane(table), BorderLayout.CENTER);
+	}
+
+	/** Creates the controls for filtering the agents. */
+	private JPanel createFilterPanel() {
+		JPanel p = new JPanel(new FlowLayout(FlowLayout.LEFT));
+
+		Vector<Object> factions = new Vector<Object>();
+		factions.add("Any faction");
+		factions.addAll(Arrays.asList(Faction.values()));
+		final JComboBox<Object> factionBox = new JComboBox<Object>(factions);
+		factionBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				Object f = factionBox.getSelectedItem();
+				factionFilter = (f instanceof Faction) ? (Faction)f : null;
+				update();
+			}
+		});
+		p.add(factionBox);
+
+		final JComboBox<String> healthBox = new JComboBox<String>(HEALTH_FILTERS);
+		healthBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				healthFilter = healthBox.getSelectedIndex();
+				update();
+			}
+		});
+		p.add(healthBox);
+
+		p.add(new JLabel("Status:"));
+		final JTextField statusField = new JTextField(10);
+		statusField.setToolTipText("Shows only agents whose status contains this text");
+		statusField.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				statusFilter = statusField.getText().trim().toLowerCase();
+				update();
+			}
+		});
+		p.add(statusField);
+
+		p.add(countLabel = new JLabel());
+		return p;
+	}
+
+
+	/** Starts updating when the inspector is shown. */
+	public void addNotify() {
+		super.addNotify();
 		timer.start();
+		update();
 	}
 
+	/** Stops updating when the inspector is no longer shown. */
+	public void removeNotify() {
+		timer.stop();
+		super.removeNotify();
+	}
 
 	/**
-	 * Model for the inspector table.
+	 * Takes a new snapshot of the model in the background, and
+	 * shows it once it is sorted and filtered. If an update is in
+	 * progress already, another one follows when it is done.
 	 */
-	public static class InspectorTableModel extends AbstractTableModel
+	private void update() {
+		if (updating) {
+			updateAgain = true;
+			return;
+		}
+		updating = true;
+		getUpdater().execute(new Runnable() {
+			public void run() {
+				Snapshot s = null;
+				int[] rows = null;
+				try {
+					s = new Snapshot(model);
+					rows = select(s);
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				final Snapshot snapshot = s;
+				final int[] selected = rows;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						updating = false;
+						if (snapshot != null) show(snapshot, selected);
+						if (updateAgain) {
+							updateAgain = false;
+							update();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/** Returns the thread that takes the snapshots. */
+	private static synchronized ExecutorService getUpdater() {
+		if (updater == null) {
+			updater = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ModelInspector");
+					t.setDaemon(true);
+					t.setPriority(Thread.NORM_PRIORITY - 1);
+					return t;
+				}
+			});
+		}
+		return updater;
+	}
+
+	/**
+	 * Filters and sorts the agents of a snapshot,
+	 * called by the background thread.
+	 *
+	 * @return the indices of the agents to show, in order.
+	 */
+	private int[] select(final Snapshot s) {
+		Faction faction = factionFilter;
+		String status = statusFilter;
+		int health = healthFilter;
+		java.util.List<Integer> rows = new ArrayList<Integer>();
+		for (int i=0; i<s.size(); i++) {
+			if (faction != null && s.factions[i] != faction) continue;
+			if (status.length() > 0 && s.status[i].toLowerCase().indexOf(status) < 0) continue;
+			if (health == 1 && s.health[i] < s.maxHealth[i]) continue;
+			if (health == 2 && (s.health[i] <= 0 || s.health[i] >= s.maxHealth[i])) continue;
+			if (health == 3 && s.health[i] > 0) continue;
+			rows.add(i);
+		}
+
+		final int col = sortColumn;
+		if (col >= 0) {
+			final int sign = sortDescending ? -1 : 1;
+			Collections.sort(rows, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return sign * s.compare(a, b, col);
+				}
+			});
+		}
+
+		int[] result = new int[rows.size()];
+		for (int i=0; i<result.length; i++) {
+			result[i] = rows.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Shows a new snapshot. If the same agents are shown in the same
+	 * order as before, only the visible rows are updated.
+	 */
+	private void show(Snapshot s, int[] rows) {
+		countLabel.setText(rows.length + " of " + s.size() + " agents, step " + s.getStepNumber());
+		if (!tableModel.setSnapshot(s, rows)) {
+			tableModel.fireTableDataChanged();
+			return;
+		}
+		Rectangle visible = table.getVisibleRect();
+		int first = table.rowAtPoint(visible.getLocation());
+		if (first < 0) return;
+		int last = table.rowAtPoint(new Point(visible.x, visible.y + visible.height - 1));
+		if (last < 0) last = tableModel.getRowCount() - 1;
+		tableModel.fireTableRowsUpdated(first, last);
+	}
+
+
+	/**
+	 * Immutable copy of the state of all agents of a model,
+	 * as shown by the inspector.
+	 */
+	public static class Snapshot
 	{
+		private long stepnum;
 		private Agent[] agents;
+		private Faction[] factions;
+		private float[] health;
+		private float[] maxHealth;
+		private String[] status;
+		private float[] positions;
+		private float[] velocities;
+
+		/**
+		 * Takes a snapshot of a model, locking the model
+		 * so no step is computed meanwhile.
+		 */
+		public Snapshot(Model model) {
+			Agent[] targets;
+			int[] enemiesOnRadar;
+			synchronized (model) {
+				stepnum = model.getStepNumber();
+				agents = model.getAgents().clone();
+				int n = agents.length;
+				factions = new Faction[n];
+				health = new float[n];
+				maxHealth = new float[n];
+				targets = new Agent[n];
+				enemiesOnRadar = new int[n];
+				positions = new float[3*n];
+				velocities = new float[3*n];
+				for (int i=0; i<n; i++) {
+					Agent a = agents[i];
+					factions[i] = a.faction;
+					health[i] = a.health;
+					maxHealth[i] = a.stats.health;
+					targets[i] = a.getTarget();
+					enemiesOnRadar[i] = a.getEnemiesOnRadar();
+					positions[3*i] = a.position.x;
+					positions[3*i+1] = a.position.y;
+					positions[3*i+2] = a.position.z;
+					velocities[3*i] = a.velocity.x;
+					velocities[3*i+1] = a.velocity.y;
+					velocities[3*i+2] = a.velocity.z;
+				}
+			}
+
+			// formatting is expensive, so it is done without the lock
+			status = new String[agents.length];
+			for (int i=0; i<agents.length; i++) {
+				status[i] = agents[i].statusText(health[i], targets[i], enemiesOnRadar[i]);
+			}
+		}
+
+		/** Returns the number of agents. */
+		public int size() {
+			return agents.length;
+		}
 
-		public InspectorTableModel(Agent[] agents) {
-			this.agents = agents;
+		/** Returns the step number of the model when the snapshot was taken. */
+		public long getStepNumber() {
+			return stepnum;
+		}
+
+		/** Returns the value shown in a column for an agent. */
+		public Object getValue(int i, int col) {
+			switch(col) {
+				case COL_NAME:      return agents[i].name;
+				case COL_FACTION:   return factions[i];
+				case COL_HEALTH:    return Integer.valueOf((int)health[i]);
+				case COL_STATUS:    return status[i];
+				case COL_LOCATION:  return new Vector3f(positions[3*i], positions[3*i+1], positions[3*i+2]);
+				case COL_VELOCITY:  return new Vector3f(velocities[3*i], velocities[3*i+1], velocities[3*i+2]);
+				case COL_CLASS:     return agents[i].getClass().getName();
+			}
+			return null;
+		}
+
+		/**
+		 * Compares two agents by the value shown in a column. Locations
+		 * are compared by their distance from the origin.
+		 */
+		int compare(int a, int b, int col) {
+			switch(col) {
+				case COL_NAME:      return agents[a].name.compareTo(agents[b].name);
+				case COL_FACTION:   return factions[a].getCode() - factions[b].getCode();
+				case COL_HEALTH:    return Float.compare(health[a], health[b]);
+				case COL_STATUS:    return status[a].compareTo(status[b]);
+				case COL_LOCATION:  return Float.compare(lengthSquared(positions, a), lengthSquared(positions, b));
+				case COL_VELOCITY:  return Float.compare(lengthSquared(velocities, a), lengthSquared(velocities, b));
+				case COL_CLASS:     return agents[a].getClass().getName().compareTo(agents[b].getClass().getName());
+			}
+			return 0;
+		}
+
+		private static float lengthSquared(float[] v, int i) {
+			float x = v[3*i], y = v[3*i+1], z = v[3*i+2];
+			return x*x + y*y + z*z;
+		}
+	}
+
+
+	/**
+	 * Model for the inspector table, showing selected rows of a snapshot.
+	 */
+	public static class InspectorTableModel extends AbstractTableModel
+	{
+		private Snapshot snapshot;
+		private int[] rows = new int[0];
+
+		/**
+		 * Shows the specified agents of a snapshot.
+		 *
+		 * @param snapshot the snapshot to show.
+		 * @param rows the indices of the agents to show, in order.
+		 * @return <tt>true</tt> if the same agents are shown in the same
+		 *         order as before, so the rows only need to be updated.
+		 */
+		public boolean setSnapshot(Snapshot snapshot, int[] rows) {
+			boolean same = this.snapshot != null
+				&& this.snapshot.size() == snapshot.size()
+				&& Arrays.equals(this.rows, rows);
+			this.snapshot = snapshot;
+			this.rows = rows;
+			return same;
 		}
 
 		public String getColumnName(int col) {
@@ -84,24 +416,13 @@ public class ModelInspector extends JPanel
 		}
 
 		public int getRowCount() {
-			return agents.length;
+			return rows.length;
 		}
 
 		public int getColumnCount() { return columns.length; }
 
 		public Object getValueAt(int row, int col) {
-			Agent o = agents[row];
-			Object v = null;
-			switch(col) {
-				case COL_NAME:      v = o.name; break;
-				case COL_FACTION:   v = o.faction; break;
-				case COL_HEALTH:    v = new Integer((int)o.health); break;
-				case COL_STATUS:    v = o.statusText() ; break;
-				case COL_LOCATION:  v = o.position; break;
-				case COL_VELOCITY:  v = o.velocity; break;
-				case COL_CLASS:     v = o.getClass().getName(); break;
-			}
-			return v;
+			return snapshot.getValue(rows[row], col);
 		}
 	}
 
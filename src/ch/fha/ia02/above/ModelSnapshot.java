@@ -0,0 +1,401 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+import javax.vecmath.*;
+
+/**
+ * Saves and restores the complete state of a model.
+ * <p>
+ * A snapshot contains the simulated time, the step number and
+ * everything needed to rebuild each agent, including the vessel
+ * types and performance descriptors.
+ * Restoring a snapshot does not involve the factory that originally
+ * created the model, which allows to use long running simulations
+ * as checkpoints or starting points for further experiments.
+ * <p>
+ * The file starts with a fixed size header (magic number, format
+ * version, payload length and a CRC-32 checksum of the payload),
+ * followed by the payload itself.
+ * All data is written in big-endian byte order.
+ * <p>
+ * Since this class implements {@link ModelFactory}, a snapshot
+ * can be passed to {@link Universe#setModel(ModelFactory)} directly.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Model
+ */
+public class ModelSnapshot implements ModelFactory
+{
+	/** Identifies snapshot files, reads "ABVS". */
+	public static final int MAGIC = 0x41425653;
+
+	/** Version of the file format written by this class. */
+	public static final short VERSION = 1;
+
+	/** Size of the header preceding the payload, in bytes. */
+	static final int HEADER_SIZE = 4 + 2 + 4 + 8;
+
+	/** Agent type codes. */
+	private static final byte TYPE_AGENT = 0;
+	private static final byte TYPE_CAPITAL_SHIP = 1;
+	private static final byte TYPE_STARFIGHTER = 2;
+
+	/** Performance descriptor type codes. */
+	private static final byte STATS_AGENT = 0;
+	private static final byte STATS_STARFIGHTER = 1;
+
+	/** The file this snapshot was read from, for informational purposes. */
+	private File file;
+
+	/** The payload, as read from the file. */
+	private byte[] payload;
+
+	/** Maps agents to their index while writing. */
+	private Map<Agent, Integer> index;
+
+	/** The agents being restored. */
+	private Agent[] agents;
+
+
+	/**
+	 * Reads a snapshot from the specified file.
+	 * The model is not restored until {@link #createModel()} is called.
+	 *
+	 * @param file the file to read the snapshot from.
+	 * @throws IOException if the file could not be read,
+	 *         is not a snapshot, or is corrupt.
+	 */
+	public ModelSnapshot(File file) throws IOException {
+		this.file = file;
+		FileChannel ch = new FileInputStream(file).getChannel();
+		try {
+			if (ch.size() > Integer.MAX_VALUE) throw new IOException(file + " is not a snapshot file.");
+			ByteBuffer data = ByteBuffer.allocate((int)ch.size());
+			readFully(ch, data);
+			parse(data);
+		}
+		finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Reads a snapshot from a buffer, as returned by {@link #toByteBuffer(Model)}.
+	 * The buffer's position is advanced to the end of the snapshot.
+	 *
+	 * @param data the buffer to read the snapshot from.
+	 * @throws IOException if the data is not a snapshot, or is corrupt.
+	 */
+	public ModelSnapshot(ByteBuffer data) throws IOException {
+		parse(data);
+	}
+
+	/** Validates the header and extracts the payload. */
+	private void parse(ByteBuffer data) throws IOException {
+		if (data.remaining() < HEADER_SIZE) throw new IOException("Not a snapshot.");
+		if (data.getInt() != MAGIC) throw new IOException("Not a snapshot.");
+		short version = data.getShort();
+		if (version != VERSION) throw new IOException("Unsupported snapshot version " + version + ".");
+		int length = data.getInt();
+		long checksum = data.getLong();
+		if (length < 0 || length > data.remaining()) throw new IOException("Snapshot is truncated.");
+		payload = new byte[length];
+		data.get(payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if (crc.getValue() != checksum) throw new IOException("Snapshot is corrupt.");
+	}
+
+	/**
+	 * Creates a snapshot writer for the specified model, also used
+	 * to translate references to its agents in both directions.
+	 */
+	ModelSnapshot(Model model) {
+		agents = model.getAgents();
+		index = new IdentityHashMap<Agent, Integer>(agents.length*2);
+		for (int i=0; i<agents.length; i++) {
+			index.put(agents[i], Integer.valueOf(i));
+		}
+	}
+
+
+	/**
+	 * Saves the state of the specified model to a file.
+	 * The model may be running while the snapshot is taken,
+	 * the snapshot will always contain the state after
+	 * a completely computed step.
+	 *
+	 * @param model the model to save.
+	 * @param file the file to write to, an existing file is replaced.
+	 * @throws IOException if writing the file failed.
+	 */
+	public static void save(Model model, File file) throws IOException {
+		ByteBuffer data = toByteBuffer(model);
+		FileChannel ch = new FileOutputStream(file).getChannel();
+		try {
+			while (data.hasRemaining()) {
+				ch.write(data);
+			}
+			ch.force(false);
+		}
+		finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the specified model and returns it
+	 * in the same format as it would be written to a file.
+	 *
+	 * @param model the model to save.
+	 * @return a buffer containing header and payload, ready to be read.
+	 * @throws IOException if the model contains agents that cannot be saved.
+	 */
+	public static ByteBuffer toByteBuffer(Model model) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + 256 * model.numAgents());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(new byte[HEADER_SIZE]); // filled in below
+		synchronized (model) {
+			new ModelSnapshot(model).write(model, out);
+		}
+		out.flush();
+
+		ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), HEADER_SIZE, data.capacity() - HEADER_SIZE);
+		data.putInt(MAGIC);
+		data.putShort(VERSION);
+		data.putInt(data.capacity() - HEADER_SIZE);
+		data.putLong(crc.getValue());
+		data.rewind();
+		return data;
+	}
+
+
+	/**
+	 * Rebuilds the model stored in this snapshot.
+	 * Each call returns a new, independent model.
+	 *
+	 * @throws IllegalStateException if the snapshot cannot be restored.
+	 */
+	public Model createModel() {
+		return restore(null);
+	}
+
+	/**
+	 * Rebuilds the model stored in this snapshot.
+	 *
+	 * @param trigger the trigger that drives the new model,
+	 *        or <tt>null</tt> to use the default trigger.
+	 * @throws IllegalStateException if the snapshot cannot be restored.
+	 */
+	Model restore(ModelTrigger trigger) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			long t = in.readLong();
+			long stepnum = in.readLong();
+
+			AgentStats[] stats = new AgentStats[in.readInt()];
+			for (int i=0; i<stats.length; i++) {
+				stats[i] = readStats(in);
+			}
+
+			Vessel[] vessels = new Vessel[in.readInt()];
+			for (int i=0; i<vessels.length; i++) {
+				vessels[i] = readVessel(in, stats);
+			}
+			if (Application.getSettings().detailedShapes()) {
+				ShapeCache.preload(Arrays.asList(vessels));
+			}
+
+			agents = new Agent[in.readInt()];
+			Set<ViewObject> objects = new LinkedHashSet<ViewObject>();
+			Vector3f p = new Vector3f();
+			Vector3f v = new Vector3f();
+			for (int i=0; i<agents.length; i++) {
+				byte type = in.readByte();
+				Vessel vessel = vessels[in.readInt()];
+				AgentStats s = stats[in.readInt()];
+				String name = in.readUTF();
+				Faction faction = Faction.forCode(in.readByte());
+				int group = in.readInt();
+				readVector(in, p);
+				readVector(in, v);
+				switch (type) {
+					case TYPE_AGENT:        agents[i] = new Agent(s, p, v); break;
+					case TYPE_CAPITAL_SHIP: agents[i] = new CapitalShip(s, p, v); break;
+					case TYPE_STARFIGHTER:  agents[i] = new Starfighter((Starfighter.Stats)s, p, v); break;
+					default: throw new IOException("Unknown agent type " + type + ".");
+				}
+				agents[i].name = name;
+				agents[i].faction = faction;
+				agents[i].group = group;
+				objects.add(new ViewObject(agents[i], vessel));
+			}
+			for (int i=0; i<agents.length; i++) {
+				agents[i].readState(in, this);
+			}
+
+			Model model = new Model(objects, trigger);
+			model.setTime(t, stepnum);
+			return model;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not restore snapshot " + file + ": " + e.getMessage());
+		}
+		finally {
+			agents = null;
+		}
+	}
+
+
+	/** Writes the payload. */
+	private void write(Model model, DataOutputStream out) throws IOException {
+		out.writeLong(model.getTime());
+		out.writeLong(model.getStepNumber());
+
+		// collect the distinct performance descriptors and vessels
+		Vessel[] modelVessels = model.getVessels();
+		List<AgentStats> stats = new ArrayList<AgentStats>();
+		List<Vessel> vessels = new ArrayList<Vessel>();
+		for (int i=0; i<agents.length; i++) {
+			if (!stats.contains(agents[i].stats)) stats.add(agents[i].stats);
+			if (!vessels.contains(modelVessels[i])) vessels.add(modelVessels[i]);
+			AgentStats vs = modelVessels[i].getStats();
+			if (!stats.contains(vs)) stats.add(vs);
+		}
+
+		out.writeInt(stats.size());
+		for (int i=0; i<stats.size(); i++) {
+			writeStats(out, stats.get(i));
+		}
+
+		out.writeInt(vessels.size());
+		for (int i=0; i<vessels.size(); i++) {
+			Vessel v = vessels.get(i);
+			out.writeUTF(v.getName());
+			out.writeBoolean(v.getFile() != null);
+			if (v.getFile() != null) out.writeUTF(v.getFile());
+			out.writeFloat(v.getScale());
+			out.writeBoolean(v.isAutoOriented());
+			out.writeInt(stats.indexOf(v.getStats()));
+		}
+
+		out.writeInt(agents.length);
+		for (int i=0; i<agents.length; i++) {
+			Agent a = agents[i];
+			out.writeByte(typeOf(a));
+			out.writeInt(vessels.indexOf(modelVessels[i]));
+			out.writeInt(stats.indexOf(a.stats));
+			out.writeUTF(a.name);
+			out.writeByte(a.faction.getCode());
+			out.writeInt(a.group);
+			writeVector(out, a.position);
+			writeVector(out, a.velocity);
+		}
+		for (int i=0; i<agents.length; i++) {
+			agents[i].writeState(out, this);
+		}
+	}
+
+	/** Returns the type code of the specified agent. */
+	private static byte typeOf(Agent a) throws IOException {
+		Class<?> c = a.getClass();
+		if (c == Agent.class) return TYPE_AGENT;
+		if (c == CapitalShip.class) return TYPE_CAPITAL_SHIP;
+		if (c == Starfighter.class) return TYPE_STARFIGHTER;
+		throw new IOException("Cannot save agents of type " + c.getName() + ".");
+	}
+
+	/** Writes a performance descriptor, preceded by its type code. */
+	private static void writeStats(DataOutput out, AgentStats s) throws IOException {
+		out.writeByte((s instanceof Starfighter.Stats) ? STATS_STARFIGHTER : STATS_AGENT);
+		s.writeTo(out);
+	}
+
+	/** Reads a performance descriptor written by <tt>writeStats()</tt>. */
+	private static AgentStats readStats(DataInput in) throws IOException {
+		AgentStats s;
+		byte type = in.readByte();
+		switch (type) {
+			case STATS_AGENT:       s = new AgentStats(1); break;
+			case STATS_STARFIGHTER: s = new Starfighter.Stats(1, 1, 1, 1); break;
+			default: throw new IOException("Unknown stats type " + type + ".");
+		}
+		s.readFrom(in);
+		return s;
+	}
+
+	/**
+	 * Reads a vessel.
+	 * Collision bounds are not stored, they are not used by any vessel.
+	 */
+	private static Vessel readVessel(DataInput in, AgentStats[] stats) throws IOException {
+		String name = in.readUTF();
+		String file = in.readBoolean() ? in.readUTF() : null;
+		float scale = in.readFloat();
+		boolean autoOriented = in.readBoolean();
+		AgentStats s = stats[in.readInt()];
+		return new Vessel(name, s, null, file, scale, autoOriented);
+	}
+
+
+	/**
+	 * Returns the index of the specified agent while writing.
+	 *
+	 * @return the agent's index, or <tt>-1</tt> if <var>a</var> is <tt>null</tt>.
+	 * @throws IOException if <var>a</var> is not part of the model.
+	 */
+	int indexOf(Agent a) throws IOException {
+		if (a == null) return -1;
+		Integer i = index.get(a);
+		if (i == null) throw new IOException(a.name + " is not part of the model.");
+		return i.intValue();
+	}
+
+	/**
+	 * Returns the agent with the specified index while restoring.
+	 *
+	 * @return the agent, or <tt>null</tt> if <var>i</var> is <tt>-1</tt>.
+	 * @throws IOException if the index is out of range.
+	 */
+	Agent agentAt(int i) throws IOException {
+		if (i == -1) return null;
+		if (i < 0 || i >= agents.length) throw new IOException("Invalid agent reference " + i + ".");
+		return agents[i];
+	}
+
+
+	/** Writes the three components of a vector. */
+	static void writeVector(DataOutput out, Vector3f v) throws IOException {
+		out.writeFloat(v.x);
+		out.writeFloat(v.y);
+		out.writeFloat(v.z);
+	}
+
+	/** Reads the three components of a vector into <var>v</var>. */
+	static void readVector(DataInput in, Vector3f v) throws IOException {
+		v.x = in.readFloat();
+		v.y = in.readFloat();
+		v.z = in.readFloat();
+	}
+
+	/** Reads from the channel until the buffer is full. */
+	private static void readFully(FileChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf) < 0) throw new EOFException();
+		}
+		buf.flip();
+	}
+
+
+	/** Returns a string representation of this snapshot. */
+	public String toString() {
+		return getClass().getName() + "[" + file + "]";
+	}
+}
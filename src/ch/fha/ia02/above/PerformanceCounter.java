@@ -10,6 +10,9 @@ public class PerformanceCounter extends WorldBehavior {
 	private static final int FRAMES = 100;
 	private long last;
 
+	/** The frame rate computed last. */
+	private static volatile int framesPerSecond = 0;
+
 	/** Creates a new performance counter. */
 	public PerformanceCounter() {
 		super(new WakeupOnElapsedFrames(FRAMES));
@@ -19,9 +22,18 @@ public class PerformanceCounter extends WorldBehavior {
 	/** Computes the current FPS. */
 	public void processStimulus(java.util.Enumeration criteria) {
 		long curr = System.currentTimeMillis();
-		int fps = (int)(FRAMES*1000/(curr-last));
+		int fps = (int)(FRAMES*1000/Math.max(1, curr-last));
+		framesPerSecond = fps;
 		System.out.println(fps + " FPS");
 		last = curr;
 		wakeupOn(w);
 	}
+
+	/**
+	 * Returns the frame rate computed last by any performance counter,
+	 * or zero if none was computed yet.
+	 */
+	public static int getFramesPerSecond() {
+		return framesPerSecond;
+	}
 }
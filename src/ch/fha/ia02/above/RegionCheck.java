@@ -0,0 +1,128 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that a model partitioned by {@link RegionNode} yields the same
+ * state as computing it in a single process. Several nodes are run on
+ * the local machine, each by its own thread and connected over the
+ * loopback interface. After the specified number of steps, the agents
+ * are {@linkplain RegionNode#gather() gathered} by the first node, and
+ * its {@linkplain Model#stateHash() state hash} is compared to the one
+ * of the same scenario computed by a single model.
+ *
+ * @author Thomas Gerstendoerfer
+ */
+public class RegionCheck
+{
+	/**
+	 * Entry point to check the default scenario.
+	 * Exits with status 1 if the states differ.
+	 * <p>
+	 * Usage: <tt>RegionCheck [-nodes <var>n</var>] [-port <var>n</var>]
+	 * [-fighters <var>n</var>] [-seed <var>s</var>] [-step <var>ms</var>]
+	 * [-steps <var>n</var>]</tt>
+	 */
+	public static void main(String[] args) throws Exception {
+		int nodes = 3;
+		int port = RegionNode.DEFAULT_PORT;
+		int fighters = 12;
+		long seed = 2000;
+		int step = BatchRunner.DEFAULT_STEP_DURATION;
+		int steps = 1000;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-nodes") && i+1 < args.length) {
+					nodes = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-port") && i+1 < args.length) {
+					port = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-fighters") && i+1 < args.length) {
+					fighters = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seed") && i+1 < args.length) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-step") && i+1 < args.length) {
+					step = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-steps") && i+1 < args.length) {
+					steps = Integer.parseInt(args[++i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+			if (nodes < 2) throw new IllegalArgumentException("-nodes");
+			Model.checkStepDuration(step);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Usage: RegionCheck [-nodes n] [-port n] [-fighters n] [-seed s] [-step ms] [-steps n]");
+			System.exit(1);
+		}
+
+		final InetSocketAddress[] addresses = new InetSocketAddress[nodes];
+		for (int k=0; k<nodes; k++) {
+			addresses[k] = new InetSocketAddress(InetAddress.getByName(null), port+k);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(nodes);
+		java.util.List<Future<Model>> results = new ArrayList<Future<Model>>();
+		for (int k=0; k<nodes; k++) {
+			final int node = k;
+			final int fFighters = fighters;
+			final long fSeed = seed;
+			final int fStep = step;
+			final int fSteps = steps;
+			results.add(executor.submit(new Callable<Model>() {
+				public Model call() throws IOException {
+					Model model = new SimpleModelFactory(fFighters, fSeed).createHeadlessModel();
+					RegionNode region = new RegionNode(model, node, addresses);
+					try {
+						compute(model, fStep, fSteps);
+						region.gather();
+					}
+					finally {
+						region.close();
+					}
+					return model;
+				}
+			}));
+		}
+
+		Model single = new SimpleModelFactory(fighters, seed).createHeadlessModel();
+		compute(single, step, steps);
+
+		Model partitioned;
+		try {
+			partitioned = results.get(0).get();
+			for (int k=1; k<nodes; k++) {
+				results.get(k).get();
+			}
+		}
+		catch (ExecutionException e) {
+			System.err.println("A node failed: " + e.getCause());
+			System.exit(1);
+			return;
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		long expected = single.stateHash();
+		long hash = partitioned.stateHash();
+		if (hash != expected) {
+			System.err.println("State of " + nodes + " nodes differs after " + steps + " steps: "
+				+ Long.toHexString(hash) + " instead of " + Long.toHexString(expected));
+			System.exit(1);
+		}
+		System.out.println("State of " + nodes + " nodes matched after " + steps + " steps: "
+			+ Long.toHexString(hash));
+	}
+
+	/** Computes the specified number of steps. */
+	private static void compute(Model model, int step, int steps) {
+		for (int i=0; i<steps; i++) {
+			if (!model.compute(step)) {
+				throw new IllegalStateException("Step of " + step + " ms was not computed");
+			}
+		}
+	}
+}
@@ -0,0 +1,849 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Computes one region of a model partitioned across several processes,
+ * on the same or on different machines, so a battle can use more cores
+ * than a single machine has.
+ * <p>
+ * All processes, called nodes, create the same model, so the agents
+ * have the same indices everywhere. The space is cut into slabs along
+ * the x axis, one per node, with bounds chosen so that each node
+ * owns the same number of agents. As the agents move, the bounds are
+ * moved every {@link #REBALANCE_INTERVAL} steps, so the agents remain
+ * evenly distributed. Each node only computes the agents it owns.
+ * Agents of other nodes within {@link #getMargin()} of its slab are
+ * replicated as ghosts, which are seen by the agents owned but not
+ * computed. Agents farther away are not seen at all, which does not
+ * change the result as they are beyond the range of any sensor.
+ * <p>
+ * After each step, the nodes exchange messages with each other node
+ * over TCP, in lockstep:
+ * <ol>
+ * <li>The damage of hits on ghosts, along with the index of the agent
+ *     causing each hit. The owners of the agents hit apply all hits of
+ *     the step in the order of these indices.</li>
+ * <li>Every {@link #REBALANCE_INTERVAL} steps, the x coordinate of
+ *     the agents owned, from which all nodes compute the same new
+ *     bounds of the slabs.</li>
+ * <li>The state of the agents owned within the ghost zone of the other
+ *     node. Agents that left the slab of their owner are sent to all
+ *     other nodes along with their new owner, which completes their
+ *     migration and keeps the owner of each agent known everywhere.</li>
+ * </ol>
+ * As the model is computed deterministically, and the hits are applied
+ * in the order a single process commits them, a partitioned model
+ * yields the same state as computing it in a single process. This is
+ * verified by {@link RegionCheck}, which {@linkplain #gather() gathers}
+ * the agents of several nodes and compares the {@linkplain
+ * Model#stateHash() state hash} with a model computed in one process.
+ * The only difference is that {@link Agent#hit(float)} cannot tell
+ * if the agent hit died, as hits are only applied at the end of the
+ * step, so agents must not depend on its result.
+ * <p>
+ * The messages are exchanged while {@link Model#compute(long)} holds
+ * the model's lock, so threads reading the model wait for the slowest
+ * node. A node not responding within {@link #EXCHANGE_TIMEOUT}
+ * milliseconds is considered lost, and the step fails.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Model#setRegion(RegionNode)
+ */
+public class RegionNode
+{
+	/** Identifies the connection between two nodes, reads "ABRN". */
+	public static final int MAGIC = 0x4142524e;
+
+	/** Version of the protocol implemented by this class. */
+	public static final short VERSION = 2;
+
+	/** Port of the first node, the other nodes use the following ports. */
+	public static final int DEFAULT_PORT = 7420;
+
+	/** Number of steps between two adjustments of the bounds of the slabs. */
+	public static final int REBALANCE_INTERVAL = 50;
+
+	/** Time to wait for a message of another node, in milliseconds. */
+	public static final int EXCHANGE_TIMEOUT = 30000;
+
+	/** Time to wait for the other nodes to start, in milliseconds. */
+	private static final int CONNECT_TIMEOUT = 60000;
+
+	private Model model;
+	private Agent[] agents;
+
+	/** Index of this node, and number of nodes. */
+	private int node;
+	private int nodes;
+
+	/** Lower bound of the slab of each node, and upper bound of the last one. */
+	private float[] bounds;
+
+	/** Width of the ghost zone around each slab. */
+	private float margin;
+
+	/** Translates references to agents. */
+	private ModelSnapshot index;
+
+	/** The node owning each agent, as far as known by this node. */
+	private int[] owner;
+
+	/** The agents owned, and these together with the ghosts, in the order of the model. */
+	private Agent[] ownedAgents;
+	private Agent[] presentAgents;
+
+	/** The indices of the agents owned. */
+	private int[] ownedIndices;
+
+	/** Index of the agent being committed, which causes the hits routed. */
+	private int shooter = -1;
+
+	/** The hits on agents owned during this step, applied by {@link #exchange()}. */
+	private java.util.List<Hit> hits = new ArrayList<Hit>();
+
+	/** The connections to the other nodes, <tt>null</tt> at the index of this node. */
+	private Peer[] peers;
+
+	/** Sends the messages to the other nodes, while receiving theirs. */
+	private ExecutorService senders;
+
+	/** Number of agents that migrated from and to this node. */
+	private int migratedIn = 0;
+	private int migratedOut = 0;
+
+
+	/**
+	 * Connects to the other nodes and makes the specified model
+	 * compute only the agents of this node's region.
+	 * Waits until all other nodes are started.
+	 *
+	 * @param model the model, created the same way on all nodes.
+	 * @param node index of this node.
+	 * @param addresses the addresses of all nodes, including this one.
+	 * @throws IOException if a node cannot be reached, or runs
+	 *         a different model.
+	 */
+	public RegionNode(Model model, int node, InetSocketAddress[] addresses) throws IOException {
+		if (node < 0 || node >= addresses.length) throw new IllegalArgumentException("Invalid node index " + node + "!");
+		this.model = model;
+		this.node = node;
+		this.nodes = addresses.length;
+		agents = model.getAgents();
+		index = new ModelSnapshot(model);
+		owner = new int[agents.length];
+		margin = computeMargin();
+		float[] x = new float[agents.length];
+		for (int i=0; i<agents.length; i++) {
+			x[i] = agents[i].position.x;
+		}
+		bounds = computeBounds(x);
+		for (int i=0; i<agents.length; i++) {
+			owner[i] = regionOf(agents[i].position.x);
+		}
+
+		peers = new Peer[nodes];
+		connect(addresses);
+		senders = Executors.newFixedThreadPool(Math.max(1, nodes-1));
+
+		boolean[] ghosts = new boolean[agents.length];
+		for (int i=0; i<agents.length; i++) {
+			ghosts[i] = isNear(agents[i].position.x, node);
+		}
+		updateAgents(ghosts);
+		model.setRegion(this);
+	}
+
+
+	/**
+	 * Returns the width of the ghost zone: the range of the sensors of
+	 * the agents, extended by their size and the distance two agents
+	 * can approach each other during one step.
+	 */
+	private float computeMargin() {
+		float range = 0;
+		float size = 0;
+		float speed = 0;
+		for (int i=0; i<agents.length; i++) {
+			AgentStats s = agents[i].stats;
+			if (s instanceof Starfighter.Stats) {
+				Starfighter.Stats f = (Starfighter.Stats)s;
+				range = Math.max(range, Math.max(f.radarRange, f.attackRange));
+				range = Math.max(range, Math.max(f.cohesionDistance, f.alignmentDistance));
+			}
+			size = Math.max(size, s.bounds);
+			speed = Math.max(speed, s.vmax);
+		}
+		return range + 2*size + 2*speed*Model.dtMax/1000;
+	}
+
+	/**
+	 * Cuts the space into slabs with the same number of agents.
+	 *
+	 * @param x the x coordinates of all agents, sorted by this method.
+	 */
+	private float[] computeBounds(float[] x) {
+		Arrays.sort(x);
+		float[] b = new float[nodes+1];
+		b[0] = Float.NEGATIVE_INFINITY;
+		for (int k=1; k<nodes; k++) {
+			b[k] = x.length > 0 ? x[k*x.length/nodes] : 0;
+		}
+		b[nodes] = Float.POSITIVE_INFINITY;
+		return b;
+	}
+
+	/** Returns the index of the node whose slab contains <var>x</var>. */
+	private int regionOf(float x) {
+		int k = 0;
+		while (k+1 < nodes && x >= bounds[k+1]) k++;
+		return k;
+	}
+
+	/** Tests if <var>x</var> is within the slab of node <var>k</var> or its ghost zone. */
+	private boolean isNear(float x, int k) {
+		return x >= bounds[k] - margin && x < bounds[k+1] + margin;
+	}
+
+
+	/**
+	 * Connects to the nodes with a lower index, and accepts the
+	 * connections of the nodes with a higher index.
+	 */
+	private void connect(InetSocketAddress[] addresses) throws IOException {
+		long hash = model.stateHash();
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		ServerSocket serverSocket = null;
+		try {
+			if (node+1 < nodes) {
+				serverSocket = new ServerSocket();
+				serverSocket.setReuseAddress(true);
+				serverSocket.bind(new InetSocketAddress(addresses[node].getPort()));
+				serverSocket.setSoTimeout(CONNECT_TIMEOUT);
+			}
+			for (int k=0; k<node; k++) {
+				Peer p = new Peer(connect(addresses[k], deadline));
+				p.writeHeader(hash);
+				p.readHeader(k, hash);
+				peers[k] = p;
+			}
+			for (int n=node+1; n<nodes; n++) {
+				Peer p = new Peer(serverSocket.accept());
+				int k = p.readHeader(-1, hash);
+				p.writeHeader(hash);
+				peers[k] = p;
+			}
+			for (int k=0; k<nodes; k++) {
+				if (peers[k] != null) peers[k].socket.setSoTimeout(EXCHANGE_TIMEOUT);
+			}
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+		finally {
+			if (serverSocket != null) serverSocket.close();
+		}
+	}
+
+	/** Connects to a node, retrying until it is started. */
+	private static Socket connect(InetSocketAddress address, long deadline) throws IOException {
+		while (true) {
+			try {
+				return new Socket(address.getAddress(), address.getPort());
+			}
+			catch (ConnectException e) {
+				if (System.currentTimeMillis() > deadline) throw e;
+				try {
+					Thread.sleep(200);
+				}
+				catch (InterruptedException ie) {
+					throw new InterruptedIOException("Interrupted while connecting to " + address + ".");
+				}
+			}
+		}
+	}
+
+
+	/** Returns the index of this node. */
+	public int getNode() {
+		return node;
+	}
+
+	/** Returns the number of nodes. */
+	public int getNodeCount() {
+		return nodes;
+	}
+
+	/** Returns the width of the ghost zone around the slab of each node. */
+	public float getMargin() {
+		return margin;
+	}
+
+	/** Returns the lower bound of the slab of this node. */
+	public float getLowerBound() {
+		return bounds[node];
+	}
+
+	/** Returns the upper bound of the slab of this node. */
+	public float getUpperBound() {
+		return bounds[node+1];
+	}
+
+	/** Returns the number of agents owned by this node. */
+	public int getOwnedCount() {
+		return ownedAgents.length;
+	}
+
+	/** Returns the number of ghosts of agents owned by other nodes. */
+	public int getGhostCount() {
+		return presentAgents.length - ownedAgents.length;
+	}
+
+	/** Returns the number of agents that migrated to this node. */
+	public int getMigratedIn() {
+		return migratedIn;
+	}
+
+	/** Returns the number of agents that migrated from this node. */
+	public int getMigratedOut() {
+		return migratedOut;
+	}
+
+	/** Returns the agents computed by this node. */
+	Agent[] getOwnedAgents() {
+		return ownedAgents;
+	}
+
+	/** Returns the agents seen by the agents computed, including the ghosts. */
+	Agent[] getPresentAgents() {
+		return presentAgents;
+	}
+
+
+	/**
+	 * Commits the agents owned after a step, in the order of the model,
+	 * keeping track of the agent causing the hits routed meanwhile.
+	 * Called by the model before {@link #exchange()}.
+	 */
+	void commit() {
+		for (int i=0; i<ownedAgents.length; i++) {
+			shooter = ownedIndices[i];
+			ownedAgents[i].commit();
+		}
+		shooter = -1;
+	}
+
+	/**
+	 * Notes the damage of a hit, or routes it to the owner of the agent
+	 * hit if it is a ghost. Called by {@link Agent#hit(float)}.
+	 */
+	void route(Agent a, float damage) {
+		try {
+			int i = index.indexOf(a);
+			if (owner[i] == node) {
+				hits.add(new Hit(shooter, i, damage));
+			} else {
+				Peer p = peers[owner[i]];
+				p.data.writeInt(shooter);
+				p.data.writeInt(i);
+				p.data.writeFloat(damage);
+				p.count++;
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Exchanges the hits and the state of the agents with the other
+	 * nodes after a step. Called by the model, see the class description.
+	 * Blocks until all other nodes have computed the step.
+	 *
+	 * @throws IOException if the connection to a node failed,
+	 *         or a node did not respond in time.
+	 */
+	void exchange() throws IOException {
+		long step = model.getStepNumber();
+
+		// the hits on ghosts, while the owners are still the same
+		sendAll(step);
+		for (int k=0; k<nodes; k++) {
+			if (peers[k] == null) continue;
+			DataInputStream in = peers[k].in;
+			for (int n=receive(k, step); n>0; n--) {
+				int s = in.readInt();
+				int i = in.readInt();
+				float damage = in.readFloat();
+				if (i < 0 || i >= agents.length) throw new IOException("Invalid agent index " + i + ".");
+				if (owner[i] != node) {
+					throw new IOException("Node " + k + " sent a hit on " + agents[i].name + " not owned by node " + node + ".");
+				}
+				hits.add(new Hit(s, i, damage));
+			}
+		}
+		awaitSent();
+		applyHits();
+
+		if ((step+1) % REBALANCE_INTERVAL == 0 && nodes > 1) {
+			rebalance(step);
+		}
+
+		// the agents owned near other nodes, and those that left the slab to all nodes
+		boolean[] present = new boolean[agents.length];
+		for (int i=0; i<agents.length; i++) {
+			if (owner[i] != node) continue;
+			float x = agents[i].position.x;
+			int k = regionOf(x);
+			for (int j=0; j<nodes; j++) {
+				if (peers[j] != null && (k != node || isNear(x, j))) {
+					writeAgent(peers[j], i, k);
+				}
+			}
+			if (k != node) {
+				owner[i] = k;
+				present[i] = isNear(x, node); // sent by its new owner from the next step on
+				migratedOut++;
+			}
+		}
+		sendAll(step);
+		for (int k=0; k<nodes; k++) {
+			if (peers[k] == null) continue;
+			for (int n=receive(k, step); n>0; n--) {
+				int i = readAgent(peers[k].in);
+				present[i] = isNear(agents[i].position.x, node);
+			}
+		}
+		awaitSent();
+		updateAgents(present);
+	}
+
+	/**
+	 * Applies the hits on the agents owned in the order of the agents
+	 * causing them, which is the order a single process commits them in.
+	 * The order matters, as the hits after the one killing an agent
+	 * still reduce its health.
+	 */
+	private void applyHits() {
+		Collections.sort(hits); // stable, keeps the hits of the same agent in order
+		for (int j=0; j<hits.size(); j++) {
+			Hit h = hits.get(j);
+			agents[h.target].applyHit(h.damage);
+		}
+		hits.clear();
+	}
+
+	/**
+	 * Moves the bounds of the slabs, so each node owns the same number
+	 * of agents again. The agents migrate with the following exchange
+	 * of the states.
+	 */
+	private void rebalance(long step) throws IOException {
+		float[] x = new float[agents.length];
+		int n = 0;
+		for (int i=0; i<agents.length; i++) {
+			if (owner[i] != node) continue;
+			x[n++] = agents[i].position.x;
+			for (int k=0; k<nodes; k++) {
+				if (peers[k] != null) peers[k].data.writeFloat(agents[i].position.x);
+			}
+		}
+		for (int k=0; k<nodes; k++) {
+			if (peers[k] != null) peers[k].count = n;
+		}
+		sendAll(step);
+		for (int k=0; k<nodes; k++) {
+			if (peers[k] == null) continue;
+			int m = receive(k, step);
+			if (n + m > x.length) throw new IOException("Node " + k + " owns too many agents.");
+			for (int j=0; j<m; j++) {
+				x[n++] = peers[k].in.readFloat();
+			}
+		}
+		awaitSent();
+		if (n != x.length) throw new IOException("The nodes own " + n + " of " + x.length + " agents.");
+		bounds = computeBounds(x);
+	}
+
+	/**
+	 * Sends the state of all agents owned to the first node, so it has
+	 * the state of the whole model, for example to save a snapshot or
+	 * to compare the state with a model computed in a single process.
+	 * To be called by all nodes after the same step, and followed by
+	 * {@link #close()}. The models of the other nodes are left unchanged.
+	 *
+	 * @throws IOException if the connection to a node failed.
+	 */
+	public void gather() throws IOException {
+		synchronized (model) {
+			long step = model.getStepNumber();
+			if (node > 0) {
+				for (int i=0; i<agents.length; i++) {
+					if (owner[i] == node) writeAgent(peers[0], i, node);
+				}
+				sending.add(peers[0].send(step));
+				awaitSent();
+			} else {
+				for (int k=1; k<nodes; k++) {
+					for (int n=receive(k, step); n>0; n--) {
+						readAgent(peers[k].in);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops computing the model as partitioned and closes the
+	 * connections to the other nodes. Afterwards, the state of the
+	 * agents not owned by this node is out of date, unless gathered.
+	 */
+	public void close() {
+		if (model != null) model.setRegion(null);
+		for (int i=0; i<agents.length; i++) {
+			agents[i].remote = null;
+		}
+		for (int k=0; k<nodes; k++) {
+			if (peers[k] != null) peers[k].close();
+		}
+		if (senders != null) senders.shutdown();
+	}
+
+
+	/**
+	 * Rebuilds the arrays of the agents owned and present after
+	 * the ownership changed, and routes the hits on all agents.
+	 *
+	 * @param present the ghosts present, the agents owned are added.
+	 */
+	private void updateAgents(boolean[] present) {
+		java.util.List<Agent> owned = new ArrayList<Agent>();
+		java.util.List<Agent> seen = new ArrayList<Agent>();
+		for (int i=0; i<agents.length; i++) {
+			if (owner[i] == node) {
+				owned.add(agents[i]);
+				seen.add(agents[i]);
+			} else if (present[i]) {
+				seen.add(agents[i]);
+			}
+			agents[i].remote = this;
+		}
+		ownedAgents = owned.toArray(new Agent[owned.size()]);
+		presentAgents = seen.toArray(new Agent[seen.size()]);
+		ownedIndices = new int[ownedAgents.length];
+		for (int i=0, j=0; i<agents.length; i++) {
+			if (owner[i] == node) ownedIndices[j++] = i;
+		}
+	}
+
+	/**
+	 * Writes the state of an agent to the next message to a node.
+	 *
+	 * @param p the node to send the agent to.
+	 * @param i the index of the agent.
+	 * @param k the node owning the agent after this step.
+	 */
+	private void writeAgent(Peer p, int i, int k) throws IOException {
+		Agent a = agents[i];
+		DataOutputStream out = p.data;
+		out.writeInt(i);
+		out.writeByte(k);
+		ModelSnapshot.writeVector(out, a.position);
+		ModelSnapshot.writeVector(out, a.velocity);
+		out.writeByte(a.faction.getCode());
+		a.writeState(out, index);
+		p.count++;
+	}
+
+	/**
+	 * Reads the state of an agent written by {@link #writeAgent(Peer, int, int)}.
+	 *
+	 * @return the index of the agent.
+	 */
+	private int readAgent(DataInputStream in) throws IOException {
+		int i = in.readInt();
+		if (i < 0 || i >= agents.length) throw new IOException("Invalid agent index " + i + ".");
+		Agent a = agents[i];
+		int k = in.readByte();
+		if (k == node && owner[i] != node) migratedIn++;
+		owner[i] = k;
+		ModelSnapshot.readVector(in, a.position);
+		ModelSnapshot.readVector(in, a.velocity);
+		a.faction = Faction.forCode(in.readByte());
+		a.readState(in, index);
+		return i;
+	}
+
+
+	/** The futures of the messages being sent. */
+	private java.util.List<Future<?>> sending = new ArrayList<Future<?>>();
+
+	/** Sends the messages written to all other nodes. */
+	private void sendAll(long step) {
+		for (int k=0; k<nodes; k++) {
+			if (peers[k] != null) sending.add(peers[k].send(step));
+		}
+	}
+
+	/** Waits until the messages are sent, at most {@link #EXCHANGE_TIMEOUT} ms each. */
+	private void awaitSent() throws IOException {
+		try {
+			for (int k=0; k<sending.size(); k++) {
+				sending.get(k).get(EXCHANGE_TIMEOUT, TimeUnit.MILLISECONDS);
+			}
+		}
+		catch (TimeoutException e) {
+			throw new SocketTimeoutException("Timed out sending to another node.");
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while sending to another node.");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new IOException(e.getCause().toString());
+		}
+		finally {
+			sending.clear();
+		}
+	}
+
+	/**
+	 * Receives the header of the next message from a node.
+	 *
+	 * @return the number of entries of the message.
+	 */
+	private int receive(int k, long step) throws IOException {
+		DataInputStream in = peers[k].in;
+		long s = in.readLong();
+		if (s != step) throw new IOException("Node " + k + " is at step " + s + " instead of " + step + ".");
+		return in.readInt();
+	}
+
+
+	/** Returns a string representation of this node. */
+	public String toString() {
+		return getClass().getName() + "[node " + node + " of " + nodes
+			+ ", x in [" + bounds[node] + ", " + bounds[node+1] + ")"
+			+ ", " + ownedAgents.length + " agents, " + getGhostCount() + " ghosts]";
+	}
+
+
+	/** A hit on an agent owned, applied at the end of the step. */
+	private static class Hit implements Comparable<Hit>
+	{
+		/** The indices of the agent causing the hit, and of the agent hit. */
+		final int shooter;
+		final int target;
+		final float damage;
+
+		Hit(int shooter, int target, float damage) {
+			this.shooter = shooter;
+			this.target = target;
+			this.damage = damage;
+		}
+
+		/** Orders the hits by the agents causing them. */
+		public int compareTo(Hit h) {
+			return (shooter < h.shooter) ? -1 : (shooter == h.shooter ? 0 : 1);
+		}
+	}
+
+
+	/**
+	 * The connection to another node. Messages consist of the step
+	 * number (<tt>long</tt>) and the number of entries (<tt>int</tt>),
+	 * followed by the entries written to {@link #data}.
+	 */
+	private class Peer
+	{
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+
+		/** The entries of the next message. */
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private DataOutputStream data = new DataOutputStream(buffer);
+		private int count = 0;
+
+		Peer(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(CONNECT_TIMEOUT);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		/** Sends the identification of this node. */
+		void writeHeader(long hash) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(node);
+			out.writeInt(nodes);
+			out.writeLong(hash);
+			out.flush();
+		}
+
+		/**
+		 * Reads the identification of the other node.
+		 *
+		 * @param k the index of the node expected, or <tt>-1</tt>.
+		 * @return the index of the node.
+		 * @throws IOException if the node is not the one expected,
+		 *         or runs a different model.
+		 */
+		int readHeader(int k, long hash) throws IOException {
+			if (in.readInt() != MAGIC) throw new IOException("Not a node.");
+			short version = in.readShort();
+			if (version != VERSION) throw new IOException("Unsupported protocol version " + version + ".");
+			int n = in.readInt();
+			if (in.readInt() != nodes) throw new IOException("Node " + n + " expects another number of nodes.");
+			if (n < 0 || n >= nodes || n == node || (k >= 0 && n != k) || peers[n] != null) {
+				throw new IOException("Unexpected node " + n + ".");
+			}
+			if (in.readLong() != hash) throw new IOException("Node " + n + " runs another model.");
+			return n;
+		}
+
+		/** Sends the entries written, by one of the sender threads. */
+		Future<?> send(final long step) {
+			return senders.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					out.writeLong(step);
+					out.writeInt(count);
+					buffer.writeTo(out);
+					out.flush();
+					buffer.reset();
+					count = 0;
+					return null;
+				}
+			});
+		}
+
+		void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				System.err.println("RegionNode: " + e);
+			}
+		}
+	}
+
+
+	/**
+	 * Computes one region of the default scenario, until the specified
+	 * number of steps is computed by all nodes. The first node then
+	 * prints the result of the battle and the hash of the final state,
+	 * which matches the one of a single process computing the same steps,
+	 * see {@link RegionCheck}. For example, three nodes
+	 * on the local machine are started as
+	 * <pre>
+	 * java ch.fha.ia02.above.RegionNode -nodes 3 -node 0
+	 * java ch.fha.ia02.above.RegionNode -nodes 3 -node 1
+	 * java ch.fha.ia02.above.RegionNode -nodes 3 -node 2</pre>
+	 * Nodes on different machines are specified by
+	 * <tt>-peers host:port,host:port,...</tt> instead of <tt>-nodes</tt>,
+	 * listing all nodes in the same order on each of them.
+	 */
+	public static void main(String[] args) throws IOException {
+		int node = 0;
+		int nodes = 1;
+		int port = DEFAULT_PORT;
+		String peers = null;
+		int fighters = 12;
+		long seed = 2000;
+		int step = BatchRunner.DEFAULT_STEP_DURATION;
+		int steps = 1000;
+		int threads = 1;
+		String snapshot = null;
+		InetSocketAddress[] addresses;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-node") && i+1 < args.length) {
+					node = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-nodes") && i+1 < args.length) {
+					nodes = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-port") && i+1 < args.length) {
+					port = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-peers") && i+1 < args.length) {
+					peers = args[++i];
+				} else if (args[i].equals("-fighters") && i+1 < args.length) {
+					fighters = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seed") && i+1 < args.length) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-step") && i+1 < args.length) {
+					step = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-steps") && i+1 < args.length) {
+					steps = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-threads") && i+1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-snapshot") && i+1 < args.length) {
+					snapshot = args[++i];
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+			if (peers != null) {
+				String[] p = peers.split(",");
+				addresses = new InetSocketAddress[p.length];
+				for (int k=0; k<p.length; k++) {
+					int colon = p[k].lastIndexOf(':');
+					if (colon < 0) throw new IllegalArgumentException(p[k]);
+					addresses[k] = new InetSocketAddress(p[k].substring(0, colon),
+						Integer.parseInt(p[k].substring(colon+1)));
+				}
+			} else {
+				if (nodes < 1) throw new IllegalArgumentException("-nodes");
+				addresses = new InetSocketAddress[nodes];
+				for (int k=0; k<nodes; k++) {
+					addresses[k] = new InetSocketAddress(InetAddress.getByName(null), port+k);
+				}
+			}
+			if (node < 0 || node >= addresses.length) throw new IllegalArgumentException("-node");
+			Model.checkStepDuration(step);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Usage: RegionNode [-node i] [-nodes n] [-port n | -peers host:port,...]"
+				+ " [-fighters n] [-seed s] [-step ms] [-steps n] [-threads n] [-snapshot file]");
+			System.exit(1);
+			return;
+		}
+
+		Model model = new SimpleModelFactory(fighters, seed).createHeadlessModel();
+		model.setThreadCount(threads);
+		MetricsServer.startFromProperty();
+		MetricsServer.watch(model);
+		RegionNode region = new RegionNode(model, node, addresses);
+		System.out.println(region);
+
+		long start = System.currentTimeMillis();
+		for (int i=0; i<steps; i++) {
+			if (!model.compute(step)) {
+				throw new IllegalStateException("Step of " + step + " ms was not computed");
+			}
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		System.out.println("Node " + node + ": " + steps + " steps in " + elapsed + " ms, "
+			+ region.getOwnedCount() + " agents, " + region.getGhostCount() + " ghosts, "
+			+ region.getMigratedIn() + " migrated in, " + region.getMigratedOut() + " out");
+
+		region.gather();
+		region.close();
+		if (node == 0) {
+			int[] alive = model.countAlive();
+			Faction[] factions = Faction.values();
+			StringBuilder sb = new StringBuilder("Step " + model.getStepNumber() + ":");
+			for (int f=0; f<factions.length; f++) {
+				if (factions[f] != Faction.NEUTRAL) sb.append(' ').append(factions[f]).append('=').append(alive[f]);
+			}
+			sb.append(", state hash ").append(Long.toHexString(model.stateHash()));
+			System.out.println(sb);
+			if (snapshot != null) ModelSnapshot.save(model, new File(snapshot));
+		}
+	}
+}
@@ -0,0 +1,462 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import javax.media.j3d.*;
+
+/**
+ * Plays back a replay file written by a {@link ReplayRecorder}.
+ * <p>
+ * The model is restored from the snapshot at the beginning of the
+ * replay. Instead of computing the agents, the recorded states are
+ * applied frame by frame, synchronized to the elapsed real time,
+ * so the replay runs at the speed it was recorded.
+ * <p>
+ * The frames are accessed through a memory mapped buffer. Using the
+ * keyframe index at the end of the file, {@link #seek(long)} and
+ * {@link #seekTime(long)} decode a single keyframe and at most
+ * <tt>keyframeInterval-1</tt> delta frames, regardless of the position
+ * in the replay. If the index is missing because the recording was
+ * interrupted, it is rebuilt by scanning the frame headers.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ReplayRecorder
+ */
+public class ReplayPlayer implements ModelFactory
+{
+	private File file;
+	private ModelSnapshot snapshot;
+	private int keyframeInterval;
+	private int numAgents;
+
+	/** The frames of the replay, mapped into memory. */
+	private ByteBuffer body;
+
+	/** Step number, time and offset into the body of each keyframe. */
+	private long[] keySteps;
+	private long[] keyTimes;
+	private int[] keyOffsets;
+
+	/** Step number and time of the last frame. */
+	private long lastStep;
+	private long lastTime;
+
+	/** Plays the model created last. */
+	private Playback playback;
+
+
+	/**
+	 * Opens the specified replay file.
+	 * The model is not restored until {@link #createModel()} is called.
+	 *
+	 * @param file the replay file to play.
+	 * @throws IOException if the file could not be read,
+	 *         or is not a replay file.
+	 */
+	public ReplayPlayer(File file) throws IOException {
+		this.file = file;
+		FileChannel ch = new FileInputStream(file).getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(4 + 2 + 4 + 4 + ModelSnapshot.HEADER_SIZE);
+			readFully(ch, header);
+			if (header.getInt() != ReplayRecorder.MAGIC) throw new IOException(file + " is not a replay file.");
+			short version = header.getShort();
+			if (version != ReplayRecorder.VERSION) throw new IOException("Unsupported replay version " + version + ".");
+			keyframeInterval = header.getInt();
+			numAgents = header.getInt();
+
+			// the snapshot's header tells us its length
+			int pos = header.position();
+			int length = header.getInt(pos + 4 + 2);
+			if (length < 0) throw new IOException(file + " is corrupt.");
+			ByteBuffer data = ByteBuffer.allocate(ModelSnapshot.HEADER_SIZE + length);
+			ch.position(pos);
+			readFully(ch, data);
+			snapshot = new ModelSnapshot(data);
+			long bodyStart = ch.position();
+
+			long bodyEnd = readIndex(ch, bodyStart);
+			if (bodyEnd - bodyStart > Integer.MAX_VALUE) throw new IOException(file + " is too large.");
+			body = ch.map(FileChannel.MapMode.READ_ONLY, bodyStart, bodyEnd - bodyStart);
+			if (keySteps == null) scanIndex();
+			if (keySteps.length == 0) throw new IOException(file + " contains no frames.");
+			findLastFrame();
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException(file + " is corrupt.");
+		}
+		finally {
+			ch.close();
+		}
+	}
+
+
+	/**
+	 * Reads the keyframe index at the end of the file, if present.
+	 * @return the file offset of the end of the last frame.
+	 */
+	private long readIndex(FileChannel ch, long bodyStart) throws IOException {
+		long size = ch.size();
+		if (size - bodyStart < ReplayRecorder.TRAILER_SIZE) return size;
+		ByteBuffer trailer = ByteBuffer.allocate(ReplayRecorder.TRAILER_SIZE);
+		ch.position(size - ReplayRecorder.TRAILER_SIZE);
+		readFully(ch, trailer);
+		long indexOffset = trailer.getLong();
+		int n = trailer.getInt();
+		if (trailer.getInt() != ReplayRecorder.INDEX_MAGIC) return size;
+		if (n < 0 || indexOffset < bodyStart || indexOffset
+			+ (long)n*ReplayRecorder.INDEX_ENTRY_SIZE + ReplayRecorder.TRAILER_SIZE != size) {
+			throw new IOException(file + " is corrupt.");
+		}
+		ByteBuffer index = ByteBuffer.allocate(n*ReplayRecorder.INDEX_ENTRY_SIZE);
+		ch.position(indexOffset);
+		readFully(ch, index);
+		keySteps = new long[n];
+		keyTimes = new long[n];
+		keyOffsets = new int[n];
+		for (int i=0; i<n; i++) {
+			keySteps[i] = index.getLong();
+			keyTimes[i] = index.getLong();
+			long offset = index.getLong();
+			if (offset < bodyStart || offset >= indexOffset) throw new IOException(file + " is corrupt.");
+			keyOffsets[i] = (int)(offset - bodyStart);
+		}
+		return indexOffset;
+	}
+
+	/**
+	 * Rebuilds the keyframe index by skipping through all frames,
+	 * used if the recording was not closed properly.
+	 */
+	private void scanIndex() {
+		int n = 0;
+		long[] steps = new long[16];
+		long[] times = new long[16];
+		int[] offsets = new int[16];
+		ByteBuffer b = body.duplicate();
+		while (b.remaining() >= 1 + 4) {
+			int offset = b.position();
+			byte type = b.get();
+			int length = b.getInt();
+			if (length < 0 || length > b.remaining()) break;
+			if (type != ReplayRecorder.FRAME_KEY && type != ReplayRecorder.FRAME_DELTA) break;
+			if (type == ReplayRecorder.FRAME_KEY) {
+				if (n == steps.length) {
+					long[] s = new long[2*n];
+					long[] t = new long[2*n];
+					int[] o = new int[2*n];
+					System.arraycopy(steps, 0, s, 0, n);
+					System.arraycopy(times, 0, t, 0, n);
+					System.arraycopy(offsets, 0, o, 0, n);
+					steps = s; times = t; offsets = o;
+				}
+				steps[n] = b.getLong(b.position());
+				times[n] = b.getLong(b.position() + 8);
+				offsets[n++] = offset;
+			}
+			b.position(b.position() + length);
+		}
+		keySteps = new long[n];
+		keyTimes = new long[n];
+		keyOffsets = new int[n];
+		System.arraycopy(steps, 0, keySteps, 0, n);
+		System.arraycopy(times, 0, keyTimes, 0, n);
+		System.arraycopy(offsets, 0, keyOffsets, 0, n);
+	}
+
+	/**
+	 * Determines step number and time of the last complete frame,
+	 * and limits the body to the end of that frame.
+	 */
+	private void findLastFrame() {
+		ByteBuffer b = body.duplicate();
+		b.position(keyOffsets[keyOffsets.length-1]);
+		while (b.remaining() >= 1 + 4) {
+			byte type = b.get();
+			int length = b.getInt();
+			if (length < 0 || length > b.remaining()) break;
+			int end = b.position() + length;
+			if (type == ReplayRecorder.FRAME_KEY) {
+				lastStep = b.getLong();
+				lastTime = b.getLong();
+			} else if (type == ReplayRecorder.FRAME_DELTA) {
+				lastStep++;
+				lastTime += AgentStateCodec.getVarint(b);
+			} else {
+				break;
+			}
+			b.position(end);
+			body.limit(end);
+		}
+	}
+
+
+	/** Returns the number of steps between two keyframes. */
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/** Returns the step number of the first frame. */
+	public long getFirstStep() {
+		return keySteps[0];
+	}
+
+	/** Returns the step number of the last frame. */
+	public long getLastStep() {
+		return lastStep;
+	}
+
+	/** Returns the simulated time of the first frame, in milliseconds. */
+	public long getStartTime() {
+		return keyTimes[0];
+	}
+
+	/** Returns the simulated time of the last frame, in milliseconds. */
+	public long getEndTime() {
+		return lastTime;
+	}
+
+
+	/**
+	 * Restores the model recorded in the replay file,
+	 * the returned model plays the replay when started.
+	 *
+	 * @throws IllegalStateException if the model cannot be restored.
+	 */
+	public Model createModel() {
+		Playback p = new Playback();
+		Model model = snapshot.restore(p);
+		if (model.numAgents() != numAgents) {
+			throw new IllegalStateException(file + " is corrupt.");
+		}
+		p.setModel(model);
+		playback = p;
+		return model;
+	}
+
+	/**
+	 * Moves the model created last to the state after the
+	 * specified step. Steps outside the replay are clamped
+	 * to the first or last frame.
+	 *
+	 * @param stepnum the step number to seek to.
+	 * @throws IllegalStateException if no model was created yet,
+	 *         or the replay is corrupt.
+	 */
+	public void seek(long stepnum) {
+		if (playback == null) throw new IllegalStateException("No model created.");
+		playback.seek(stepnum, false);
+	}
+
+	/**
+	 * Moves the model created last to the state of the last
+	 * step at or before the specified simulated time.
+	 *
+	 * @param t the simulated time to seek to, in milliseconds.
+	 * @throws IllegalStateException if no model was created yet,
+	 *         or the replay is corrupt.
+	 */
+	public void seekTime(long t) {
+		if (playback == null) throw new IllegalStateException("No model created.");
+		playback.seek(t, true);
+	}
+
+
+	/**
+	 * Returns the index of the last keyframe
+	 * at or before <var>v</var>, or 0 if there is none.
+	 */
+	private static int findKeyframe(long[] keys, long v) {
+		int lo = 0;
+		int hi = keys.length-1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (keys[mid] <= v) {
+				lo = mid;
+			} else {
+				hi = mid-1;
+			}
+		}
+		return lo;
+	}
+
+	/** Reads from the channel until the buffer is full. */
+	private static void readFully(FileChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf) < 0) throw new EOFException(ch + " is truncated.");
+		}
+		buf.flip();
+	}
+
+
+	/** Returns a string representation of this player. */
+	public String toString() {
+		return getClass().getName() + "[" + file + "]";
+	}
+
+
+	/**
+	 * Applies the recorded frames after each rendered frame,
+	 * as far as the replay has progressed in real time.
+	 * All frames are applied while holding the model's lock.
+	 */
+	private class Playback extends WorldBehavior
+		implements ModelTrigger
+	{
+		private Model model;
+		private Agent[] agents;
+		private Faction[] factions;
+		private AgentStateCodec codec = new AgentStateCodec(numAgents);
+		private ByteBuffer buf = body.duplicate();
+		private long time;
+		private long playTime;
+		private boolean finished = false;
+
+		/** Time and step number of the next frame, if already read. */
+		private long frameTime;
+		private long frameStep;
+		private boolean frameKey;
+		private int frameEnd = -1;
+
+		Playback() {
+			super(new WakeupOnElapsedFrames(0));
+			setEnable(false);
+		}
+
+		/** Sets the model to play, as restored from the snapshot. */
+		void setModel(Model model) {
+			this.model = model;
+			agents = model.getAgents();
+			factions = new Faction[agents.length];
+			for (int i=0; i<agents.length; i++) {
+				factions[i] = agents[i].faction;
+			}
+			playTime = model.getTime();
+			frameTime = playTime;
+			frameStep = model.getStepNumber();
+		}
+
+		/** Applies all frames up to the current play time. */
+		public void processStimulus(java.util.Enumeration criteria) {
+			long now = System.currentTimeMillis();
+			long dt = now - time;
+			if (dt > Model.dtMax) dt = Model.dtMax;
+			time = now;
+			try {
+				synchronized (model) {
+					playTime += dt;
+					while (nextFrame() && frameTime <= playTime) {
+						applyFrame();
+					}
+				}
+			}
+			catch (IOException e) {
+				System.err.println("Replay stopped: " + e.getMessage());
+				finished = true;
+			}
+			if (finished) {
+				setEnable(false);
+			} else {
+				wakeupOn(w);
+			}
+		}
+
+		/**
+		 * Moves to the state after the specified step or time.
+		 * @param v the step number or time.
+		 * @param isTime <tt>true</tt> if <var>v</var> is a time.
+		 */
+		void seek(long v, boolean isTime) {
+			synchronized (model) {
+				int k = findKeyframe(isTime ? keyTimes : keySteps, v);
+				buf.position(keyOffsets[k]);
+				frameEnd = -1;
+				finished = false;
+				try {
+					if (!nextFrame() || !frameKey) throw new IOException(file + " is corrupt.");
+					applyFrame();
+					while (nextFrame() && (isTime ? frameTime : frameStep) <= v) {
+						applyFrame();
+					}
+				}
+				catch (IOException e) {
+					throw new IllegalStateException(e.getMessage());
+				}
+				// agents killed later in the replay are alive again
+				for (int i=0; i<agents.length; i++) {
+					if (agents[i].health > 0) agents[i].faction = factions[i];
+				}
+				model.reattachViewObjects();
+				playTime = model.getTime();
+			}
+		}
+
+		/**
+		 * Reads the header of the next frame, unless already done.
+		 * @return <tt>false</tt> if the end of the replay was reached.
+		 */
+		private boolean nextFrame() throws IOException {
+			if (frameEnd >= 0) return true;
+			if (finished) return false;
+			if (buf.remaining() < 1 + 4) {
+				finished = true;
+				return false;
+			}
+			byte type = buf.get();
+			int length = buf.getInt();
+			if (length < 0 || length > buf.remaining()) {
+				// the recording was interrupted while writing this frame
+				finished = true;
+				return false;
+			}
+			frameEnd = buf.position() + length;
+			try {
+				if (type == ReplayRecorder.FRAME_KEY) {
+					frameKey = true;
+					frameStep = buf.getLong();
+					frameTime = buf.getLong();
+				} else if (type == ReplayRecorder.FRAME_DELTA) {
+					frameKey = false;
+					frameStep++;
+					frameTime += AgentStateCodec.getVarint(buf);
+				} else {
+					throw new IOException(file + " is corrupt.");
+				}
+			}
+			catch (BufferUnderflowException e) {
+				throw new IOException(file + " is corrupt.");
+			}
+			return true;
+		}
+
+		/** Applies the frame whose header was read by {@link #nextFrame()}. */
+		private void applyFrame() throws IOException {
+			try {
+				codec.decode(buf, agents, frameKey);
+			}
+			catch (BufferUnderflowException e) {
+				throw new IOException(file + " is corrupt.");
+			}
+			if (buf.position() != frameEnd) throw new IOException(file + " is corrupt.");
+			model.setTime(frameTime, frameStep);
+			frameEnd = -1;
+		}
+
+		public void startSimulation() {
+			if (!finished) {
+				time = System.currentTimeMillis();
+				setEnable(true);
+			}
+		}
+
+		public void stopSimulation() {
+			setEnable(false);
+		}
+
+		public boolean isRunning() {
+			return getEnable();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Records the state of all agents after each step of a model
+ * to a replay file, which can later be viewed using a {@link ReplayPlayer}.
+ * <p>
+ * A replay file starts with a header containing a {@link ModelSnapshot}
+ * of the model at the time the recording started, followed by one frame
+ * per step. Frames are encoded by an {@link AgentStateCodec}, with
+ * a keyframe written every {@link #getKeyframeInterval()} steps and
+ * delta frames in between.
+ * <p>
+ * Each frame consists of a type byte, the length of the remaining
+ * frame as <tt>int</tt>, the frame's time and the encoded agent states.
+ * Keyframes store the absolute step number and simulated time as
+ * <tt>long</tt> values, delta frames just the elapsed time in
+ * milliseconds as variable length integer.
+ * <p>
+ * When the recording is closed, an index of all keyframes is appended
+ * as footer, allowing a {@link ReplayPlayer} to seek to any step by
+ * decoding the preceding keyframe and at most <tt>keyframeInterval-1</tt>
+ * delta frames. Each index entry holds the step number, time and file
+ * offset of a keyframe as <tt>long</tt> values. The index is followed by
+ * its own file offset (<tt>long</tt>), the number of entries
+ * (<tt>int</tt>) and {@link #INDEX_MAGIC}, which end the file.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ReplayPlayer
+ */
+public class ReplayRecorder implements StepListener
+{
+	/** Identifies replay files, reads "ABVR". */
+	public static final int MAGIC = 0x41425652;
+
+	/** Ends a replay file with a keyframe index, reads "ABVI". */
+	public static final int INDEX_MAGIC = 0x41425649;
+
+	/** Size of the trailer following the keyframe index. */
+	static final int TRAILER_SIZE = 8 + 4 + 4;
+
+	/** Size of a single keyframe index entry. */
+	static final int INDEX_ENTRY_SIZE = 8 + 8 + 8;
+
+	/** Version of the file format written by this class. */
+	public static final short VERSION = 1;
+
+	/** Frame type codes. */
+	static final byte FRAME_KEY = 1;
+	static final byte FRAME_DELTA = 2;
+
+	/** Default number of steps between two keyframes. */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 250;
+
+	/** Frames are collected in a buffer of at least this size. */
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private Model model;
+	private Agent[] agents;
+	private AgentStateCodec codec;
+	private FileChannel channel;
+	private ByteBuffer buf;
+	private int keyframeInterval;
+	private int sinceKeyframe;
+	private long lastTime;
+	private long frames = 0;
+
+	/** Number of bytes written to the file so far. */
+	private long written = 0;
+
+	/** Step number, time and offset of each keyframe. */
+	private long[] index = new long[3*16];
+	private int numKeyframes = 0;
+
+
+	/**
+	 * Starts recording the specified model to a file,
+	 * using the default keyframe interval.
+	 *
+	 * @param model the model to record.
+	 * @param file the file to write to, an existing file is replaced.
+	 * @throws IOException if the file could not be written.
+	 */
+	public ReplayRecorder(Model model, File file) throws IOException {
+		this(model, file, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * Starts recording the specified model to a file.
+	 *
+	 * @param model the model to record.
+	 * @param file the file to write to, an existing file is replaced.
+	 * @param keyframeInterval number of steps between two keyframes.
+	 * @throws IOException if the file could not be written.
+	 */
+	public ReplayRecorder(Model model, File file, int keyframeInterval) throws IOException {
+		if (keyframeInterval <= 0) throw new IllegalArgumentException("Keyframe interval must be positive!");
+		this.model = model;
+		this.keyframeInterval = keyframeInterval;
+		agents = model.getAgents();
+		codec = new AgentStateCodec(agents.length);
+		buf = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, 2*AgentStateCodec.maxFrameSize(agents.length)));
+		channel = new FileOutputStream(file).getChannel();
+		try {
+			synchronized (model) {
+				ByteBuffer snapshot = ModelSnapshot.toByteBuffer(model);
+				ByteBuffer header = ByteBuffer.allocate(4 + 2 + 4 + 4);
+				header.putInt(MAGIC);
+				header.putShort(VERSION);
+				header.putInt(keyframeInterval);
+				header.putInt(agents.length);
+				header.flip();
+				write(header);
+				write(snapshot);
+				writeFrame(true);
+				model.addStepListener(this);
+			}
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+
+	/** Returns the number of steps between two keyframes. */
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/** Returns the number of frames recorded so far. */
+	public long getFrameCount() {
+		return frames;
+	}
+
+	/** Tests if this recorder is still recording. */
+	public synchronized boolean isRecording() {
+		return channel != null;
+	}
+
+
+	/**
+	 * Records the state after a step.
+	 * Stops recording if the file cannot be written.
+	 */
+	public synchronized void stepComputed(Model model) {
+		if (channel == null) return;
+		try {
+			writeFrame(sinceKeyframe >= keyframeInterval);
+		}
+		catch (IOException e) {
+			System.err.println("Recording stopped: " + e);
+			try { close(); } catch (IOException ex) { /* already reported */ }
+		}
+	}
+
+	/**
+	 * Stops recording and closes the file.
+	 * @throws IOException if the remaining frames could not be written.
+	 */
+	public void close() throws IOException {
+		model.removeStepListener(this); // outside our lock, the model locks first
+		synchronized (this) {
+			if (channel == null) return;
+			try {
+				flush();
+				writeIndex();
+			}
+			finally {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+
+	/** Encodes the current state of all agents as a frame. */
+	private void writeFrame(boolean keyframe) throws IOException {
+		if (buf.remaining() < AgentStateCodec.maxFrameSize(agents.length) + 32) {
+			flush();
+		}
+		buf.put(keyframe ? FRAME_KEY : FRAME_DELTA);
+		int lengthPos = buf.position();
+		buf.putInt(0); // filled in below
+		long t = model.getTime();
+		if (keyframe) {
+			addKeyframe(model.getStepNumber(), t, written + lengthPos - 1);
+			buf.putLong(model.getStepNumber());
+			buf.putLong(t);
+			sinceKeyframe = 0;
+		} else {
+			AgentStateCodec.putVarint(buf, (int)(t - lastTime));
+		}
+		codec.encode(agents, buf, keyframe);
+		buf.putInt(lengthPos, buf.position() - lengthPos - 4);
+		lastTime = t;
+		sinceKeyframe++;
+		frames++;
+	}
+
+	/** Adds an entry to the keyframe index. */
+	private void addKeyframe(long stepnum, long t, long offset) {
+		if (3*numKeyframes == index.length) {
+			long[] a = new long[2*index.length];
+			System.arraycopy(index, 0, a, 0, index.length);
+			index = a;
+		}
+		int i = 3*numKeyframes++;
+		index[i] = stepnum;
+		index[i+1] = t;
+		index[i+2] = offset;
+	}
+
+	/** Appends the keyframe index and the trailer to the file. */
+	private void writeIndex() throws IOException {
+		long indexOffset = written;
+		for (int i=0; i<numKeyframes; i++) {
+			if (buf.remaining() < INDEX_ENTRY_SIZE) flush();
+			buf.putLong(index[3*i]);
+			buf.putLong(index[3*i+1]);
+			buf.putLong(index[3*i+2]);
+		}
+		if (buf.remaining() < TRAILER_SIZE) flush();
+		buf.putLong(indexOffset);
+		buf.putInt(numKeyframes);
+		buf.putInt(INDEX_MAGIC);
+		flush();
+	}
+
+	/** Writes all buffered frames to the file. */
+	private void flush() throws IOException {
+		buf.flip();
+		write(buf);
+		buf.clear();
+	}
+
+	/** Writes the entire buffer to the file. */
+	private void write(ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			written += channel.write(b);
+		}
+	}
+
+
+	/** Returns a string representation of this recorder. */
+	public String toString() {
+		return getClass().getName() + "[" + frames + " frames]";
+	}
+}
@@ -10,6 +10,10 @@ import java.util.prefs.*;
 
 /**
  * Provides access to configuration settings.
+ * <p>
+ * Each getter reads the settings from the preferences. Code that reads
+ * settings often, like for each shot or each agent, uses an immutable
+ * {@link Snapshot} instead, which is only rebuilt when the settings change.
  *
  * @author Thomas Gerstendoerfer
  */
@@ -19,11 +23,18 @@ public class Settings
 	private boolean dirty = false;
 	private java.util.List<SettingsChangeListener> changeListeners = new ArrayList<SettingsChangeListener>();
 
+	/** The current snapshot of the settings. */
+	private volatile Snapshot snapshot;
+
+	/** The snapshot of the application's settings, once created. */
+	private static volatile Snapshot current;
+
 	/**
 	 * Creates and initializes this settings object.
 	 */
 	Settings() {
 		prefs = Preferences.userNodeForPackage(this.getClass());
+		current = snapshot = new Snapshot(this, 0);
 		prefs.addPreferenceChangeListener(new PreferenceChangeListener() {
 			public void preferenceChange(PreferenceChangeEvent evt) {
 				//System.err.println(evt.getKey() + " changed to " + evt.getNewValue());
@@ -48,6 +59,29 @@ public class Settings
 	public synchronized void reset() throws BackingStoreException {
 		prefs.clear();
 		dirty = false;
+		update();
+	}
+
+
+	/**
+	 * Stores a setting and rebuilds the snapshot, so it holds the new
+	 * value as soon as a setter returns, not only after the preferences
+	 * notified their listeners asynchronously.
+	 */
+	private void put(String key, boolean value) {
+		prefs.putBoolean(key, value);
+		update();
+	}
+
+	/** Stores a setting, see {@link #put(String, boolean)}. */
+	private void put(String key, int value) {
+		prefs.putInt(key, value);
+		update();
+	}
+
+	/** Rebuilds the snapshot from the preferences. */
+	private synchronized void update() {
+		current = snapshot = new Snapshot(this, snapshot.getVersion() + 1);
 	}
 
 
@@ -56,6 +90,7 @@ public class Settings
 	 * @see SettingsChangeListener
 	 */
 	protected final void fireSettingsChange() {
+		update();
 		Iterator<SettingsChangeListener> it = changeListeners.iterator();
 		while (it.hasNext()) {
 			try {
@@ -67,6 +102,146 @@ public class Settings
 		}
 	}
 
+	/**
+	 * Returns an immutable snapshot of the settings, which is
+	 * rebuilt before the settings change listeners are invoked.
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns the current snapshot of the application's settings,
+	 * without the synchronization of {@link Application#getSettings()}.
+	 * If the settings were not loaded yet, as in headless models, a
+	 * snapshot of the default settings is returned instead, so the
+	 * application is not created as a side effect.
+	 */
+	public static Snapshot snapshot() {
+		Snapshot s = current;
+		return (s != null) ? s : Snapshot.DEFAULTS;
+	}
+
+
+	/**
+	 * Immutable copy of the settings used on frequently executed
+	 * code paths. The getters are the same as those of the settings.
+	 */
+	public static final class Snapshot
+	{
+		/** The default settings, used until the settings are loaded. */
+		static final Snapshot DEFAULTS = new Snapshot();
+
+		private final int version;
+		private final boolean showCollisionSpheres;
+		private final boolean showCollisionColor;
+		private final boolean detailedShapes;
+		private final int detailDistance;
+		private final int shapeCacheSize;
+		private final boolean loadTextures;
+		private final boolean useTimeTrigger;
+		private final int triggerStepDuration;
+		private final boolean collectPerformanceData;
+		private final boolean deterministicModel;
+		private final int computeThreads;
+
+		private Snapshot(Settings s, int version) {
+			this.version = version;
+			showCollisionSpheres = s.showCollisionSpheres();
+			showCollisionColor = s.showCollisionColor();
+			detailedShapes = s.detailedShapes();
+			detailDistance = s.getDetailDistance();
+			shapeCacheSize = s.getShapeCacheSize();
+			loadTextures = s.loadTextures();
+			useTimeTrigger = s.useTimeTrigger();
+			triggerStepDuration = s.getTriggerStepDuration();
+			collectPerformanceData = s.collectPerformanceData();
+			deterministicModel = s.deterministicModel();
+			computeThreads = s.getComputeThreads();
+		}
+
+		/** Creates a snapshot of the defaults of the getters of the settings. */
+		private Snapshot() {
+			version = -1;
+			showCollisionSpheres = DEFAULT_SHOW_COLLISION_SPHERES;
+			showCollisionColor = DEFAULT_SHOW_COLLISION_COLOR;
+			detailedShapes = DEFAULT_DETAILED_SHAPES;
+			detailDistance = DEFAULT_DETAIL_DISTANCE;
+			shapeCacheSize = DEFAULT_SHAPE_CACHE_SIZE;
+			loadTextures = DEFAULT_LOAD_TEXTURES;
+			useTimeTrigger = DEFAULT_USE_TIME_TRIGGER;
+			triggerStepDuration = DEFAULT_TRIGGER_STEP_DURATION;
+			collectPerformanceData = DEFAULT_COLLECT_PERFDATA;
+			deterministicModel = DEFAULT_DETERMINISTIC_MODEL;
+			computeThreads = DEFAULT_COMPUTE_THREADS;
+		}
+
+		/**
+		 * Returns the version of this snapshot, which is incremented
+		 * each time the settings change, or -1 for the defaults used
+		 * before the settings are loaded.
+		 */
+		public int getVersion() {
+			return version;
+		}
+
+		/** @see Settings#showCollisionSpheres() */
+		public boolean showCollisionSpheres() {
+			return showCollisionSpheres;
+		}
+
+		/** @see Settings#showCollisionColor() */
+		public boolean showCollisionColor() {
+			return showCollisionColor;
+		}
+
+		/** @see Settings#detailedShapes() */
+		public boolean detailedShapes() {
+			return detailedShapes;
+		}
+
+		/** @see Settings#getDetailDistance() */
+		public int getDetailDistance() {
+			return detailDistance;
+		}
+
+		/** @see Settings#getShapeCacheSize() */
+		public int getShapeCacheSize() {
+			return shapeCacheSize;
+		}
+
+		/** @see Settings#loadTextures() */
+		public boolean loadTextures() {
+			return loadTextures;
+		}
+
+		/** @see Settings#useTimeTrigger() */
+		public boolean useTimeTrigger() {
+			return useTimeTrigger;
+		}
+
+		/** @see Settings#getTriggerStepDuration() */
+		public int getTriggerStepDuration() {
+			return triggerStepDuration;
+		}
+
+		/** @see Settings#collectPerformanceData() */
+		public boolean collectPerformanceData() {
+			return collectPerformanceData;
+		}
+
+		/** @see Settings#deterministicModel() */
+		public boolean deterministicModel() {
+			return deterministicModel;
+		}
+
+		/** @see Settings#getComputeThreads() */
+		public int getComputeThreads() {
+			return computeThreads;
+		}
+	}
+
+
 	/**
 	 * Registers the specified listener to receive a notification
 	 * after a configuration setting was modified.
@@ -93,24 +268,26 @@ public class Settings
 
 	/** Retrieves if collision spheres should be drawn. */
 	public boolean showCollisionSpheres() {
-		return prefs.getBoolean(SHOW_COLLISION_SPHERES, false);
+		return prefs.getBoolean(SHOW_COLLISION_SPHERES, DEFAULT_SHOW_COLLISION_SPHERES);
 	}
 	/** Sets if collision spheres should be drawn. */
 	public void setShowCollisionSpheres(boolean newValue) {
-		prefs.putBoolean(SHOW_COLLISION_SPHERES, newValue);
+		put(SHOW_COLLISION_SPHERES, newValue);
 	}
 	private static final String SHOW_COLLISION_SPHERES = "ShowCollisionSpheres";
+	private static final boolean DEFAULT_SHOW_COLLISION_SPHERES = false;
 
 
 	/** Retrieves if collisions should be cause a colorchange. */
 	public boolean showCollisionColor() {
-		return prefs.getBoolean(SHOW_COLLISION_COLOR, true);
+		return prefs.getBoolean(SHOW_COLLISION_COLOR, DEFAULT_SHOW_COLLISION_COLOR);
 	}
 	/** Sets if collisions shall be causing a colorchange. */
 	public void setShowCollisionColor(boolean newValue) {
-		prefs.putBoolean(SHOW_COLLISION_COLOR, newValue);
+		put(SHOW_COLLISION_COLOR, newValue);
 	}
 	private static final String SHOW_COLLISION_COLOR = "ShowCollisionColor";
+	private static final boolean DEFAULT_SHOW_COLLISION_COLOR = true;
 
 
 	/** Retrieves if the headlight should be enabled. */
@@ -119,7 +296,7 @@ public class Settings
 	}
 	/** Sets if the headlight should be enabled. */
 	public void setHeadlight(boolean newValue) {
-		prefs.putBoolean(CAMERA_HEADLIGHT, newValue);
+		put(CAMERA_HEADLIGHT, newValue);
 	}
 	private static final String CAMERA_HEADLIGHT = "CameraHeadlight";
 
@@ -129,27 +306,63 @@ public class Settings
 		return prefs.getBoolean(BACKGROUND_IMAGE_ENABLED, !Application.onMacOSX);
 	}
 	public void setBackgroundImageEnabled(boolean enabled) {
-		prefs.putBoolean(BACKGROUND_IMAGE_ENABLED, enabled);
+		put(BACKGROUND_IMAGE_ENABLED, enabled);
 	}
 	private static final String BACKGROUND_IMAGE_ENABLED = "BackgroundImageEnabled";
 
 
 	/** Retrieves if complex shapes should be used. */
 	public boolean detailedShapes() {
-		return prefs.getBoolean(DETAILED_SHAPES, true);
+		return prefs.getBoolean(DETAILED_SHAPES, DEFAULT_DETAILED_SHAPES);
 	}
 	/** Sets if detailed shapes are enabled. */
 	public void setDetailedShapes(boolean enabled) {
-		prefs.putBoolean(DETAILED_SHAPES, enabled);
+		put(DETAILED_SHAPES, enabled);
 	}
 	private static final String DETAILED_SHAPES = "DetailedShapesEnabled";
+	private static final boolean DEFAULT_DETAILED_SHAPES = true;
+
+
+	/**
+	 * Retrieves the distance at which detailed shapes are replaced by
+	 * a coarser level of detail, in multiples of the vessel's length.
+	 * Each further level is used at four times that distance.
+	 */
+	public int getDetailDistance() {
+		int d = prefs.getInt(DETAIL_DISTANCE, DEFAULT_DETAIL_DISTANCE);
+		if (d < MIN_DETAIL_DISTANCE) d = MIN_DETAIL_DISTANCE;
+		if (d > MAX_DETAIL_DISTANCE) d = MAX_DETAIL_DISTANCE;
+		return d;
+	}
+	private static final String DETAIL_DISTANCE = "DetailDistance";
+	private static final int DEFAULT_DETAIL_DISTANCE = 30;
+	private static final int MIN_DETAIL_DISTANCE = 10;
+	private static final int MAX_DETAIL_DISTANCE = 150;
+
+
+	/**
+	 * Retrieves the memory available for the meshes in the
+	 * {@link ShapeCache}, in megabytes. Meshes not used by the current
+	 * model are evicted when it is exceeded.
+	 */
+	public int getShapeCacheSize() {
+		int size = prefs.getInt(SHAPE_CACHE_SIZE, DEFAULT_SHAPE_CACHE_SIZE);
+		if (size < MIN_SHAPE_CACHE_SIZE) size = MIN_SHAPE_CACHE_SIZE;
+		if (size > MAX_SHAPE_CACHE_SIZE) size = MAX_SHAPE_CACHE_SIZE;
+		return size;
+	}
+	private static final String SHAPE_CACHE_SIZE = "ShapeCacheSize";
+	private static final int DEFAULT_SHAPE_CACHE_SIZE = 32;
+	private static final int MIN_SHAPE_CACHE_SIZE = 1;
+	private static final int MAX_SHAPE_CACHE_SIZE = 256;
 
 
 	/** Specifies if textures should be loaded. */
 	public boolean loadTextures() {
-		return prefs.getBoolean(LOAD_TEXTURES, true);
+		return prefs.getBoolean(LOAD_TEXTURES, DEFAULT_LOAD_TEXTURES);
 	}
 	private static final String LOAD_TEXTURES = "LoadTextures";
+	private static final boolean DEFAULT_LOAD_TEXTURES = true;
 
 
 	/**
@@ -168,7 +381,7 @@ public class Settings
 	}
 	/** Sets the minimum frame cycle time, in milliseconds. */
 	public void setMinimumFrameCycleTime(int minimumTime) {
-		prefs.putInt(MIN_FRAME_CYCLE_TIME, minimumTime);
+		put(MIN_FRAME_CYCLE_TIME, minimumTime);
 	}
 	private static final String MIN_FRAME_CYCLE_TIME = "MinimumFrameCycleTime";
 
@@ -181,9 +394,10 @@ public class Settings
 	 * @see #getTriggerStepDuration()
 	 */
 	public boolean useTimeTrigger() {
-		return prefs.getBoolean(USE_TIME_TRIGGER, false);
+		return prefs.getBoolean(USE_TIME_TRIGGER, DEFAULT_USE_TIME_TRIGGER);
 	}
 	private static final String USE_TIME_TRIGGER = "UseTimeTrigger";
+	private static final boolean DEFAULT_USE_TIME_TRIGGER = false;
 
 	/**
 	 * Returns the time in milliseconds between each computation
@@ -191,18 +405,43 @@ public class Settings
 	 * @see #useTimeTrigger()
 	 */
 	public int getTriggerStepDuration() {
-		return prefs.getInt(TIME_TRIGGER_STEP, 35);
+		return prefs.getInt(TIME_TRIGGER_STEP, DEFAULT_TRIGGER_STEP_DURATION);
 	}
 	private static final String TIME_TRIGGER_STEP = "TriggerStepDuration";
+	private static final int DEFAULT_TRIGGER_STEP_DURATION = 35;
 
 
 	/**
 	 * Specifies if performance data should be collected.
 	 */
 	public boolean collectPerformanceData() {
-		return prefs.getBoolean(COLLECT_PERFDATA, false);
+		return prefs.getBoolean(COLLECT_PERFDATA, DEFAULT_COLLECT_PERFDATA);
 	}
 	private static final String COLLECT_PERFDATA = "CollectPerformanceData";
+	private static final boolean DEFAULT_COLLECT_PERFDATA = false;
+
+	/**
+	 * Specifies if the model should be computed deterministically,
+	 * independent of the order and number of threads computing it.
+	 * @see Model#setDeterministic(boolean)
+	 */
+	public boolean deterministicModel() {
+		return prefs.getBoolean(DETERMINISTIC_MODEL, DEFAULT_DETERMINISTIC_MODEL);
+	}
+	private static final String DETERMINISTIC_MODEL = "DeterministicModel";
+	private static final boolean DEFAULT_DETERMINISTIC_MODEL = false;
+
+	/**
+	 * Returns the number of threads used to compute the model.
+	 * More than one thread implies a deterministic model.
+	 * @see Model#setThreadCount(int)
+	 */
+	public int getComputeThreads() {
+		int n = prefs.getInt(COMPUTE_THREADS, DEFAULT_COMPUTE_THREADS);
+		return (n < 1) ? 1 : n;
+	}
+	private static final String COMPUTE_THREADS = "ComputeThreads";
+	private static final int DEFAULT_COMPUTE_THREADS = 1;
 
 
 
@@ -221,8 +460,8 @@ public class Settings
 	 */
 	public void setMainFrameSize(Dimension size) {
 		if (!getMainFrameSize().equals(size)) {
-			prefs.putInt(MAIN_FRAME_WIDTH, size.width);
-			prefs.putInt(MAIN_FRAME_HEIGHT, size.height);
+			put(MAIN_FRAME_WIDTH, size.width);
+			put(MAIN_FRAME_HEIGHT, size.height);
 			try { save(); } catch (Exception e) { System.err.println(e); }
 		}
 	}
@@ -237,7 +476,7 @@ public class Settings
 	/** Stores the main window's initial state. */
 	public void setMainFrameExtendedState(int state) {
 		if (state != getMainFrameExtendedState()) {
-			prefs.putInt(MAIN_FRAME_STATE, state);
+			put(MAIN_FRAME_STATE, state);
 			try { save(); } catch (Exception e) { System.err.println(e); }
 		}
 	}
@@ -310,6 +549,8 @@ public class Settings
 			cp.add(generateSlider(TIME_TRIGGER_STEP, 10, 100, settings.getTriggerStepDuration(), 9, 18));
 			cp.add(generateSlider(MIN_FRAME_CYCLE_TIME, 0, 40, settings.getMinimumFrameCycleTime()));
 			cp.add(generateSlider(FOV, MIN_FOV, MAX_FOV, settings.getFieldOfViewInt(), 5, 30));
+			cp.add(generateSlider(DETAIL_DISTANCE, MIN_DETAIL_DISTANCE, MAX_DETAIL_DISTANCE, settings.getDetailDistance(), 7, 14));
+			cp.add(generateSlider(SHAPE_CACHE_SIZE, MIN_SHAPE_CACHE_SIZE, MAX_SHAPE_CACHE_SIZE, settings.getShapeCacheSize(), 5, 50));
 			add(cp, BorderLayout.CENTER);
 
 			JButton save = new JButton("Save");
@@ -361,7 +602,7 @@ public class Settings
 						JCheckBox box = (JCheckBox)o;
 						String id = box.getName();
 						if (id != null) {
-							settings.prefs.putBoolean(id, box.isSelected());
+							settings.put(id, box.isSelected());
 						}
 					}
 				}
@@ -416,7 +657,7 @@ public class Settings
 						String id = slider.getName();
 						slider.setToolTipText(String.valueOf(slider.getValue()));
 						if (id != null && ! slider.getValueIsAdjusting()) {
-							settings.prefs.putInt(id, slider.getValue());
+							settings.put(id, slider.getValue());
 						}
 					}
 				}
@@ -3,21 +3,39 @@ package ch.fha.ia02.above;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.media.j3d.*;
 import javax.vecmath.*;
 
-import com.sun.j3d.utils.image.*;
-import com.sun.j3d.loaders.*;
-import com.mnstarfire.loaders3d.*;
-
 /**
  * Utility class that loads and caches the various 3D shapes defined
  * for each vessel.
  * The shapes are stored as shared groups and can be accessed via the
  * corresponding <tt>Vessel</tt> object.
  * <p>
- * Currently only the 3DS file format is supported.
+ * Shapes are loaded concurrently by a pool of loader threads. Each
+ * vessel is associated with a <tt>Future</tt> of its shape, so
+ * {@link #preload(Collection) preloading} the shapes of a scene returns
+ * immediately, while {@link #getShape(Vessel)} waits only for the shape
+ * actually requested.
+ * <p>
+ * Currently only the 3DS file format is supported. Parsed 3DS files
+ * are kept in a persistent {@link MeshCache}, and coarser levels of
+ * detail are created for each of them. All levels are converted into
+ * a compact form by the {@link MeshCompactor}, and their geometry is
+ * kept when the shapes are invalidated to reload them with or without
+ * textures.
+ * <p>
+ * The memory used by the compacted meshes is bounded by the
+ * {@linkplain Settings#getShapeCacheSize() shape cache size}. Each
+ * {@link ViewObject} holds a reference to the shapes of its vessel
+ * until it is {@linkplain ViewObject#dispose() disposed}, and when the
+ * cache is full, the meshes of vessels without references are evicted,
+ * least recently used first. Shapes which were preloaded are not evicted
+ * before their first reference is taken, so preloading is not wasted.
+ * Evicted shapes are loaded again from the <tt>MeshCache</tt> when they
+ * are requested the next time.
  *
  * @author Thomas Gerstendoerfer
  * @author Michael Muehlebach
@@ -27,17 +45,67 @@ import com.mnstarfire.loaders3d.*;
  */
 public class ShapeCache implements SettingsChangeListener
 {
-	/** The singleton reference. */
-	private static ShapeCache instance = new ShapeCache();
+	/** The singleton reference, created on first use by {@link #instance()}. */
+	private static volatile ShapeCache instance;
+
+	/**
+	 * Stores the shapes of the vessels, which may still be loading,
+	 * indexed by {@linkplain Vessel#getId() vessel ID}.
+	 * A <tt>null</tt> element means the shape was not requested yet.
+	 */
+	private java.util.List<Future<SharedGroup[]>> shapes = new ArrayList<Future<SharedGroup[]>>();
+
+	/** IDs of the vessels added to the cache. */
+	private BitSet added = new BitSet();
+
+	/**
+	 * Stores the compacted levels of detail of each vessel's mesh,
+	 * by vessel ID. Kept when the shapes are invalidated, as the
+	 * geometry does not depend on the textures.
+	 */
+	private java.util.List<MeshCompactor.Mesh[]> meshes = new ArrayList<MeshCompactor.Mesh[]>();
+
+	/** Number of view objects using the shapes of each vessel, by ID. */
+	private java.util.List<Integer> references = new ArrayList<Integer>();
 
-	/** Stores the actual vessels and shapes. */
-	private Map<Vessel, SharedGroup> map = new HashMap<Vessel, SharedGroup>();
+	/**
+	 * IDs of the vessels whose shapes were preloaded or requested
+	 * without a reference, and were never referenced since.
+	 * Their meshes are not evicted until the first reference.
+	 */
+	private BitSet preloaded = new BitSet();
+
+	/**
+	 * Memory used by the meshes of each vessel, by ID,
+	 * in the order the vessels were last requested.
+	 */
+	private LinkedHashMap<Integer, Long> resident = new LinkedHashMap<Integer, Long>(16, 0.75f, true);
+
+	/** Memory used by all resident meshes, in bytes. */
+	private long memoryUsage = 0;
+
+	/** Number of requests for shapes that were cached or loading already. */
+	private int hits = 0;
+	/** Number of requests for shapes that had to be loaded. */
+	private int misses = 0;
+	/** Number of vessels whose shapes were evicted. */
+	private int evictions = 0;
+
+	/** Appearances of the sprites, by texture. */
+	private Map<StreamedTexture, Appearance> spriteAppearances = new IdentityHashMap<StreamedTexture, Appearance>();
+
+	/** Loads the shapes, created on first use. */
+	private ExecutorService loaders;
+
+	/** Number of shapes submitted to and finished by the loaders, for progress reports. */
+	private int submitted = 0;
+	private int finished = 0;
 
 	/**
 	 * Specifies if textures should be loaded.
 	 * Required to detect changes to the global configuration settings.
 	 */
-	private boolean loadTextures = Application.getSettings().loadTextures();
+	private volatile boolean loadTextures;
 
 	/** Array of standard texture coordinates. */
 	private static final float[] TEXCOORDS = {
@@ -52,7 +120,24 @@ public class ShapeCache implements SettingsChangeListener
 	 * Registers itself as settings change listener.
 	 */
 	private ShapeCache() {
-		Application.getSettings().addSettingsChangeListener(this);
+		Settings settings = Application.getSettings();
+		loadTextures = settings.getSnapshot().loadTextures();
+		settings.addSettingsChangeListener(this);
+	}
+
+	/**
+	 * Returns the singleton, creating it on first use. The statistics
+	 * do not create it, so reporting them does not load the settings.
+	 */
+	private static ShapeCache instance() {
+		ShapeCache c = instance;
+		if (c == null) {
+			synchronized (ShapeCache.class) {
+				c = instance;
+				if (c == null) instance = c = new ShapeCache();
+			}
+		}
+		return c;
 	}
 
 
@@ -62,15 +147,29 @@ public class ShapeCache implements SettingsChangeListener
 	 * @param v vessel to cache the shape for.
 	 */
 	public static void add(Vessel v) {
-		instance.map.put(v, null);
+		ShapeCache c = instance();
+		synchronized (c) {
+			c.added.set(v.getId());
+		}
 	}
 
 
 	/**
 	 * Removes a vessel from the shape cache.
+	 * Loading its shape is cancelled if it was not started yet.
 	 */
 	public static void remove(Vessel v) {
-		instance.map.remove(v);
+		Future<SharedGroup[]> f;
+		ShapeCache c = instance();
+		synchronized (c) {
+			f = get(c.shapes, v.getId());
+			set(c.shapes, v.getId(), null);
+			set(c.meshes, v.getId(), null);
+			c.unload(v.getId());
+			c.added.clear(v.getId());
+			c.preloaded.clear(v.getId());
+		}
+		if (f != null) f.cancel(false);
 	}
 
 
@@ -79,116 +178,481 @@ public class ShapeCache implements SettingsChangeListener
 	 * In case the 3D-mesh was not loaded before, this method attempts
 	 * load it from the specified file, and stores it for further
 	 * reference.
+	 * If the shape is currently being loaded by another thread,
+	 * this method waits until it is available.
 	 *
 	 * @param v the vessel to load the shape for.
 	 * @return a shared group containing the 3D-model,
 	 *         or <tt>null</tt> if no shape is available.
 	 */
 	public static SharedGroup getShape(Vessel v) {
-		SharedGroup shape = instance.map.get(v);
-		return shape == null ? instance.loadShape(v) : shape;
+		SharedGroup[] levels = getShapes(v);
+		return levels == null ? null : levels[0];
 	}
 
+	/**
+	 * Returns the levels of detail of the shape associated to this model,
+	 * loading it if necessary. The first level is the shape returned by
+	 * {@link #getShape(Vessel)}, the other ones are increasingly coarser
+	 * versions created by a {@link MeshDecimator}.
+	 * <p>
+	 * The shapes are not kept from being evicted from the cache, which
+	 * requires {@link #requestShapes(Vessel, ShapeListener)} instead.
+	 *
+	 * @param v the vessel to load the shape for.
+	 * @return shared groups containing the levels of detail, finest first,
+	 *         or <tt>null</tt> if no shape is available.
+	 */
+	public static SharedGroup[] getShapes(Vessel v) {
+		return getShapes(v, true);
+	}
 
 	/**
-	 * Loads all shapes for all vessels.
+	 * Returns the levels of detail of the shape of a vessel.
+	 *
+	 * @param request <tt>true</tt> if requested by a user of the cache,
+	 *        which is counted as a hit or a miss.
+	 */
+	private static SharedGroup[] getShapes(Vessel v, boolean request) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				Future<SharedGroup[]> f = instance().submit(v, request);
+				request = false;
+				try {
+					return f.get();
+				}
+				catch (CancellationException e) {
+					// invalidated while waiting, load again
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+				catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					return null;
+				}
+			}
+		}
+		finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Starts loading the shapes for the specified vessels in the
+	 * background, and returns immediately. Vessels not added yet
+	 * are added to the cache. The shapes are not evicted before
+	 * they are {@linkplain #requestShapes(Vessel, ShapeListener)
+	 * requested} for the first time.
+	 *
+	 * @param vessels the vessels to load the shapes for.
+	 */
+	public static void preload(Collection<Vessel> vessels) {
+		ShapeCache c = instance();
+		for (Vessel v : vessels) {
+			c.keep(v);
+			c.submit(v, false);
+		}
+	}
+
+	/**
+	 * Keeps the preloaded shapes of a vessel from being evicted until
+	 * they are referenced, unless they were referenced already.
+	 */
+	private synchronized void keep(Vessel v) {
+		if (get(references, v.getId()) == null) preloaded.set(v.getId());
+	}
+
+	/**
+	 * Starts loading the shapes of a vessel in the background, and
+	 * notifies the listener once they are available. If they are
+	 * available already, the listener is invoked immediately,
+	 * on the calling thread.
+	 * <p>
+	 * The shapes are not evicted from the cache until they are
+	 * {@linkplain #release(Vessel) released} again.
+	 *
+	 * @param v the vessel to load the shapes for.
+	 * @param l the listener to notify.
+	 */
+	public static void requestShapes(Vessel v, ShapeListener l) {
+		ShapeCache c = instance();
+		synchronized (c) {
+			Integer n = get(c.references, v.getId());
+			set(c.references, v.getId(), (n == null) ? 1 : n + 1);
+			c.preloaded.clear(v.getId());
+		}
+		awaitShapes(v, l, true);
+	}
+
+	/**
+	 * Notifies the listener once the shapes of a vessel are available.
+	 *
+	 * @param request <tt>true</tt> if requested by a user of the cache,
+	 *        which is counted as a hit or a miss.
+	 */
+	private static void awaitShapes(Vessel v, ShapeListener l, boolean request) {
+		ShapeTask task = (ShapeTask)instance().submit(v, request);
+		if (!task.addListener(l)) {
+			l.shapesLoaded(v, getShapes(v, false));
+		}
+	}
+
+	/**
+	 * Releases the shapes of a vessel requested by
+	 * {@link #requestShapes(Vessel, ShapeListener)}.
+	 * They may be evicted once they are no longer used.
+	 *
+	 * @param v the vessel to release the shapes of.
+	 */
+	public static void release(Vessel v) {
+		ShapeCache c = instance();
+		synchronized (c) {
+			Integer n = get(c.references, v.getId());
+			if (n == null || n == 0) return;
+			set(c.references, v.getId(), n - 1);
+			c.trim();
+		}
+	}
+
+	/**
+	 * Loads all shapes for all vessels, and waits until they are loaded.
 	 */
 	public static void loadShapes() {
-		Iterator<Map.Entry<Vessel, SharedGroup>> it = instance.map.entrySet().iterator();
-		while (it.hasNext()) {
-			Map.Entry<Vessel, SharedGroup> entry = it.next();
-			if (entry.getValue() == null) {
-				instance.loadShape(entry.getKey());
+		java.util.List<Vessel> vessels = new ArrayList<Vessel>();
+		ShapeCache c = instance();
+		synchronized (c) {
+			for (int id = c.added.nextSetBit(0); id >= 0; id = c.added.nextSetBit(id+1)) {
+				vessels.add(VesselCatalog.get(id));
 			}
 		}
+		preload(vessels);
+		for (Vessel v : vessels) {
+			getShapes(v, false);
+		}
 	}
 
+
 	/**
-	 * Loads the shape for a vessel and adds it to the map.
+	 * Returns the future shape of a vessel,
+	 * starting to load it if necessary.
+	 *
+	 * @param request <tt>true</tt> if requested by a user of the cache,
+	 *        which is counted as a hit or a miss.
+	 */
+	private synchronized Future<SharedGroup[]> submit(final Vessel v, boolean request) {
+		Future<SharedGroup[]> f = get(shapes, v.getId());
+		resident.get(v.getId()); // marks the meshes as recently used
+		if (f != null) {
+			if (request) hits++;
+		} else {
+			if (request) misses++;
+			if (loaders == null) {
+				loaders = createLoaders();
+			}
+			ShapeTask task = new ShapeTask(v, loadTextures);
+			loaders.execute(task);
+			f = task;
+			set(shapes, v.getId(), f);
+			added.set(v.getId());
+			submitted++;
+		}
+		return f;
+	}
+
+	/**
+	 * Evicts the meshes of unused vessels, least recently used
+	 * first, until the memory used is within the configured size.
+	 * Preloaded meshes which were never referenced are kept.
+	 */
+	private synchronized void trim() {
+		long max = Settings.snapshot().getShapeCacheSize() * 1024L * 1024L;
+		Iterator<Map.Entry<Integer, Long>> it = resident.entrySet().iterator();
+		while (memoryUsage > max && it.hasNext()) {
+			Map.Entry<Integer, Long> e = it.next();
+			int id = e.getKey();
+			Integer n = get(references, id);
+			Future<SharedGroup[]> f = get(shapes, id);
+			if ((n != null && n > 0) || preloaded.get(id) || (f != null && !f.isDone())) continue;
+			it.remove();
+			memoryUsage -= e.getValue();
+			set(shapes, id, null);
+			set(meshes, id, null);
+			evictions++;
+		}
+	}
+
+	/** Stops accounting the memory of a vessel's meshes. */
+	private synchronized void unload(int id) {
+		Long size = resident.remove(id);
+		if (size != null) memoryUsage -= size;
+	}
+
+	/** Returns the element for a vessel ID, or <tt>null</tt> if there is none. */
+	private static <T> T get(java.util.List<T> list, int id) {
+		return (id < list.size()) ? list.get(id) : null;
+	}
+
+	/** Sets the element for a vessel ID, growing the list as needed. */
+	private static <T> void set(java.util.List<T> list, int id, T value) {
+		while (list.size() <= id) {
+			list.add(null);
+		}
+		list.set(id, value);
+	}
+
+	/**
+	 * Loads the shapes of a vessel and notifies the listeners
+	 * waiting for them. If the task is cancelled because the shapes
+	 * were invalidated, the listeners wait for the new shapes.
+	 */
+	private class ShapeTask extends FutureTask<SharedGroup[]>
+	{
+		private Vessel vessel;
+		private java.util.List<ShapeListener> listeners = new ArrayList<ShapeListener>();
+
+		ShapeTask(final Vessel v, final boolean textures) {
+			super(new Callable<SharedGroup[]>() {
+				public SharedGroup[] call() {
+					try {
+						return loadShapes(v, textures);
+					}
+					finally {
+						shapeFinished(v);
+					}
+				}
+			});
+			vessel = v;
+		}
+
+		/**
+		 * Adds a listener to notify when done.
+		 * @return <tt>false</tt> if this task is done already.
+		 */
+		synchronized boolean addListener(ShapeListener l) {
+			if (listeners == null) return false;
+			listeners.add(l);
+			return true;
+		}
+
+		/** Notifies the listeners. */
+		protected void done() {
+			java.util.List<ShapeListener> ls;
+			synchronized (this) {
+				ls = listeners;
+				listeners = null;
+			}
+			if (isCancelled()) {
+				for (ShapeListener l : ls) {
+					awaitShapes(vessel, l, false);
+				}
+				return;
+			}
+			SharedGroup[] shapes = null;
+			try {
+				shapes = get();
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+			for (ShapeListener l : ls) {
+				try {
+					l.shapesLoaded(vessel, shapes);
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports the progress after a shape has been loaded,
+	 * and evicts other shapes if the cache is full.
+	 */
+	private void shapeFinished(Vessel v) {
+		String msg = null;
+		synchronized (this) {
+			trim();
+			finished++;
+			if (finished < submitted) {
+				msg = "Loaded " + v.getName() + " (" + finished + " of " + submitted + " shapes)";
+			} else {
+				finished = submitted = 0;
+			}
+		}
+		if (msg != null) {
+			Application.progress(msg);
+		} else {
+			Application.progressHide();
+			if (Settings.snapshot().collectPerformanceData()) {
+				System.out.println("Texture cache: " + TextureCache.report());
+				System.out.println("Shape cache: " + report());
+			}
+		}
+	}
+
+	/** Creates a thread pool with one loader per processor. */
+	private static ExecutorService createLoaders() {
+		int n = Runtime.getRuntime().availableProcessors();
+		return Executors.newFixedThreadPool(n, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ShapeLoader-" + (++count));
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Loads the shape for a vessel and creates its levels of detail,
+	 * called by a loader thread.
 	 *
 	 * @param v vessel to load the shape for.
-	 * @return the freshly loaded shape or <tt>null</tt> if loading failed.
+	 * @param textures specifies if textures should be loaded.
+	 * @return the freshly loaded levels of detail,
+	 *         or <tt>null</tt> if loading failed.
 	 */
-	private SharedGroup loadShape(Vessel v) {
+	private SharedGroup[] loadShapes(Vessel v, boolean textures) {
 		if (v.getFile() == null) return null;
 		try {
-			URL file = getClass().getResource(v.getFile());
-			if (file == null) throw new FileNotFoundException(v.getFile());
-			Application.progress("Loading " + v.getName());
+			URL file = AssetPack.getResource(v.getFile());
 			String ext = Application.getExtension(file.toString());
-			Node shapenode = null;
+			Node[] nodes = null;
+			float scale = v.getScale();
 			if ("3ds".equals(ext)) {
-				shapenode = loadShape3DS(file);
+				nodes = load3DS(v, file, textures);
+				scale = 1; // already scaled to unit length
 			} else if(
 				"gif".equals(ext) ||
 				"jpg".equals(ext) ||
 				"png".equals(ext))
 			{
-				shapenode = loadSprite(file, v.isAutoOriented());
+				Node shapenode = loadSprite(v.getFile(), file, v.isAutoOriented(), textures);
+				if (shapenode != null) nodes = new Node[] { shapenode };
 			}
-			if (shapenode == null) return null;
-
-			Transform3D t = new Transform3D();
-			t.set(v.getScale() * v.getLength());
-			TransformGroup model = new TransformGroup(t);
-			model.addChild(shapenode);
-			model.setCollidable(false); // FIXME: remove this again
+			if (nodes == null) return null;
 
-			SharedGroup shape = new SharedGroup();
-			shape.addChild(model);
-			Bounds bounds = v.getCollisionBounds();
-			if (bounds != null) {
-				shape.setCollisionBounds(bounds);
-			} else {
-				System.err.println("No collision bounds defined for " + v.getName());
+			SharedGroup[] shapes = new SharedGroup[nodes.length];
+			for (int i=0; i<nodes.length; i++) {
+				shapes[i] = createShape(v, nodes[i], scale);
 			}
-			shape.compile();
-
-			map.put(v, shape);
-			return shape;
+			return shapes;
 		}
 		catch (FileNotFoundException e) {
 			System.err.println(e);
 		}
+		catch (MissingResourceException e) {
+			System.err.println(e.getMessage());
+		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
-		finally {
-			Application.progressHide();
-		}
 		return null;
 	}
 
-
 	/**
-	 * Loads the shape for a vessel from a 3D Studio (3DS) file.
-	 * @param file URL of the 3ds file,
-	 *        textures are expected to be in the same directory.
-	 * @return a BranchGroup
-	 * @throw FileNotFoundException if the 3ds file could not be found.
+	 * Loads a 3DS mesh and creates its levels of detail. The levels are
+	 * compacted once, and their geometry is shared by all shapes created
+	 * for the vessel later on, with or without textures. If the levels
+	 * are resident already, only the appearances are loaded.
 	 */
-	private BranchGroup loadShape3DS(URL file) throws FileNotFoundException {
-		String basedir = file.toString();
-		basedir = basedir.substring(0, 1+basedir.lastIndexOf("/"));
+	private Node[] load3DS(Vessel v, URL file, boolean textures) throws IOException {
+		MeshCompactor.Mesh[] levels;
+		synchronized (this) {
+			levels = get(meshes, v.getId());
+		}
+		Appearance[] apps;
+		if (levels != null) {
+			apps = MeshCache.loadAppearances(file, v.getScale(), textures);
+		} else {
+			Node shapenode = MeshCache.load3DS(file, v.getScale(), textures);
+			apps = MeshCompactor.getAppearances(shapenode);
+			Node[] coarser = MeshDecimator.createLevels(shapenode);
+			levels = new MeshCompactor.Mesh[1 + coarser.length];
+			levels[0] = MeshCompactor.compact(shapenode, apps);
+			for (int i=0; i<coarser.length; i++) {
+				levels[i+1] = MeshCompactor.compact(coarser[i], apps);
+			}
+			long size = 0;
+			for (int i=0; i<levels.length; i++) {
+				size += levels[i].getMemoryUsage();
+			}
+			synchronized (this) {
+				set(meshes, v.getId(), levels);
+				unload(v.getId());
+				resident.put(v.getId(), size);
+				memoryUsage += size;
+			}
+		}
+
+		Node[] nodes = new Node[levels.length];
+		for (int i=0; i<levels.length; i++) {
+			nodes[i] = levels[i].createScene(apps);
+		}
+		return nodes;
+	}
 
-		Loader3DS loader = new Loader3DS();
-		loader.setURLBase(basedir);
-		loader.setTextureLightingOn();
-		if (!loadTextures) loader.noTextures();
-		return loader.load(file).getSceneGroup();
+	/**
+	 * Wraps a loaded shape into a shared group,
+	 * scaling it to the vessel's length.
+	 */
+	private static SharedGroup createShape(Vessel v, Node shapenode, float scale) {
+		Transform3D t = new Transform3D();
+		t.set(scale * v.getLength());
+		TransformGroup model = new TransformGroup(t);
+		model.addChild(shapenode);
+		model.setCollidable(false); // FIXME: remove this again
+
+		SharedGroup shape = new SharedGroup();
+		shape.addChild(model);
+		Bounds bounds = v.getCollisionBounds();
+		if (bounds != null) {
+			shape.setCollisionBounds(bounds);
+		} else {
+			System.err.println("No collision bounds defined for " + v.getName());
+		}
+		shape.compile();
+		return shape;
 	}
 
 
-	private Node loadSprite(URL file, boolean oriented) {
-		if (!loadTextures) return null;
-		TextureLoader tl = new TextureLoader(file, null);
-		//Texture tex = tl.getTexture();
-		//tex.setMagFilter(Texture.NICEST);
-		//System.out.println(tex);
+	/**
+	 * Creates a textured quad showing an image. Images packed into the
+	 * default {@link TextureAtlas} are taken from there, so all sprites
+	 * share one texture and appearance.
+	 *
+	 * @param name the resource name of the image.
+	 * @param file URL of the image.
+	 * @param oriented specifies if the sprite always faces the viewer.
+	 * @param textures specifies if textures should be loaded.
+	 * @return the sprite, or <tt>null</tt> if it could not be created.
+	 */
+	private Node loadSprite(String name, URL file, boolean oriented, boolean textures) {
+		if (!textures) return null;
+		StreamedTexture tex;
+		float[] texcoords;
+		float aspect;
+		TextureAtlas atlas = TextureAtlas.getDefault();
+		TextureAtlas.Region region = atlas.getRegion(name);
+		if (region != null) {
+			tex = atlas.getTexture();
+			texcoords = region.getQuadCoordinates();
+			aspect = (float)region.getHeight() / region.getWidth();
+		} else {
+			tex = TextureCache.getStreamedTexture(file);
+			if (tex == null) return null;
+			texcoords = TEXCOORDS;
+			aspect = (float)tex.getHeight() / tex.getWidth();
+		}
 
-		ImageComponent2D ic = tl.getImage();
 		float x = 0.5f;
-		float y = 0.5f * ic.getHeight() / ic.getWidth();
+		float y = 0.5f * aspect;
 		float[] vertices = {
 			-x, -y, 0,
 			 x, -y, 0,
@@ -199,17 +663,8 @@ public class ShapeCache implements SettingsChangeListener
 		QuadArray sprite = new QuadArray(4,
 			GeometryArray.COORDINATES | GeometryArray.TEXTURE_COORDINATE_2);
 		sprite.setCoordinates(0, vertices);
-		sprite.setTextureCoordinates(0, 0, TEXCOORDS);
-
-		Appearance app = new Appearance();
-		app.setTexture(tl.getTexture());
-		PolygonAttributes pa = new PolygonAttributes();
-		pa.setCullFace(PolygonAttributes.CULL_NONE);
-		app.setPolygonAttributes(pa);
-		TransparencyAttributes ta = new TransparencyAttributes();
-		ta.setTransparencyMode(TransparencyAttributes.BLENDED);
-		ta.setTransparency(0.5f);
-		app.setTransparencyAttributes(ta);
+		sprite.setTextureCoordinates(0, 0, texcoords);
+		Appearance app = getSpriteAppearance(tex);
 
 		if (oriented) {
 			OrientedShape3D shape = new OrientedShape3D();
@@ -222,13 +677,93 @@ public class ShapeCache implements SettingsChangeListener
 	}
 
 
+	/** Returns the appearance shared by all sprites using a texture. */
+	private synchronized Appearance getSpriteAppearance(StreamedTexture tex) {
+		Appearance app = spriteAppearances.get(tex);
+		if (app == null) {
+			app = new Appearance();
+			tex.bind(app);
+			PolygonAttributes pa = new PolygonAttributes();
+			pa.setCullFace(PolygonAttributes.CULL_NONE);
+			app.setPolygonAttributes(pa);
+			TransparencyAttributes ta = new TransparencyAttributes();
+			ta.setTransparencyMode(TransparencyAttributes.BLENDED);
+			ta.setTransparency(0.5f);
+			app.setTransparencyAttributes(ta);
+			spriteAppearances.put(tex, app);
+		}
+		return app;
+	}
+
+
 	/**
 	 * Removes all prevoiusly loaded shapes from the cache.
+	 * Shapes still waiting to be loaded are cancelled,
+	 * and the textures are released from the {@link TextureCache}
+	 * and the {@link TextureAtlas}.
 	 */
 	public static void invalidateShapes() {
-		Iterator<Map.Entry<Vessel, SharedGroup>> it = instance.map.entrySet().iterator();
-		while (it.hasNext()) {
-			it.next().setValue(null);
+		java.util.List<Future<SharedGroup[]>> loading = new ArrayList<Future<SharedGroup[]>>();
+		ShapeCache c = instance();
+		synchronized (c) {
+			for (int id=0; id<c.shapes.size(); id++) {
+				Future<SharedGroup[]> f = c.shapes.set(id, null);
+				if (f != null) loading.add(f);
+			}
+			c.spriteAppearances.clear();
+		}
+		TextureCache.release();
+		TextureAtlas.release();
+		for (Future<SharedGroup[]> f : loading) {
+			f.cancel(false); // waiting listeners request the new shapes
+		}
+	}
+
+	/** Returns the number of requests for shapes that were cached already. */
+	public static int getHits() {
+		ShapeCache c = instance;
+		if (c == null) return 0;
+		synchronized (c) {
+			return c.hits;
+		}
+	}
+
+	/** Returns the number of requests for shapes that had to be loaded. */
+	public static int getMisses() {
+		ShapeCache c = instance;
+		if (c == null) return 0;
+		synchronized (c) {
+			return c.misses;
+		}
+	}
+
+	/** Returns the number of vessels whose shapes were evicted. */
+	public static int getEvictions() {
+		ShapeCache c = instance;
+		if (c == null) return 0;
+		synchronized (c) {
+			return c.evictions;
+		}
+	}
+
+	/** Returns the memory used by the cached meshes, in bytes. */
+	public static long getMemoryUsage() {
+		ShapeCache c = instance;
+		if (c == null) return 0;
+		synchronized (c) {
+			return c.memoryUsage;
+		}
+	}
+
+	/** Returns a short report on the use of the cache. */
+	public static String report() {
+		ShapeCache c = instance();
+		synchronized (c) {
+			return c.resident.size() + " meshes, "
+				+ (c.memoryUsage / 1024) + " of "
+				+ Settings.snapshot().getShapeCacheSize() * 1024 + " KB, "
+				+ c.hits + " hits, " + c.misses + " misses, "
+				+ c.evictions + " evictions";
 		}
 	}
 
@@ -238,9 +773,13 @@ public class ShapeCache implements SettingsChangeListener
 	 * @param settings the settings object on which the change happened.
 	 */
 	public void settingsChange(Settings settings) {
-		if (settings.loadTextures() != loadTextures) {
-			loadTextures = settings.loadTextures();
+		Settings.Snapshot snapshot = settings.getSnapshot();
+		if (snapshot.loadTextures() != loadTextures) {
+			loadTextures = snapshot.loadTextures();
 			invalidateShapes();
 		}
+		synchronized (this) {
+			trim();
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package ch.fha.ia02.above;
+
+import javax.media.j3d.*;
+
+/**
+ * A listener for receiving a notification when the shape
+ * of a vessel has been loaded in the background.
+ * <p>
+ * Listeners are usually invoked on a loader thread, and should
+ * therefore return quickly and only modify live scene graphs
+ * through the appropriate capabilities.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ShapeCache#requestShapes(Vessel, ShapeListener)
+ */
+public interface ShapeListener
+{
+	/**
+	 * This method gets called after the shape of a vessel was loaded.
+	 *
+	 * @param v the vessel whose shape was loaded.
+	 * @param levels the levels of detail, finest first,
+	 *        or <tt>null</tt> if no shape is available.
+	 */
+	public void shapesLoaded(Vessel v, SharedGroup[] levels);
+}
@@ -15,13 +15,102 @@ public class SimpleModelFactory implements ModelFactory
 	/** The number of starfighters per squadron. */
 	int nFighters = 12;
 
-	private Set<ViewObject> objects;
+	/** Seed for the random generator, reset for each model. */
+	private long seed = 2000;
+
+	/** Replacement stats for some starfighter types. */
+	private Map<Vessel, Starfighter.Stats> fighterStats = new HashMap<Vessel, Starfighter.Stats>();
+
+	// the agents created so far and their vessel types, in a stable order
+	private java.util.List<Agent> agents;
+	private java.util.List<Vessel> vessels;
 	private Random r = new Random();
 
+
+	/** Creates a factory for the default scenario. */
+	public SimpleModelFactory() {
+	}
+
+	/**
+	 * Creates a factory for the default scenario with the specified
+	 * number of fighters and seed for the initial positions.
+	 *
+	 * @param nFighters the number of starfighters per squadron.
+	 * @param seed seed for the random generator.
+	 */
+	public SimpleModelFactory(int nFighters, long seed) {
+		if (nFighters <= 0) throw new IllegalArgumentException("Number of fighters must be positive!");
+		this.nFighters = nFighters;
+		this.seed = seed;
+	}
+
+	/**
+	 * Uses the specified stats for all starfighters of a type,
+	 * instead of the vessel type's default stats.
+	 *
+	 * @param type the starfighter type.
+	 * @param stats the stats to use, or <tt>null</tt>
+	 *        to use the vessel type's default stats.
+	 */
+	public void setFighterStats(Vessel type, Starfighter.Stats stats) {
+		if (stats == null) {
+			fighterStats.remove(type);
+		} else {
+			fighterStats.put(type, stats);
+		}
+	}
+
+
+	/** Creates the model, including the 3D shapes of all agents. */
 	public Model createModel() {
+		createAgents();
+
+		// create background objects
+		if (Application.getSettings().detailedShapes() &&
+			Application.getSettings().loadTextures())
+		{
+			addSprite(VesselCatalog.get("DEATHSTAR"), 650, 100, -12000);
+			addSprite(VesselCatalog.get("ENDOR"), 7000, -29000, -22000);
+		}
+
+		// start loading all shapes, each view object waits only for its own
+		if (Application.getSettings().detailedShapes()) {
+			ShapeCache.preload(new LinkedHashSet<Vessel>(vessels));
+		}
+
+		Set<ViewObject> objects = new LinkedHashSet<ViewObject>(); // keeps the agents in a stable order
+		for (int i=0; i<agents.size(); i++) {
+			objects.add(new ViewObject(agents.get(i), vessels.get(i)));
+		}
+		return new Model(objects);
+	}
+
+	/**
+	 * Creates a headless model without background objects.
+	 * @see Model#Model(Agent[], Vessel[])
+	 */
+	public Model createHeadlessModel() {
+		createAgents();
+		return new Model(
+			agents.toArray(new Agent[agents.size()]),
+			vessels.toArray(new Vessel[vessels.size()]));
+	}
+
+	/**
+	 * Returns the vessel types used by the agents of the model,
+	 * without background objects, so their shapes can be loaded
+	 * before the model is created.
+	 */
+	public Set<Vessel> getVessels() {
+		createAgents();
+		return new LinkedHashSet<Vessel>(vessels);
+	}
 
-		r.setSeed(2000); // restart the random generator
-		objects = new HashSet<ViewObject>();
+	/** Creates the squadrons and capital ships. */
+	private void createAgents() {
+		r.setSeed(seed); // restart the random generator
+		agents = new ArrayList<Agent>();
+		vessels = new ArrayList<Vessel>();
 
 		Vector3f v = new Vector3f();
 		Vector3f p = new Vector3f();
@@ -55,17 +144,6 @@ public class SimpleModelFactory implements ModelFactory
 		v.set(-2f, 0.1f, 3);
 		p.set(650, 100, -5000);
 		addAgent(new CapitalShip(Vessel.ISD.getStats(), p, v), Vessel.ISD, 3, "Pulsar");
-
-
-		// create background objects
-		if (Application.getSettings().detailedShapes() &&
-			Application.getSettings().loadTextures())
-		{
-			addSprite("Death Star", 1000, "/media/ds2.png", 650, 100, -12000);
-			addSprite("Endor", 60000, "/media/endor.png", 7000, -29000, -22000);
-		}
-
-		return new Model(objects);
 	}
 
 	/**
@@ -85,46 +163,32 @@ public class SimpleModelFactory implements ModelFactory
 		Vessel type,
 		String name)
 	{
-		addAgent(new Starfighter((Starfighter.Stats)type.getStats(), p, v), type, group, name);
+		Starfighter.Stats stats = fighterStats.get(type);
+		if (stats == null) stats = (Starfighter.Stats)type.getStats();
+		addAgent(new Starfighter(stats, p, v), type, group, name);
 	}
 
 	/**
 	 * Factory method that adds a sprite to
 	 * the model as well as to the world.
 	 *
-	 * @param name a descriptive name.
-	 * @param size width of the sprite when inserted into the world.
-	 * @param file name of the image file to load.
+	 * @param vessel the sprite's vessel type.
 	 * @param x x-coordinate of the sprite's position.
 	 * @param y y-coordinate of the sprite's position.
 	 * @param z z-coordinate of the sprite's position.
 	 */
-	private void addSprite(
-		String name,
-		int size,
-		String file,
-		int x,
-		int y,
-		int z)
-	{
-		Vessel vessel = new Vessel(
-			name,
-			new AgentStats(size),
-			null,
-			file,
-			1,
-			true);
+	private void addSprite(Vessel vessel, int x, int y, int z) {
 		Agent agent = new Agent(
 			vessel.getStats(),
 			new Vector3f(x, y, z),
 			new Vector3f(0, 0, 1));
-		addAgent(agent, vessel, -1, name);
+		addAgent(agent, vessel, -1, vessel.getName());
 	}
 
 
 	/**
 	 * Configures various options on a model objects and adds
-	 * adds it to both, the comoutation model and the 3D world.
+	 * adds it to the agents of the model.
 	 *
 	 * @param o the model object to be configured and added.
 	 * @param type specifies the fighter type.
@@ -137,7 +201,8 @@ public class SimpleModelFactory implements ModelFactory
 		agent.name = name != null ? name : type.getName();
 		agent.group = group;
 		agent.faction = factionFromGroup(group);
-		objects.add(new ViewObject(agent, type));
+		agents.add(agent);
+		vessels.add(type);
 	}
 
 	/** Computes a pseudo-random coordinate offset. */
@@ -160,6 +225,6 @@ public class SimpleModelFactory implements ModelFactory
 	}
 
 	public String toString() {
-		return getClass().getName() + "[" + nFighters + " fighters per squadron]";
+		return getClass().getName() + "[" + nFighters + " fighters per squadron, seed " + seed + "]";
 	}
 }
@@ -1,7 +1,6 @@
 package ch.fha.ia02.above;
 
 import javax.media.j3d.*;
-import com.sun.j3d.utils.image.*;
 import javax.vecmath.*;
 
 /**
@@ -30,7 +29,7 @@ public class SkyBox extends Shape3D {
 		super();
 		this.setGeometry(new Cube(sideLength));
 
-		Texture tex;
+		StreamedTexture tex;
 		TextureAttributes textAttr;
 		Appearance appearance = new Appearance();
 
@@ -42,9 +41,8 @@ public class SkyBox extends Shape3D {
 		appearance.setPolygonAttributes(polygonAttributes);
 
 		// Loading the texture for the 6 cube's faces.
-		TextureLoader texLoad = new TextureLoader(bgImage, null);
-		tex = texLoad.getTexture();
-		appearance.setTexture(tex);
+		tex = TextureCache.getStreamedTexture(bgImage);
+		if (tex != null) tex.bind(appearance);
 
 		// Application modes of the texture
 		textAttr = new TextureAttributes();
@@ -23,7 +23,7 @@ public class SplashScreen extends AboveFrame {
 		setResizable(false);
 
 		version = Application.getVersion();
-		image = new ImageIcon(getClass().getResource(Application.SPLASH_IMAGE)).getImage();
+		image = new ImageIcon(AssetPack.getResource(Application.SPLASH_IMAGE)).getImage();
 
 		int w = image.getWidth(this);
 		int h = image.getHeight(this);
@@ -1,6 +1,7 @@
 package ch.fha.ia02.above;
 
 import java.awt.Color;
+import java.io.*;
 import javax.vecmath.*;
 
 /**
@@ -31,7 +32,14 @@ public class Starfighter extends Agent {
 	private int nEnemiesOnRadar = 0;
 	private float waitBeforeNextShot = 0;
 	private float projectileHitIn = 0;
-	private Cannon.Projectile projectileFired = null;
+	private Agent projectileTarget = null;
+	private Cannon.Projectile projectile = null; // shown while in flight
+
+	// effects on other agents, applied by commit()
+	private Agent fireAt = null;
+	private Vector3f firePosition = new Vector3f();
+	private Vector3f fireDirection = new Vector3f();
+	private Agent hitAgent = null;
 	private Stats stats; // hack: shadow field of parent type
 
 	/** The minimum distance that still yields useful result values. */
@@ -82,7 +90,7 @@ public class Starfighter extends Agent {
 		for (int i=0; i<agents.length; i++) {
 			Agent o = agents[i];
 			if (o != this) {
-				d.sub(o.position, position);
+				d.sub(o.seenPosition, position);
 				float bothbounds = stats.bounds + o.stats.bounds;
 				float dist = d.length() - bothbounds;
 				if (dist < MIN_CALC_DIST) dist = MIN_CALC_DIST;
@@ -95,10 +103,10 @@ public class Starfighter extends Agent {
 					}
 					if (dist < stats.cohesionDistance && angle < stats.cohesionAngle) {
 						nCohesive++;
-						flockCenter.add(o.position);
+						flockCenter.add(o.seenPosition);
 					}
 					if (dist < stats.alignmentDistance && angle < stats.alignmentAngle) {
-						flockVelocity.add(o.velocity);
+						flockVelocity.add(o.seenVelocity);
 					}
 				} else if (dist < avoidDist && angle < stats.avoidAngle) {
 					// collision avoidance
@@ -121,10 +129,10 @@ public class Starfighter extends Agent {
 					if (target == null && dist < stats.radarRange && angle < stats.radarAngle) {
 						// compute average position of enemies in
 						// range, weighted by distance and angle.
-						t.set(o.velocity);
+						t.set(o.seenVelocity);
 						t.scale(dist/stats.radarRange);
 						enemySeekDirection.add(t);
-						enemySeekDirection.add(o.position);						
+						enemySeekDirection.add(o.seenPosition);						
 						nEnemiesOnRadar++;
 					}
 				}
@@ -136,7 +144,7 @@ public class Starfighter extends Agent {
 		waitBeforeNextShot -= dt;
 		projectileHitIn -= dt;
 		if (target != null) {
-			t.sub(target.position, position);
+			t.sub(target.seenPosition, position);
 			float dist = t.length() - (stats.bounds + target.stats.bounds)-1;
 			float angle = t.angle(velocity);
 			if (dist > stats.attackRange || angle > stats.attackAngle || target.health <= 0) {
@@ -148,24 +156,25 @@ public class Starfighter extends Agent {
 				force.set(t);
 
 				// 2.) align with target
-				t.normalize(target.velocity);
+				t.normalize(target.seenVelocity);
 				t.scale(stats.attackAlignmentWeight);
 				force.add(t);
 
 				// 3.) shoot
 				if (angle < stats.fireAngle && waitBeforeNextShot <= 0) {
-					projectileFired = stats.cannon.fire(position, velocity, target);
+					fireAt = target;
+					firePosition.set(position);
+					fireDirection.set(velocity);
+					projectileTarget = target;
 					projectileHitIn = dist/stats.cannon.projectileVelocity;
 					waitBeforeNextShot = Math.max(stats.cannon.getSpeed(), projectileHitIn);
 				}
 			}
 		}
 		// test if projectile hit
-		if (projectileFired != null && projectileHitIn <= 0) {
-			if (projectileFired.target != null) {
-				projectileFired.target.hit(stats.cannon.getDamage());
-			}
-			projectileFired = null;
+		if (projectileTarget != null && projectileHitIn <= 0) {
+			hitAgent = projectileTarget;
+			projectileTarget = null;
 		}
 
 		if (target == null) { // else won't work, we might've lost target
@@ -232,23 +241,74 @@ public class Starfighter extends Agent {
 	}
 
 
+	/** Fires the cannon and hits the target, as decided by compute(). */
+	public void commit() {
+		if (fireAt != null) {
+			if (visible) projectile = stats.cannon.fire(firePosition, fireDirection, fireAt);
+			fireAt = null;
+		}
+		if (hitAgent != null) {
+			if (projectile != null) {
+				projectile.detach();
+				projectile = null;
+			}
+			hitAgent.hit(stats.cannon.getDamage());
+			hitAgent = null;
+		}
+	}
+
+
+	/**
+	 * Writes the state of this fighter, including its current
+	 * target and the projectile in flight, to the specified output.
+	 */
+	void writeState(DataOutput out, ModelSnapshot snapshot) throws IOException {
+		super.writeState(out, snapshot);
+		out.writeInt(snapshot.indexOf(target));
+		out.writeInt(snapshot.indexOf(projectileTarget));
+		out.writeFloat(waitBeforeNextShot);
+		out.writeFloat(projectileHitIn);
+	}
+
+	/**
+	 * Restores the state of this fighter from the specified input.
+	 */
+	void readState(DataInput in, ModelSnapshot snapshot) throws IOException {
+		super.readState(in, snapshot);
+		target = snapshot.agentAt(in.readInt());
+		projectileTarget = snapshot.agentAt(in.readInt());
+		waitBeforeNextShot = in.readFloat();
+		projectileHitIn = in.readFloat();
+	}
+
+
 	/**
-	 * Returns information about this fighter's current state.
+	 * Formats information about this fighter's current state.
 	 * For example, a starfighter might be reporting that it
 	 * is attacking fighter <var>XY</var>.
 	 */
-	public String statusText() {
+	protected String statusText(float health, Agent target, int enemiesOnRadar) {
 		if (health <= 0) {
 			return "dead";
 		} else if (target != null) {
 			return "attacking " + target.name;
-		} else if (nEnemiesOnRadar > 0) {
+		} else if (enemiesOnRadar > 0) {
 			return "pursuit";
 		} else {
-			return super.statusText();
+			return super.statusText(health, target, enemiesOnRadar);
 		}
 	}
 
+	/** Returns the agent this fighter is attacking, or <tt>null</tt>. */
+	public Agent getTarget() {
+		return target;
+	}
+
+	/** Returns the number of enemies this fighter sees on its radar. */
+	public int getEnemiesOnRadar() {
+		return nEnemiesOnRadar;
+	}
+
 
 	/**
 	 * Performance descriptor for starfighter.
@@ -436,6 +496,72 @@ public class Starfighter extends Agent {
 				name + " was " + value +  ", must be between " + min + " and " + max + "!");
 		}
 
+		/**
+		 * Writes all values of this descriptor,
+		 * including the cannon, to the specified output.
+		 */
+		void writeTo(DataOutput out) throws IOException {
+			super.writeTo(out);
+			out.writeFloat(agility);
+			out.writeFloat(rollAgility);
+			out.writeFloat(avoidAngle);
+			out.writeFloat(avoidAngle2);
+			out.writeFloat(avoidWeight);
+			out.writeFloat(avoidDistFactor);
+			out.writeFloat(separationDistance);
+			out.writeFloat(cohesionDistance);
+			out.writeFloat(alignmentDistance);
+			out.writeFloat(separationAngle);
+			out.writeFloat(cohesionAngle);
+			out.writeFloat(alignmentAngle);
+			out.writeFloat(separationWeight);
+			out.writeFloat(cohesionWeight);
+			out.writeFloat(alignmentWeight);
+			out.writeFloat(radarRange);
+			out.writeFloat(radarAngle);
+			out.writeFloat(enemySeekWeight);
+			out.writeFloat(attackRange);
+			out.writeFloat(attackAngle);
+			out.writeFloat(attackWeight);
+			out.writeFloat(attackAlignmentWeight);
+			out.writeFloat(attackFrontalPriority);
+			out.writeFloat(fireAngle);
+			cannon.writeTo(out);
+		}
+
+		/**
+		 * Replaces all values of this descriptor,
+		 * including the cannon, with those read from the specified input.
+		 */
+		void readFrom(DataInput in) throws IOException {
+			super.readFrom(in);
+			agility = in.readFloat();
+			rollAgility = in.readFloat();
+			avoidAngle = in.readFloat();
+			avoidAngle2 = in.readFloat();
+			avoidWeight = in.readFloat();
+			avoidDistFactor = in.readFloat();
+			separationDistance = in.readFloat();
+			cohesionDistance = in.readFloat();
+			alignmentDistance = in.readFloat();
+			separationAngle = in.readFloat();
+			cohesionAngle = in.readFloat();
+			alignmentAngle = in.readFloat();
+			separationWeight = in.readFloat();
+			cohesionWeight = in.readFloat();
+			alignmentWeight = in.readFloat();
+			radarRange = in.readFloat();
+			radarAngle = in.readFloat();
+			enemySeekWeight = in.readFloat();
+			attackRange = in.readFloat();
+			attackAngle = in.readFloat();
+			attackWeight = in.readFloat();
+			attackAlignmentWeight = in.readFloat();
+			attackFrontalPriority = in.readFloat();
+			fireAngle = in.readFloat();
+			cannon.readFrom(in);
+		}
+
 		/**
 		 * Creates and returns a copy of this agent characteristics descriptor.
 		 * @return a clone of this instance.
@@ -0,0 +1,282 @@
+package ch.fha.ia02.above;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the stages of the application startup, each one as soon as
+ * the stages it depends on are finished, so independent stages run
+ * concurrently.
+ * <p>
+ * Stages may be optional, like preloading, in which case their failure
+ * is only logged, and the application starts without them.
+ * <p>
+ * The time spent in each stage is recorded, and can be printed as
+ * a report after the pipeline finished. Progress is reported through
+ * {@link Application#progress(String)}, so it shows on the splash screen.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Application#main(String[])
+ */
+public class StartupPipeline
+{
+	private java.util.List<Stage> stages = new ArrayList<Stage>();
+
+	/** Start and end time of the whole pipeline, in nanoseconds. */
+	private long start = -1;
+	private long end = -1;
+
+	// state while running
+	private ExecutorService executor;
+	private int unfinished;
+	private Stage failed;
+
+
+	/**
+	 * A stage of the startup pipeline.
+	 */
+	public class Stage
+	{
+		private String name;
+		private Runnable task;
+		private boolean optional;
+		private java.util.List<Stage> dependents = new ArrayList<Stage>();
+		private int waitingFor;
+		private long stageStart = -1;
+		private long stageEnd = -1;
+		private boolean skipped = false;
+		private Throwable failure;
+
+		Stage(String name, Runnable task, boolean optional, Stage[] dependencies) {
+			this.name = name;
+			this.task = task;
+			this.optional = optional;
+			for (int i=0; i<dependencies.length; i++) {
+				if (!stages.contains(dependencies[i])) {
+					throw new IllegalArgumentException("Unknown stage " + dependencies[i]);
+				}
+				dependencies[i].dependents.add(this);
+			}
+			waitingFor = dependencies.length;
+		}
+
+		/** Returns the name of this stage. */
+		public String getName() {
+			return name;
+		}
+
+		/** Returns <tt>true</tt> if the application may start without this stage. */
+		public boolean isOptional() {
+			return optional;
+		}
+
+		/** Returns the time at which this stage started, relative to the pipeline, in ms. */
+		public synchronized long getStartTime() {
+			return (stageStart < 0) ? -1 : (stageStart - start) / 1000000;
+		}
+
+		/** Returns the time spent in this stage, in ms. */
+		public synchronized long getDuration() {
+			return (stageEnd < 0) ? -1 : (stageEnd - stageStart) / 1000000;
+		}
+
+		/** Runs this stage on a pool thread. */
+		private void run() {
+			synchronized (this) {
+				stageStart = System.nanoTime();
+			}
+			reportProgress();
+			try {
+				task.run();
+			}
+			catch (Throwable t) {
+				failure = t;
+			}
+			synchronized (this) {
+				stageEnd = System.nanoTime();
+			}
+			finished(this);
+		}
+
+		/** Returns a string representation of this stage. */
+		public String toString() {
+			return name;
+		}
+	}
+
+
+	/**
+	 * Adds a stage to this pipeline.
+	 *
+	 * @param name a short description of the stage.
+	 * @param task the work to be done in this stage.
+	 * @param dependencies stages which must be finished
+	 *        before this stage may start.
+	 * @return the new stage.
+	 * @throws IllegalStateException if the pipeline was started already.
+	 */
+	public Stage add(String name, Runnable task, Stage... dependencies) {
+		return add(name, task, false, dependencies);
+	}
+
+	/**
+	 * Adds an optional stage to this pipeline. If it fails,
+	 * the failure is logged, and only the stages depending
+	 * on it are skipped.
+	 *
+	 * @param name a short description of the stage.
+	 * @param task the work to be done in this stage.
+	 * @param dependencies stages which must be finished
+	 *        before this stage may start.
+	 * @return the new stage.
+	 * @throws IllegalStateException if the pipeline was started already.
+	 */
+	public Stage addOptional(String name, Runnable task, Stage... dependencies) {
+		return add(name, task, true, dependencies);
+	}
+
+	/** Adds a stage, see {@link #add(String, Runnable, Stage...)}. */
+	private synchronized Stage add(String name, Runnable task, boolean optional, Stage[] dependencies) {
+		if (start >= 0) throw new IllegalStateException("Pipeline was started already!");
+		Stage s = new Stage(name, task, optional, dependencies);
+		stages.add(s);
+		return s;
+	}
+
+
+	/**
+	 * Runs all stages and waits until they are finished.
+	 * If a stage fails, the stages depending on it are skipped.
+	 *
+	 * @throws Exception wrapping the failure of the first
+	 *         stage that failed and is not optional.
+	 */
+	public void run() throws Exception {
+		synchronized (this) {
+			if (start >= 0) throw new IllegalStateException("Pipeline was started already!");
+			start = System.nanoTime();
+			unfinished = stages.size();
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Startup-" + (++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			for (Stage s : stages) {
+				if (s.waitingFor == 0) submit(s);
+			}
+			try {
+				while (unfinished > 0) {
+					wait();
+				}
+			}
+			finally {
+				executor.shutdown();
+				end = System.nanoTime();
+			}
+		}
+		if (failed != null) {
+			throw new Exception("Startup stage " + failed + " failed: " + failed.failure, failed.failure);
+		}
+	}
+
+	/** Starts a stage on a pool thread. */
+	private void submit(final Stage s) {
+		executor.execute(new Runnable() {
+			public void run() {
+				s.run();
+			}
+		});
+	}
+
+	/** Starts the stages depending on a finished one. */
+	private synchronized void finished(Stage s) {
+		unfinished--;
+		if (s.failure != null) {
+			if (s.optional) {
+				System.err.println("Optional startup stage " + s + " failed: " + s.failure);
+			} else if (failed == null) {
+				failed = s;
+			}
+		}
+		for (Stage d : s.dependents) {
+			if (s.failure != null || s.skipped) {
+				skip(d);
+			} else if (--d.waitingFor == 0 && !d.skipped) {
+				submit(d);
+			}
+		}
+		notifyAll();
+	}
+
+	/** Skips a stage and all stages depending on it. */
+	private void skip(Stage s) {
+		if (s.skipped) return;
+		s.skipped = true;
+		unfinished--;
+		for (Stage d : s.dependents) {
+			skip(d);
+		}
+	}
+
+	/** Shows the running stages on the splash screen. */
+	private synchronized void reportProgress() {
+		StringBuffer sb = new StringBuffer("Starting ");
+		int done = 0;
+		boolean first = true;
+		for (Stage s : stages) {
+			if (s.stageEnd >= 0) {
+				done++;
+			} else if (s.stageStart >= 0) {
+				if (!first) sb.append(", ");
+				sb.append(s.name);
+				first = false;
+			}
+		}
+		sb.append(" (" + done + " of " + stages.size() + " done)");
+		Application.progress(sb.toString());
+	}
+
+
+	/** Returns the stages of this pipeline. */
+	public synchronized Stage[] getStages() {
+		return stages.toArray(new Stage[stages.size()]);
+	}
+
+	/** Returns the time the whole pipeline took, in ms. */
+	public synchronized long getTotalTime() {
+		return (end < 0) ? -1 : (end - start) / 1000000;
+	}
+
+	/**
+	 * Returns a report of the time spent in each stage,
+	 * one line per stage.
+	 */
+	public synchronized String report() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("Startup took " + getTotalTime() + " ms");
+		for (Stage s : stages) {
+			sb.append("\n  ");
+			sb.append(s.name);
+			if (s.skipped) {
+				sb.append(": skipped");
+			} else if (s.getDuration() < 0) {
+				sb.append(": not finished");
+			} else {
+				sb.append(": " + s.getDuration() + " ms, from " + s.getStartTime() + " ms");
+				if (s.failure != null) sb.append(", failed: " + s.failure);
+			}
+		}
+		return sb.toString();
+	}
+
+
+	/** Returns a string representation of this pipeline. */
+	public String toString() {
+		return getClass().getName() + "[" + stages.size() + " stages]";
+	}
+}
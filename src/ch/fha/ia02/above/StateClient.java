@@ -0,0 +1,482 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import javax.media.j3d.*;
+import javax.vecmath.*;
+
+/**
+ * Shows a model computed by a remote {@link StateServer}.
+ * <p>
+ * The model is restored from the snapshot sent by the server when
+ * connecting. Instead of computing the agents, the states received
+ * from the server are applied after each rendered frame, just like
+ * a {@link ReplayPlayer} applies the recorded states. Pausing the
+ * model discards the states received, and resuming it asks the
+ * server for a keyframe, so the model catches up immediately.
+ * Each model created connects to the server again.
+ * <p>
+ * The view of the camera is sent to the server whenever it changes,
+ * so the server only sends the agents visible and near the camera at
+ * full rate. The other agents are moved along their velocity between
+ * their updates.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see StateServer
+ */
+public class StateClient implements ModelFactory
+{
+	/**
+	 * System property specifying the server to connect to
+	 * at startup, as <tt>host[:port]</tt>.
+	 */
+	public static final String CONNECT_PROPERTY = "above.connect";
+
+	/** Maximal number of frames received but not yet applied. */
+	private static final int MAX_PENDING_FRAMES = 64;
+
+	/** Minimal time between two views sent to the server, in milliseconds. */
+	private static final long VIEW_INTERVAL = 200;
+
+	private String host;
+	private int port;
+
+	/** Receives the states of the model created last. */
+	private Receiver receiver;
+
+
+	/**
+	 * Creates a factory for models shown from the specified server.
+	 * The connection is not opened until {@link #createModel()} is called.
+	 *
+	 * @param address the server as <tt>host[:port]</tt>.
+	 * @throws IllegalArgumentException if the port is not a number.
+	 */
+	public StateClient(String address) {
+		int colon = address.lastIndexOf(':');
+		if (colon < 0) {
+			host = address.trim();
+			port = StateServer.DEFAULT_PORT;
+		} else {
+			host = address.substring(0, colon).trim();
+			port = Integer.parseInt(address.substring(colon+1).trim());
+		}
+	}
+
+	/**
+	 * Creates a factory for models shown from the specified server.
+	 *
+	 * @param host the host running the server.
+	 * @param port the port the server listens on.
+	 */
+	public StateClient(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+
+	/**
+	 * Connects to the server and restores the model it computes,
+	 * the returned model follows the server when started.
+	 * The connection of the model created before is closed.
+	 *
+	 * @throws IllegalStateException if the server cannot be
+	 *         reached, or sends invalid data.
+	 */
+	public Model createModel() {
+		close();
+		Connection c;
+		try {
+			c = new Connection(host, port);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not connect to " + host + ":" + port + ": " + e.getMessage());
+		}
+		Receiver r = new Receiver(c);
+		Model model;
+		try {
+			model = c.getSnapshot().restore(r);
+			if (model.numAgents() != c.numAgents()) {
+				throw new IllegalStateException(host + ":" + port + " sent an invalid snapshot.");
+			}
+		}
+		catch (RuntimeException e) {
+			c.close();
+			throw e;
+		}
+		r.setModel(model);
+		synchronized (this) {
+			receiver = r;
+		}
+		return model;
+	}
+
+	/** Closes the connection of the model created last, if any. */
+	public void close() {
+		Receiver r;
+		synchronized (this) {
+			r = receiver;
+			receiver = null;
+		}
+		if (r != null) r.connection.close();
+	}
+
+
+	/** Returns a string representation of this client. */
+	public String toString() {
+		return getClass().getName() + "[" + host + ":" + port + "]";
+	}
+
+
+	/**
+	 * A connection to a {@link StateServer}, which reads the frames
+	 * sent and applies them to a model.
+	 */
+	static class Connection
+	{
+		private Socket socket;
+		private DataInputStream in;
+		private OutputStream out;
+		private int keyframeInterval;
+		private int numAgents;
+		private ModelSnapshot snapshot;
+		private AgentStateCodec codec;
+
+		/** Step number and time of the last frame applied. */
+		private long frameStep;
+		private long frameTime;
+
+		/** The agents updated by the last partial frame. */
+		private boolean[] updated;
+
+		/**
+		 * Connects to a server and reads the header.
+		 * @throws IOException if the server cannot be reached,
+		 *         or sends invalid data.
+		 */
+		Connection(String host, int port) throws IOException {
+			socket = new Socket(host, port);
+			try {
+				socket.setTcpNoDelay(true);
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = socket.getOutputStream();
+				if (in.readInt() != StateServer.MAGIC) throw new IOException(host + ":" + port + " is not a state server.");
+				short version = in.readShort();
+				if (version != StateServer.VERSION) throw new IOException("Unsupported protocol version " + version + ".");
+				keyframeInterval = in.readInt();
+				numAgents = in.readInt();
+				codec = new AgentStateCodec(numAgents);
+
+				// the snapshot's header tells us its length
+				byte[] header = new byte[ModelSnapshot.HEADER_SIZE];
+				in.readFully(header);
+				int length = ByteBuffer.wrap(header).getInt(4 + 2);
+				if (length < 0) throw new IOException(host + ":" + port + " sent an invalid snapshot.");
+				ByteBuffer data = ByteBuffer.allocate(ModelSnapshot.HEADER_SIZE + length);
+				data.put(header);
+				in.readFully(data.array(), ModelSnapshot.HEADER_SIZE, length);
+				data.clear();
+				snapshot = new ModelSnapshot(data);
+			}
+			catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/** Returns the snapshot of the model at the time of connecting. */
+		ModelSnapshot getSnapshot() {
+			return snapshot;
+		}
+
+		/** Returns the number of agents in each frame. */
+		int numAgents() {
+			return numAgents;
+		}
+
+		/** Returns the number of steps between two keyframes. */
+		int getKeyframeInterval() {
+			return keyframeInterval;
+		}
+
+		/**
+		 * Reads the next frame, waiting until it is received.
+		 * @return the frame, including the type and length.
+		 * @throws IOException if the connection was closed.
+		 */
+		byte[] readFrame() throws IOException {
+			byte type = in.readByte();
+			int length = in.readInt();
+			if (type != ReplayRecorder.FRAME_KEY && type != ReplayRecorder.FRAME_DELTA
+				&& type != StateServer.FRAME_PARTIAL || length < 0)
+			{
+				throw new IOException("Invalid frame received.");
+			}
+			byte[] frame = new byte[1 + 4 + length];
+			frame[0] = type;
+			in.readFully(frame, 1 + 4, length);
+			return frame;
+		}
+
+		/** Tests if a frame read by {@link #readFrame()} is a keyframe. */
+		static boolean isKeyframe(byte[] frame) {
+			return frame[0] == ReplayRecorder.FRAME_KEY;
+		}
+
+		/**
+		 * Applies a frame to the agents of a model, called with the model
+		 * locked. Frames must be applied in the order they were received,
+		 * except that delta frames may be skipped up to the next keyframe.
+		 *
+		 * @throws IOException if the frame is corrupt.
+		 */
+		void apply(byte[] frame, Model model) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(frame);
+			buf.position(1 + 4);
+			boolean keyframe = isKeyframe(frame);
+			Agent[] agents = model.getAgents();
+			try {
+				if (frame[0] == StateServer.FRAME_PARTIAL) {
+					frameStep += AgentStateCodec.getVarint(buf);
+					int dt = AgentStateCodec.getVarint(buf);
+					frameTime += dt;
+					if (updated == null) updated = new boolean[agents.length];
+					Arrays.fill(updated, false);
+					codec.decodePartial(buf, agents, updated);
+					extrapolate(agents, dt/1000f);
+				} else {
+					if (keyframe) {
+						frameStep = buf.getLong();
+						frameTime = buf.getLong();
+					} else {
+						frameStep++;
+						frameTime += AgentStateCodec.getVarint(buf);
+					}
+					codec.decode(buf, agents, keyframe);
+				}
+			}
+			catch (BufferUnderflowException e) {
+				throw new IOException("Corrupt frame received.");
+			}
+			catch (IndexOutOfBoundsException e) {
+				throw new IOException("Corrupt frame received.");
+			}
+			if (buf.hasRemaining()) throw new IOException("Corrupt frame received.");
+			model.setTime(frameTime, frameStep);
+		}
+
+		/** Tests if an agent was updated by the last partial frame applied. */
+		boolean wasUpdated(int i) {
+			return updated != null && updated[i];
+		}
+
+		/** Moves the living agents not updated along their velocity. */
+		private void extrapolate(Agent[] agents, float dt) {
+			for (int i=0; i<agents.length; i++) {
+				Agent a = agents[i];
+				if (!updated[i] && a.health > 0) {
+					a.position.scaleAdd(dt, a.velocity, a.position);
+				}
+			}
+		}
+
+		/**
+		 * Sends the view of the camera to the server, which then
+		 * sends partial frames with the agents of interest.
+		 *
+		 * @param position the position of the camera.
+		 * @param direction the viewing direction.
+		 * @param fov the field of view, in radians.
+		 */
+		void sendView(Point3f position, Vector3f direction, float fov) throws IOException {
+			synchronized (out) {
+				DataOutputStream d = new DataOutputStream(new BufferedOutputStream(out, 1 + 7*4));
+				d.writeByte(StateServer.VIEW);
+				d.writeFloat(position.x);
+				d.writeFloat(position.y);
+				d.writeFloat(position.z);
+				d.writeFloat(direction.x);
+				d.writeFloat(direction.y);
+				d.writeFloat(direction.z);
+				d.writeFloat(fov);
+				d.flush();
+			}
+		}
+
+		/** Asks the server to send a keyframe with the next step. */
+		void requestKeyframe() throws IOException {
+			synchronized (out) {
+				out.write(StateServer.REQUEST_KEYFRAME);
+				out.flush();
+			}
+		}
+
+		/** Closes the connection. */
+		void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// already closed
+			}
+		}
+
+		/** Tests if the connection was closed. */
+		boolean isClosed() {
+			return socket.isClosed();
+		}
+	}
+
+
+	/**
+	 * Applies the frames received after each rendered frame.
+	 * A thread reads the frames as they arrive, so the server
+	 * is not slowed down by the rendering.
+	 */
+	private static class Receiver extends WorldBehavior
+		implements ModelTrigger
+	{
+		private Connection connection;
+		private Model model;
+
+		/** Frames received but not applied yet. */
+		private LinkedList<byte[]> frames = new LinkedList<byte[]>();
+
+		/** Set while delta frames are useless because frames were skipped. */
+		private boolean waitingForKeyframe = false;
+		private boolean paused = true;
+
+		// the view last sent to the server
+		private Point3f viewPosition = new Point3f();
+		private Vector3f viewDirection = new Vector3f();
+		private float viewFov;
+		private long viewSent;
+
+		Receiver(Connection connection) {
+			super(new WakeupOnElapsedFrames(0));
+			this.connection = connection;
+			setEnable(false);
+		}
+
+		/** Sets the model to update, and starts receiving frames. */
+		void setModel(Model model) {
+			this.model = model;
+			Thread reader = new Thread("StateClient") {
+				public void run() {
+					receive();
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/** Reads frames until the connection is closed. */
+		private void receive() {
+			try {
+				while (true) {
+					byte[] frame = connection.readFrame();
+					boolean request = false;
+					synchronized (this) {
+						if (paused) continue;
+						if (Connection.isKeyframe(frame)) {
+							waitingForKeyframe = false;
+						} else if (waitingForKeyframe) {
+							continue;
+						}
+						if (frames.size() >= MAX_PENDING_FRAMES) {
+							// we cannot keep up, skip to the next keyframe
+							frames.clear();
+							waitingForKeyframe = true;
+							request = true;
+						} else {
+							frames.add(frame);
+						}
+					}
+					if (request) connection.requestKeyframe();
+				}
+			}
+			catch (IOException e) {
+				if (!connection.isClosed()) {
+					System.err.println("Connection to server lost: " + e.getMessage());
+					connection.close();
+				}
+			}
+		}
+
+		/** Applies all frames received. */
+		public void processStimulus(java.util.Enumeration criteria) {
+			try {
+				synchronized (model) {
+					while (true) {
+						byte[] frame;
+						synchronized (this) {
+							frame = frames.poll();
+						}
+						if (frame == null) break;
+						connection.apply(frame, model);
+					}
+				}
+			}
+			catch (IOException e) {
+				System.err.println("Connection to server lost: " + e.getMessage());
+				connection.close();
+			}
+			sendView();
+			wakeupOn(w);
+		}
+
+		/** Sends the camera's view to the server, if it changed. */
+		private void sendView() {
+			long now = System.currentTimeMillis();
+			if (now - viewSent < VIEW_INTERVAL) return;
+			ViewerFrame vf = Application.getMainFrame();
+			Camera cam = (vf != null) ? vf.universe.getCamera() : null;
+			if (cam == null) return;
+			Point3f p = new Point3f();
+			Vector3f d = new Vector3f();
+			float fov = (float)cam.getView(p, d);
+			if (viewSent > 0 && p.equals(viewPosition) && d.equals(viewDirection) && fov == viewFov) return;
+			try {
+				connection.sendView(p, d, fov);
+			}
+			catch (IOException e) {
+				return; // reported when reading
+			}
+			viewPosition.set(p);
+			viewDirection.set(d);
+			viewFov = fov;
+			viewSent = now;
+		}
+
+		public void startSimulation() {
+			synchronized (this) {
+				if (!paused) return;
+				paused = false;
+				// frames were skipped while paused
+				frames.clear();
+				waitingForKeyframe = true;
+			}
+			try {
+				connection.requestKeyframe();
+			}
+			catch (IOException e) {
+				System.err.println("Connection to server lost: " + e.getMessage());
+			}
+			setEnable(true);
+		}
+
+		public void stopSimulation() {
+			synchronized (this) {
+				paused = true;
+			}
+			setEnable(false);
+		}
+
+		public boolean isRunning() {
+			return getEnable();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package ch.fha.ia02.above;
+
+/**
+ * Records the {@link Model#stateHash() state hash} of a model after
+ * each step, so two runs can be compared step by step.
+ * <p>
+ * Comparing a run against a reference run reveals the first step at
+ * which they diverged, e.g. when an optimization changed the results
+ * or a parallel run differs from a serial one.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Model#setDeterministic(boolean)
+ */
+public class StateHashLog implements StepListener
+{
+	private long firstStep = -1;
+	private long[] hashes = new long[1024];
+	private int n = 0;
+
+
+	/**
+	 * Starts recording the state hashes of the specified model,
+	 * beginning with its current state.
+	 *
+	 * @param model the model to record.
+	 */
+	public StateHashLog(Model model) {
+		synchronized (model) {
+			firstStep = model.getStepNumber();
+			add(model.stateHash());
+			model.addStepListener(this);
+		}
+	}
+
+
+	/** Records the hash after a step. */
+	public synchronized void stepComputed(Model model) {
+		add(model.stateHash());
+	}
+
+	/** Appends a hash. */
+	private void add(long h) {
+		if (n == hashes.length) {
+			long[] a = new long[2*n];
+			System.arraycopy(hashes, 0, a, 0, n);
+			hashes = a;
+		}
+		hashes[n++] = h;
+	}
+
+
+	/** Returns the number of the first step recorded. */
+	public long getFirstStep() {
+		return firstStep;
+	}
+
+	/** Returns the number of the last step recorded. */
+	public synchronized long getLastStep() {
+		return firstStep + n - 1;
+	}
+
+	/**
+	 * Returns the hash recorded for the specified step.
+	 * @throws IndexOutOfBoundsException if the step was not recorded.
+	 */
+	public synchronized long getHash(long stepnum) {
+		if (stepnum < firstStep || stepnum >= firstStep + n) {
+			throw new IndexOutOfBoundsException("Step " + stepnum + " was not recorded.");
+		}
+		return hashes[(int)(stepnum - firstStep)];
+	}
+
+	/**
+	 * Compares this log with another one, considering
+	 * only the steps recorded by both.
+	 *
+	 * @param other the log to compare to, usually a reference run.
+	 * @return the number of the first step with different hashes,
+	 *         or <tt>-1</tt> if all common steps are identical.
+	 */
+	public long firstDivergence(StateHashLog other) {
+		long from = Math.max(getFirstStep(), other.getFirstStep());
+		long to = Math.min(getLastStep(), other.getLastStep());
+		for (long s=from; s<=to; s++) {
+			if (getHash(s) != other.getHash(s)) return s;
+		}
+		return -1;
+	}
+
+
+	/** Returns a string representation of this log. */
+	public String toString() {
+		return getClass().getName() + "[steps " + getFirstStep() + "-" + getLastStep() + "]";
+	}
+}
@@ -0,0 +1,645 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.vecmath.*;
+
+/**
+ * Streams the state of a model to remote viewers over TCP, so a large
+ * scenario can be computed headless on a server while it is watched
+ * from other machines using a {@link StateClient}.
+ * <p>
+ * Each connection starts with a header consisting of {@link #MAGIC},
+ * {@link #VERSION}, the keyframe interval and the number of agents
+ * (<tt>int</tt>), followed by a {@link ModelSnapshot} of the model.
+ * After that, one frame is sent per step, in the same format as the
+ * frames of a replay file written by a {@link ReplayRecorder}: a
+ * keyframe first, then delta frames and a keyframe every
+ * {@link #getKeyframeInterval()} steps.
+ * <p>
+ * The frames are encoded once and sent to all clients. Each client has
+ * its own queue of frames, so a slow client does not slow down the model
+ * or the other clients. If its queue overflows, the queued frames are
+ * dropped and the client is sent a keyframe instead. A client may also
+ * ask for a keyframe by sending {@link #REQUEST_KEYFRAME}, for example
+ * after it skipped frames while paused.
+ * <p>
+ * A client may send its camera's view as {@link #VIEW}, followed by
+ * its position, viewing direction and field of view as seven
+ * <tt>float</tt> values. From then on, it is sent partial frames with
+ * only the agents it is interested in, encoded by its own thread:
+ * visible agents near the camera every step at full precision, visible
+ * agents farther away every {@link #REDUCED_INTERVAL} steps and agents
+ * out of view every {@link #RARE_INTERVAL} steps, both at reduced
+ * precision. Agents that die are sent immediately. Only one quantized
+ * state of the model is kept per step for all clients, and a client
+ * that cannot keep up skips steps instead of queueing frames, so the
+ * cost of a client depends on what it sees rather than on the number
+ * of agents.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see StateClient
+ * @see AgentStateCodec
+ */
+public class StateServer implements StepListener
+{
+	/** Identifies the stream, reads "ABST", unlike a snapshot file. */
+	public static final int MAGIC = 0x41425354;
+
+	/** Version of the protocol implemented by this class. */
+	public static final short VERSION = 1;
+
+	/** Default port of the server. */
+	public static final int DEFAULT_PORT = 7417;
+
+	/** Default number of steps between two keyframes. */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 100;
+
+	/** Sent by a client to receive a keyframe with the next step. */
+	public static final byte REQUEST_KEYFRAME = 1;
+
+	/** Sent by a client, followed by its camera's view. */
+	public static final byte VIEW = 2;
+
+	/** Frame type code of partial frames, sent to clients with a view. */
+	static final byte FRAME_PARTIAL = 3;
+
+	/** Steps between two updates of agents far away from the camera. */
+	public static final int REDUCED_INTERVAL = 4;
+
+	/** Steps between two updates of agents out of view. */
+	public static final int RARE_INTERVAL = 25;
+
+	/** Low bits dropped from agents far away or out of view, 1/4 m and 1 m. */
+	static final int REDUCED_SHIFT = 3;
+	static final int RARE_SHIFT = 5;
+
+	/** Tiers of agents returned by {@link View#tier(Vector3f)}. */
+	static final int NEAR = 0;
+	static final int REDUCED = 1;
+	static final int RARE = 2;
+
+	/** Steps between two updates, and low bits dropped, by tier. */
+	private static final int[] INTERVALS = { 1, REDUCED_INTERVAL, RARE_INTERVAL };
+	static final int[] SHIFTS = { 0, REDUCED_SHIFT, RARE_SHIFT };
+
+	/**
+	 * Half the width of the view at the distance of an agent, in
+	 * meters, up to which it is considered near the camera. Depends
+	 * on the field of view, so zooming in brings agents nearer.
+	 */
+	private static final float NEAR_EXTENT = 2000;
+
+	/** Agents closer to the camera are always near, even if behind it. */
+	private static final float NEAR_RADIUS = 500;
+
+	/** Factor widening the field of view, for the corners of the screen and turning. */
+	private static final float VIEW_MARGIN = 1.5f;
+
+	/** Maximal number of frames queued for a client before they are dropped. */
+	static final int MAX_QUEUED_FRAMES = 64;
+
+	private Model model;
+	private Agent[] agents;
+	private int keyframeInterval;
+	private ServerSocket serverSocket;
+
+	/** Encodes the frames sent to all clients. */
+	private AgentStateCodec codec;
+
+	/** Encodes the keyframes sent to single clients only. */
+	private AgentStateCodec keyCodec;
+
+	private ByteBuffer buf;
+	private int sinceKeyframe;
+	private boolean keyframeNeeded = true;
+	private long lastTime;
+	private long frames = 0;
+
+	/** The connected clients. */
+	private java.util.List<Client> clients = new ArrayList<Client>();
+
+
+	/**
+	 * Starts serving the specified model,
+	 * using the default keyframe interval.
+	 *
+	 * @param model the model to serve.
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @throws IOException if the port cannot be opened.
+	 */
+	public StateServer(Model model, int port) throws IOException {
+		this(model, port, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * Starts serving the specified model.
+	 *
+	 * @param model the model to serve.
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @param keyframeInterval number of steps between two keyframes.
+	 * @throws IOException if the port cannot be opened.
+	 */
+	public StateServer(Model model, int port, int keyframeInterval) throws IOException {
+		if (keyframeInterval <= 0) throw new IllegalArgumentException("Keyframe interval must be positive!");
+		this.model = model;
+		this.keyframeInterval = keyframeInterval;
+		agents = model.getAgents();
+		codec = new AgentStateCodec(agents.length);
+		keyCodec = new AgentStateCodec(agents.length);
+		buf = ByteBuffer.allocate(AgentStateCodec.maxFrameSize(agents.length) + 32);
+		serverSocket = new ServerSocket(port);
+
+		Thread acceptor = new Thread("StateServer") {
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		model.addStepListener(this);
+	}
+
+
+	/** Returns the port the server listens on. */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/** Returns the number of steps between two keyframes. */
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/** Returns the number of frames encoded so far. */
+	public synchronized long getFrameCount() {
+		return frames;
+	}
+
+	/** Returns the number of connected clients. */
+	public synchronized int getClientCount() {
+		return clients.size();
+	}
+
+	/** Tests if this server still accepts connections. */
+	public boolean isOpen() {
+		return !serverSocket.isClosed();
+	}
+
+
+	/** Accepts connections until the server is closed. */
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket s = serverSocket.accept();
+				s.setTcpNoDelay(true);
+				join(new Client(s));
+			}
+			catch (IOException e) {
+				if (!serverSocket.isClosed()) System.err.println("StateServer: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Sends the header and a keyframe of the current step to a new
+	 * client, so it can decode the frames of the following steps.
+	 */
+	private void join(Client c) {
+		synchronized (model) { // the model locks first
+			synchronized (this) {
+				try {
+					c.send(encodeHeader());
+					c.send(encodeFrame(keyCodec, true));
+				}
+				catch (IOException e) {
+					System.err.println("StateServer: cannot send snapshot: " + e);
+					c.close();
+					return;
+				}
+				c.start();
+				clients.add(c);
+			}
+		}
+	}
+
+	/**
+	 * Sends the state after a step to all clients. The frames for
+	 * clients with a view are encoded later by their own threads.
+	 */
+	public synchronized void stepComputed(Model model) {
+		boolean keyframe = keyframeNeeded || sinceKeyframe >= keyframeInterval;
+		byte[] frame = null;
+		byte[] key = null;
+		StepState state = null;
+		for (int i=clients.size()-1; i>=0; i--) {
+			Client c = clients.get(i);
+			if (c.closed) {
+				clients.remove(i);
+			} else if (c.view != null) {
+				if (state == null) state = new StepState();
+				c.offer(state);
+			} else {
+				if (frame == null) {
+					frame = encodeFrame(codec, keyframe);
+					if (keyframe) key = frame;
+				}
+				if (c.resync && !keyframe) {
+					if (key == null) key = encodeFrame(keyCodec, true);
+					c.send(key);
+				} else {
+					c.send(frame);
+				}
+			}
+		}
+		// the next delta would refer to a frame nobody got
+		keyframeNeeded = (frame == null);
+	}
+
+	/**
+	 * Encodes the current state of all agents as a frame.
+	 * @param codec the codec to use, its reference is updated.
+	 */
+	private byte[] encodeFrame(AgentStateCodec codec, boolean keyframe) {
+		buf.clear();
+		buf.put(keyframe ? ReplayRecorder.FRAME_KEY : ReplayRecorder.FRAME_DELTA);
+		buf.putInt(0); // filled in below
+		long t = model.getTime();
+		if (keyframe) {
+			buf.putLong(model.getStepNumber());
+			buf.putLong(t);
+		} else {
+			AgentStateCodec.putVarint(buf, (int)(t - lastTime));
+		}
+		codec.encode(agents, buf, keyframe);
+		buf.putInt(1, buf.position() - 1 - 4);
+		if (codec == this.codec) {
+			lastTime = t;
+			sinceKeyframe = keyframe ? 1 : sinceKeyframe+1;
+			frames++;
+		}
+		byte[] frame = new byte[buf.position()];
+		buf.flip();
+		buf.get(frame);
+		return frame;
+	}
+
+	/** Encodes the header sent to new clients, including a snapshot. */
+	private byte[] encodeHeader() throws IOException {
+		ByteBuffer snapshot = ModelSnapshot.toByteBuffer(model);
+		ByteBuffer header = ByteBuffer.allocate(4 + 2 + 4 + 4 + snapshot.remaining());
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putInt(keyframeInterval);
+		header.putInt(agents.length);
+		header.put(snapshot);
+		return header.array();
+	}
+
+
+	/**
+	 * Stops serving the model and disconnects all clients.
+	 */
+	public void close() {
+		model.removeStepListener(this); // outside our lock, the model locks first
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e) {
+			System.err.println("StateServer: " + e);
+		}
+		synchronized (this) {
+			for (int i=0; i<clients.size(); i++) {
+				clients.get(i).close();
+			}
+			clients.clear();
+		}
+	}
+
+
+	/** Returns a string representation of this server. */
+	public String toString() {
+		return getClass().getName() + "[port " + getPort() + ", "
+			+ getClientCount() + " clients, " + getFrameCount() + " frames]";
+	}
+
+
+	/** The quantized state of the model after a step. */
+	private class StepState
+	{
+		final int[] state = new int[agents.length * AgentStateCodec.STRIDE];
+		final long step = model.getStepNumber();
+		final long time = model.getTime();
+
+		StepState() {
+			AgentStateCodec.quantize(agents, state);
+		}
+	}
+
+	/** The view of a client's camera. */
+	static class View
+	{
+		final Vector3f position;
+		final Vector3f direction;
+		final float cosLimit;
+		final float tanHalf;
+
+		/** Reads a view sent by a client after {@link #VIEW}. */
+		View(DataInput in) throws IOException {
+			this(new Vector3f(in.readFloat(), in.readFloat(), in.readFloat()),
+				new Vector3f(in.readFloat(), in.readFloat(), in.readFloat()),
+				in.readFloat());
+		}
+
+		View(Vector3f position, Vector3f direction, float fov) throws IOException {
+			this.position = position;
+			this.direction = direction;
+			if (direction.lengthSquared() > 0) direction.normalize();
+			if (!(fov > 0 && fov < Math.PI)) throw new IOException("Invalid field of view " + fov);
+			cosLimit = (float)Math.cos(Math.min(fov/2 * VIEW_MARGIN, Math.PI));
+			tanHalf = (float)Math.tan(fov/2);
+		}
+
+		/**
+		 * Returns the tier of an agent, {@link #NEAR}, {@link #REDUCED}
+		 * or {@link #RARE}, depending on where it is relative to this view.
+		 *
+		 * @param p the position of the agent, overwritten by this method.
+		 */
+		int tier(Vector3f p) {
+			p.sub(position);
+			float d = p.length();
+			if (d < NEAR_RADIUS) {
+				return NEAR;
+			} else if (p.dot(direction) < cosLimit * d) {
+				return RARE;
+			} else if (d * tanHalf <= NEAR_EXTENT) {
+				return NEAR;
+			} else {
+				return REDUCED;
+			}
+		}
+	}
+
+
+	/**
+	 * A connected client, with its own thread sending
+	 * its frames and reading its requests.
+	 */
+	private class Client extends Thread
+	{
+		private Socket socket;
+		private OutputStream out;
+		private DataInputStream in;
+
+		/** Frames to send, until the client sends its view. */
+		private BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_FRAMES);
+
+		/** Set if the client is to receive a keyframe with the next step. */
+		volatile boolean resync = false;
+		volatile boolean closed = false;
+
+		/** The client's view, or <tt>null</tt> to send all agents. */
+		volatile View view;
+
+		// encoding partial frames for the client's view, used by its thread only
+		private StepState latest;
+		private AgentStateCodec codec;
+		private ByteBuffer buf;
+		private long[] lastSent;
+		private int[] selected;
+		private int[] shift;
+		private long lastStep;
+		private long lastTime;
+		private Vector3f p = new Vector3f();
+
+		Client(Socket socket) throws IOException {
+			super("StateServer " + socket.getRemoteSocketAddress());
+			setDaemon(true);
+			this.socket = socket;
+			out = new BufferedOutputStream(socket.getOutputStream());
+			in = new DataInputStream(socket.getInputStream());
+		}
+
+		/**
+		 * Queues a frame, called with the model locked. If the queue is
+		 * full, the queued frames are dropped and a keyframe is requested.
+		 */
+		void send(byte[] frame) {
+			if (frame[0] == ReplayRecorder.FRAME_KEY) resync = false;
+			else if (resync) return; // useless without the keyframe
+			if (!queue.offer(frame)) {
+				queue.clear();
+				resync = true;
+			}
+		}
+
+		/**
+		 * Passes the state after a step to the client's thread, replacing
+		 * the previous one if it was not sent yet. Called with the model
+		 * locked.
+		 */
+		synchronized void offer(StepState s) {
+			latest = s;
+			notify();
+		}
+
+		/** Waits for the state of the next step, at most 100 ms. */
+		private synchronized StepState take() throws InterruptedException {
+			if (latest == null) wait(100);
+			StepState s = latest;
+			latest = null;
+			return s;
+		}
+
+		/** Sends the frames until the connection is closed. */
+		public void run() {
+			try {
+				while (!closed) {
+					if (view == null) {
+						byte[] frame = queue.poll(100, TimeUnit.MILLISECONDS);
+						if (frame != null) {
+							out.write(frame);
+							if (queue.isEmpty()) out.flush();
+						}
+					} else {
+						StepState s = take();
+						if (s != null) {
+							sendInterest(s);
+							out.write(buf.array(), 0, buf.position());
+							out.flush();
+						}
+					}
+					readRequests();
+				}
+			}
+			catch (IOException e) {
+				// the client disconnected
+			}
+			catch (InterruptedException e) {
+				// closed
+			}
+			finally {
+				close();
+			}
+		}
+
+		/** Reads the requests of the client received so far. */
+		private void readRequests() throws IOException {
+			while (in.available() > 0) {
+				int request = in.read();
+				if (request == REQUEST_KEYFRAME) {
+					resync = true;
+				} else if (request == VIEW) {
+					View v = new View(in);
+					if (view == null) {
+						// switch to partial frames, starting with our own keyframe
+						codec = new AgentStateCodec(agents.length);
+						buf = ByteBuffer.allocate(AgentStateCodec.maxFrameSize(agents.length) + 32);
+						lastSent = new long[agents.length];
+						selected = new int[agents.length];
+						shift = new int[agents.length];
+						queue.clear();
+						resync = true;
+					}
+					view = v;
+				} else if (request < 0) {
+					closed = true;
+				} else {
+					throw new IOException("Invalid request " + request);
+				}
+			}
+		}
+
+		/**
+		 * Encodes the state after a step for the client's view, as
+		 * a keyframe if requested, otherwise as a partial frame.
+		 */
+		private void sendInterest(StepState s) {
+			buf.clear();
+			if (resync) {
+				resync = false;
+				buf.put(ReplayRecorder.FRAME_KEY);
+				buf.putInt(0); // filled in below
+				buf.putLong(s.step);
+				buf.putLong(s.time);
+				codec.encode(s.state, buf, true);
+				Arrays.fill(lastSent, s.step);
+			} else {
+				buf.put(FRAME_PARTIAL);
+				buf.putInt(0); // filled in below
+				AgentStateCodec.putVarint(buf, (int)(s.step - lastStep));
+				AgentStateCodec.putVarint(buf, (int)(s.time - lastTime));
+				int n = select(s);
+				codec.encodePartial(s.state, selected, shift, n, buf);
+				for (int j=0; j<n; j++) {
+					lastSent[selected[j]] = s.step;
+				}
+			}
+			buf.putInt(1, buf.position() - 1 - 4);
+			lastStep = s.step;
+			lastTime = s.time;
+		}
+
+		/**
+		 * Selects the agents due for an update, depending on
+		 * where they are relative to the client's view.
+		 * @return the number of agents selected.
+		 */
+		private int select(StepState s) {
+			View v = view;
+			int n = 0;
+			for (int i=0; i<agents.length; i++) {
+				AgentStateCodec.getPosition(s.state, i, p);
+				int tier = v.tier(p);
+				if (s.step - lastSent[i] >= INTERVALS[tier] || codec.diedSince(s.state, i)) {
+					selected[n] = i;
+					shift[n++] = SHIFTS[tier];
+				}
+			}
+			return n;
+		}
+
+		/** Disconnects the client. */
+		void close() {
+			closed = true;
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+
+	/**
+	 * Entry point to serve the default scenario from the command line.
+	 * The model is computed headless, in real time, scaled by its
+	 * {@linkplain Model#setTimeScale(float) time scale}.
+	 * <p>
+	 * Usage: <tt>StateServer [-port <var>n</var>] [-fighters <var>n</var>]
+	 * [-seed <var>s</var>] [-step <var>ms</var>] [-keyframes <var>n</var>]</tt>
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		int fighters = 12;
+		long seed = 2000;
+		int step = BatchRunner.DEFAULT_STEP_DURATION;
+		int keyframes = DEFAULT_KEYFRAME_INTERVAL;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-port") && i+1 < args.length) {
+					port = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-fighters") && i+1 < args.length) {
+					fighters = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seed") && i+1 < args.length) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-step") && i+1 < args.length) {
+					step = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-keyframes") && i+1 < args.length) {
+					keyframes = Integer.parseInt(args[++i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+			Model.checkStepDuration(step);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Usage: StateServer [-port n] [-fighters n] [-seed s] [-step ms] [-keyframes n]");
+			System.exit(1);
+		}
+
+		Model model = new SimpleModelFactory(fighters, seed).createHeadlessModel();
+		model.setPaced(true);
+		ModelControl.register(model);
+		MetricsServer.startFromProperty();
+		MetricsServer.watch(model);
+		StateServer server = new StateServer(model, port, keyframes);
+		System.out.println("Serving " + model.numAgents() + " agents on port " + server.getPort());
+
+		long next = System.nanoTime();
+		while (true) {
+			if (!model.compute(step)) {
+				throw new IllegalStateException("Step of " + step + " ms was not computed");
+			}
+			next += (long)(step * 1000000L / model.getTimeScale());
+			long sleep = next - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1000000L, (int)(sleep % 1000000L));
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+			} else {
+				next = System.nanoTime(); // fell behind, do not try to catch up
+			}
+		}
+		server.close();
+	}
+}
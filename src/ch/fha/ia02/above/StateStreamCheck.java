@@ -0,0 +1,305 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.nio.*;
+import javax.vecmath.*;
+
+/**
+ * Checks the state stream over the loopback interface: a headless model
+ * is served by a {@link StateServer} and computed step by step, while a
+ * {@link StateClient} connection applies the frames it receives to a
+ * model restored from the snapshot it was sent.
+ * <p>
+ * The agents are quantized when encoded, so the client cannot hold
+ * the exact state of the server. It is compared to a reference model
+ * instead, which is given the quantized state of the server's model by
+ * a keyframe encoded for it alone after each step.
+ * <p>
+ * First, the client receives all agents. After each keyframe and delta
+ * frame, the {@linkplain Model#stateHash() state hash} of its model must
+ * match the one of the reference model. Then the client sends the view
+ * of a camera placed at the first agent, looking at the last agent some
+ * kilometers away, and receives partial frames. After each of them, the
+ * agents updated must be within the quantization error of their tier,
+ * and each agent that died must be dead for the client as well.
+ *
+ * @author Thomas Gerstendoerfer
+ */
+public class StateStreamCheck
+{
+	/** Field of view sent by the client, wide enough for agents far away. */
+	private static final float FOV = 1.5f;
+
+	/** Time for the server to switch to the client's view, in milliseconds. */
+	private static final long VIEW_DELAY = 300;
+
+	private Model model;
+	private int step;
+	private StateClient.Connection c;
+	private Model client;
+	private Model reference;
+	private ByteBuffer buf;
+
+	/** Number of frames checked by type, and of agents updated by tier. */
+	private int nKeyframes = 0;
+	private int nDeltas = 0;
+	private int nPartials = 0;
+	private int[] tiers = new int[StateServer.SHIFTS.length];
+	private int nDeaths = 0;
+
+	/** Bytes received in delta frames and in partial frames. */
+	private long deltaBytes = 0;
+	private long partialBytes = 0;
+
+
+	private StateStreamCheck(Model model, int step, StateClient.Connection c) {
+		this.model = model;
+		this.step = step;
+		this.c = c;
+		client = c.getSnapshot().createModel();
+		reference = c.getSnapshot().createModel();
+		buf = ByteBuffer.allocate(AgentStateCodec.maxFrameSize(model.numAgents()));
+	}
+
+	/**
+	 * Checks the frames of all agents, starting with the keyframe
+	 * the server queued when it sent the header.
+	 *
+	 * @return <tt>false</tt> if the client's state differs.
+	 */
+	private boolean checkFull(int steps) throws IOException {
+		updateReference();
+		for (int i=0; i<=steps; i++) {
+			if (i > 0) computeStep();
+			byte[] frame = nextFrame();
+			if (StateClient.Connection.isKeyframe(frame)) {
+				nKeyframes++;
+			} else {
+				nDeltas++;
+				deltaBytes += frame.length;
+			}
+			if (!checkHash(frame)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a view and checks the frames for it, starting
+	 * with the keyframe the server sends after switching.
+	 *
+	 * @return <tt>false</tt> if the client's state differs.
+	 */
+	private boolean checkView(int steps) throws IOException {
+		Agent[] agents = reference.getAgents();
+		Point3f camera = new Point3f(agents[0].position);
+		Vector3f direction = new Vector3f(agents[agents.length-1].position);
+		direction.sub(camera);
+		c.sendView(camera, direction, FOV);
+		StateServer.View view = new StateServer.View(new Vector3f(camera), new Vector3f(direction), FOV);
+		try {
+			// the client's thread reads requests at least every 100 ms
+			Thread.sleep(VIEW_DELAY);
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while sending the view.");
+		}
+
+		boolean[] dead = new boolean[agents.length];
+		for (int i=0; i<agents.length; i++) {
+			dead[i] = agents[i].health <= 0;
+		}
+		for (int i=0; i<steps; i++) {
+			computeStep();
+			byte[] frame = nextFrame();
+			if (frame[0] != StateServer.FRAME_PARTIAL) {
+				if (StateClient.Connection.isKeyframe(frame)) {
+					nKeyframes++;
+				} else {
+					nDeltas++;
+					deltaBytes += frame.length;
+				}
+				if (!checkHash(frame)) return false;
+				continue;
+			}
+			nPartials++;
+			partialBytes += frame.length;
+			if (!checkPartial(view, dead)) return false;
+		}
+		return true;
+	}
+
+	/** Computes a step and the state the client should have after it. */
+	private void computeStep() {
+		if (!model.compute(step)) {
+			throw new IllegalStateException("Step of " + step + " ms was not computed");
+		}
+		updateReference();
+	}
+
+	/** Reads the frame of the current step and applies it to the client's model. */
+	private byte[] nextFrame() throws IOException {
+		byte[] frame = c.readFrame();
+		synchronized (client) {
+			c.apply(frame, client);
+		}
+		if (client.getStepNumber() != model.getStepNumber()) {
+			throw new IOException("Received step " + client.getStepNumber()
+				+ " instead of " + model.getStepNumber());
+		}
+		return frame;
+	}
+
+	/** Compares the state hash of the client to the one of the reference. */
+	private boolean checkHash(byte[] frame) {
+		if (client.stateHash() != reference.stateHash()) {
+			System.err.println("State differs after the "
+				+ (StateClient.Connection.isKeyframe(frame) ? "keyframe" : "delta frame")
+				+ " of step " + client.getStepNumber());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the agents updated by a partial frame against the
+	 * reference, within the quantization error of their tier,
+	 * and that all agents that died are dead, whatever their tier.
+	 *
+	 * @param dead the agents known to be dead, updated by this method.
+	 */
+	private boolean checkPartial(StateServer.View view, boolean[] dead) {
+		Agent[] agents = client.getAgents();
+		Agent[] expected = reference.getAgents();
+		Vector3f p = new Vector3f();
+		for (int i=0; i<agents.length; i++) {
+			Agent a = agents[i];
+			Agent e = expected[i];
+			if (e.health <= 0) {
+				if (a.health > 0 || a.faction != Faction.NEUTRAL) return fail(a, "did not die");
+				if (!dead[i]) {
+					dead[i] = true;
+					nDeaths++;
+				}
+			}
+			if (!c.wasUpdated(i)) continue;
+
+			p.set(e.position);
+			int tier = view.tier(p);
+			tiers[tier]++;
+			int s = StateServer.SHIFTS[tier];
+			if (!near(a.position, e.position, s, AgentStateCodec.POSITION_QUANTUM)) {
+				return fail(a, "is at " + a.position + " instead of " + e.position);
+			}
+			if (!near(a.velocity, e.velocity, s, AgentStateCodec.VELOCITY_QUANTUM)) {
+				return fail(a, "moves at " + a.velocity + " instead of " + e.velocity);
+			}
+			if (!a.up.equals(e.up) || a.health != e.health) {
+				return fail(a, "differs in orientation or health");
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tests if a decoded vector is within the error of a quantized one,
+	 * sent with <var>s</var> low bits dropped: exactly the same at full
+	 * precision, otherwise at most half the reduced quantum apart.
+	 */
+	private static boolean near(Vector3f v, Vector3f expected, int s, float quantum) {
+		if (s == 0) return v.equals(expected);
+		float max = (1 << (s-1)) * quantum * 1.001f;
+		return Math.abs(v.x - expected.x) <= max
+			&& Math.abs(v.y - expected.y) <= max
+			&& Math.abs(v.z - expected.z) <= max;
+	}
+
+	private boolean fail(Agent a, String message) {
+		System.err.println(a.name + " " + message + " after the partial frame of step "
+			+ client.getStepNumber());
+		return false;
+	}
+
+	/**
+	 * Gives the reference model the state a client should have after
+	 * a step, by decoding a keyframe of the computed model.
+	 */
+	private void updateReference() {
+		Agent[] agents = model.getAgents();
+		buf.clear();
+		new AgentStateCodec(agents.length).encode(agents, buf, true);
+		buf.flip();
+		new AgentStateCodec(agents.length).decode(buf, reference.getAgents(), true);
+		reference.setTime(model.getTime(), model.getStepNumber());
+	}
+
+
+	/**
+	 * Entry point to check the stream of the default scenario.
+	 * The steps are computed once for all agents, and once for a view.
+	 * Exits with status 1 if the client's state differs.
+	 * <p>
+	 * Usage: <tt>StateStreamCheck [-fighters <var>n</var>] [-seed <var>s</var>]
+	 * [-steps <var>n</var>] [-step <var>ms</var>] [-keyframes <var>n</var>]</tt>
+	 */
+	public static void main(String[] args) throws IOException {
+		int fighters = 12;
+		long seed = 2000;
+		int steps = 500;
+		int step = BatchRunner.DEFAULT_STEP_DURATION;
+		int keyframes = 10;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-fighters") && i+1 < args.length) {
+					fighters = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seed") && i+1 < args.length) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-steps") && i+1 < args.length) {
+					steps = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-step") && i+1 < args.length) {
+					step = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-keyframes") && i+1 < args.length) {
+					keyframes = Integer.parseInt(args[++i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+			Model.checkStepDuration(step);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Usage: StateStreamCheck [-fighters n] [-seed s] [-steps n] [-step ms] [-keyframes n]");
+			System.exit(1);
+		}
+
+		Model model = new SimpleModelFactory(fighters, seed).createHeadlessModel();
+		StateServer server = new StateServer(model, 0, keyframes);
+		StateClient.Connection c = new StateClient.Connection("localhost", server.getPort());
+		StateStreamCheck check = new StateStreamCheck(model, step, c);
+		boolean ok;
+		try {
+			ok = check.checkFull(steps) && check.checkView(steps);
+		}
+		finally {
+			c.close();
+			server.close();
+		}
+		if (ok && (check.nKeyframes < 3 || check.nDeltas == 0 || check.nPartials == 0)) {
+			System.err.println("Too few steps to check all types of frames");
+			ok = false;
+		}
+		if (ok && (check.tiers[StateServer.NEAR] == 0
+			|| check.tiers[StateServer.REDUCED] + check.tiers[StateServer.RARE] == 0))
+		{
+			System.err.println("The view saw no agents near or far from the camera");
+			ok = false;
+		}
+		if (!ok) System.exit(1);
+		System.out.println("Client state matched after " + check.nKeyframes + " keyframes, "
+			+ check.nDeltas + " delta frames and " + check.nPartials + " partial frames");
+		System.out.println("Partial frames updated " + check.tiers[StateServer.NEAR] + " near, "
+			+ check.tiers[StateServer.REDUCED] + " reduced and " + check.tiers[StateServer.RARE]
+			+ " rare agents, " + check.nDeaths + " deaths");
+		System.out.println("Average frame size: " + check.deltaBytes / Math.max(1, check.nDeltas)
+			+ " bytes for all " + model.numAgents() + " agents, "
+			+ check.partialBytes / check.nPartials + " bytes for the view");
+	}
+}
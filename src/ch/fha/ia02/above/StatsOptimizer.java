@@ -0,0 +1,485 @@
+package ch.fha.ia02.above;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Searches for {@link Starfighter.Stats} that make starfighters both
+ * effective in combat and cheap to compute.
+ * <p>
+ * Candidate stats are assigned to the rebel squadron of the default
+ * scenario, which fights imperial squadrons using the default stats.
+ * Each candidate is evaluated in several headless battles with
+ * different seeds, computed in parallel. Its <em>effectiveness</em> is
+ * the average fraction of enemy starfighters destroyed minus the
+ * fraction of own starfighters lost, its <em>cost</em> the measured
+ * CPU time per step of the whole model.
+ * <p>
+ * The search is evolutionary: each generation mutates members of the
+ * current Pareto front, i.e. the candidates not dominated by any other
+ * candidate in both objectives, plus a few random candidates. The final
+ * front is emitted as presets, which can be loaded using
+ * {@link #loadPresets(File, Starfighter.Stats)}.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see BatchRunner
+ */
+public class StatsOptimizer
+{
+	/** Names of the tuned fields in {@link Starfighter.Stats}. */
+	private static final String[] NAMES = {
+		"agility", "rollAgility",
+		"avoidAngle", "avoidAngle2", "avoidWeight", "avoidDistFactor",
+		"separationDistance", "cohesionDistance", "alignmentDistance",
+		"separationAngle", "cohesionAngle", "alignmentAngle",
+		"separationWeight", "cohesionWeight", "alignmentWeight",
+		"radarRange", "radarAngle", "enemySeekWeight",
+		"attackRange", "attackAngle", "attackWeight",
+		"attackAlignmentWeight", "attackFrontalPriority", "fireAngle",
+	};
+
+	private static final float PI = (float)Math.PI;
+
+	/** Lower bounds of the tuned fields. */
+	private static final float[] MIN = {
+		0.5f, 0.1f,
+		0.5f, 0.2f, 0.1f, 0.5f,
+		10, 50, 50,
+		1, 1, 1,
+		0, 0, 0,
+		300, 1, 0.5f,
+		100, 0.1f, 0.02f,
+		0, 0, 0.05f,
+	};
+
+	/** Upper bounds of the tuned fields. */
+	private static final float[] MAX = {
+		5, 1.5f,
+		PI, 1.5f, 2, 3,
+		100, 400, 400,
+		PI, PI, PI,
+		1, 1, 1,
+		3000, PI, 10,
+		600, 1, 0.5f,
+		1, 50, 0.8f,
+	};
+
+	/** The tuned fields. */
+	private static final Field[] FIELDS = new Field[NAMES.length];
+	static {
+		try {
+			for (int i=0; i<NAMES.length; i++) {
+				FIELDS[i] = Starfighter.Stats.class.getDeclaredField(NAMES[i]);
+			}
+		}
+		catch (NoSuchFieldException e) {
+			throw new InternalError(e.toString());
+		}
+	}
+
+	/** Prefix of the keys in a presets file. */
+	private static final String PRESET_PREFIX = "preset.";
+
+
+	private Vessel type = Vessel.XWING;
+	private int nFighters;
+	private int threads;
+	private int seeds = 4;
+	private long timeLimit = 120*1000;
+	private Random random;
+
+	/** All candidates on the current Pareto front. */
+	private java.util.List<Candidate> front = new ArrayList<Candidate>();
+
+
+	/**
+	 * Creates a new optimizer.
+	 *
+	 * @param nFighters the number of starfighters per squadron.
+	 * @param threads the number of battles computed concurrently.
+	 * @param seed seed for the random generator used by the search.
+	 */
+	public StatsOptimizer(int nFighters, int threads, long seed) {
+		if (nFighters <= 0) throw new IllegalArgumentException("Number of fighters must be positive!");
+		if (threads < 1) throw new IllegalArgumentException("Thread count must be positive!");
+		this.nFighters = nFighters;
+		this.threads = threads;
+		this.random = new Random(seed);
+	}
+
+	/** Sets the number of battles each candidate is evaluated in. */
+	public void setSeeds(int seeds) {
+		if (seeds < 1) throw new IllegalArgumentException("Number of seeds must be positive!");
+		this.seeds = seeds;
+	}
+
+	/** Sets the maximum simulated time of a battle, in milliseconds. */
+	public void setTimeLimit(long timeLimit) {
+		if (timeLimit <= 0) throw new IllegalArgumentException("Time limit must be positive!");
+		this.timeLimit = timeLimit;
+	}
+
+
+	/**
+	 * Runs the search.
+	 *
+	 * @param generations the number of generations.
+	 * @param population the number of candidates per generation.
+	 * @return the Pareto-optimal candidates, ordered by increasing cost.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public java.util.List<Candidate> optimize(int generations, int population) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			java.util.List<Candidate> next = new ArrayList<Candidate>();
+			next.add(new Candidate(toVector((Starfighter.Stats)type.getStats())));
+			while (next.size() < population) {
+				next.add(new Candidate(randomVector()));
+			}
+			for (int g=0; g<generations; g++) {
+				evaluate(next, pool);
+				for (int i=0; i<next.size(); i++) {
+					addToFront(next.get(i));
+				}
+				System.out.println("Generation " + (g+1) + ": " + front.size() + " candidates on the front");
+				next = new ArrayList<Candidate>();
+				for (int i=0; i<population; i++) {
+					if (random.nextInt(5) == 0) {
+						next.add(new Candidate(randomVector()));
+					} else {
+						Candidate parent = front.get(random.nextInt(front.size()));
+						next.add(new Candidate(mutate(parent.values)));
+					}
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		java.util.List<Candidate> result = new ArrayList<Candidate>(front);
+		Collections.sort(result, new Comparator<Candidate>() {
+			public int compare(Candidate a, Candidate b) {
+				return Double.compare(a.cost, b.cost);
+			}
+		});
+		return result;
+	}
+
+	/** Evaluates all candidates, running their battles in parallel. */
+	private void evaluate(java.util.List<Candidate> candidates, ExecutorService pool) throws InterruptedException {
+		java.util.List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+		for (int c=0; c<candidates.size(); c++) {
+			final Starfighter.Stats stats = candidates.get(c).toStats();
+			for (int s=0; s<seeds; s++) {
+				final long seed = 2000 + s;
+				results.add(pool.submit(new Callable<double[]>() {
+					public double[] call() {
+						return battle(stats, seed);
+					}
+				}));
+			}
+		}
+		int k = 0;
+		for (int c=0; c<candidates.size(); c++) {
+			Candidate candidate = candidates.get(c);
+			double effectiveness = 0;
+			double cost = 0;
+			for (int s=0; s<seeds; s++) {
+				try {
+					double[] r = results.get(k++).get();
+					effectiveness += r[0];
+					cost += r[1];
+				}
+				catch (ExecutionException e) {
+					throw new IllegalStateException("Evaluation failed: " + e.getCause(), e.getCause());
+				}
+			}
+			candidate.effectiveness = effectiveness/seeds;
+			candidate.cost = cost/seeds;
+		}
+	}
+
+	/**
+	 * Fights a single battle.
+	 * @return the effectiveness and the CPU time per step, in microseconds.
+	 */
+	private double[] battle(Starfighter.Stats stats, long seed) {
+		SimpleModelFactory factory = new SimpleModelFactory(nFighters, seed);
+		factory.setFighterStats(type, stats);
+		Model model = factory.createHeadlessModel();
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		boolean cpuTime = bean.isCurrentThreadCpuTimeSupported();
+		long start = cpuTime ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+		BatchRunner.Outcome outcome = BatchRunner.run(model, seed, BatchRunner.DEFAULT_STEP_DURATION, timeLimit);
+		long elapsed = (cpuTime ? bean.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+
+		int own = 0, ownAlive = 0, enemies = 0, enemiesAlive = 0;
+		Agent[] agents = model.getAgents();
+		for (int i=0; i<agents.length; i++) {
+			if (!(agents[i] instanceof Starfighter)) continue;
+			if (agents[i].group == 0) {
+				own++;
+				if (agents[i].health > 0) ownAlive++;
+			} else {
+				enemies++;
+				if (agents[i].health > 0) enemiesAlive++;
+			}
+		}
+		double effectiveness = (double)(enemies - enemiesAlive)/enemies - (double)(own - ownAlive)/own;
+		return new double[] { effectiveness, elapsed/1000.0/Math.max(1, outcome.getSteps()) };
+	}
+
+
+	/**
+	 * Adds a candidate to the Pareto front, unless it is dominated,
+	 * and removes all candidates dominated by it.
+	 */
+	private void addToFront(Candidate c) {
+		for (int i=0; i<front.size(); i++) {
+			if (front.get(i).dominates(c)) return;
+		}
+		for (Iterator<Candidate> it = front.iterator(); it.hasNext(); ) {
+			if (c.dominates(it.next())) it.remove();
+		}
+		front.add(c);
+	}
+
+	/** Returns a uniformly distributed random parameter vector. */
+	private float[] randomVector() {
+		float[] v = new float[NAMES.length];
+		for (int i=0; i<v.length; i++) {
+			v[i] = MIN[i] + random.nextFloat()*(MAX[i] - MIN[i]);
+		}
+		return repair(v);
+	}
+
+	/** Returns a copy of <var>v</var> with some values changed slightly. */
+	private float[] mutate(float[] v) {
+		float[] m = v.clone();
+		boolean changed = false;
+		while (!changed) {
+			for (int i=0; i<m.length; i++) {
+				if (random.nextInt(m.length) < 3) {
+					m[i] += (float)random.nextGaussian() * 0.1f * (MAX[i] - MIN[i]);
+					changed = true;
+				}
+			}
+		}
+		return repair(m);
+	}
+
+	/** Clamps all values to their range, and fixes dependent angles. */
+	private static float[] repair(float[] v) {
+		for (int i=0; i<v.length; i++) {
+			if (v[i] < MIN[i]) v[i] = MIN[i];
+			if (v[i] > MAX[i]) v[i] = MAX[i];
+		}
+		int radar = indexOf("radarAngle");
+		int attack = indexOf("attackAngle");
+		int fire = indexOf("fireAngle");
+		if (v[attack] > v[radar]) v[attack] = v[radar];
+		if (v[fire] > v[attack]) v[fire] = v[attack];
+		return v;
+	}
+
+	/** Returns the index of a tuned field. */
+	private static int indexOf(String name) {
+		for (int i=0; i<NAMES.length; i++) {
+			if (NAMES[i].equals(name)) return i;
+		}
+		throw new IllegalArgumentException(name);
+	}
+
+	/** Reads the tuned fields of a stats object. */
+	private static float[] toVector(Starfighter.Stats stats) {
+		try {
+			float[] v = new float[NAMES.length];
+			for (int i=0; i<v.length; i++) {
+				v[i] = FIELDS[i].getFloat(stats);
+			}
+			return v;
+		}
+		catch (IllegalAccessException e) {
+			throw new InternalError(e.toString());
+		}
+	}
+
+
+	/**
+	 * Writes candidates as presets, which can be
+	 * loaded using {@link #loadPresets(File, Starfighter.Stats)}.
+	 *
+	 * @param candidates the candidates to write.
+	 * @param file the file to write to.
+	 * @throws IOException if the file could not be written.
+	 */
+	public static void savePresets(java.util.List<Candidate> candidates, File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# Pareto-optimal starfighter stats, ordered by increasing cost");
+			out.println(PRESET_PREFIX + "count=" + candidates.size());
+			for (int c=0; c<candidates.size(); c++) {
+				Candidate candidate = candidates.get(c);
+				out.println();
+				out.println("# " + candidate);
+				for (int i=0; i<NAMES.length; i++) {
+					out.println(PRESET_PREFIX + c + "." + NAMES[i] + "=" + candidate.values[i]);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (out.checkError()) throw new IOException("Could not write " + file);
+	}
+
+	/**
+	 * Loads presets written by {@link #savePresets(java.util.List, File)}.
+	 * Fields not contained in a preset keep the values of the
+	 * <tt>base</tt> stats.
+	 *
+	 * @param file the file to read.
+	 * @param base the stats to modify, usually those of a vessel type.
+	 * @return one stats object for each preset.
+	 * @throws IOException if the file could not be read.
+	 * @throws IllegalArgumentException if a preset is invalid.
+	 */
+	public static java.util.List<Starfighter.Stats> loadPresets(File file, Starfighter.Stats base) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		}
+		finally {
+			in.close();
+		}
+		int n = Integer.parseInt(props.getProperty(PRESET_PREFIX + "count", "0"));
+		java.util.List<Starfighter.Stats> presets = new ArrayList<Starfighter.Stats>(n);
+		for (int c=0; c<n; c++) {
+			float[] v = toVector(base);
+			for (int i=0; i<NAMES.length; i++) {
+				String s = props.getProperty(PRESET_PREFIX + c + "." + NAMES[i]);
+				if (s != null) v[i] = Float.parseFloat(s);
+			}
+			presets.add(toStats(v, base));
+		}
+		return presets;
+	}
+
+	/** Returns a copy of <var>base</var> with the tuned fields set. */
+	private static Starfighter.Stats toStats(float[] v, Starfighter.Stats base) {
+		Starfighter.Stats stats = (Starfighter.Stats)base.clone();
+		try {
+			for (int i=0; i<v.length; i++) {
+				FIELDS[i].setFloat(stats, v[i]);
+			}
+		}
+		catch (IllegalAccessException e) {
+			throw new InternalError(e.toString());
+		}
+		stats.validate();
+		return stats;
+	}
+
+
+	/** A set of values for the tuned fields, and how it performed. */
+	public class Candidate {
+		private float[] values;
+		private double effectiveness;
+		private double cost;
+
+		Candidate(float[] values) {
+			this.values = values;
+		}
+
+		/** Creates the stats for this candidate. */
+		public Starfighter.Stats toStats() {
+			return StatsOptimizer.toStats(values, (Starfighter.Stats)type.getStats());
+		}
+
+		/**
+		 * Returns the average fraction of enemy fighters destroyed
+		 * minus the fraction of own fighters lost, between -1 and 1.
+		 */
+		public double getEffectiveness() {
+			return effectiveness;
+		}
+
+		/** Returns the average CPU time per step, in microseconds. */
+		public double getCost() {
+			return cost;
+		}
+
+		/** Tests if this candidate is at least as good in both objectives, and better in one. */
+		boolean dominates(Candidate o) {
+			return effectiveness >= o.effectiveness && cost <= o.cost
+				&& (effectiveness > o.effectiveness || cost < o.cost);
+		}
+
+		/** Returns a string representation of this candidate. */
+		public String toString() {
+			return "effectiveness " + Math.round(effectiveness*1000)/1000.0
+				+ ", cost " + Math.round(cost) + " us/step";
+		}
+	}
+
+
+	/**
+	 * Entry point to run the search from the command line.
+	 * <p>
+	 * Usage: <tt>StatsOptimizer [-generations <var>n</var>]
+	 * [-population <var>n</var>] [-seeds <var>n</var>]
+	 * [-threads <var>n</var>] [-limit <var>seconds</var>]
+	 * [-fighters <var>n</var>] [-out <var>file</var>]</tt>
+	 */
+	public static void main(String[] args) throws Exception {
+		int generations = 10;
+		int population = 16;
+		int seeds = 4;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int limit = 120;
+		int fighters = 12;
+		File out = new File("presets.properties");
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-generations") && i+1 < args.length) {
+					generations = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-population") && i+1 < args.length) {
+					population = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seeds") && i+1 < args.length) {
+					seeds = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-threads") && i+1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-limit") && i+1 < args.length) {
+					limit = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-fighters") && i+1 < args.length) {
+					fighters = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-out") && i+1 < args.length) {
+					out = new File(args[++i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Usage: StatsOptimizer [-generations n] [-population n] [-seeds n]"
+				+ " [-threads n] [-limit seconds] [-fighters n] [-out file]");
+			System.exit(1);
+		}
+
+		StatsOptimizer optimizer = new StatsOptimizer(fighters, threads, 2000);
+		optimizer.setSeeds(seeds);
+		optimizer.setTimeLimit(limit*1000L);
+		java.util.List<Candidate> front = optimizer.optimize(generations, population);
+		for (int i=0; i<front.size(); i++) {
+			System.out.println(front.get(i));
+		}
+		savePresets(front, out);
+		System.out.println(front.size() + " presets written to " + out);
+	}
+}
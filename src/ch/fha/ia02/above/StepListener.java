@@ -0,0 +1,22 @@
+package ch.fha.ia02.above;
+
+/**
+ * A listener for receiving notifications whenever a model
+ * has computed a step.
+ * <p>
+ * Listeners are invoked on the thread that computes the model,
+ * while the model is locked, and should therefore return quickly.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Model#addStepListener(StepListener)
+ */
+public interface StepListener
+{
+	/**
+	 * This method gets called after a step was computed for all agents.
+	 *
+	 * @param model the model that computed the step.
+	 */
+	public void stepComputed(Model model);
+}
@@ -0,0 +1,153 @@
+package ch.fha.ia02.above;
+
+import java.util.*;
+
+/**
+ * Collects the wall-clock time needed to compute the recent steps of
+ * a model, to report their mean, percentiles and rate. Registered as
+ * step listener, it records {@link Model#getLastStepDuration()} after
+ * each step.
+ * <p>
+ * The mean and percentiles are computed from the last {@link #SAMPLES}
+ * steps only, while the count and total duration include all steps
+ * recorded since the statistics were created or reset. The rate is
+ * computed from the number of steps recorded since a checkpoint, which
+ * is taken once per second, so it does not depend on the number of
+ * samples kept.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see MetricsServer
+ * @see ModelControl
+ */
+public class StepStatistics implements StepListener
+{
+	/** Number of recent steps the statistics are computed from. */
+	public static final int SAMPLES = 1024;
+
+	/** Interval between the checkpoints of the step count, in nanoseconds. */
+	private static final long CHECKPOINT_INTERVAL = 1000000000L;
+
+	/** Number of checkpoints kept, so rates can be computed over a minute. */
+	private static final int CHECKPOINTS = 64;
+
+	// ring buffer of the recent step durations, in nanoseconds
+	private long[] durations = new long[SAMPLES];
+	private long steps;
+	private long totalDuration;
+
+	// ring buffers of the checkpoints, their time and the step count at that time
+	private long[] checkpointTimes = new long[CHECKPOINTS];
+	private long[] checkpointSteps = new long[CHECKPOINTS];
+	private int checkpoints;
+
+
+	/** Creates empty statistics. */
+	public StepStatistics() {
+		reset();
+	}
+
+
+	/** Records the duration of the step just computed. */
+	public void stepComputed(Model model) {
+		record(model.getLastStepDuration());
+	}
+
+	/**
+	 * Records the duration of a step.
+	 * @param nanos the wall-clock time needed for the step, in nanoseconds.
+	 */
+	public synchronized void record(long nanos) {
+		int i = (int)(steps % SAMPLES);
+		durations[i] = nanos;
+		totalDuration += nanos;
+		steps++;
+		long now = System.nanoTime();
+		if (now - checkpointTimes[(checkpoints - 1) % CHECKPOINTS] >= CHECKPOINT_INTERVAL) {
+			checkpoint(now);
+		}
+	}
+
+	/** Discards all steps recorded so far. */
+	public synchronized void reset() {
+		steps = 0;
+		totalDuration = 0;
+		checkpoints = 0;
+		checkpoint(System.nanoTime());
+	}
+
+	/** Remembers the number of steps recorded until now. */
+	private void checkpoint(long now) {
+		int i = checkpoints % CHECKPOINTS;
+		checkpointTimes[i] = now;
+		checkpointSteps[i] = steps;
+		checkpoints++;
+	}
+
+
+	/** Returns the number of steps recorded since the last reset. */
+	public synchronized long getCount() {
+		return steps;
+	}
+
+	/** Returns the time needed for all steps recorded since the last reset, in nanoseconds. */
+	public synchronized long getTotalDuration() {
+		return totalDuration;
+	}
+
+	/** Returns the mean time of the recent steps, in nanoseconds. */
+	public synchronized long getMean() {
+		int n = samples();
+		if (n == 0) return 0;
+		long sum = 0;
+		for (int i=0; i<n; i++) {
+			sum += durations[i];
+		}
+		return sum / n;
+	}
+
+	/**
+	 * Returns a percentile of the time of the recent steps,
+	 * using the nearest rank.
+	 *
+	 * @param q the percentile, between 0 and 1.
+	 * @return the duration, in nanoseconds, or 0 if no step was recorded.
+	 */
+	public synchronized long getPercentile(double q) {
+		int n = samples();
+		if (n == 0) return 0;
+		long[] sorted = new long[n];
+		System.arraycopy(durations, 0, sorted, 0, n);
+		Arrays.sort(sorted);
+		int rank = (int)Math.ceil(q * n) - 1;
+		return sorted[Math.max(0, Math.min(n-1, rank))];
+	}
+
+	/**
+	 * Returns the number of steps computed per second, from the
+	 * number of steps recorded since the latest checkpoint taken
+	 * at least <var>period</var> ago. If there is none, as right
+	 * after a reset, the oldest checkpoint kept is used.
+	 *
+	 * @param period the time to average over, in nanoseconds,
+	 *        at most about a minute.
+	 */
+	public synchronized double getRate(long period) {
+		long now = System.nanoTime();
+		int n = Math.min(checkpoints, CHECKPOINTS);
+		int from = (checkpoints - n) % CHECKPOINTS;
+		for (int k=checkpoints-1; k>=checkpoints-n; k--) {
+			if (now - checkpointTimes[k % CHECKPOINTS] >= period) {
+				from = k % CHECKPOINTS;
+				break;
+			}
+		}
+		long elapsed = now - checkpointTimes[from];
+		return (elapsed > 0) ? (steps - checkpointSteps[from]) * 1e9 / elapsed : 0;
+	}
+
+	/** Returns the number of recent steps stored. */
+	private int samples() {
+		return (int)Math.min(steps, SAMPLES);
+	}
+}
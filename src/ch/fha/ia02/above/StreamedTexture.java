@@ -0,0 +1,250 @@
+package ch.fha.ia02.above;
+
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+import javax.media.j3d.*;
+import com.sun.j3d.utils.image.*;
+
+/**
+ * A texture that is available at low resolution first, while the
+ * full resolution is loaded in the background.
+ * <p>
+ * Appearances {@linkplain #bind(Appearance) bound} to a streamed texture
+ * show the preview immediately, and are switched to the full resolution
+ * texture once it is loaded. Full resolution textures are loaded one
+ * at a time by a single background thread, which bounds the memory
+ * needed to decode them.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see TextureCache#getStreamedTexture(URL)
+ * @see TextureAtlas
+ */
+public class StreamedTexture
+{
+	/** Loads the full resolution textures, created on first use. */
+	private static ExecutorService streamer;
+
+	private int width, height;
+	private Texture preview;
+	private Texture full;
+	private FutureTask<Texture> task;
+
+	/** Appearances to update once loaded, <tt>null</tt> when done. */
+	private java.util.List<Appearance> appearances = new ArrayList<Appearance>();
+
+
+	/**
+	 * Creates a streamed texture and starts loading its full resolution.
+	 *
+	 * @param width the width of the full resolution image, in pixels.
+	 * @param height the height of the full resolution image, in pixels.
+	 * @param preview the low resolution texture, may be <tt>null</tt>.
+	 * @param loader loads the full resolution texture, or <tt>null</tt>
+	 *        if the preview has full resolution already.
+	 */
+	StreamedTexture(int width, int height, Texture preview, Callable<Texture> loader) {
+		this.width = width;
+		this.height = height;
+		this.preview = preview;
+		if (loader == null) {
+			full = preview;
+			appearances = null;
+			return;
+		}
+		task = new FutureTask<Texture>(loader) {
+			protected void done() {
+				loaded();
+			}
+		};
+		getStreamer().execute(task);
+	}
+
+	/** Returns the thread loading the full resolution textures. */
+	private static synchronized ExecutorService getStreamer() {
+		if (streamer == null) {
+			streamer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TextureStreamer");
+					t.setDaemon(true);
+					t.setPriority(Thread.NORM_PRIORITY - 1);
+					return t;
+				}
+			});
+		}
+		return streamer;
+	}
+
+
+	/** Returns the width of the full resolution image, in pixels. */
+	public int getWidth() {
+		return width;
+	}
+
+	/** Returns the height of the full resolution image, in pixels. */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the best texture available now.
+	 * @return the full resolution texture if it is loaded already,
+	 *         otherwise the preview, which may be <tt>null</tt>.
+	 */
+	public synchronized Texture getTexture() {
+		return (full != null) ? full : preview;
+	}
+
+	/**
+	 * Returns the full resolution texture, waiting until it is loaded.
+	 * If loading did not start yet, it is loaded by the calling thread.
+	 *
+	 * @return the full resolution texture, or the preview
+	 *         if it could not be loaded.
+	 */
+	public Texture getFullTexture() {
+		if (task != null) {
+			task.run(); // does nothing if started already
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						Texture tex = task.get();
+						if (tex != null) return tex; // done() may not have run yet
+						break;
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+					}
+					catch (CancellationException e) {
+						break;
+					}
+					catch (ExecutionException e) {
+						break; // reported when done
+					}
+				}
+			}
+			finally {
+				if (interrupted) Thread.currentThread().interrupt();
+			}
+		}
+		return getTexture();
+	}
+
+	/** Returns <tt>true</tt> if the full resolution texture is loaded. */
+	public synchronized boolean isComplete() {
+		return appearances == null;
+	}
+
+	/**
+	 * Sets the best texture available now on an appearance, and
+	 * replaces it with the full resolution texture once it is loaded.
+	 * Must be called before the appearance is live or compiled.
+	 *
+	 * @param app the appearance to show this texture.
+	 */
+	public synchronized void bind(Appearance app) {
+		if (appearances != null) {
+			app.setCapability(Appearance.ALLOW_TEXTURE_WRITE);
+			appearances.add(app);
+		}
+		app.setTexture(getTexture());
+	}
+
+	/**
+	 * Stops loading the full resolution texture, if it did not start
+	 * yet. Bound appearances keep the preview.
+	 */
+	void cancel() {
+		if (task != null) task.cancel(false);
+	}
+
+	/** Switches the bound appearances to the full resolution texture. */
+	private void loaded() {
+		Texture tex = null;
+		try {
+			if (!task.isCancelled()) tex = task.get();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		java.util.List<Appearance> apps;
+		synchronized (this) {
+			if (tex != null) full = tex;
+			apps = appearances;
+			appearances = null;
+		}
+		if (tex != null) {
+			for (Appearance app : apps) {
+				app.setTexture(tex);
+			}
+		}
+	}
+
+
+	/**
+	 * Reads an image, decoding only every n-th pixel of each
+	 * n-th row if it is larger than the specified size.
+	 *
+	 * @param url the image to read.
+	 * @param maxSize the maximum width and height of the image returned.
+	 * @param size receives the width and height of the full image,
+	 *        may be <tt>null</tt>.
+	 * @return the image.
+	 * @throws IOException if the image cannot be read.
+	 */
+	static BufferedImage readImage(URL url, int maxSize, int[] size) throws IOException {
+		InputStream stream = url.openStream();
+		ImageInputStream in = ImageIO.createImageInputStream(stream);
+		if (in == null) {
+			stream.close();
+			throw new IOException("Cannot read image " + url);
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) throw new IOException("Unsupported image format " + url);
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int w = reader.getWidth(0);
+				int h = reader.getHeight(0);
+				if (size != null) {
+					size[0] = w;
+					size[1] = h;
+				}
+				ImageReadParam param = reader.getDefaultReadParam();
+				int step = (Math.max(w, h) + maxSize - 1) / maxSize;
+				if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+				return reader.read(0, param);
+			}
+			finally {
+				reader.dispose();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/** Creates a texture with mipmaps from an image. */
+	static Texture createTexture(BufferedImage img) {
+		TextureLoader tl = new TextureLoader(img, TextureLoader.GENERATE_MIPMAP);
+		Texture tex = tl.getTexture();
+		tex.setMinFilter(Texture.MULTI_LEVEL_LINEAR);
+		tex.setMagFilter(Texture.BASE_LEVEL_LINEAR);
+		return tex;
+	}
+
+
+	/** Returns a string representation of this texture. */
+	public String toString() {
+		return getClass().getName() + "[" + width + "x" + height
+			+ (isComplete() ? "" : ", loading") + "]";
+	}
+}
@@ -0,0 +1,286 @@
+package ch.fha.ia02.above;
+
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+import javax.media.j3d.*;
+
+/**
+ * Packs several small images into one texture, so shapes using any
+ * of them can share one appearance and be drawn without switching
+ * textures. Shapes select their image by texture coordinates, which
+ * also allows animations by changing only the texture coordinates.
+ * <p>
+ * The {@link #getDefault() default atlas} contains the sprites of the
+ * background objects and the frames of the explosions. It is created
+ * on first use, at load time, and streamed in at full resolution later.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Explosion
+ * @see ShapeCache
+ */
+public class TextureAtlas
+{
+	/** Images packed into the default atlas. */
+	public static final String[] DEFAULT_IMAGES = {
+		"/media/exp02_1.png",
+		"/media/exp02_2.png",
+		"/media/exp02_3.png",
+		"/media/ds2.png",
+		"/media/endor.png",
+	};
+
+	/** Transparent gap between the images, keeps mipmaps from bleeding. */
+	private static final int PADDING = 2;
+
+	/** Factor by which the preview of the atlas is scaled down. */
+	private static final int PREVIEW_SCALE = 4;
+
+	/** The default atlas, created on first use. */
+	private static TextureAtlas defaultAtlas;
+
+	/** The packed texture, <tt>null</tt> if no image could be loaded. */
+	private StreamedTexture texture;
+
+	/** Regions of the packed images, by resource name. */
+	private Map<String, Region> regions = new HashMap<String, Region>();
+
+
+	/**
+	 * The area of an image within the atlas.
+	 */
+	public static class Region
+	{
+		private float u0, v0, u1, v1;
+		private int width, height;
+
+		Region(int x, int y, int width, int height, int atlasWidth, int atlasHeight) {
+			this.width = width;
+			this.height = height;
+			// the first image row is at the top of the texture
+			u0 = (float)x / atlasWidth;
+			u1 = (float)(x + width) / atlasWidth;
+			v0 = 1 - (float)(y + height) / atlasHeight;
+			v1 = 1 - (float)y / atlasHeight;
+		}
+
+		/** Returns the width of the image, in pixels. */
+		public int getWidth() {
+			return width;
+		}
+
+		/** Returns the height of the image, in pixels. */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * Returns the texture coordinates of a quad showing this image,
+		 * counter-clockwise starting at the lower left corner.
+		 */
+		public float[] getQuadCoordinates() {
+			return new float[] {
+				u0, v0,
+				u1, v0,
+				u1, v1,
+				u0, v1,
+			};
+		}
+	}
+
+
+	/**
+	 * Creates an atlas containing the specified images.
+	 * Images that cannot be loaded are reported and left out.
+	 * <p>
+	 * Only a preview of the atlas at a quarter of its resolution is
+	 * created right away, the full resolution is {@linkplain StreamedTexture
+	 * streamed} in the background. As texture coordinates are relative to
+	 * the size of the texture, the regions are the same for both.
+	 *
+	 * @param names the absolute resource names of the images.
+	 */
+	public TextureAtlas(String[] names) {
+		// decode the previews, tallest image first for shelf packing
+		final Map<String, URL> urls = new LinkedHashMap<String, URL>();
+		final Map<String, int[]> sizes = new HashMap<String, int[]>();
+		Map<String, BufferedImage> previews = new HashMap<String, BufferedImage>();
+		for (int i=0; i<names.length; i++) {
+			URL url;
+			try {
+				url = AssetPack.getResource(names[i]);
+			}
+			catch (MissingResourceException e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+			int[] size = new int[2];
+			try {
+				previews.put(names[i], StreamedTexture.readImage(url, TextureCache.PREVIEW_SIZE * 2, size));
+			}
+			catch (IOException e) {
+				System.err.println("Cannot read image " + names[i] + ": " + e.getMessage());
+				continue;
+			}
+			urls.put(names[i], url);
+			sizes.put(names[i], size);
+		}
+		if (urls.isEmpty()) return;
+		final java.util.List<String> order = new ArrayList<String>(urls.keySet());
+		Collections.sort(order, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return sizes.get(b)[1] - sizes.get(a)[1];
+			}
+		});
+
+		// width of the atlas: enough for the widest image, and roughly square
+		int area = 0;
+		int maxWidth = 0;
+		for (int[] size : sizes.values()) {
+			area += (size[0] + PADDING) * (size[1] + PADDING);
+			maxWidth = Math.max(maxWidth, size[0]);
+		}
+		final int width = powerOfTwo(Math.max(maxWidth, (int)Math.sqrt(area)));
+
+		// place the images on shelves
+		final Map<String, int[]> positions = new HashMap<String, int[]>();
+		int x = 0, y = 0, shelfHeight = 0;
+		for (String name : order) {
+			int[] size = sizes.get(name);
+			if (x + size[0] > width) {
+				x = 0;
+				y += shelfHeight + PADDING;
+				shelfHeight = 0;
+			}
+			positions.put(name, new int[] { x, y });
+			x += size[0] + PADDING;
+			shelfHeight = Math.max(shelfHeight, size[1]);
+		}
+		final int height = powerOfTwo(y + shelfHeight);
+		for (String name : order) {
+			int[] p = positions.get(name);
+			int[] size = sizes.get(name);
+			regions.put(name, new Region(p[0], p[1], size[0], size[1], width, height));
+		}
+
+		// draw the previews scaled down, the full images when streamed in
+		BufferedImage preview = draw(order, previews, positions, sizes,
+			Math.max(1, width / PREVIEW_SCALE), Math.max(1, height / PREVIEW_SCALE), PREVIEW_SCALE);
+		texture = new StreamedTexture(width, height, StreamedTexture.createTexture(preview),
+			new Callable<Texture>() {
+				public Texture call() {
+					Map<String, BufferedImage> images = new HashMap<String, BufferedImage>();
+					for (String name : order) {
+						BufferedImage img = loadImage(name, urls.get(name));
+						if (img != null) images.put(name, img);
+					}
+					return StreamedTexture.createTexture(
+						draw(order, images, positions, sizes, width, height, 1));
+				}
+			});
+	}
+
+	/**
+	 * Draws images into a new atlas image, scaled down by a factor.
+	 * Missing images are left transparent.
+	 */
+	private static BufferedImage draw(
+		java.util.List<String> order,
+		Map<String, BufferedImage> images,
+		Map<String, int[]> positions,
+		Map<String, int[]> sizes,
+		int width,
+		int height,
+		int scale)
+	{
+		BufferedImage atlas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		java.awt.Graphics2D g = atlas.createGraphics();
+		g.setRenderingHint(java.awt.RenderingHints.KEY_INTERPOLATION,
+			java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		for (String name : order) {
+			BufferedImage img = images.get(name);
+			if (img == null) continue;
+			int[] p = positions.get(name);
+			int[] size = sizes.get(name);
+			g.drawImage(img, p[0] / scale, p[1] / scale, size[0] / scale, size[1] / scale, null);
+		}
+		g.dispose();
+		return atlas;
+	}
+
+	/** Loads an image at full resolution. */
+	private static BufferedImage loadImage(String name, URL url) {
+		try {
+			BufferedImage img = ImageIO.read(url);
+			if (img == null) System.err.println("Cannot read image " + name);
+			return img;
+		}
+		catch (IOException e) {
+			System.err.println("Cannot read image " + name + ": " + e);
+			return null;
+		}
+	}
+
+	/** Returns the smallest power of two not less than <tt>n</tt>. */
+	private static int powerOfTwo(int n) {
+		int p = 1;
+		while (p < n) p <<= 1;
+		return p;
+	}
+
+
+	/**
+	 * Returns the default atlas, creating it if necessary.
+	 * @see #DEFAULT_IMAGES
+	 */
+	public static synchronized TextureAtlas getDefault() {
+		if (defaultAtlas == null) {
+			defaultAtlas = new TextureAtlas(DEFAULT_IMAGES);
+		}
+		return defaultAtlas;
+	}
+
+	/**
+	 * Releases the default atlas, it is created
+	 * again the next time it is used.
+	 */
+	public static synchronized void release() {
+		if (defaultAtlas != null && defaultAtlas.texture != null) {
+			defaultAtlas.texture.cancel();
+		}
+		defaultAtlas = null;
+	}
+
+
+	/**
+	 * Returns the packed texture, which is streamed in.
+	 * @return the texture, or <tt>null</tt> if no image could be loaded.
+	 * @see StreamedTexture#bind(Appearance)
+	 */
+	public StreamedTexture getTexture() {
+		return texture;
+	}
+
+	/**
+	 * Returns the region of an image.
+	 *
+	 * @param name the resource name of the image.
+	 * @return the region, or <tt>null</tt> if the image is not packed.
+	 */
+	public Region getRegion(String name) {
+		return regions.get(name);
+	}
+
+
+	/** Returns a string representation of this atlas. */
+	public String toString() {
+		String size = (texture == null) ? "empty"
+			: texture.getWidth() + "x" + texture.getHeight() + (texture.isComplete() ? "" : " loading");
+		return getClass().getName() + "[" + size + ", " + regions.size() + " images]";
+	}
+}
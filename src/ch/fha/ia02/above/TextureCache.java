@@ -0,0 +1,226 @@
+package ch.fha.ia02.above;
+
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.media.j3d.*;
+import com.sun.j3d.utils.image.*;
+
+/**
+ * Loads and caches textures, so each image is loaded only once
+ * even if it is used by several vessels, sprites or effects.
+ * <p>
+ * Textures are identified by the URL of their image and are created
+ * with mipmaps, which avoids aliasing of distant objects and speeds up
+ * rendering them. The cache keeps track of the memory required by all
+ * textures, including their mipmaps.
+ * <p>
+ * Large images are {@linkplain StreamedTexture streamed}: a downsampled
+ * preview is decoded first, so shapes can be shown right away, and the
+ * full resolution texture replaces it once it is loaded in the background.
+ * <p>
+ * This class is thread safe. If several threads request the same
+ * texture at once, it is loaded only once and the other threads wait
+ * for it.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see ShapeCache
+ */
+public class TextureCache
+{
+	/** Maximum width and height of the previews, in pixels. */
+	public static final int PREVIEW_SIZE = 64;
+
+	/** Stores the textures, which may still be loading, by image URL. */
+	private static Map<String, Future<StreamedTexture>> map = new HashMap<String, Future<StreamedTexture>>();
+
+	/** Number of textures loaded and requested. */
+	private static int loads = 0;
+	private static int requests = 0;
+
+
+	/** Private to avoid instantiation. */
+	private TextureCache() {
+	}
+
+
+	/**
+	 * Returns the full resolution texture for an image,
+	 * loading it if necessary.
+	 *
+	 * @param url the image to load.
+	 * @return the texture with mipmaps, or <tt>null</tt> if the image
+	 *         could not be loaded.
+	 */
+	public static Texture getTexture(URL url) {
+		StreamedTexture st = getStreamedTexture(url);
+		return (st == null) ? null : st.getFullTexture();
+	}
+
+	/**
+	 * Returns the streamed texture for an image, loading its preview if
+	 * necessary. The full resolution is loaded in the background.
+	 *
+	 * @param url the image to load.
+	 * @return the streamed texture, or <tt>null</tt> if the image
+	 *         could not be loaded.
+	 * @see StreamedTexture#bind(Appearance)
+	 */
+	public static StreamedTexture getStreamedTexture(final URL url) {
+		String key = url.toExternalForm();
+		FutureTask<StreamedTexture> task = null;
+		Future<StreamedTexture> f;
+		synchronized (TextureCache.class) {
+			requests++;
+			f = map.get(key);
+			if (f == null) {
+				task = new FutureTask<StreamedTexture>(new Callable<StreamedTexture>() {
+					public StreamedTexture call() {
+						return load(url);
+					}
+				});
+				map.put(key, task);
+				f = task;
+			}
+		}
+		if (task != null) {
+			task.run(); // loaded by the first thread requesting it
+		}
+
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return f.get();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+				catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					return null;
+				}
+			}
+		}
+		finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Loads the preview of a texture, and starts loading
+	 * its full resolution if the preview is downsampled.
+	 */
+	private static StreamedTexture load(final URL url) {
+		int[] size = new int[2];
+		BufferedImage img;
+		try {
+			img = StreamedTexture.readImage(url, PREVIEW_SIZE, size);
+		}
+		catch (IOException e) {
+			System.err.println("Cannot load texture " + url + ": " + e.getMessage());
+			return null;
+		}
+		Callable<Texture> loader = null;
+		if (img.getWidth() < size[0] || img.getHeight() < size[1]) {
+			loader = new Callable<Texture>() {
+				public Texture call() {
+					return loadFull(url);
+				}
+			};
+		}
+		synchronized (TextureCache.class) {
+			loads++;
+		}
+		return new StreamedTexture(size[0], size[1], StreamedTexture.createTexture(img), loader);
+	}
+
+	/** Loads the full resolution of a texture and generates its mipmaps. */
+	private static Texture loadFull(URL url) {
+		TextureLoader tl = new TextureLoader(url, TextureLoader.GENERATE_MIPMAP, null);
+		Texture tex = tl.getTexture();
+		if (tex == null) {
+			System.err.println("Cannot load texture " + url);
+			return null;
+		}
+		tex.setMinFilter(Texture.MULTI_LEVEL_LINEAR);
+		tex.setMagFilter(Texture.BASE_LEVEL_LINEAR);
+		return tex;
+	}
+
+
+	/**
+	 * Removes all textures from the cache. Textures still in use
+	 * are released as soon as their shapes are no longer used.
+	 * Full resolution textures not loaded yet are not loaded anymore.
+	 */
+	public static synchronized void release() {
+		for (StreamedTexture st : getLoaded()) {
+			st.cancel();
+		}
+		map.clear();
+	}
+
+	/** Returns the textures whose previews are loaded. */
+	private static synchronized java.util.List<StreamedTexture> getLoaded() {
+		java.util.List<StreamedTexture> list = new ArrayList<StreamedTexture>();
+		for (Future<StreamedTexture> f : map.values()) {
+			if (!f.isDone()) continue;
+			try {
+				StreamedTexture st = f.get();
+				if (st != null) list.add(st);
+			}
+			catch (Exception e) {
+				// failed textures are not loaded
+			}
+		}
+		return list;
+	}
+
+	/** Returns the number of textures in the cache. */
+	public static synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * Returns the memory required by all textures in the cache,
+	 * including their mipmaps, in bytes.
+	 */
+	public static synchronized long getMemoryUsage() {
+		long size = 0;
+		for (StreamedTexture st : getLoaded()) {
+			Texture tex = st.getTexture();
+			if (tex != null) size += getMemoryUsage(tex);
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the memory required by a texture, assuming
+	 * 4 bytes per pixel as used by <tt>TextureLoader</tt>.
+	 */
+	private static long getMemoryUsage(Texture tex) {
+		long size = 0;
+		ImageComponent[] images = tex.getImages();
+		for (int i=0; i<images.length; i++) {
+			if (images[i] != null) {
+				size += 4L * images[i].getWidth() * images[i].getHeight();
+			}
+		}
+		return size;
+	}
+
+	/** Returns a short report on the cache's size and efficiency. */
+	public static synchronized String report() {
+		int streaming = 0;
+		for (StreamedTexture st : getLoaded()) {
+			if (!st.isComplete()) streaming++;
+		}
+		return map.size() + " textures using " + (getMemoryUsage() + 1023)/1024 + " KB, "
+			+ streaming + " streaming, " + loads + " loads for " + requests + " requests";
+	}
+}
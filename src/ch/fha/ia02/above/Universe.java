@@ -17,6 +17,7 @@ import java.io.*;
  */
 public class Universe extends VirtualUniverse {
 	private Model model;
+	private ModelControl control;
 	private Locale locale;
 	private BranchGroup viewGroup;
 	private BranchGroup utilGroup;
@@ -27,7 +28,7 @@ public class Universe extends VirtualUniverse {
 	private static final Color3f POINT_LIGHT_COLOR = new Color3f(1.0f, 1.0f, 1.0f);
 	private static final Point3f POINT_LIGHT_POSITION = new Point3f(999f, 100f, 999f);
 	private static final Point3f POINT_LIGHT_ATTENUATION = new Point3f(1.0f, 0.0f, 0.0f);
-	private static final String BG_IMAGE = "/media/stars.jpg";
+	static final String BG_IMAGE = "/media/stars.jpg";
 
 
 	/** Creates a new universe. */
@@ -37,7 +38,7 @@ public class Universe extends VirtualUniverse {
 		worldLight = new BranchGroup();
 
 		if (Application.getSettings().backgroundImageEnabled()) {
-			viewGroup.addChild(new SkyBox(getClass().getResource(BG_IMAGE), 100f));
+			viewGroup.addChild(new SkyBox(AssetPack.getResource(BG_IMAGE), 100f));
 		}
 
 		Light aL = new AmbientLight(AMBIENT_LIGHT_COLOR);
@@ -62,16 +63,24 @@ public class Universe extends VirtualUniverse {
 		}
 	}
 
-	/** Sets the model group for this universe. */
+	/**
+	 * Sets the model group for this universe. The current model
+	 * is kept if the new one cannot be created.
+	 */
 	public void setModel(ModelFactory modelFactory) {
+		Model newModel = modelFactory.createModel();
 		if (model != null) {
 			model.stop();
 			locale.removeBranchGraph(model.getModelGroup());
+			model.dispose();
+			control.unregister();
 			if (Application.getSettings().resetCamreaOnRestart()) {
 				resetCameraPosition();
 			}
 		}
-		model = modelFactory.createModel();
+		model = newModel;
+		MetricsServer.watch(model);
+		control = ModelControl.register(model);
 		model.getModelGroup().compile();
 		locale.addBranchGraph(model.getModelGroup());
 
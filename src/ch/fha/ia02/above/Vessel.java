@@ -1,7 +1,6 @@
 package ch.fha.ia02.above;
 
 import java.io.*;
-import java.awt.Color;
 import java.net.URL;
 import javax.media.j3d.*;
 import javax.vecmath.*;
@@ -28,75 +27,28 @@ public class Vessel{
 	 */
 	private boolean autoOriented = false;
 
+	/** Identifies this vessel type, see {@link VesselCatalog}. */
+	private int id;
 
-	public static Vessel TIEB = new Vessel(
-			"TIE-Bomber",
-			new Starfighter.Stats(6, 5000, 200, 320),
-			null,
-			"/media/3d/TIEB/tie bomber.3ds", 0.0025f);
-	public static Vessel TIED = new Vessel(
-			"TIE-Defender",
-			new Starfighter.Stats(7, 5000, 200, 620),
-			null,
-			"/media/3d/TIED/tie defender.3ds", 0.0012f);
-	public static Vessel TIEF = new Vessel(
-			"TIE-Fighter",
-			new Starfighter.Stats(6, 10000, 200, 400),
-			null,
-			"/media/3d/TIEF/tie fighter.3ds", 0.015f);
-	public static Vessel TIEI = new Vessel(
-			"TIE-Interceptor",
-			new Starfighter.Stats(6.23f, 5000, 200, 500),
-			null,
-			"/media/3d/TIEI/tiei.3ds", 0.018f);
-	public static Vessel GUNBOAT = new Vessel(
-			"Imperial Gunboat",
-			new Starfighter.Stats(16, 5000, 200, 360),
-			null,
-			"/media/3d/GUNBOAT/imperial gunboat.3ds", 0.0018f);
-	public static Vessel LAMBDASHUTTLE = new Vessel(
-			"Lambda Shuttle",
-			new Starfighter.Stats(20, 5000, 200, 260),
-			null,
-			"/media/3d/LAMBDASHUTTLE/lambda.3ds", 0.005f);
-	public static Vessel SSSD = new Vessel(
-			"Sovereign Super Star Destroyer",
-			new AgentStats(15000, 1000000, 1, 20),
-			null,
-			"/media/3d/SSSD/sssd.3ds", 0.004f);
-	public static Vessel ISD = new Vessel(
-			"Imperial Star Destroyer",
-			new AgentStats(1600, 1000000, 1, 40),
-			null,
-			"/media/3d/ISD/isd.3ds", 0.02f);
-
-
-
-	public static Vessel AWING = new Vessel(
-			"A-Wing",
-			new Starfighter.Stats(9.5f, 10000, 100, 480),
-			null,
-			"/media/3d/AWING/awing.3ds", 0.12f);
-	public static Vessel BWING = new Vessel(
-			"B-Wing",
-			new Starfighter.Stats(17, 10000, 100, 360),
-			null,
-			"/media/3d/BWING/bwing.3ds", 0.007f);
-	public static Vessel EWING = new Vessel(
-			"E-Wing",
-			new Starfighter.Stats(11, 10000, 100, 380),
-			null,
-			"/media/3d/EWING/ewing.3ds", 0.0011f);
-	public static Vessel XWING = new Vessel(
-			"X-Wing",
-			new Starfighter.Stats(12.5f, 10000, 100, 400, Color.RED),
-			null,
-			"/media/3d/XWING/xwing.3ds", 0.00225f);
-	public static Vessel YWING = new Vessel(
-			"Y-Wing",
-			new Starfighter.Stats(16, 10000, 100, 320),
-			null,
-			"/media/3d/YWING/ywing.3ds", 0.007f);
+
+	static {
+		VesselCatalog.load(); // registers the standard types before they are looked up
+	}
+
+	public static Vessel TIEB = VesselCatalog.get("TIEB");
+	public static Vessel TIED = VesselCatalog.get("TIED");
+	public static Vessel TIEF = VesselCatalog.get("TIEF");
+	public static Vessel TIEI = VesselCatalog.get("TIEI");
+	public static Vessel GUNBOAT = VesselCatalog.get("GUNBOAT");
+	public static Vessel LAMBDASHUTTLE = VesselCatalog.get("LAMBDASHUTTLE");
+	public static Vessel SSSD = VesselCatalog.get("SSSD");
+	public static Vessel ISD = VesselCatalog.get("ISD");
+
+	public static Vessel AWING = VesselCatalog.get("AWING");
+	public static Vessel BWING = VesselCatalog.get("BWING");
+	public static Vessel EWING = VesselCatalog.get("EWING");
+	public static Vessel XWING = VesselCatalog.get("XWING");
+	public static Vessel YWING = VesselCatalog.get("YWING");
 
 
 
@@ -149,6 +101,14 @@ public class Vessel{
 		this.file = file;
 		this.scale = scale;
 		this.autoOriented = autoOriented;
+		this.id = VesselCatalog.register(this);
+	}
+
+	/**
+	 * Ensures the standard vessel types are loaded
+	 * by initializing this class, called by the {@link VesselCatalog}.
+	 */
+	static void loadCatalog() {
 	}
 
 
@@ -191,6 +151,16 @@ public class Vessel{
 	}
 
 
+	/**
+	 * Returns the ID of this vessel type. IDs are assigned densely from 0
+	 * by the {@link VesselCatalog}, so they may be used as array indices.
+	 * Vessels with the same values have the same ID.
+	 */
+	public int getId() {
+		return id;
+	}
+
+
 	/**
 	 * Indicates whether some other object is "equal to" this one.
 	 * @return <tt>true</tt> if <var>o</var> has the same values as this one.
@@ -201,9 +171,23 @@ public class Vessel{
 
 	/**
 	 * Indicates whether some other object is "equal to" this one.
+	 * Compares the IDs only, as equal vessels share their ID.
 	 * @return <tt>true</tt> if <var>v</var> has the same values as this one.
 	 */
 	public boolean equals(Vessel v) {
+		return v != null && id == v.id;
+	}
+
+	/** Returns a hash code value for the object. */
+	public int hashCode() {
+		return id;
+	}
+
+	/**
+	 * Compares the values of two vessels,
+	 * used to assign the same ID to equal vessels.
+	 */
+	boolean equalValues(Vessel v) {
 		return this == v || (
 			v != null &&
 			eq(name, v.name) &&
@@ -217,8 +201,8 @@ public class Vessel{
 		return a == b || a != null && a.equals(b);
 	}
 
-	/** Returns a hash code value for the object. */
-	public int hashCode() {
+	/** Returns a hash code of the values compared by {@link #equalValues(Vessel)}. */
+	int valueHash() {
 		int h = safehash(name);
 		h = h*17 + safehash(stats);
 		h = h*17 + safehash(collisionBound);
@@ -234,7 +218,8 @@ public class Vessel{
 	/** Returns a string representation of this object. */
 	public String toString() {
 		return getClass().getName()
-			+ "[name=" + name
+			+ "[id=" + id
+			+ ", name=" + name
 			+ ", file=" + file
 			+ ", scale=" + scale
 			+ ", autoOriented=" + autoOriented
@@ -0,0 +1,197 @@
+package ch.fha.ia02.above;
+
+import java.awt.Color;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Registry of all vessel types, which assigns each type a dense
+ * integer ID. Caches index arrays by this ID instead of hashing and
+ * comparing vessels field by field.
+ * <p>
+ * Each vessel is registered when it is created. Vessels with the same
+ * values, like those read from a {@link ModelSnapshot}, get the same ID
+ * and are thus {@linkplain Vessel#equals(Vessel) equal}.
+ * <p>
+ * The standard vessel types are read from the data file <tt>vessels.txt</tt>
+ * in this package, which also describes its format. More types may be
+ * added without changing code by a file specified by the system property
+ * <tt>above.vessels</tt>.
+ *
+ * @author Thomas Gerstendoerfer
+ *
+ * @see Vessel#getId()
+ */
+public class VesselCatalog
+{
+	/** Name of the data file with the standard types. */
+	private static final String CATALOG = "vessels.txt";
+
+	/** System property specifying a file with additional types. */
+	public static final String FILE_PROPERTY = "above.vessels";
+
+	/** All registered vessels, by ID. */
+	private static java.util.List<Vessel> types = new ArrayList<Vessel>();
+
+	/** Registered vessels by hash code of their values, to find equal ones. */
+	private static Map<Integer, java.util.List<Vessel>> byValue = new HashMap<Integer, java.util.List<Vessel>>();
+
+	/** The vessels listed in the data files, by key. */
+	private static Map<String, Vessel> byKey = new LinkedHashMap<String, Vessel>();
+
+	/** Set once the data files are read. */
+	private static boolean loaded = false;
+
+
+	/** Private to avoid instantiation. */
+	private VesselCatalog() {
+	}
+
+
+	/**
+	 * Reads the data files, called when the <tt>Vessel</tt> class is
+	 * initialized so its constants can refer to the standard types.
+	 */
+	static synchronized void load() {
+		if (loaded) return;
+		loaded = true;
+		try {
+			InputStream in = VesselCatalog.class.getResourceAsStream(CATALOG);
+			if (in == null) throw new FileNotFoundException(CATALOG);
+			read(new InputStreamReader(in, "UTF-8"), CATALOG);
+			String file = System.getProperty(FILE_PROPERTY);
+			if (file != null) {
+				read(new FileReader(file), file);
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Cannot read vessel catalog: " + e);
+		}
+	}
+
+
+	/**
+	 * Registers a vessel, called when it is created.
+	 *
+	 * @return the ID of the vessel, which is the ID of an equal
+	 *         vessel if one was registered already.
+	 */
+	static synchronized int register(Vessel v) {
+		Integer hash = Integer.valueOf(v.valueHash());
+		java.util.List<Vessel> candidates = byValue.get(hash);
+		if (candidates == null) {
+			byValue.put(hash, candidates = new ArrayList<Vessel>(1));
+		}
+		for (Vessel c : candidates) {
+			if (c.equalValues(v)) return c.getId();
+		}
+		candidates.add(v);
+		types.add(v);
+		return types.size() - 1;
+	}
+
+
+	/**
+	 * Returns the vessel with an ID.
+	 * @throws IndexOutOfBoundsException if there is no such vessel.
+	 */
+	public static synchronized Vessel get(int id) {
+		return types.get(id);
+	}
+
+	/**
+	 * Returns the number of registered vessels,
+	 * which is larger than the highest ID.
+	 */
+	public static synchronized int size() {
+		return types.size();
+	}
+
+	/**
+	 * Returns a vessel type listed in the data files.
+	 *
+	 * @param key the key of the type, like <tt>XWING</tt>.
+	 * @return the vessel type.
+	 * @throws IllegalArgumentException if there is no such type.
+	 */
+	public static Vessel get(String key) {
+		Vessel.loadCatalog();
+		synchronized (VesselCatalog.class) {
+			Vessel v = byKey.get(key);
+			if (v == null) throw new IllegalArgumentException("Unknown vessel type " + key);
+			return v;
+		}
+	}
+
+	/** Returns the vessel types listed in the data files, in their order. */
+	public static Vessel[] getTypes() {
+		Vessel.loadCatalog();
+		synchronized (VesselCatalog.class) {
+			return byKey.values().toArray(new Vessel[byKey.size()]);
+		}
+	}
+
+
+	/**
+	 * Reads vessel types from a data file.
+	 *
+	 * @param r reads the data file, closed when done.
+	 * @param source name of the file, for error messages.
+	 */
+	private static void read(Reader r, String source) throws IOException {
+		BufferedReader in = new BufferedReader(r);
+		try {
+			String line;
+			int n = 0;
+			while ((line = in.readLine()) != null) {
+				n++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				try {
+					parse(line);
+				}
+				catch (RuntimeException e) {
+					throw new IOException(source + ", line " + n + ": " + e.getMessage());
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/** Parses a line of a data file and registers its vessel. */
+	private static void parse(String line) {
+		String[] f = line.split("\\|");
+		if (f.length < 9) throw new IllegalArgumentException("Expected at least 9 fields");
+		for (int i=0; i<f.length; i++) {
+			f[i] = f[i].trim();
+		}
+		String key = f[0];
+		String name = f[1];
+		String kind = f[2];
+		float length = Float.parseFloat(f[3]);
+		float mass = Float.parseFloat(f[4]);
+		float vmin = Float.parseFloat(f[5]);
+		float vmax = Float.parseFloat(f[6]);
+		String file = f[7];
+		float scale = Float.parseFloat(f[8]);
+		Color color = (f.length > 9 && f[9].length() > 0) ? Color.decode(f[9]) : null;
+
+		Vessel v;
+		if ("starfighter".equals(kind)) {
+			Starfighter.Stats stats = (color != null)
+				? new Starfighter.Stats(length, mass, vmin, vmax, color)
+				: new Starfighter.Stats(length, mass, vmin, vmax);
+			v = new Vessel(name, stats, null, file, scale);
+		} else if ("capital".equals(kind)) {
+			v = new Vessel(name, new AgentStats(length, mass, vmin, vmax), null, file, scale);
+		} else if ("sprite".equals(kind)) {
+			v = new Vessel(name, new AgentStats(length, mass, vmin, vmax), null, file, scale, true);
+		} else {
+			throw new IllegalArgumentException("Unknown kind of vessel " + kind);
+		}
+		if (byKey.containsKey(key)) throw new IllegalArgumentException("Duplicate vessel type " + key);
+		byKey.put(key, v);
+	}
+}
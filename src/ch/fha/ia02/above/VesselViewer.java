@@ -17,23 +17,8 @@ import com.sun.j3d.utils.geometry.*;
  */
 public class VesselViewer extends ViewerFrame {
 
-	private Action[] vesselSelectors = {
-		new VesselSelectorAction(Vessel.TIEB),
-		new VesselSelectorAction(Vessel.TIED),
-		new VesselSelectorAction(Vessel.TIEF),
-		new VesselSelectorAction(Vessel.TIEI),
-		new VesselSelectorAction(Vessel.ISD),
-		new VesselSelectorAction(Vessel.SSSD),
-
-		new VesselSelectorAction(Vessel.AWING),
-		new VesselSelectorAction(Vessel.BWING),
-		new VesselSelectorAction(Vessel.EWING),
-		new VesselSelectorAction(Vessel.XWING),
-		new VesselSelectorAction(Vessel.YWING),
-
-		new VesselSelectorAction(Vessel.GUNBOAT),
-		new VesselSelectorAction(Vessel.LAMBDASHUTTLE),
-	};
+	/** Selects one of the vessel types in the catalog, except sprites. */
+	private Action[] vesselSelectors = createVesselSelectors();
 
 
 	// 3D stuff
@@ -132,6 +117,18 @@ public class VesselViewer extends ViewerFrame {
 
 
 
+	/** Creates an action for each vessel type with a mesh. */
+	private Action[] createVesselSelectors() {
+		java.util.List<Action> actions = new java.util.ArrayList<Action>();
+		Vessel[] types = VesselCatalog.getTypes();
+		for (int i=0; i<types.length; i++) {
+			if (!types[i].isAutoOriented()) {
+				actions.add(new VesselSelectorAction(types[i]));
+			}
+		}
+		return actions.toArray(new Action[actions.size()]);
+	}
+
 	/** Selects and displays a vessel when invoked. */
 	public class VesselSelectorAction extends AbstractAction {
 
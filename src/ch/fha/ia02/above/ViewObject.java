@@ -33,15 +33,20 @@ public class ViewObject extends BranchGroup {
 
 	private Vector3f vo, vp, vu;
 	private Appearance app = new Appearance();
-	private Node shape;
 	private Vessel vessel;
 
+	/** Contains the current shape, either a placeholder or the detailed shape. */
+	private BranchGroup shapeGroup;
+
+	/** Set while this object holds a reference to the detailed shapes. */
+	private boolean detailed = false;
+
 	private static TransparencyAttributes boundsTransparency =
 		new TransparencyAttributes(TransparencyAttributes.FASTEST, 0.7f);
 
 	/** Mark colliding objects if set to true. */
 	private static boolean showCollisionColor =
-		Application.getSettings().showCollisionColor();
+		Settings.snapshot().showCollisionColor();
 
 
 	/**
@@ -55,36 +60,33 @@ public class ViewObject extends BranchGroup {
 		this.addChild(tg);
 		this.agent = agent;
 		this.vessel = vessel;
-		SharedGroup sg;
-		if (Application.getSettings().detailedShapes() &&
-			(sg = ShapeCache.getShape(vessel)) != null) {
-			shape = new Link(sg);
-		} else {
-			SimpleShip simpleShip = new SimpleShip(vessel.getLength());
-			Appearance simpleAppearance = new Appearance();
-			Color3f lightcolor = new Color3f(agent.faction.getColor());
-			lightcolor.scale(0.6f);
-			Material m = new Material(
-				agent.faction.getColor(),
-				lightcolor,
-				agent.faction.getColor(),
-				lightcolor,
-				128);
-			m.setLightingEnable(true);
-			simpleAppearance.setMaterial(m);
-			simpleShip.setAppearance(simpleAppearance);
-			simpleShip.setCollisionBounds(vessel.getCollisionBounds());
-
-			shape = simpleShip;
-		}
-
 		tg.setCapability(TransformGroup.ALLOW_TRANSFORM_WRITE);
+		tg.setCapability(Group.ALLOW_CHILDREN_EXTEND);
+		tg.setCapability(Group.ALLOW_CHILDREN_WRITE);
 		setCapability(Node.ENABLE_COLLISION_REPORTING);
 		setCapability(BranchGroup.ALLOW_DETACH);
 
-		tg.addChild(shape);
+		Settings.Snapshot settings = Settings.snapshot();
+
+		// the detailed shape replaces the placeholder once loaded,
+		// which may happen immediately if it is loaded already
+		if (settings.detailedShapes()) {
+			detailed = true;
+			ShapeCache.requestShapes(vessel, new ShapeListener() {
+				public void shapesLoaded(Vessel v, SharedGroup[] levels) {
+					if (levels != null) {
+						setShape(createDetailedShape(levels));
+					}
+				}
+			});
+		}
+		synchronized (this) {
+			if (shapeGroup == null) {
+				setShape(createSimpleShape());
+			}
+		}
 
-		if (Application.getSettings().showCollisionSpheres()) {
+		if (settings.showCollisionSpheres()) {
 			app.setTransparencyAttributes(boundsTransparency);
 			Material mat = new Material(
 				agent.faction.getColor(),
@@ -118,6 +120,79 @@ public class ViewObject extends BranchGroup {
 		//addChild(new CollisionDetector(this));
 	}
 
+	/**
+	 * Replaces the current shape, even if this object is live.
+	 *
+	 * @param group a branch group containing the new shape.
+	 */
+	private synchronized void setShape(BranchGroup group) {
+		group.setCapability(BranchGroup.ALLOW_DETACH);
+		tg.addChild(group);
+		if (shapeGroup != null) {
+			shapeGroup.detach();
+		}
+		shapeGroup = group;
+	}
+
+	/**
+	 * Creates a simple shape in the colour of the agent's faction,
+	 * used if no detailed shapes are available.
+	 */
+	private BranchGroup createSimpleShape() {
+		SimpleShip simpleShip = new SimpleShip(vessel.getLength());
+		Appearance simpleAppearance = new Appearance();
+		Color3f lightcolor = new Color3f(agent.faction.getColor());
+		lightcolor.scale(0.6f);
+		Material m = new Material(
+			agent.faction.getColor(),
+			lightcolor,
+			agent.faction.getColor(),
+			lightcolor,
+			128);
+		m.setLightingEnable(true);
+		simpleAppearance.setMaterial(m);
+		simpleShip.setAppearance(simpleAppearance);
+		simpleShip.setCollisionBounds(vessel.getCollisionBounds());
+
+		BranchGroup group = new BranchGroup();
+		group.addChild(simpleShip);
+		return group;
+	}
+
+	/**
+	 * Creates the detailed shape from its levels of detail. If there is
+	 * more than one level, a distance LOD behavior selects the level
+	 * according to the distance to the viewer.
+	 *
+	 * @param levels the levels of detail, finest first.
+	 */
+	private BranchGroup createDetailedShape(SharedGroup[] levels) {
+		BranchGroup group = new BranchGroup();
+		if (levels.length == 1) {
+			group.addChild(new Link(levels[0]));
+			return group;
+		}
+
+		Switch sw = new Switch(0);
+		sw.setCapability(Switch.ALLOW_SWITCH_WRITE);
+		for (int i=0; i<levels.length; i++) {
+			sw.addChild(new Link(levels[i]));
+		}
+
+		float[] distances = new float[levels.length - 1];
+		float d = vessel.getLength() * Settings.snapshot().getDetailDistance();
+		for (int i=0; i<distances.length; i++) {
+			distances[i] = d;
+			d *= 4;
+		}
+		DistanceLOD lod = new DistanceLOD(distances);
+		lod.addSwitch(sw);
+		lod.setSchedulingBounds(WorldBehavior.INFINIT_BOUNDS);
+		group.addChild(sw);
+		group.addChild(lod);
+		return group;
+	}
+
 	/**
 	 * Sets the objects position, orientation and collisioncolor (in a
 	 * further version also the "up" vector.
@@ -183,6 +258,23 @@ public class ViewObject extends BranchGroup {
 		return agent;
 	}
 
+	/** Returns the vessel type this object is drawn as. */
+	public Vessel getVessel() {
+		return vessel;
+	}
+
+	/**
+	 * Releases the detailed shapes used by this object, so they
+	 * can be evicted from the {@link ShapeCache}. Called when the
+	 * model is no longer shown.
+	 */
+	public void dispose() {
+		if (detailed) {
+			detailed = false;
+			ShapeCache.release(vessel);
+		}
+	}
+
 	/**
 	 * Detaches this object from the scene graph and
 	 * invokes the explosion animation.